@@ -1,6 +1,7 @@
 package org.kendar.sync.client;
 
 import org.kendar.sync.lib.protocol.BackupType;
+import org.kendar.sync.lib.utils.ContentHasher;
 import org.kendar.sync.lib.utils.Sleeper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -9,6 +10,8 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.net.InetAddress;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
 
 import static java.lang.System.exit;
@@ -124,6 +127,11 @@ public class SyncClientApp {
                         commandLineArgs.setMaxConnections(Integer.parseInt(args[++i]));
                     }
                     break;
+                case "--scan-threads":
+                    if (i + 1 < args.length) {
+                        commandLineArgs.setScanThreads(Integer.parseInt(args[++i]));
+                    }
+                    break;
                 case "--size":
                 case "-z":
                     if (i + 1 < args.length) {
@@ -187,6 +195,34 @@ public class SyncClientApp {
                         commandLineArgs.getIgnoredPatterns().add(args[++i]);
                     }
                     break;
+                case "--hash":
+                    if (i + 1 < args.length) {
+                        String hashArg = args[++i];
+                        if (hashArg.equalsIgnoreCase("none")) {
+                            commandLineArgs.setHashAlgorithm(null);
+                        } else if (ContentHasher.isSupported(hashArg)) {
+                            commandLineArgs.setHashAlgorithm(hashArg.toLowerCase());
+                        } else {
+                            log.error("[CLIENT] Invalid hash algorithm: {}", hashArg);
+                            log.error("[CLIENT] Valid algorithms are: crc32c, sha256, none");
+                        }
+                    }
+                    break;
+                case "--point-in-time":
+                    if (i + 1 < args.length) {
+                        String dateArg = args[++i];
+                        try {
+                            commandLineArgs.setPointInTime(LocalDate.parse(dateArg).toString());
+                        } catch (DateTimeParseException e) {
+                            log.error("[CLIENT] Invalid point in time: {}, expected yyyy-MM-dd", dateArg);
+                        }
+                    }
+                    break;
+                case "--state-folder":
+                    if (i + 1 < args.length) {
+                        commandLineArgs.setStateFolder(args[++i]);
+                    }
+                    break;
                 case "--type":
                     if (i + 1 < args.length) {
                         String typeArg = args[++i].toUpperCase();
@@ -194,7 +230,7 @@ public class SyncClientApp {
                             commandLineArgs.setBackupType(BackupType.valueOf(typeArg));
                         } catch (IllegalArgumentException e) {
                             log.error("[CLIENT] Invalid backup type: {}", typeArg);
-                            log.error("[CLIENT] Valid types are: PRESERVE, MIRROR, DATE_SEPARATED");
+                            log.error("[CLIENT] Valid types are: PRESERVE, MIRROR, DATE_SEPARATED, SNAPSHOT");
                         }
                     }
                     break;
@@ -217,6 +253,7 @@ public class SyncClientApp {
         System.out.println("  --restore, -r                   Perform restore");
         System.out.println("  --conn, -c                      Max connections");
         System.out.println("  --size, -z                      Max packet size in bytes");
+        System.out.println("  --scan-threads <count>          Entries read in parallel when scanning (default: 8)");
         System.out.println("  --server <address>              Server address");
         System.out.println("  --port, -p <port>               Server port (default: 8090)");
         System.out.println("  --username, -u <username>       Username for authentication");
@@ -227,7 +264,10 @@ public class SyncClientApp {
         System.out.println("  --ignore-pattern, -ip <pattern> Ignore pattern (multiple)");
         System.out.println("                                  * Java regex @pattern");
         System.out.println("                                  * Contains pattern");
-        System.out.println("  --type <type>               Backup type: PRESERVE, MIRROR, DATE_SEPARATED (default: PRESERVE)");
+        System.out.println("  --hash <algorithm>              Content hash: crc32c, sha256 (also skips unchanged files), none (default: crc32c)");
+        System.out.println("  --point-in-time <yyyy-MM-dd>    Restore the versions stored at a date (DATE_SEPARATED, SNAPSHOT)");
+        System.out.println("  --state-folder <folder>         State of the previous backups (default: ~/.sync-client)");
+        System.out.println("  --type <type>               Backup type: PRESERVE, MIRROR, DATE_SEPARATED, SNAPSHOT (default: PRESERVE)");
     }
 
 }
@@ -1,20 +1,22 @@
 package org.kendar.sync.client;
 
 import org.kendar.sync.lib.model.FileInfo;
+import org.kendar.sync.lib.network.SocketOptions;
 import org.kendar.sync.lib.network.TcpConnection;
 import org.kendar.sync.lib.protocol.*;
 import org.kendar.sync.lib.utils.Attributes;
+import org.kendar.sync.lib.utils.BlockReader;
+import org.kendar.sync.lib.utils.ContentHasher;
+import org.kendar.sync.lib.utils.DirectoryScanner;
 import org.kendar.sync.lib.utils.FileUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.net.Socket;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.FileTime;
 import java.util.List;
 import java.util.concurrent.*;
@@ -30,7 +32,7 @@ public abstract class BaseSyncClientProcess<T extends BaseSyncClientProcess> {
     }
 
     public void close(){
-        executorService.shutdown();
+        if (executorService != null) executorService.shutdown();
     }
 
     public boolean isRunning() {
@@ -40,34 +42,21 @@ public abstract class BaseSyncClientProcess<T extends BaseSyncClientProcess> {
     private static final Logger log = LoggerFactory.getLogger(BaseSyncClientProcess.class);
 
     /**
-     * Recursively scans a directory and adds all files to the list.
+     * Recursively scans a directory and adds all files to the list, the directory first
+     * and its children sorted by name.
      *
      * @param directory         The directory to scan
      * @param basePath          The base path for calculating relative paths
      * @param files             The list to add files to
      * @param ignoreHiddenFiles
      * @param ignoreSystemFiles
+     * @param parallelism       The number of entries read in parallel
      * @throws IOException If an I/O error occurs
      */
-    protected void scanDirectory(File directory, String basePath, List<FileInfo> files, boolean ignoreHiddenFiles, boolean ignoreSystemFiles) throws IOException {
-        // Add the directory itself
-        files.add(FileInfo.fromFile(directory, basePath));
-
-        // Scan all files and subdirectories
-        File[] children = directory.listFiles();
-        if (children != null) {
-            for (File child : children) {
-                if(child.isHidden() && ignoreHiddenFiles) continue;
-                var attr = FileUtils.readFileAttributes(child.toPath());
-                if(attr.isSymbolicLink()) continue;
-                if(child.getName().startsWith(".") && ignoreSystemFiles) continue;
-                if (child.isDirectory()) {
-                    scanDirectory(child, basePath, files, ignoreHiddenFiles, ignoreSystemFiles);
-                } else {
-                    files.add(FileInfo.fromFile(child, basePath));
-                }
-            }
-        }
+    protected void scanDirectory(File directory, String basePath, List<FileInfo> files, boolean ignoreHiddenFiles,
+                                 boolean ignoreSystemFiles, int parallelism) throws IOException {
+        var scanner = new DirectoryScanner(parallelism, ignoreHiddenFiles, ignoreSystemFiles);
+        files.addAll(scanner.scan(directory.toPath(), Path.of(basePath)));
     }
 
     /**
@@ -76,9 +65,10 @@ public abstract class BaseSyncClientProcess<T extends BaseSyncClientProcess> {
      * @param file       The file to transfer
      * @param args       The command line arguments
      * @param connection The connection
+     * @return True if the server stored the file
      * @throws IOException If an I/O error occurs
      */
-    protected void transferFile(FileInfo file, CommandLineArgs args, TcpConnection connection) throws IOException {
+    protected boolean transferFile(FileInfo file, CommandLineArgs args, TcpConnection connection) throws IOException {
         file.setPath(Path.of(args.getSourceFolder().toString(),file.getRelativePath()).toString());
         String threadName = Thread.currentThread().getName();
         var connectionId = connection.getConnectionId();
@@ -92,7 +82,20 @@ public abstract class BaseSyncClientProcess<T extends BaseSyncClientProcess> {
             }
         }
 
-        // Create the new connection to the server
+        // The hash stored on the server, when the stored copy may be identical
+        var storedHash = file.getHash();
+        file.setHash(null);
+
+        // The small files travel inside their descriptor, in a single round trip, when the server accepts them
+        if (!args.isDryRun() && !Attributes.isDirectory(file.getExtendedUmask())
+                && connection.getProtocolVersion() >= ProtocolVersion.V7 && connection.getInlineThreshold() > 0
+                && file.getSize() <= connection.getInlineThreshold()
+                && !isStoredCopyIdentical(file, storedHash)) {
+            var content = Files.readAllBytes(Path.of(file.getPath()));
+            if (content.length <= connection.getInlineThreshold()) {
+                return transferInline(file, args, connection, content);
+            }
+        }
 
         // Send file descriptor
         FileDescriptorMessage fileDescriptorMessage = new FileDescriptorMessage(file);
@@ -101,61 +104,69 @@ public abstract class BaseSyncClientProcess<T extends BaseSyncClientProcess> {
         Message response = connection.receiveMessage();
         if (response.getMessageType() != MessageType.FILE_DESCRIPTOR_ACK) {
             log.error("[CLIENT-{}] Unexpected response: {}", connectionId, response.getMessageType());
-            return;
+            return false;
         }
 
         FileDescriptorAckMessage fileDescriptorAck = (FileDescriptorAckMessage) response;
         if (!fileDescriptorAck.isReady()) {
             log.error("[CLIENT-{}] Server not ready to receive file: {}", connectionId, fileDescriptorAck.getErrorMessage());
-            return;
+            return false;
         }
 
         // If it's a directory, no need to send data
         if (Attributes.isDirectory(file.getExtendedUmask())) {
             log.debug("[CLIENT-{}] Created directory: {}", connectionId, file.getRelativePath());
-            return;
+            return true;
         }
 
         // Send file data
-        if (!args.isDryRun()) {
+        if (!args.isDryRun() && isStoredCopyIdentical(file, storedHash)) {
+            log.debug("[CLIENT-{}] Content unchanged, sending only the attributes of {}", connectionId, file.getRelativePath());
+            file.setHash(storedHash);
+        } else if (!args.isDryRun()) {
             File sourceFile = new File(Path.of(args.getSourceFolder(), file.getRelativePath()).toString());
+            var hasher = args.getHashAlgorithm() != null ? ContentHasher.create(args.getHashAlgorithm()) : null;
             long fileSize = sourceFile.length();
             int maxPacketSize = connection.getMaxPacketSize();
 
             // Calculate how many blocks we need to send
-            int totalBlocks = (int) Math.ceil((double) fileSize / maxPacketSize);
-            if (totalBlocks == 0) totalBlocks = 1; // Ensure at least one block for empty files
+            int totalBlocks = Math.max(1, (int) Math.ceil((double) fileSize / maxPacketSize));
 
             log.debug("[CLIENT-{}] Sending file {} in {} blocks ({} bytes)", connectionId, file.getRelativePath(), totalBlocks, fileSize);
 
-            try (java.io.FileInputStream fis = new java.io.FileInputStream(sourceFile)) {
-                byte[] buffer = new byte[maxPacketSize];
+            // The next blocks are read and compressed in parallel while the current one is sent
+            try (var reader = new BlockReader<FileDataMessage>(sourceFile, maxPacketSize, BlockReader.DEFAULT_MMAP_THRESHOLD,
+                    (blockNumber, blockData) -> {
+                        var fileDataMessage = new FileDataMessage(file.getRelativePath(), blockNumber, totalBlocks, blockData);
+                        // The server can store the compressed block as received
+                        if (connection.getProtocolVersion() >= ProtocolVersion.V5) {
+                            fileDataMessage.compress();
+                        }
+                        connection.prepareMessage(fileDataMessage);
+                        return fileDataMessage;
+                    })) {
                 int blockNumber = 0;
-                int bytesRead;
-
-                while ((bytesRead = fis.read(buffer)) != -1) {
+                FileDataMessage fileDataMessage;
+                while ((fileDataMessage = reader.next()) != null) {
                     if(!isRunning()) {
                         log.debug("[CLIENT-{}] Client stopped 2: stopping file transfer for {}", connectionId, file.getRelativePath());
-                        return;
+                        return false;
                     }
-                    // If we read less than the buffer size, create a smaller array with just the data
-                    byte[] blockData = bytesRead == buffer.length ? buffer : java.util.Arrays.copyOf(buffer, bytesRead);
-
-                    FileDataMessage fileDataMessage = new FileDataMessage(
-                            file.getRelativePath(), blockNumber, totalBlocks, blockData);
+                    if (hasher != null) hasher.update(fileDataMessage.getRawData());
                     connection.sendMessage(fileDataMessage);
 
                     var fileAck = connection.receiveMessage();
                     if (fileAck.getMessageType() != MessageType.FILE_DATA_ACK) {
                         log.error("[CLIENT-{}] Unexpected response 9: {}", connectionId, response.getMessageType());
-                        return;
+                        return false;
                     }
 
-                    log.debug("[CLIENT-{}] Sent block {} of {} ({} bytes)", connectionId, blockNumber + 1, totalBlocks, blockData.length);
+                    log.debug("[CLIENT-{}] Sent block {} of {}", connectionId, blockNumber + 1, totalBlocks);
 
                     blockNumber++;
                 }
             }
+            if (hasher != null) file.setHash(hasher.digest());
         } else {
             log.debug("[CLIENT-{}] Dry run: Would send file data for {}", connectionId, file.getRelativePath());
         }
@@ -169,154 +180,90 @@ public abstract class BaseSyncClientProcess<T extends BaseSyncClientProcess> {
         response = connection.receiveMessage();
         if (response.getMessageType() != MessageType.FILE_END_ACK) {
             log.error("[CLIENT-{}] Unexpected response: {}", connectionId, response.getMessageType());
-            return;
+            return false;
         }
 
         FileEndAckMessage fileEndAck = (FileEndAckMessage) response;
         if (!fileEndAck.isSuccess()) {
             log.error("[CLIENT-{}] File transfer failed: {}", connectionId, fileEndAck.getErrorMessage());
-            return;
+            return false;
         }
 
         log.debug("[CLIENT-{}] Transferred file: {}", connectionId, file.getRelativePath());
+        return true;
 
     }
 
-    protected void performSingleFileRestore(CommandLineArgs args, ConcurrentLinkedQueue<TcpConnection> connections, ConcurrentHashMap<String, FileInfo> mapToTransfer, Semaphore semaphore, CountDownLatch completionLatch) {
-        TcpConnection currentConnection = null;
-        FileInfo fileInfo = null;
+    /**
+     * Checks if the local file has the same content of the copy stored on the server.
+     *
+     * @param file       The file to send
+     * @param storedHash The hash of the stored copy, can be null
+     * @return True if the content does not need to be sent
+     */
+    private boolean isStoredCopyIdentical(FileInfo file, String storedHash) {
+        // A matching checksum does not prove the content is the same
+        if (!ContentHasher.isCollisionResistant(storedHash)) return false;
+        var algorithm = ContentHasher.algorithmOf(storedHash);
         try {
-            if(!isRunning()){
-                close();
-                return;
-            }
-            currentConnection = connections.poll();
-            if (currentConnection == null) {
-                log.error("[CLIENT] No available connections for file transfer");
-                return;
-            }
-            // Wait for file descriptor
-            Message message = currentConnection.receiveMessage();
-            if (message == null) {
-                return;
-            }
-            if (message.getMessageType() != MessageType.FILE_DESCRIPTOR) {
-                log.error("[CLIENT] Unexpected message 1: {}", message.getMessageType());
-                return;
-            }
-
-            FileDescriptorMessage fileDescriptorMessage = (FileDescriptorMessage) message;
-            fileInfo = fileDescriptorMessage.getFileInfo();
-            if (!mapToTransfer.containsKey(FileUtils.makeUniformPath(fileInfo.getRelativePath()))) {
-                log.debug("[CLIENT] Skipping file not in transfer list: {}", fileInfo.getRelativePath());
-                // Send file descriptor ack
-                FileDescriptorAckMessage fileDescriptorAck = FileDescriptorAckMessage.ready(fileInfo.getRelativePath());
-                currentConnection.sendMessage(fileDescriptorAck);
-                return;
-            }
-
-            log.debug("[CLIENT] Receiving file: {}", fileInfo.getRelativePath());
-
-            // Create the file or directory
-            File targetFile = new File(args.getSourceFolder(), fileInfo.getRelativePath());
-            if (Attributes.isDirectory(fileInfo.getExtendedUmask())) {
-                if (!args.isDryRun()) {
-                    //noinspection ResultOfMethodCallIgnored
-                    targetFile.mkdirs();
-                } else {
-                    log.debug("[CLIENT] Dry run: Would create directory {}", targetFile.getAbsolutePath());
-                }
-
-                // Send file descriptor ack
-                FileDescriptorAckMessage fileDescriptorAck = FileDescriptorAckMessage.ready(fileInfo.getRelativePath());
-                currentConnection.sendMessage(fileDescriptorAck);
-
-                return;
-            }
-
-            // Create parent directories
-            if (!args.isDryRun()) {
-                //noinspection ResultOfMethodCallIgnored
-                targetFile.getParentFile().mkdirs();
-            } else {
-                log.debug("[CLIENT] Dry run: Would create parent directories for {}", targetFile.getAbsolutePath());
-            }
-
-            // Send file descriptor ack
-            FileDescriptorAckMessage fileDescriptorAck = FileDescriptorAckMessage.ready(fileInfo.getRelativePath());
-            currentConnection.sendMessage(fileDescriptorAck);
-
-            // Wait for file data
-            message = currentConnection.receiveMessage();
-            if (message.getMessageType() != MessageType.FILE_DATA) {
-                log.error("[CLIENT] Unexpected message 2: {}", message.getMessageType());
-                return;
-            }
-
-            FileDataMessage fileDataMessage = (FileDataMessage) message;
-
-            while (true) {
-                // Write file data
-                if (!args.isDryRun()) {
-                    // Create parent directories if needed
-                    //noinspection ResultOfMethodCallIgnored
-                    targetFile.getParentFile().mkdirs();
-
-                    // Write the data to the file
-                    try (FileOutputStream fos = new FileOutputStream(targetFile, fileDataMessage.isFirstBlock())) {
-                        fos.write(fileDataMessage.getData());
-                    }
-                } else {
-                    log.debug("[CLIENT] Dry run: Would write file data to {}", targetFile.getAbsolutePath());
-                }
-                currentConnection.sendMessage(new FileDataAck());
-                message = currentConnection.receiveMessage();
-                if (message.getMessageType() != MessageType.FILE_DATA) {
-                    if (!fileDataMessage.isLastBlock()) {
-                        log.error("[CLIENT] Unexpected message 3: {}", message.getMessageType());
-                        return;
-                    } else {
-                        break;
-                    }
-                }
-                fileDataMessage = (FileDataMessage) message;
-            }
-
-            // Wait for the file end message
-            if (message.getMessageType() != MessageType.FILE_END) {
-                log.error("[CLIENT] Unexpected message 4: {}", message.getMessageType());
-                return;
-            }
-
-            // Send file end ack
-            FileEndAckMessage fileEndAck = FileEndAckMessage.success(fileInfo.getRelativePath());
-            currentConnection.sendMessage(fileEndAck);
-
-            var realPath = targetFile.toPath();
-            var attr = Files.readAttributes(realPath, BasicFileAttributes.class);
-            FileUtils.writeFileAttributes(realPath,fileInfo.getExtendedUmask(),attr);
-            FileUtils.setFileTimes(realPath.toFile(),fileInfo.getCreationTime(), fileInfo.getModificationTime());
+            var path = Path.of(file.getPath());
+            if (Files.size(path) != file.getSize()) return false;
+            return storedHash.equals(ContentHasher.hashFile(path, algorithm));
+        } catch (IOException e) {
+            log.debug("[CLIENT] Unable to hash {}: {}", file.getRelativePath(), e.getMessage());
+            return false;
+        }
+    }
 
+    /**
+     * Sends a file inside its descriptor, the server answers with the file end ack only.
+     *
+     * @param file       The file
+     * @param args       The command line arguments
+     * @param connection The connection
+     * @param content    The whole content of the file
+     * @return True if stored by the server
+     * @throws IOException If an I/O error occurs
+     */
+    private boolean transferInline(FileInfo file, CommandLineArgs args, TcpConnection connection,
+                                   byte[] content) throws IOException {
+        var connectionId = connection.getConnectionId();
+        if (args.getHashAlgorithm() != null) {
+            var hasher = ContentHasher.create(args.getHashAlgorithm());
+            hasher.update(content);
+            file.setHash(hasher.digest());
+        }
+        log.debug("[CLIENT-{}] Sending file {} inline ({} bytes)", connectionId, file.getRelativePath(), content.length);
+        var fileDescriptorMessage = new FileDescriptorMessage(file);
+        fileDescriptorMessage.setInlineData(content);
+        connection.sendMessage(fileDescriptorMessage);
 
-            log.debug("[CLIENT] Received file: {}", fileInfo.getRelativePath());
-        } catch (Exception e) {
-            log.error("[CLIENT] Error receiving file: {}", e.getMessage());
-        } finally {
-            try {
-                if (currentConnection != null) connections.add(currentConnection);
-                if (fileInfo != null) mapToTransfer.remove(FileUtils.makeUniformPath(fileInfo.getRelativePath()));
-                completionLatch.countDown();
-                semaphore.release();
-            } catch (Exception e) {
-                log.error("[CLIENT] Error releasing resources: {}", e.getMessage());
-            }
+        var response = connection.receiveMessage();
+        if (response.getMessageType() == MessageType.FILE_DESCRIPTOR_ACK) {
+            log.error("[CLIENT-{}] Server not ready to receive file: {}", connectionId,
+                    ((FileDescriptorAckMessage) response).getErrorMessage());
+            return false;
         }
+        if (response.getMessageType() != MessageType.FILE_END_ACK) {
+            log.error("[CLIENT-{}] Unexpected response: {}", connectionId, response.getMessageType());
+            return false;
+        }
+        FileEndAckMessage fileEndAck = (FileEndAckMessage) response;
+        if (!fileEndAck.isSuccess()) {
+            log.error("[CLIENT-{}] File transfer failed: {}", connectionId, fileEndAck.getErrorMessage());
+            return false;
+        }
+        log.debug("[CLIENT-{}] Transferred file: {}", connectionId, file.getRelativePath());
+        return true;
     }
 
     protected TcpConnection getTcpConnection(TcpConnection connection,
                                              CommandLineArgs args, int i, int maxPacketSize) throws IOException {
-        Socket socket = new Socket(args.getServerAddress(), args.getServerPort());
-        return new TcpConnection(socket, connection.getSessionId(),
+        Socket socket = SocketOptions.connect(args.getServerAddress(), args.getServerPort());
+        var result = new TcpConnection(socket, connection.getSessionId(),
                 i + 1, maxPacketSize,false);
+        result.setProtocolVersion(connection.getProtocolVersion());
+        result.setInlineThreshold(connection.getInlineThreshold());
+        return result;
     }
 }
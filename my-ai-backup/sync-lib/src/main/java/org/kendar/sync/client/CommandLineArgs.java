@@ -1,7 +1,10 @@
 package org.kendar.sync.client;
 
 import org.kendar.sync.lib.protocol.BackupType;
+import org.kendar.sync.lib.utils.ContentHasher;
+import org.kendar.sync.lib.utils.DirectoryScanner;
 
+import java.nio.file.Path;
 import java.util.List;
 
 /**
@@ -25,6 +28,11 @@ public class CommandLineArgs {
     private boolean ignoreSystemFiles = true;
     private boolean ignoreHiddenFiles = true;
     private List<String> ignoredPatterns = List.of();
+    private String hashAlgorithm = ContentHasher.CRC32C;
+    private int scanThreads = DirectoryScanner.DEFAULT_PARALLELISM;
+    private String pointInTime;
+    private String resumeToken;
+    private String stateFolder = Path.of(System.getProperty("user.home"), ".sync-client").toString();
 
     public boolean isIgnoreHiddenFiles() {
         return ignoreHiddenFiles;
@@ -153,4 +161,72 @@ public class CommandLineArgs {
     public void setIgnoredPatterns(List<String> ignoredPatterns) {
         this.ignoredPatterns = ignoredPatterns;
     }
-}
\ No newline at end of file
+
+    /**
+     * Gets the algorithm used to hash the content of the transferred files.
+     *
+     * @return The algorithm, or null to not send the hashes
+     */
+    public String getHashAlgorithm() {
+        return hashAlgorithm;
+    }
+
+    public void setHashAlgorithm(String hashAlgorithm) {
+        this.hashAlgorithm = hashAlgorithm;
+    }
+
+    /**
+     * Gets the number of entries read in parallel when scanning the source folder.
+     *
+     * @return The scan threads
+     */
+    public int getScanThreads() {
+        return scanThreads;
+    }
+
+    public void setScanThreads(int scanThreads) {
+        this.scanThreads = scanThreads;
+    }
+
+    /**
+     * Gets the date of the versions to restore from a DATE_SEPARATED folder.
+     *
+     * @return The date, in the yyyy-MM-dd format, or null for the latest versions
+     */
+    public String getPointInTime() {
+        return pointInTime;
+    }
+
+    public void setPointInTime(String pointInTime) {
+        this.pointInTime = pointInTime;
+    }
+
+    /**
+     * Gets the folder where the state of the previous backups is kept, used to detect
+     * the moved files.
+     *
+     * @return The state folder
+     */
+    public String getStateFolder() {
+        return stateFolder;
+    }
+
+    public void setStateFolder(String stateFolder) {
+        this.stateFolder = stateFolder;
+    }
+
+    /**
+     * Gets the token of the backup dropped by the network, set by the client while the
+     * backup is running and cleared when it completes. Running again with the token
+     * transfers only the files not yet stored.
+     *
+     * @return The token, or null to start a new backup
+     */
+    public String getResumeToken() {
+        return resumeToken;
+    }
+
+    public void setResumeToken(String resumeToken) {
+        this.resumeToken = resumeToken;
+    }
+}
@@ -0,0 +1,235 @@
+package org.kendar.sync.client;
+
+import org.kendar.sync.lib.model.FileInfo;
+import org.kendar.sync.lib.protocol.FileMoveMessage;
+import org.kendar.sync.lib.utils.Attributes;
+import org.kendar.sync.lib.utils.ContentHasher;
+import org.kendar.sync.lib.utils.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+/**
+ * Detects the files moved or copied since the previous backup of a source folder.
+ * <p>
+ * The files of the previous scan are kept in a state file, one line per file:
+ * {@code path TAB size TAB modificationMillis TAB fileKey TAB hash}.
+ * A new path is the move of a vanished path with the same file key (the inode, where
+ * supported), size and modification time. Otherwise a file with the same size and
+ * modification time is confirmed comparing the content hash: it is a move when the
+ * original vanished, a copy when it is still there.
+ */
+public class MoveDetector {
+    private static final Logger log = LoggerFactory.getLogger(MoveDetector.class);
+    private static final String EMPTY = "-";
+
+    private final Path stateFile;
+    private final String hashAlgorithm;
+    private final Map<String, Entry> previous = new HashMap<>();
+    private final Map<String, String> hashes = new HashMap<>();
+
+    private MoveDetector(Path stateFile, String hashAlgorithm) {
+        this.stateFile = stateFile;
+        this.hashAlgorithm = hashAlgorithm;
+    }
+
+    /**
+     * Loads the state of the previous scan, an empty one if missing or unreadable.
+     *
+     * @param stateFile     The state file
+     * @param hashAlgorithm The algorithm used to confirm the moves, or null to hash with CRC32C
+     * @return The detector
+     */
+    public static MoveDetector load(Path stateFile, String hashAlgorithm) {
+        var result = new MoveDetector(stateFile, hashAlgorithm == null ? ContentHasher.CRC32C : hashAlgorithm);
+        if (!Files.exists(stateFile)) {
+            return result;
+        }
+        try {
+            for (var line : Files.readAllLines(stateFile, StandardCharsets.UTF_8)) {
+                var parts = line.split("\t");
+                if (parts.length < 5) {
+                    log.warn("[CLIENT] Invalid state line in {}: {}", stateFile, line);
+                    continue;
+                }
+                var entry = new Entry(parts[0], Long.parseLong(parts[1]), Long.parseLong(parts[2]),
+                        fromField(parts[3]), fromField(parts[4]));
+                result.previous.put(entry.path, entry);
+            }
+        } catch (IOException | NumberFormatException e) {
+            log.warn("[CLIENT] Unable to read the state {}: {}", stateFile, e.getMessage());
+            result.previous.clear();
+        }
+        return result;
+    }
+
+    /**
+     * Gets the state file of a backup, unique for the source folder and the target.
+     *
+     * @param args The command line arguments
+     * @return The state file
+     */
+    public static Path getStateFile(CommandLineArgs args) {
+        var key = args.getServerAddress() + ":" + args.getServerPort() + "/" + args.getTargetFolder() + "|" +
+                Path.of(args.getSourceFolder()).toAbsolutePath().normalize();
+        var name = UUID.nameUUIDFromBytes(key.getBytes(StandardCharsets.UTF_8)) + ".state";
+        return Path.of(args.getStateFolder()).resolve(name);
+    }
+
+    private static String fromField(String value) {
+        return EMPTY.equals(value) ? null : value;
+    }
+
+    private static String toField(String value) {
+        return value == null || value.isEmpty() ? EMPTY : value;
+    }
+
+    private static boolean sameTimes(Entry entry, FileInfo file) {
+        return entry.size == file.getSize() &&
+                entry.modificationMillis == file.getModificationTime().toEpochMilli();
+    }
+
+    /**
+     * Finds the moves and copies of the current files.
+     *
+     * @param files     The current files of the source folder
+     * @param sourceDir The source folder
+     * @return The moves, in the order of the files
+     */
+    public List<FileMoveMessage.Move> detect(List<FileInfo> files, Path sourceDir) {
+        var result = new ArrayList<FileMoveMessage.Move>();
+        if (previous.isEmpty()) {
+            return result;
+        }
+        var current = new HashMap<String, FileInfo>();
+        for (var file : files) {
+            if (!Attributes.isDirectory(file.getExtendedUmask())) {
+                current.put(FileUtils.makeUniformPath(file.getRelativePath()), file);
+            }
+        }
+        var vanishedByKey = new HashMap<String, Entry>();
+        var candidatesBySize = new HashMap<String, List<Entry>>();
+        for (var entry : previous.values()) {
+            var file = current.get(entry.path);
+            var vanished = file == null;
+            if (vanished && entry.fileKey != null) {
+                vanishedByKey.put(entry.fileKey, entry);
+            }
+            // Only the unchanged files can be the source of a copy
+            if (vanished || sameTimes(entry, file)) {
+                candidatesBySize.computeIfAbsent(entry.size + "/" + entry.modificationMillis, k -> new ArrayList<>()).add(entry);
+            }
+        }
+
+        var used = new HashSet<String>();
+        for (var file : files) {
+            var path = FileUtils.makeUniformPath(file.getRelativePath());
+            if (Attributes.isDirectory(file.getExtendedUmask()) || previous.containsKey(path) || file.getSize() == 0) {
+                continue;
+            }
+            var byKey = file.getFileKey() == null ? null : vanishedByKey.get(file.getFileKey());
+            if (byKey != null && sameTimes(byKey, file) && used.add(byKey.path)) {
+                hashes.put(path, byKey.hash);
+                result.add(new FileMoveMessage.Move(byKey.path, path, false));
+                continue;
+            }
+            var candidates = candidatesBySize.get(file.getSize() + "/" + file.getModificationTime().toEpochMilli());
+            if (candidates == null) {
+                continue;
+            }
+            var move = confirm(path, sourceDir, candidates, current, used);
+            if (move != null) {
+                result.add(move);
+            }
+        }
+        log.debug("[CLIENT] Detected {} moved files", result.size());
+        return result;
+    }
+
+    private FileMoveMessage.Move confirm(String path, Path sourceDir, List<Entry> candidates,
+                                         Map<String, FileInfo> current, Set<String> used) {
+        String hash = null;
+        for (var candidate : candidates) {
+            if (candidate.hash == null || !hashAlgorithm.equals(ContentHasher.algorithmOf(candidate.hash))) {
+                continue;
+            }
+            var copy = current.containsKey(candidate.path);
+            if (!copy && used.contains(candidate.path)) {
+                continue;
+            }
+            try {
+                if (hash == null) {
+                    hash = ContentHasher.hashFile(sourceDir.resolve(path), hashAlgorithm);
+                }
+            } catch (IOException e) {
+                log.debug("[CLIENT] Unable to hash {}: {}", path, e.getMessage());
+                return null;
+            }
+            if (hash.equals(candidate.hash)) {
+                hashes.put(path, hash);
+                if (!copy) {
+                    used.add(candidate.path);
+                }
+                return new FileMoveMessage.Move(candidate.path, path, copy);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Stores the state of the current scan, for the next backup.
+     * The hash of a file is the one computed when sending it, or the one already known
+     * when its size and modification time did not change.
+     *
+     * @param files The current files of the source folder
+     * @throws IOException If an I/O error occurs
+     */
+    public void save(List<FileInfo> files) throws IOException {
+        var content = new StringBuilder();
+        for (var file : files) {
+            if (Attributes.isDirectory(file.getExtendedUmask())) {
+                continue;
+            }
+            var path = FileUtils.makeUniformPath(file.getRelativePath());
+            var hash = file.getHash();
+            if (hash == null) {
+                var entry = previous.get(path);
+                hash = entry != null && sameTimes(entry, file) ? entry.hash : hashes.get(path);
+            }
+            content.append(path).append('\t')
+                    .append(file.getSize()).append('\t')
+                    .append(file.getModificationTime().toEpochMilli()).append('\t')
+                    .append(toField(file.getFileKey())).append('\t')
+                    .append(toField(hash)).append('\n');
+        }
+        Files.createDirectories(stateFile.getParent());
+        var temp = stateFile.resolveSibling(stateFile.getFileName() + ".tmp");
+        Files.writeString(temp, content.toString(), StandardCharsets.UTF_8);
+        Files.move(temp, stateFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * A file of the previous scan.
+     */
+    private static final class Entry {
+        private final String path;
+        private final long size;
+        private final long modificationMillis;
+        private final String fileKey;
+        private final String hash;
+
+        private Entry(String path, long size, long modificationMillis, String fileKey, String hash) {
+            this.path = path;
+            this.size = size;
+            this.modificationMillis = modificationMillis;
+            this.fileKey = fileKey;
+            this.hash = hash;
+        }
+    }
+}
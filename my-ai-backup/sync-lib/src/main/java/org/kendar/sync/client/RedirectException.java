@@ -0,0 +1,40 @@
+package org.kendar.sync.client;
+
+/**
+ * Thrown when the server does not own the requested folder and tells the client
+ * the node of the cluster that owns it.
+ */
+public class RedirectException extends RuntimeException {
+    private final String address;
+    private final int port;
+
+    public RedirectException(String address, int port, String message) {
+        super("Redirected to " + address + ":" + port + ", Message: " + message);
+        this.address = address;
+        this.port = port;
+    }
+
+    /**
+     * Parses the details of an ERR_REDIRECT error, in the form address:port.
+     *
+     * @param message The error message
+     * @param details The error details
+     * @return The exception to throw
+     */
+    public static RedirectException fromDetails(String message, String details) {
+        var separator = details == null ? -1 : details.lastIndexOf(':');
+        if (separator <= 0) {
+            throw new IllegalArgumentException("Invalid redirect target: " + details);
+        }
+        return new RedirectException(details.substring(0, separator),
+                Integer.parseInt(details.substring(separator + 1)), message);
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    public int getPort() {
+        return port;
+    }
+}
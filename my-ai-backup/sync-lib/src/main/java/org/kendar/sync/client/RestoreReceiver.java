@@ -0,0 +1,354 @@
+package org.kendar.sync.client;
+
+import org.kendar.sync.lib.buffer.BufferPool;
+import org.kendar.sync.lib.model.FileInfo;
+import org.kendar.sync.lib.network.TcpConnection;
+import org.kendar.sync.lib.protocol.*;
+import org.kendar.sync.lib.utils.Attributes;
+import org.kendar.sync.lib.utils.ContentHasher;
+import org.kendar.sync.lib.utils.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Receives the files pushed by the server during a restore.
+ * <p>
+ * Every sub-connection has a dedicated reader thread that waits for the next file
+ * descriptor and receives the whole file. The blocks are queued to a pool of write
+ * workers, in order for each file and reserved on the shared {@link BufferPool}, and
+ * acknowledged as soon as they are queued, so that a slow disk does not stall the network. Each
+ * file keeps a single channel open while it is written. Every expected file has a
+ * future, completed when its data is on disk, and the restore completes when all of
+ * them are done. The times and permissions of the files are applied in one pass at
+ * the end. When all the readers are gone the files still pending are failed, so the
+ * restore never waits for data that cannot arrive anymore.
+ */
+public class RestoreReceiver {
+    private static final Logger log = LoggerFactory.getLogger(RestoreReceiver.class);
+
+    private final CommandLineArgs args;
+    private final Supplier<Boolean> isRunning;
+    private final Map<String, CompletableFuture<Void>> pending = new ConcurrentHashMap<>();
+    private final Set<String> received = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger activeReaders = new AtomicInteger();
+    private final Set<String> createdDirectories = ConcurrentHashMap.newKeySet();
+    private final Queue<FileInfo> toFinalize = new ConcurrentLinkedQueue<>();
+    private volatile boolean closing = false;
+
+    /**
+     * Creates a new receiver.
+     *
+     * @param args      The command line arguments
+     * @param isRunning Tells if the client is still running
+     */
+    public RestoreReceiver(CommandLineArgs args, Supplier<Boolean> isRunning) {
+        this.args = args;
+        this.isRunning = isRunning;
+    }
+
+    /**
+     * Receives the files, waiting until all of them are completed or failed.
+     * The connections are closed when done.
+     *
+     * @param connections The sub-connections the server pushes the files on
+     * @param files       The files expected from the server
+     * @return The number of files that could not be received
+     */
+    public int receive(List<TcpConnection> connections, Collection<FileInfo> files) {
+        for (var file : files) {
+            pending.put(FileUtils.makeUniformPath(file.getRelativePath()), new CompletableFuture<>());
+        }
+        var futures = pending.values().toArray(new CompletableFuture[0]);
+        if (futures.length == 0) {
+            closeAll(connections);
+            return 0;
+        }
+
+        var counter = new AtomicInteger();
+        var writers = Executors.newFixedThreadPool(Math.max(1, connections.size()), r -> {
+            var thread = new Thread(r, "restore-writer-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        activeReaders.set(connections.size());
+        for (var connection : connections) {
+            var reader = new Thread(() -> readLoop(connection, writers), "restore-reader-" + connection.getConnectionId());
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        try {
+            CompletableFuture.allOf(futures).get();
+            log.debug("[CLIENT] All files received");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.error("[CLIENT] Restore interrupted");
+        } catch (ExecutionException e) {
+            log.error("[CLIENT] Restore completed with errors: {}", e.getCause().getMessage());
+        } finally {
+            closing = true;
+            closeAll(connections);
+            writers.shutdown();
+            finalizeFiles();
+        }
+        var failed = 0;
+        for (var future : futures) {
+            if (!future.isDone() || future.isCompletedExceptionally()) failed++;
+        }
+        return failed;
+    }
+
+    private void readLoop(TcpConnection connection, ExecutorService writers) {
+        try {
+            while (isRunning.get() && !closing) {
+                var message = connection.receiveMessage();
+                if (message == null) {
+                    return;
+                }
+                if (message.getMessageType() != MessageType.FILE_DESCRIPTOR) {
+                    log.error("[CLIENT-{}] Unexpected message 1: {}", connection.getConnectionId(), message.getMessageType());
+                    return;
+                }
+                receiveFile(connection, (FileDescriptorMessage) message, writers);
+            }
+        } catch (Exception e) {
+            if (!closing) {
+                log.error("[CLIENT-{}] Error receiving files: {}", connection.getConnectionId(), e.getMessage());
+            }
+        } finally {
+            if (activeReaders.decrementAndGet() == 0) {
+                // The files already received complete when written
+                var error = new IOException("No connection left to receive the files");
+                pending.forEach((path, f) -> {
+                    if (!received.contains(path)) f.completeExceptionally(error);
+                });
+            }
+        }
+    }
+
+    private void receiveFile(TcpConnection connection, FileDescriptorMessage descriptor, ExecutorService writers) throws IOException, InterruptedException {
+        var fileInfo = descriptor.getFileInfo();
+        var completion = pending.get(FileUtils.makeUniformPath(fileInfo.getRelativePath()));
+        if (completion == null) {
+            log.debug("[CLIENT] Skipping file not in transfer list: {}", fileInfo.getRelativePath());
+            connection.sendMessage(FileDescriptorAckMessage.ready(fileInfo.getRelativePath()));
+            if (!Attributes.isDirectory(fileInfo.getExtendedUmask())) {
+                skipData(connection, fileInfo);
+            }
+            return;
+        }
+        try {
+            receiveFile(connection, fileInfo, writers, completion);
+        } catch (IOException | RuntimeException e) {
+            completion.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    private void receiveFile(TcpConnection connection, FileInfo fileInfo, ExecutorService writers,
+                             CompletableFuture<Void> completion) throws IOException, InterruptedException {
+        log.debug("[CLIENT] Receiving file: {}", fileInfo.getRelativePath());
+        var dryRun = args.isDryRun();
+        File targetFile = new File(args.getSourceFolder(), fileInfo.getRelativePath());
+        if (Attributes.isDirectory(fileInfo.getExtendedUmask())) {
+            if (!dryRun) {
+                createDirectory(targetFile);
+            } else {
+                log.debug("[CLIENT] Dry run: Would create directory {}", targetFile.getAbsolutePath());
+            }
+            connection.sendMessage(FileDescriptorAckMessage.ready(fileInfo.getRelativePath()));
+            completion.complete(null);
+            return;
+        }
+
+        if (!dryRun) {
+            createDirectory(targetFile.getParentFile());
+        } else {
+            log.debug("[CLIENT] Dry run: Would create parent directories for {}", targetFile.getAbsolutePath());
+        }
+        connection.sendMessage(FileDescriptorAckMessage.ready(fileInfo.getRelativePath()));
+
+        // Verify the received content when the server knows the stored hash
+        var expectedHash = fileInfo.getHash();
+        var hashAlgorithm = ContentHasher.algorithmOf(expectedHash);
+        var hasher = hashAlgorithm != null && !dryRun ? ContentHasher.create(hashAlgorithm) : null;
+
+        var output = dryRun ? null : new WriteBehindFile(targetFile, writers);
+        var message = connection.receiveMessage();
+        while (message != null && message.getMessageType() == MessageType.FILE_DATA) {
+            var fileDataMessage = (FileDataMessage) message;
+            var data = fileDataMessage.getRawData();
+            if (hasher != null) hasher.update(data);
+            if (output != null) output.write(data, fileDataMessage.isFirstBlock());
+            // The block is queued, the server can send the next one
+            connection.sendMessage(new FileDataAck());
+            message = connection.receiveMessage();
+        }
+
+        if (message == null || message.getMessageType() != MessageType.FILE_END) {
+            log.error("[CLIENT] Unexpected message 4: {}", message == null ? null : message.getMessageType());
+            if (output != null) output.close();
+            throw new IOException("File end not received for " + fileInfo.getRelativePath());
+        }
+
+        if (hasher != null) {
+            var actualHash = hasher.digest();
+            if (!actualHash.equals(expectedHash)) {
+                log.error("[CLIENT] Content hash mismatch for {}: expected {} received {}",
+                        fileInfo.getRelativePath(), expectedHash, actualHash);
+                connection.sendMessage(FileEndAckMessage.failure(fileInfo.getRelativePath(), "Content hash mismatch"));
+                output.close();
+                completion.completeExceptionally(new IOException("Content hash mismatch for " + fileInfo.getRelativePath()));
+                return;
+            }
+        }
+
+        connection.sendMessage(FileEndAckMessage.success(fileInfo.getRelativePath()));
+        received.add(FileUtils.makeUniformPath(fileInfo.getRelativePath()));
+        if (output == null) {
+            completion.complete(null);
+            return;
+        }
+        output.close().whenComplete((r, e) -> {
+            if (e == null) {
+                toFinalize.add(fileInfo);
+                log.debug("[CLIENT] Received file: {}", fileInfo.getRelativePath());
+                completion.complete(null);
+            } else {
+                var cause = e instanceof CompletionException ? e.getCause() : e;
+                log.error("[CLIENT] Error writing {}: {}", fileInfo.getRelativePath(), cause.getMessage());
+                completion.completeExceptionally(cause);
+            }
+        });
+    }
+
+    /**
+     * Acknowledges and drops the data of a skipped file, so that the connection
+     * can receive the next one.
+     */
+    private static void skipData(TcpConnection connection, FileInfo fileInfo) throws IOException {
+        var message = connection.receiveMessage();
+        while (message != null && message.getMessageType() == MessageType.FILE_DATA) {
+            connection.sendMessage(new FileDataAck());
+            message = connection.receiveMessage();
+        }
+        if (message == null || message.getMessageType() != MessageType.FILE_END) {
+            throw new IOException("File end not received for " + fileInfo.getRelativePath());
+        }
+        connection.sendMessage(FileEndAckMessage.success(fileInfo.getRelativePath()));
+    }
+
+    private void createDirectory(File directory) {
+        if (createdDirectories.add(directory.getAbsolutePath())) {
+            //noinspection ResultOfMethodCallIgnored
+            directory.mkdirs();
+        }
+    }
+
+    /**
+     * Applies the times and permissions of the written files, once their data is complete.
+     */
+    private void finalizeFiles() {
+        FileInfo fileInfo;
+        while ((fileInfo = toFinalize.poll()) != null) {
+            try {
+                var realPath = new File(args.getSourceFolder(), fileInfo.getRelativePath()).toPath();
+                var attr = Files.readAttributes(realPath, BasicFileAttributes.class);
+                FileUtils.writeFileAttributes(realPath, fileInfo.getExtendedUmask(), attr);
+                FileUtils.setFileTimes(realPath.toFile(), fileInfo.getCreationTime(), fileInfo.getModificationTime());
+            } catch (IOException e) {
+                log.error("[CLIENT] Error setting the attributes of {}: {}", fileInfo.getRelativePath(), e.getMessage());
+            }
+        }
+    }
+
+    private static void closeAll(List<TcpConnection> connections) {
+        for (var connection : connections) {
+            try {
+                connection.close();
+            } catch (Exception e) {
+                log.trace("[CLIENT] Error closing connection: {}", e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * The queued writes of a single file, run in order on the write workers through
+     * one open channel. Every queued block holds its size on the buffer pool until
+     * it is written.
+     */
+    private class WriteBehindFile {
+        private final File target;
+        private final ExecutorService writers;
+        private CompletableFuture<Void> writes = CompletableFuture.completedFuture(null);
+        private FileChannel channel;
+
+        WriteBehindFile(File target, ExecutorService writers) {
+            this.target = target;
+            this.writers = writers;
+        }
+
+        void write(byte[] data, boolean append) {
+            if (writes.isCompletedExceptionally()) {
+                // Already failed, the data is dropped and the error reported at close
+                return;
+            }
+            var pool = BufferPool.shared();
+            pool.reserve(data.length);
+            var write = writes.thenRunAsync(() -> {
+                try {
+                    if (channel == null) {
+                        channel = append
+                                ? FileChannel.open(target.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)
+                                : FileChannel.open(target.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                    }
+                    var buffer = ByteBuffer.wrap(data);
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer);
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }, writers);
+            write.whenComplete((r, e) -> pool.unreserve(data.length));
+            writes = write;
+        }
+
+        /**
+         * Closes the channel after the queued writes, creating the file if it received no data.
+         *
+         * @return The completion of all the writes
+         */
+        CompletableFuture<Void> close() {
+            return writes.whenCompleteAsync((r, e) -> {
+                try {
+                    if (channel != null) {
+                        channel.close();
+                    } else if (e == null) {
+                        FileChannel.open(target.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                StandardOpenOption.TRUNCATE_EXISTING).close();
+                    }
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+            }, writers);
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package org.kendar.sync.client;
 
+import org.kendar.sync.lib.network.SocketOptions;
 import org.kendar.sync.lib.network.TcpConnection;
 import org.kendar.sync.lib.protocol.*;
 import org.kendar.sync.lib.utils.DebugLogger;
@@ -19,12 +20,14 @@ import java.util.Set;
 import java.util.Timer;
 import java.util.UUID;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.IntConsumer;
 import java.util.stream.Collectors;
 
 public class SyncClient {
 
     public static final int DEFAULT_MAX_PACKET_SIZE = 1024 * 1024; // 1 MB
     private static final int DEFAULT_MAX_CONNECTIONS = 5;
+    private static final int MAX_REDIRECTS = 3;
 
     private static final Logger log = LoggerFactory.getLogger(SyncClient.class);
     private Timer timer;
@@ -35,6 +38,16 @@ public class SyncClient {
     }
 
     private int keepAlive=-1;
+    private IntConsumer queuePositionListener;
+
+    /**
+     * Sets the listener notified while waiting for a folder busy with another session.
+     *
+     * @param queuePositionListener The listener receiving the 1-based queue position
+     */
+    public void setQueuePositionListener(IntConsumer queuePositionListener) {
+        this.queuePositionListener = queuePositionListener;
+    }
 
 
     /**
@@ -94,6 +107,11 @@ public class SyncClient {
     }
 
     public void doSync(CommandLineArgs commandLineArgs) {
+        doSync(commandLineArgs, 0);
+    }
+
+    private void doSync(CommandLineArgs commandLineArgs, int redirects) {
+        RedirectException redirect = null;
         // Validate arguments
         if (!validateArgs(commandLineArgs)) {
             return;
@@ -107,7 +125,7 @@ public class SyncClient {
                 log.debug("[CLIENT] Running in dry-run mode. No actual file operations will be performed.");
             }
 
-            socket = new Socket(commandLineArgs.getServerAddress(), commandLineArgs.getServerPort());
+            socket = SocketOptions.connect(commandLineArgs.getServerAddress(), commandLineArgs.getServerPort());
             UUID sessionId = UUID.randomUUID();
             var maxPacketSize = DEFAULT_MAX_PACKET_SIZE;
             if(commandLineArgs.getMaxSize()==0){
@@ -135,9 +153,14 @@ public class SyncClient {
                 );
 
 
+                connectMessage.setHashAlgorithm(commandLineArgs.getHashAlgorithm());
+                connectMessage.setProtocolVersion(ProtocolVersion.LATEST);
+                connectMessage.setPointInTime(commandLineArgs.getPointInTime());
+                connectMessage.setResumeToken(commandLineArgs.getResumeToken());
+                connection.setQueuePositionListener(queuePositionListener);
                 connection.sendMessage(connectMessage);
 
-                // Wait for the connection response
+                // Wait for the connection response, the server reports the queue position if the folder is busy
                 Message response = connection.receiveMessage();
                 if (response.getMessageType() != MessageType.CONNECT_RESPONSE) {
                     log.error("[CLIENT] Unexpected response 1: {}", response.getMessageType());
@@ -157,16 +180,30 @@ public class SyncClient {
                 this.timer.scheduleAtFixedRate(new SyncClient.TimerTask(connection,this.timer), keepAlive, keepAlive);
 
                 connection.setSessionId(connectResponse.getSessionId());
+                connection.setProtocolVersion(ProtocolVersion.negotiate(connectResponse.getProtocolVersion()));
                 var maxConnections = Math.min(commandLineArgs.getMaxConnections(), connectResponse.getMaxConnections());
                 maxPacketSize = Math.min(commandLineArgs.getMaxSize(), connectResponse.getMaxPacketSize());
                 connection.setMaxPacketSize(maxPacketSize);
+                if (connection.getProtocolVersion() >= ProtocolVersion.V7) {
+                    connection.setInlineThreshold(Math.min(connectResponse.getInlineThreshold(),
+                            maxPacketSize > 0 ? maxPacketSize : connectResponse.getMaxPacketSize()));
+                }
                 if (maxConnections == 0) maxConnections = connectResponse.getMaxConnections();
                 if (maxPacketSize == 0) maxPacketSize = connectResponse.getMaxPacketSize();
 
                 log.debug("[CLIENT] Connected to server");
 
+                // Kept until the backup completes, to resume it after a network drop
+                if (commandLineArgs.isBackup() && connectResponse.getBackupType() != BackupType.TWO_WAY_SYNC) {
+                    commandLineArgs.setResumeToken(connectResponse.getResumeToken());
+                }
+
                 // Perform backup or restore
-                if (connectResponse.getBackupType() == BackupType.TWO_WAY_SYNC) {
+                if (connectResponse.isResumed()) {
+                    log.info("[CLIENT] Resuming the previous backup");
+                    new SyncClientBackup().setCheckRunning(()->this.isRunning).resumeBackup(connection, commandLineArgs,
+                            maxConnections, maxPacketSize);
+                } else if (connectResponse.getBackupType() == BackupType.TWO_WAY_SYNC) {
                     new SyncClientSync().setCheckRunning(()->this.isRunning).performSync(connection, commandLineArgs, maxConnections, maxPacketSize,
                             connectResponse.isIgnoreSystemFiles(),
                             connectResponse.isIgnoreHiddenFiles(),
@@ -201,6 +238,7 @@ public class SyncClient {
                     log.error("[CLIENT] Sync failed: {}", syncEndAck.getErrorMessage());
                     return;
                 }
+                commandLineArgs.setResumeToken(null);
                 log.debug("[CLIENT] Shutting down");
                 Sleeper.sleep(100);
                 connection.close();
@@ -208,12 +246,26 @@ public class SyncClient {
 
                 log.debug("[CLIENT] Sync completed successfully");
             }
+        } catch (RedirectException e) {
+            redirect = e;
         } catch ( IOException e) {
             log.trace("[CLIENT] Error: {}", e.getMessage());
         }finally {
             if(timer!=null)timer.cancel();
             DebugLogger.log.debug("Cancel keepalive timer");
         }
+        if (redirect != null) {
+            // Another node of the cluster owns the folder, all the connections go there
+            if (redirects >= MAX_REDIRECTS) {
+                log.error("[CLIENT] Too many redirects: {}", redirect.getMessage());
+                return;
+            }
+            log.info("[CLIENT] Folder {} served by {}:{}, reconnecting", commandLineArgs.getTargetFolder(),
+                    redirect.getAddress(), redirect.getPort());
+            commandLineArgs.setServerAddress(redirect.getAddress());
+            commandLineArgs.setServerPort(redirect.getPort());
+            doSync(commandLineArgs, redirects + 1);
+        }
     }
 
 
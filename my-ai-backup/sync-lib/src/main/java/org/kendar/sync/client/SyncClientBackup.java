@@ -2,16 +2,15 @@ package org.kendar.sync.client;
 
 import org.kendar.sync.lib.model.FileInfo;
 import org.kendar.sync.lib.network.TcpConnection;
-import org.kendar.sync.lib.protocol.FileListMessage;
-import org.kendar.sync.lib.protocol.FileListResponseMessage;
-import org.kendar.sync.lib.protocol.Message;
-import org.kendar.sync.lib.protocol.MessageType;
+import org.kendar.sync.lib.protocol.*;
 import org.kendar.sync.lib.utils.FileUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.*;
@@ -44,10 +43,27 @@ public class SyncClientBackup extends BaseSyncClientProcess<SyncClientBackup> {
         }
 
         // Recursively scan the source directory
-        scanDirectory(sourceDir, sourceDir.getAbsolutePath(), files,args.isIgnoreHiddenFiles(),args.isIgnoreSystemFiles());
+        scanDirectory(sourceDir, sourceDir.getAbsolutePath(), files,args.isIgnoreHiddenFiles(),args.isIgnoreSystemFiles(), args.getScanThreads());
 
         log.debug("[CLIENT] 4 Found {} files to backup", files.size());
 
+        // The server moves or copies the relocated files, then finds them unchanged
+        MoveDetector moveDetector = null;
+        if (connection.getProtocolVersion() >= ProtocolVersion.V3 && !args.isDryRun()) {
+            moveDetector = MoveDetector.load(MoveDetector.getStateFile(args), args.getHashAlgorithm());
+            var moves = moveDetector.detect(files, sourceDir.toPath());
+            if (!moves.isEmpty()) {
+                connection.sendMessage(new FileMoveMessage(moves));
+                Message moveResponse = connection.receiveMessage();
+                if (moveResponse.getMessageType() != MessageType.FILE_MOVE_ACK) {
+                    log.error("[CLIENT] Unexpected response to the moves: {}", moveResponse.getMessageType());
+                    return;
+                }
+                log.debug("[CLIENT] Server applied {} of {} moves",
+                        ((FileMoveAckMessage) moveResponse).getApplied().size(), moves.size());
+            }
+        }
+
         // Send the file list message
         FileListMessage fileListMessage = new FileListMessage(files, args.isBackup(), 1, 1);
         connection.sendMessage(fileListMessage);
@@ -68,8 +84,58 @@ public class SyncClientBackup extends BaseSyncClientProcess<SyncClientBackup> {
         List<FileInfo> filesToTransfer = files.stream()
                 .filter(file -> mapToTransfer.containsKey(FileUtils.makeUniformPath(file.getRelativePath())))
                 .collect(Collectors.toList());
+        // The server sends the stored hash of the files that may not have really changed
+        for (var file : filesToTransfer) {
+            file.setHash(mapToTransfer.get(FileUtils.makeUniformPath(file.getRelativePath())).getHash());
+        }
+
+
+        transferFiles(connection, args, maxConnections, maxPacketSize, filesToTransfer);
 
+        if (moveDetector != null) {
+            try {
+                moveDetector.save(files);
+            } catch (IOException e) {
+                log.warn("[CLIENT] Unable to store the backup state: {}", e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Continues a backup dropped by the network. The server sends the files it did not
+     * store yet, the source folder is not scanned again.
+     *
+     * @param connection     The TCP connection
+     * @param args           The command line arguments
+     * @param maxConnections Maximum connections to use for parallel transfers
+     * @param maxPacketSize  Maximum packet size for transfers
+     * @throws IOException If an I/O error occurs
+     */
+    public void resumeBackup(TcpConnection connection, CommandLineArgs args, int maxConnections,
+                             int maxPacketSize) throws IOException {
+        Message response = connection.receiveMessage();
+        if (response.getMessageType() != MessageType.FILE_LIST_RESPONSE) {
+            log.error("[CLIENT] Unexpected response 4: {}", response.getMessageType());
+            return;
+        }
+        var sourceDir = Path.of(args.getSourceFolder()).toAbsolutePath();
+        List<FileInfo> filesToTransfer = new ArrayList<>();
+        for (var planned : ((FileListResponseMessage) response).getFilesToTransfer()) {
+            // The files could have changed since the drop
+            var path = sourceDir.resolve(planned.getRelativePath());
+            if (!Files.isRegularFile(path)) {
+                log.debug("[CLIENT] File removed since the drop: {}", planned.getRelativePath());
+                continue;
+            }
+            var file = FileInfo.fromAttributes(path, sourceDir, FileUtils.readFileAttributes(path));
+            file.setHash(planned.getHash());
+            filesToTransfer.add(file);
+        }
+        transferFiles(connection, args, maxConnections, maxPacketSize, filesToTransfer);
+    }
 
+    private void transferFiles(TcpConnection connection, CommandLineArgs args, int maxConnections, int maxPacketSize,
+                               List<FileInfo> filesToTransfer) throws IOException {
         log.debug("[CLIENT] Transferring {} files with {} parallel connections", filesToTransfer.size(), maxConnections);
 
         // Use a fixed pool of 10 threads for parallel file transfers
@@ -40,7 +40,7 @@ public class SyncClientRestore extends BaseSyncClientProcess<SyncClientRestore>
         }
 
         // Recursively scan the source directory
-        scanDirectory(sourceDir, sourceDir.getAbsolutePath(), files, args.isIgnoreHiddenFiles(), args.isIgnoreSystemFiles());
+        scanDirectory(sourceDir, sourceDir.getAbsolutePath(), files, args.isIgnoreHiddenFiles(), args.isIgnoreSystemFiles(), args.getScanThreads());
 
         log.debug("[CLIENT] 2 Found {} files to backup", files.size());
 
@@ -81,13 +81,7 @@ public class SyncClientRestore extends BaseSyncClientProcess<SyncClientRestore>
                 .collect(Collectors.toMap(fileInfo -> FileUtils.makeUniformPath(fileInfo.getRelativePath()), fileInfo -> fileInfo));
         var mapToTransfer = new ConcurrentHashMap<>(mapToTransferInitial);
 
-        // Use a fixed pool of 10 threads for parallel file transfers
-        executorService = new ThreadPoolExecutor(maxConnections, maxConnections,
-                0L, TimeUnit.MILLISECONDS,
-                new LinkedBlockingQueue<>());
-        CountDownLatch completionLatch = new CountDownLatch(mapToTransfer.size());
-        ConcurrentLinkedQueue<TcpConnection> connections = new ConcurrentLinkedQueue<>();// Start from 1 as the main connection is 0
-        Semaphore semaphore = new Semaphore(maxConnections);
+        List<TcpConnection> connections = new ArrayList<>();// Start from 1 as the main connection is 0
         for (int i = 0; i < maxConnections; i++) {
             TcpConnection subConnection = getTcpConnection(connection, args, i, maxPacketSize);
             connections.add(subConnection);
@@ -114,25 +108,13 @@ public class SyncClientRestore extends BaseSyncClientProcess<SyncClientRestore>
             throw new IOException("Unexpected message 6: " + message.getMessageType());
         }
 
-        // Process files to transfer
-        while (!mapToTransfer.isEmpty()) {
-            try {
-                semaphore.acquire();
-            } catch (InterruptedException e) {
-                //NOOP
-            }
-            executorService.submit(() -> performSingleFileRestore(args, connections, mapToTransfer, semaphore, completionLatch));
-        }
-        try {
-            completionLatch.await();
-            log.debug("[CLIENT] All file transfers completed 1");
-            connection.close();
-        } catch (InterruptedException e) {
-            log.error("[CLIENT] File transfer interrupted 1: {}", e.getMessage());
-        } finally {
-            executorService.shutdown();
+        // Every sub-connection gets its own reader, the call returns when all the files are completed
+        var failed = new RestoreReceiver(args, this::isRunning).receive(connections, mapToTransfer.values());
+        if (failed > 0) {
+            log.error("[CLIENT] {} files were not restored", failed);
         }
-
+        log.debug("[CLIENT] All file transfers completed 1");
+        connection.close();
 
     }
 }
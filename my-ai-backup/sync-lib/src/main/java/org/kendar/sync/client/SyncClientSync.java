@@ -3,26 +3,58 @@ package org.kendar.sync.client;
 import org.kendar.sync.lib.model.FileInfo;
 import org.kendar.sync.lib.network.TcpConnection;
 import org.kendar.sync.lib.protocol.*;
+import org.kendar.sync.lib.twoway.MerkleTree;
 import org.kendar.sync.lib.twoway.StatusAnalyzer;
 import org.kendar.sync.lib.utils.FileUtils;
-import org.kendar.sync.lib.utils.Sleeper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.IOException;
 import java.time.Instant;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Optional;
+import java.util.*;
 import java.util.concurrent.*;
-import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
 public class SyncClientSync extends BaseSyncClientProcess<SyncClientSync> {
 
     private static final Logger log = LoggerFactory.getLogger(SyncClientSync.class);
 
+    /**
+     * Compares the directory hashes with the server, one level at a time from the root,
+     * descending only in the directories that differ.
+     *
+     * @param connection The TCP connection
+     * @param tree       The directory hashes of the source folder
+     * @return The directories that differ, or null if the server answered unexpectedly
+     * @throws IOException If an I/O error occurs
+     */
+    private List<String> findDifferentDirectories(TcpConnection connection, MerkleTree tree) throws IOException {
+        var result = new ArrayList<String>();
+        List<String> level = List.of(MerkleTree.ROOT);
+        while (!level.isEmpty()) {
+            var hashes = new LinkedHashMap<String, String>();
+            for (var directory : level) {
+                hashes.put(directory, tree.getHash(directory));
+            }
+            connection.sendMessage(new SyncTreeMessage(hashes));
+            Message response = connection.receiveMessage();
+            if (response == null || response.getMessageType() != MessageType.SYNC_TREE_RESPONSE) {
+                log.error("[CLIENT] Unexpected response to the directory hashes: {}",
+                        response == null ? null : response.getMessageType());
+                return null;
+            }
+            var next = new LinkedHashSet<String>();
+            for (var difference : ((SyncTreeResponseMessage) response).getDifferences().entrySet()) {
+                result.add(difference.getKey());
+                next.addAll(tree.getChildren(difference.getKey()));
+                next.addAll(difference.getValue());
+            }
+            level = new ArrayList<>(next);
+        }
+        return result;
+    }
+
     public void performSync(TcpConnection connection, CommandLineArgs args, int maxConnections, int maxPacketSize,
                             boolean ignoreSystemFiles,boolean ignoreHiddenFiles,List<String> patternsToIgnore) throws IOException {
         log.debug("[CLIENT] Starting backup 1 from {} to {}", args.getSourceFolder(), args.getTargetFolder());
@@ -38,6 +70,17 @@ public class SyncClientSync extends BaseSyncClientProcess<SyncClientSync> {
         StatusAnalyzer statusAnalyzer = new StatusAnalyzer(sourceDir.toString());
         var changes = statusAnalyzer.analyze();
 
+        // Only the changes of the directories that differ from the server are compared
+        List<String> directories = null;
+        if (connection.getProtocolVersion() >= ProtocolVersion.V4) {
+            directories = findDifferentDirectories(connection, statusAnalyzer.buildTree());
+            if (directories == null) {
+                return;
+            }
+            changes = statusAnalyzer.getEntries(new HashSet<>(directories));
+            log.debug("[CLIENT] {} directories differ from the server", directories.size());
+        }
+
 
         var lastUpdateTime = statusAnalyzer.getLastUpdateTime();
         if (lastUpdateTime.isEmpty()) {
@@ -47,6 +90,7 @@ public class SyncClientSync extends BaseSyncClientProcess<SyncClientSync> {
         var fileSyncMessage = new FileSyncMessage();
         fileSyncMessage.setChanges(changes);
         fileSyncMessage.setLastlyUpdateTime(lastUpdateTime.get());
+        fileSyncMessage.setDirectories(directories);
         connection.sendMessage(fileSyncMessage);
 
         // Wait for file list response
@@ -152,10 +196,7 @@ public class SyncClientSync extends BaseSyncClientProcess<SyncClientSync> {
         var mapToTransferRetrieve = new ConcurrentHashMap<>(mapToTransferInitialRetrieve);
 
 
-        // Use a fixed pool of 10 threads for parallel file transfers
-        var completionLatchRetrieve = new CountDownLatch(mapToTransferRetrieve.size());
-        ConcurrentLinkedQueue<TcpConnection> connectionsRetrieve = new ConcurrentLinkedQueue<>();// Start from 1 as the main connection is 0
-        var semaphoreRetrieve = new Semaphore(maxConnections);
+        List<TcpConnection> connectionsRetrieve = new ArrayList<>();// Start from 1 as the main connection is 0
         for (int i = 0; i < maxConnections; i++) {
             TcpConnection subConnection = getTcpConnection(connection, args, i, maxPacketSize);
             connectionsRetrieve.add(subConnection);
@@ -182,32 +223,17 @@ public class SyncClientSync extends BaseSyncClientProcess<SyncClientSync> {
             throw new IOException("Unexpected message 6: " + message.getMessageType());
         }
 
-        // Process files to transfer
-        while (!mapToTransferRetrieve.isEmpty()) {
-            try {
-                semaphoreRetrieve.acquire();
-            } catch (InterruptedException e) {
-                //NOOP
-            }
-            executorService.submit(() -> performSingleFileRestore(args, connectionsRetrieve, mapToTransferRetrieve, semaphoreRetrieve,
-                    completionLatchRetrieve));
-        }
+        // Every sub-connection gets its own reader, the call returns when all the files are completed
         try {
-            //noinspection ConstantValue
-            while (!mapToTransferRetrieve.isEmpty()) {
-                Sleeper.sleep(100);
+            var failed = new RestoreReceiver(args, this::isRunning).receive(connectionsRetrieve, mapToTransferRetrieve.values());
+            if (failed > 0) {
+                log.error("[CLIENT] {} files were not retrieved", failed);
             }
-            completionLatchRetrieve.await();
             log.debug("[CLIENT] All file transfers completed 8");
-            var cc =counter.incrementAndGet();
-        } catch (InterruptedException e) {
-            log.error("[CLIENT] File transfer interrupted 8: {}", e.getMessage());
         } finally {
-            var cc = counter.get();
             statusAnalyzer.analyze();
             executorService.shutdown();
         }
 
     }
-    private AtomicInteger counter = new AtomicInteger(0);
 }
@@ -0,0 +1,165 @@
+package org.kendar.sync.lib.buffer;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of byte arrays with power of two size classes and a global memory cap.
+ * <p>
+ * The arrays are taken with {@link #acquire(int)} and given back with {@link #release(byte[])}.
+ * An acquired array can be larger than requested. The bytes of the arrays in use, plus the
+ * bytes reserved with {@link #reserve(int)} for data queued outside the pool, never exceed the
+ * capacity: when the budget is exhausted the callers wait instead of allocating, so that a
+ * burst of transfers slows the senders down instead of running out of memory. The queued data
+ * can take at most half of the capacity, the rest is kept for the buffers in flight, which
+ * are always given back shortly.
+ */
+public class BufferPool {
+    private static final int MIN_CLASS_BITS = 10;
+    private static final int MAX_CLASS_BITS = 24;
+    private static final long DEFAULT_CAPACITY = Math.min(256L * 1024 * 1024, Runtime.getRuntime().maxMemory() / 4);
+    private static final BufferPool shared = new BufferPool(DEFAULT_CAPACITY);
+
+    private final long capacity;
+    private final long retainedLimit;
+    @SuppressWarnings("unchecked")
+    private final ConcurrentLinkedQueue<byte[]>[] free = new ConcurrentLinkedQueue[MAX_CLASS_BITS - MIN_CLASS_BITS + 1];
+    private final AtomicInteger[] freeCount = new AtomicInteger[free.length];
+    private long used;
+
+    /**
+     * Creates a new pool.
+     *
+     * @param capacity The maximum bytes in use at the same time
+     */
+    public BufferPool(long capacity) {
+        this.capacity = capacity;
+        this.retainedLimit = capacity / 4;
+        for (var i = 0; i < free.length; i++) {
+            free[i] = new ConcurrentLinkedQueue<>();
+            freeCount[i] = new AtomicInteger();
+        }
+    }
+
+    /**
+     * Gets the pool shared by all the connections of the process.
+     *
+     * @return The shared pool
+     */
+    public static BufferPool shared() {
+        return shared;
+    }
+
+    /**
+     * Takes an array of at least the given size, waiting if the budget is exhausted.
+     *
+     * @param size The minimum size
+     * @return The array, to give back with {@link #release(byte[])}
+     */
+    public byte[] acquire(int size) {
+        var sizeClass = sizeClass(size);
+        var length = sizeClass < 0 ? size : 1 << (sizeClass + MIN_CLASS_BITS);
+        waitFor(length, capacity);
+        if (sizeClass >= 0) {
+            var buffer = free[sizeClass].poll();
+            if (buffer != null) {
+                freeCount[sizeClass].decrementAndGet();
+                return buffer;
+            }
+        }
+        return new byte[length];
+    }
+
+    /**
+     * Gives back an array taken with {@link #acquire(int)}.
+     *
+     * @param buffer The array, can be null
+     */
+    public void release(byte[] buffer) {
+        if (buffer == null) {
+            return;
+        }
+        var sizeClass = sizeClass(buffer.length);
+        if (sizeClass >= 0 && buffer.length == 1 << (sizeClass + MIN_CLASS_BITS)
+                && (long) (freeCount[sizeClass].get() + 1) * buffer.length <= retainedLimit / free.length) {
+            freeCount[sizeClass].incrementAndGet();
+            free[sizeClass].add(buffer);
+        }
+        unreserve(buffer.length);
+    }
+
+    /**
+     * Reserves budget for data queued outside the pool, e.g. blocks waiting to be written,
+     * waiting while the queued data already takes half of the capacity.
+     *
+     * @param bytes The bytes to reserve
+     */
+    public void reserve(int bytes) {
+        waitFor(bytes, capacity / 2);
+    }
+
+    /**
+     * Reserves budget for queued data like {@link #reserve(int)}, waiting at most the given time.
+     *
+     * @param bytes         The bytes to reserve
+     * @param timeoutMillis The maximum wait
+     * @return True if reserved
+     * @throws InterruptedException If interrupted while waiting
+     */
+    public synchronized boolean tryReserve(int bytes, long timeoutMillis) throws InterruptedException {
+        var deadline = System.currentTimeMillis() + timeoutMillis;
+        while (used > 0 && used + bytes > capacity / 2) {
+            var left = deadline - System.currentTimeMillis();
+            if (left <= 0) {
+                return false;
+            }
+            wait(left);
+        }
+        used += bytes;
+        return true;
+    }
+
+    /**
+     * Gives back the budget taken with {@link #reserve(int)}.
+     *
+     * @param bytes The reserved bytes
+     */
+    public synchronized void unreserve(int bytes) {
+        used -= bytes;
+        notifyAll();
+    }
+
+    /**
+     * Gets the bytes in use or reserved.
+     *
+     * @return The used bytes
+     */
+    public synchronized long getUsed() {
+        return used;
+    }
+
+    public long getCapacity() {
+        return capacity;
+    }
+
+    private synchronized void waitFor(int bytes, long limit) {
+        var interrupted = false;
+        // A single request larger than the limit runs alone
+        while (used > 0 && used + bytes > limit) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        used += bytes;
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static int sizeClass(int size) {
+        var bits = Math.max(MIN_CLASS_BITS, 32 - Integer.numberOfLeadingZeros(Math.max(1, size) - 1));
+        return bits > MAX_CLASS_BITS ? -1 : bits - MIN_CLASS_BITS;
+    }
+}
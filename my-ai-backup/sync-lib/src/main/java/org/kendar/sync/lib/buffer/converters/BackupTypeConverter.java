@@ -16,6 +16,7 @@ public class BackupTypeConverter extends ByteContainerConverter<BackupType> {
         if (str.equalsIgnoreCase("NO")) return BackupType.NONE;
         if (str.equalsIgnoreCase("DA")) return BackupType.DATE_SEPARATED;
         if (str.equalsIgnoreCase("TW")) return BackupType.TWO_WAY_SYNC;
+        if (str.equalsIgnoreCase("SN")) return BackupType.SNAPSHOT;
         return BackupType.valueOf(new String(bytes));
     }
 
@@ -26,6 +27,7 @@ public class BackupTypeConverter extends ByteContainerConverter<BackupType> {
         if (value == BackupType.NONE) return new byte[]{(byte) 'N', (byte) 'O'};
         if (value == BackupType.DATE_SEPARATED) return new byte[]{(byte) 'D', (byte) 'A'};
         if (value == BackupType.TWO_WAY_SYNC) return new byte[]{(byte) 'T', (byte) 'W'};
+        if (value == BackupType.SNAPSHOT) return new byte[]{(byte) 'S', (byte) 'N'};
         return new byte[]{(byte) value.name().charAt(0), (byte) value.name().charAt(1)};
     }
 
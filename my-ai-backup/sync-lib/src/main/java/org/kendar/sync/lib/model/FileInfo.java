@@ -1,5 +1,6 @@
 package org.kendar.sync.lib.model;
 
+import org.kendar.sync.lib.utils.Attributes;
 import org.kendar.sync.lib.utils.FileUtils;
 
 import java.io.File;
@@ -21,6 +22,8 @@ public class FileInfo {
     private Instant creationTime;
     private Instant modificationTime;
     private int extendedUmask;
+    private String hash;
+    private String fileKey;
 
     // Default constructor for Jackson
     public FileInfo() {
@@ -71,6 +74,27 @@ public class FileInfo {
         );
     }
 
+    /**
+     * Creates a FileInfo object from the attributes already read for a file.
+     *
+     * @param path       The absolute path of the file
+     * @param basePath   The absolute base directory for calculating the relative path
+     * @param attributes The attributes of the file
+     * @return A new FileInfo object
+     */
+    public static FileInfo fromAttributes(Path path, Path basePath, Attributes attributes) {
+        var result = new FileInfo(
+                path.toString(),
+                FileUtils.makeUniformPath(basePath.relativize(path).toString()),
+                attributes.getSize(),
+                attributes.getCreationTime(),
+                attributes.getModificationTime(),
+                attributes.getExtendedUmask()
+        );
+        result.setFileKey(attributes.getFileKey());
+        return result;
+    }
+
     public static FileInfo fromLine(String fileLine) {
         try {
             String[] parts = fileLine.split("\t");
@@ -83,7 +107,7 @@ public class FileInfo {
             Instant creationTime = dtf.parse(parts[2]).toInstant();
             Instant modificationTime = dtf.parse(parts[3]).toInstant();
             int extendedUmask = Integer.parseInt(parts[4]);
-            return new FileInfo(
+            var result = new FileInfo(
                     null, // the path is not needed here
                     relativePath,
                     size,
@@ -91,6 +115,11 @@ public class FileInfo {
                     modificationTime,
                     extendedUmask
             );
+            // The content hash is optional, older peers do not send it
+            if (parts.length > 5 && !parts[5].isEmpty()) {
+                result.setHash(parts[5]);
+            }
+            return result;
         } catch (Exception ex) {
             throw new RuntimeException(ex);
         }
@@ -155,6 +184,32 @@ public class FileInfo {
         this.extendedUmask = extendedUmask;
     }
 
+    /**
+     * Gets the content hash, prefixed by the algorithm (see {@link org.kendar.sync.lib.utils.ContentHasher}).
+     *
+     * @return The hash, or null if not known
+     */
+    public String getHash() {
+        return hash;
+    }
+
+    public void setHash(String hash) {
+        this.hash = hash;
+    }
+
+    /**
+     * Gets the identity of the file on the local file system, it is not sent to the peer.
+     *
+     * @return The key, or null if not known
+     */
+    public String getFileKey() {
+        return fileKey;
+    }
+
+    public void setFileKey(String fileKey) {
+        this.fileKey = fileKey;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -179,12 +234,16 @@ public class FileInfo {
 
     public String toLine() {
         var dtf = new SimpleDateFormat("yyyy-MM-dd hh:mm:ss");
-        return String.join("\t",
+        var line = String.join("\t",
                 relativePath,
                 String.valueOf(size),
                 dtf.format(new Date(creationTime.toEpochMilli())),
                 dtf.format(new Date(modificationTime.toEpochMilli())),
                 String.valueOf(extendedUmask)
         );
+        if (hash != null && !hash.isEmpty()) {
+            line += "\t" + hash;
+        }
+        return line;
     }
 }
\ No newline at end of file
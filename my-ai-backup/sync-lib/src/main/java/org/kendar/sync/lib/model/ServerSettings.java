@@ -22,6 +22,22 @@ public class ServerSettings {
     private int webPort;
     private int maxPacketSize;
     private int maxConnections;
+    private int maxWritersPerDevice = 2;
+    private int maxQueueWaitSeconds = 300;
+    private int scrubIntervalHours = 0;
+    private long scrubBytesPerSecond = 20L * 1024 * 1024;
+    private int scrubThreads = 2;
+    private String clusterDirectory;
+    private String clusterNodeId;
+    private String clusterAddress;
+    private int clusterHeartbeatSeconds = 5;
+    private int clusterNodeTimeoutSeconds = 20;
+    private int replicationIntervalSeconds = 30;
+    private long replicationBytesPerSecond = 0;
+    private int tieringAgeDays = 0;
+    private int tieringIntervalHours = 24;
+    private int inlineFileThreshold = 4096;
+    private int resumeGraceSeconds = 300;
     private List<User> users;
     private List<BackupFolder> backupFolders;
 
@@ -161,6 +177,212 @@ public class ServerSettings {
         this.maxConnections = maxConnections;
     }
 
+    /**
+     * Gets the maximum number of concurrent block writers on a single storage device.
+     *
+     * @return The maximum writers per device
+     */
+    public int getMaxWritersPerDevice() {
+        return maxWritersPerDevice;
+    }
+
+    public void setMaxWritersPerDevice(int maxWritersPerDevice) {
+        this.maxWritersPerDevice = maxWritersPerDevice;
+    }
+
+    /**
+     * Gets the maximum time a client waits in the queue of a busy folder before being rejected.
+     *
+     * @return The maximum wait in seconds, 0 to reject immediately
+     */
+    public int getMaxQueueWaitSeconds() {
+        return maxQueueWaitSeconds;
+    }
+
+    public void setMaxQueueWaitSeconds(int maxQueueWaitSeconds) {
+        this.maxQueueWaitSeconds = maxQueueWaitSeconds;
+    }
+
+    /**
+     * Gets the interval between two automatic scrubs of all the backup folders.
+     *
+     * @return The interval in hours, 0 to scrub only on request
+     */
+    public int getScrubIntervalHours() {
+        return scrubIntervalHours;
+    }
+
+    public void setScrubIntervalHours(int scrubIntervalHours) {
+        this.scrubIntervalHours = scrubIntervalHours;
+    }
+
+    /**
+     * Gets the maximum read rate of the scrub, shared by all its threads.
+     *
+     * @return The rate in bytes per second, 0 for unlimited
+     */
+    public long getScrubBytesPerSecond() {
+        return scrubBytesPerSecond;
+    }
+
+    public void setScrubBytesPerSecond(long scrubBytesPerSecond) {
+        this.scrubBytesPerSecond = scrubBytesPerSecond;
+    }
+
+    public int getScrubThreads() {
+        return scrubThreads;
+    }
+
+    public void setScrubThreads(int scrubThreads) {
+        this.scrubThreads = scrubThreads;
+    }
+
+    /**
+     * Gets the directory shared by the nodes of a cluster, on storage reachable by all of them.
+     *
+     * @return The directory, null when the server runs alone
+     */
+    public String getClusterDirectory() {
+        return clusterDirectory;
+    }
+
+    public void setClusterDirectory(String clusterDirectory) {
+        this.clusterDirectory = clusterDirectory;
+    }
+
+    /**
+     * Gets the identifier of this node in the cluster.
+     *
+     * @return The identifier, null to use the address and port
+     */
+    public String getClusterNodeId() {
+        return clusterNodeId;
+    }
+
+    public void setClusterNodeId(String clusterNodeId) {
+        this.clusterNodeId = clusterNodeId;
+    }
+
+    /**
+     * Gets the address the clients use to reach this node when redirected to it.
+     *
+     * @return The address, null to use the local host name
+     */
+    public String getClusterAddress() {
+        return clusterAddress;
+    }
+
+    public void setClusterAddress(String clusterAddress) {
+        this.clusterAddress = clusterAddress;
+    }
+
+    /**
+     * Gets the interval between the heartbeats of this node.
+     *
+     * @return The interval in seconds
+     */
+    public int getClusterHeartbeatSeconds() {
+        return clusterHeartbeatSeconds;
+    }
+
+    public void setClusterHeartbeatSeconds(int clusterHeartbeatSeconds) {
+        this.clusterHeartbeatSeconds = clusterHeartbeatSeconds;
+    }
+
+    /**
+     * Gets the time without heartbeats after which a node is considered down, its folders
+     * are then assigned to the other nodes.
+     *
+     * @return The timeout in seconds
+     */
+    public int getClusterNodeTimeoutSeconds() {
+        return clusterNodeTimeoutSeconds;
+    }
+
+    public void setClusterNodeTimeoutSeconds(int clusterNodeTimeoutSeconds) {
+        this.clusterNodeTimeoutSeconds = clusterNodeTimeoutSeconds;
+    }
+
+    /**
+     * Gets the interval between two pushes of the folder changes to their replicas.
+     *
+     * @return The interval in seconds
+     */
+    public int getReplicationIntervalSeconds() {
+        return replicationIntervalSeconds;
+    }
+
+    public void setReplicationIntervalSeconds(int replicationIntervalSeconds) {
+        this.replicationIntervalSeconds = replicationIntervalSeconds;
+    }
+
+    /**
+     * Gets the maximum rate of the data sent to the replicas, shared by all of them.
+     *
+     * @return The rate in bytes per second, 0 for unlimited
+     */
+    public long getReplicationBytesPerSecond() {
+        return replicationBytesPerSecond;
+    }
+
+    public void setReplicationBytesPerSecond(long replicationBytesPerSecond) {
+        this.replicationBytesPerSecond = replicationBytesPerSecond;
+    }
+
+    /**
+     * Gets the age of the date directories packed by the tiering of the date separated folders.
+     *
+     * @return The age in days, 0 to disable the tiering
+     */
+    public int getTieringAgeDays() {
+        return tieringAgeDays;
+    }
+
+    public void setTieringAgeDays(int tieringAgeDays) {
+        this.tieringAgeDays = tieringAgeDays;
+    }
+
+    /**
+     * Gets the interval between two runs of the tiering.
+     *
+     * @return The interval in hours
+     */
+    public int getTieringIntervalHours() {
+        return tieringIntervalHours;
+    }
+
+    public void setTieringIntervalHours(int tieringIntervalHours) {
+        this.tieringIntervalHours = tieringIntervalHours;
+    }
+
+    /**
+     * Gets the size of the largest file the clients can send inside its descriptor,
+     * in a single round trip. Capped by the maximum packet size.
+     *
+     * @return The size in bytes, 0 to disable the inline files
+     */
+    public int getInlineFileThreshold() {
+        return inlineFileThreshold;
+    }
+
+    public void setInlineFileThreshold(int inlineFileThreshold) {
+        this.inlineFileThreshold = inlineFileThreshold;
+    }
+
+    /**
+     * Gets how long a backup session dropped by the network can be resumed. The folder
+     * stays reserved to the session meanwhile.
+     *
+     * @return The grace period in seconds, 0 to never resume
+     */
+    public int getResumeGraceSeconds() {
+        return resumeGraceSeconds;
+    }
+
+    public void setResumeGraceSeconds(int resumeGraceSeconds) {
+        this.resumeGraceSeconds = resumeGraceSeconds;
+    }
+
     public List<User> getUsers() {
         return users;
     }
@@ -250,6 +472,9 @@ public class ServerSettings {
         private boolean ignoreSystemFiles = true;
         private boolean ignoreHiddenFiles = true;
         private List<String> ignoredPatterns = new ArrayList<>();
+        private boolean compressAtRest = false;
+        private List<Replica> replicas = new ArrayList<>();
+        private Storage storage;
 
         public boolean isIgnoreSystemFiles() {
             return ignoreSystemFiles;
@@ -275,6 +500,48 @@ public class ServerSettings {
             this.ignoredPatterns = ignoredPatterns;
         }
 
+        /**
+         * Tells if the files are stored as the compressed blocks received from the clients,
+         * followed by their index. Not used by the two-way sync folders.
+         *
+         * @return True if stored compressed
+         */
+        public boolean isCompressAtRest() {
+            return compressAtRest;
+        }
+
+        public void setCompressAtRest(boolean compressAtRest) {
+            this.compressAtRest = compressAtRest;
+        }
+
+        /**
+         * Gets the folders of other servers receiving a copy of the stored files.
+         * Not used by the two-way sync folders.
+         *
+         * @return The replicas
+         */
+        public List<Replica> getReplicas() {
+            return replicas;
+        }
+
+        public void setReplicas(List<Replica> replicas) {
+            this.replicas = replicas;
+        }
+
+        /**
+         * Gets where the files are stored. When not set they are stored in the real path,
+         * that anyway keeps the catalogs and the journals of the folder.
+         *
+         * @return The storage, or null for the local disk
+         */
+        public Storage getStorage() {
+            return storage;
+        }
+
+        public void setStorage(Storage storage) {
+            this.storage = storage;
+        }
+
         // Default constructor for Jackson
         public BackupFolder() {
             this.allowedUsers = new ArrayList<>();
@@ -332,4 +599,202 @@ public class ServerSettings {
             this.allowedUsers = allowedUsers;
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Represents a mirror folder on another server receiving the changes of a backup folder.
+     */
+    public static class Replica {
+        private String address;
+        private int port;
+        private String username;
+        private String password;
+        private String targetFolder;
+
+        // Default constructor for Jackson
+        public Replica() {
+        }
+
+        /**
+         * Creates a new replica.
+         *
+         * @param address      The address of the other server
+         * @param port         The port of the other server
+         * @param username     The user on the other server
+         * @param password     The password of the user
+         * @param targetFolder The virtual name of the mirror folder on the other server
+         */
+        public Replica(String address, int port, String username, String password, String targetFolder) {
+            this.address = address;
+            this.port = port;
+            this.username = username;
+            this.password = password;
+            this.targetFolder = targetFolder;
+        }
+
+        /**
+         * Gets the identifier of the replica, unique within its folder.
+         *
+         * @return The address, port and target folder
+         */
+        @JsonIgnore
+        public String getId() {
+            return address + ":" + port + "/" + targetFolder;
+        }
+
+        public String getAddress() {
+            return address;
+        }
+
+        public void setAddress(String address) {
+            this.address = address;
+        }
+
+        public int getPort() {
+            return port;
+        }
+
+        public void setPort(int port) {
+            this.port = port;
+        }
+
+        public String getUsername() {
+            return username;
+        }
+
+        public void setUsername(String username) {
+            this.username = username;
+        }
+
+        public String getPassword() {
+            return password;
+        }
+
+        public void setPassword(String password) {
+            this.password = password;
+        }
+
+        public String getTargetFolder() {
+            return targetFolder;
+        }
+
+        public void setTargetFolder(String targetFolder) {
+            this.targetFolder = targetFolder;
+        }
+    }
+
+    /**
+     * Represents where the files of a backup folder are stored. The object stores
+     * hold only the files of the mirror and preserve folders not compressed at rest.
+     */
+    public static class Storage {
+        public static final String LOCAL = "local";
+        public static final String S3 = "s3";
+
+        private String type = LOCAL;
+        private String endpoint;
+        private String region;
+        private String bucket;
+        private String prefix = "";
+        private String accessKey;
+        private String secretKey;
+        private int uploadParallelism = 4;
+
+        // Default constructor for Jackson
+        public Storage() {
+        }
+
+        /**
+         * Creates a new S3 compatible storage.
+         *
+         * @param endpoint  The object store URL, like {@code http://localhost:9000}
+         * @param region    The region used to sign the requests
+         * @param bucket    The bucket
+         * @param prefix    The prefix of the keys of the folder, empty for the whole bucket
+         * @param accessKey The access key
+         * @param secretKey The secret key
+         */
+        public Storage(String endpoint, String region, String bucket, String prefix, String accessKey, String secretKey) {
+            this.type = S3;
+            this.endpoint = endpoint;
+            this.region = region;
+            this.bucket = bucket;
+            this.prefix = prefix;
+            this.accessKey = accessKey;
+            this.secretKey = secretKey;
+        }
+
+        /**
+         * Gets the type of storage.
+         *
+         * @return {@link #LOCAL} or {@link #S3}
+         */
+        public String getType() {
+            return type;
+        }
+
+        public void setType(String type) {
+            this.type = type;
+        }
+
+        public String getEndpoint() {
+            return endpoint;
+        }
+
+        public void setEndpoint(String endpoint) {
+            this.endpoint = endpoint;
+        }
+
+        public String getRegion() {
+            return region;
+        }
+
+        public void setRegion(String region) {
+            this.region = region;
+        }
+
+        public String getBucket() {
+            return bucket;
+        }
+
+        public void setBucket(String bucket) {
+            this.bucket = bucket;
+        }
+
+        public String getPrefix() {
+            return prefix;
+        }
+
+        public void setPrefix(String prefix) {
+            this.prefix = prefix;
+        }
+
+        public String getAccessKey() {
+            return accessKey;
+        }
+
+        public void setAccessKey(String accessKey) {
+            this.accessKey = accessKey;
+        }
+
+        public String getSecretKey() {
+            return secretKey;
+        }
+
+        public void setSecretKey(String secretKey) {
+            this.secretKey = secretKey;
+        }
+
+        /**
+         * Gets the number of parts uploaded at the same time, by all the files of the folder.
+         *
+         * @return The upload parallelism
+         */
+        public int getUploadParallelism() {
+            return uploadParallelism;
+        }
+
+        public void setUploadParallelism(int uploadParallelism) {
+            this.uploadParallelism = uploadParallelism;
+        }
+    }
+}
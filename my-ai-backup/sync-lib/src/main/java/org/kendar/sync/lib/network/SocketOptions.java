@@ -0,0 +1,82 @@
+package org.kendar.sync.lib.network;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+
+/**
+ * Creates the sockets with the options tuned for their role.
+ * <p>
+ * Nagle's algorithm is disabled, the {@link TcpConnection} already coalesces the small
+ * messages and flushes only when the peer must see them. The buffers are enlarged in
+ * the direction of the bulk data: the client sends the backups, the server sends the
+ * restores and receives the backups. The receive buffers are set before connecting,
+ * so that the window scaling is negotiated for them.
+ */
+public final class SocketOptions {
+    private static final Logger log = LoggerFactory.getLogger(SocketOptions.class);
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    private SocketOptions() {
+    }
+
+    /**
+     * Connects a client socket.
+     *
+     * @param host The server address
+     * @param port The server port
+     * @return The connected socket
+     * @throws IOException If the connection fails
+     */
+    public static Socket connect(String host, int port) throws IOException {
+        var socket = new Socket();
+        try {
+            socket.setTcpNoDelay(true);
+            socket.setKeepAlive(true);
+            socket.setSendBufferSize(BUFFER_SIZE);
+            socket.setReceiveBufferSize(BUFFER_SIZE);
+        } catch (SocketException e) {
+            log.debug("[CLIENT] Unable to tune the socket: {}", e.getMessage());
+        }
+        socket.connect(new InetSocketAddress(host, port));
+        return socket;
+    }
+
+    /**
+     * Opens the server socket, the accepted sockets inherit its receive buffer.
+     *
+     * @param port The port
+     * @return The bound server socket
+     * @throws IOException If the port cannot be bound
+     */
+    public static ServerSocket listen(int port) throws IOException {
+        var serverSocket = new ServerSocket();
+        try {
+            serverSocket.setReceiveBufferSize(BUFFER_SIZE);
+        } catch (SocketException e) {
+            log.debug("[SERVER] Unable to tune the server socket: {}", e.getMessage());
+        }
+        serverSocket.bind(new InetSocketAddress(port));
+        return serverSocket;
+    }
+
+    /**
+     * Tunes a socket accepted by the server.
+     *
+     * @param socket The accepted socket
+     */
+    public static void accepted(Socket socket) {
+        try {
+            socket.setTcpNoDelay(true);
+            socket.setKeepAlive(true);
+            socket.setSendBufferSize(BUFFER_SIZE);
+        } catch (SocketException e) {
+            log.debug("[SERVER] Unable to tune the socket: {}", e.getMessage());
+        }
+    }
+}
@@ -1,39 +1,73 @@
 package org.kendar.sync.lib.network;
 
+import org.kendar.sync.client.RedirectException;
 import org.kendar.sync.client.RetryException;
+import org.kendar.sync.lib.buffer.BufferPool;
 import org.kendar.sync.lib.protocol.ErrorMessage;
+import org.kendar.sync.lib.protocol.KeepAlive;
 import org.kendar.sync.lib.protocol.Message;
 import org.kendar.sync.lib.protocol.MessageType;
 import org.kendar.sync.lib.protocol.Packet;
+import org.kendar.sync.lib.protocol.ProtocolVersion;
 import org.kendar.sync.lib.utils.DebugLogger;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.Socket;
 import java.net.SocketException;
 import java.nio.ByteBuffer;
+import java.util.EnumSet;
 import java.util.Objects;
 import java.util.UUID;
+import java.util.function.IntConsumer;
 
 /**
  * Handles TCP communication between the client and server.
+ * <p>
+ * From {@link ProtocolVersion#V2} the packets after the first one sent on the connection
+ * use the compact framing, the first one binds the session and the connection id for the
+ * peer. The received packets can use both framings.
+ * <p>
+ * The messages are written to a send buffer. {@link #sendMessage(Message)} flushes it,
+ * except for the acknowledgments of a message when the next one is already received,
+ * and {@link #queueMessage(Message)} never does: the pending messages are flushed
+ * together with the next message sent, or when the connection waits for a message
+ * that is not yet arrived, so that an acknowledgment and the messages following it
+ * share the same write.
  */
 public class TcpConnection implements AutoCloseable {
     private static final Logger log = LoggerFactory.getLogger(TcpConnection.class);
+    private static final int SEND_BUFFER_SIZE = 64 * 1024;
+    // Always answers to a message, the sender waits for them before going on
+    private static final EnumSet<MessageType> DEFERRED_FLUSH = EnumSet.of(
+            MessageType.FILE_DESCRIPTOR_ACK, MessageType.FILE_DATA_ACK, MessageType.FILE_END_ACK);
     private final Socket socket;
     private final int packetId;
+    private final CountingOutputStream socketOutputStream;
     private final OutputStream outputStream;
     private int maxPacketSize;
+    private InputStream rawInputStream;
     private InputStream inputStream;
     private UUID sessionId;
     private int connectionId;
     private Runnable sessionTouch;
     private boolean server = false;
     private final Object lock = new Object();
+    private final byte[] lengthBytes = new byte[4];
     private boolean closed;
+    private IntConsumer queuePositionListener;
+    private volatile int protocolVersion = ProtocolVersion.V1;
+    private volatile boolean bound;
+    private boolean flushPending;
+    private long messagesSent;
+    private volatile int inlineThreshold;
 
     /**
      * Creates a new TCP connection.
@@ -46,8 +80,10 @@ public class TcpConnection implements AutoCloseable {
      */
     public TcpConnection(Socket socket, UUID sessionId, int connectionId, int maxPacketSize, boolean server) throws IOException {
         this.socket = socket;
-        this.inputStream = socket.getInputStream();
-        this.outputStream = socket.getOutputStream();
+        this.rawInputStream = socket.getInputStream();
+        this.inputStream = new BufferedInputStream(rawInputStream);
+        this.socketOutputStream = new CountingOutputStream(socket.getOutputStream());
+        this.outputStream = new BufferedOutputStream(socketOutputStream, SEND_BUFFER_SIZE);
         this.sessionId = sessionId;
         this.connectionId = connectionId;
         this.packetId = 0;
@@ -90,35 +126,112 @@ public class TcpConnection implements AutoCloseable {
     }
 
     /**
-     * Sends a message.
+     * Sends a message. The acknowledgments are flushed with the next message or read
+     * when the next message is already received, the other messages immediately.
      *
      * @param message The message to send
      * @throws IOException If an I/O error occurs
      */
     public void sendMessage(Message message) throws IOException {
         synchronized (lock) {
+            writeMessage(message);
+            if (!DEFERRED_FLUSH.contains(message.getMessageType()) || !hasPendingInput()) {
+                flushPendingMessages();
+            }
+        }
+    }
 
-            byte[] messageData = message.serialize();
+    /**
+     * Queues a message in the send buffer without flushing it, to send several
+     * messages with a single write.
+     *
+     * @param message The message to queue
+     * @throws IOException If an I/O error occurs
+     */
+    public void queueMessage(Message message) throws IOException {
+        synchronized (lock) {
+            writeMessage(message);
+        }
+    }
 
-            // Create a packet with the message data
-            Packet packet = new Packet(
-                    connectionId,
-                    sessionId,
-                    packetId,
-                    message.getMessageType().getCode(),
-                    messageData
-            );
+    /**
+     * Sends the queued messages.
+     *
+     * @throws IOException If an I/O error occurs
+     */
+    public void flush() throws IOException {
+        synchronized (lock) {
+            flushPendingMessages();
+        }
+    }
+
+    private void writeMessage(Message message) throws IOException {
+        var packet = message.getPreparedPacket();
+        // The packet could have been prepared before the session was bound
+        if (packet == null || packet.isCompact() != isCompact()) {
+            packet = buildPacket(message);
+        }
+        // Serialize the packet in the send buffer
+        byte[] packetData = BufferPool.shared().acquire(packet.getLength());
+        try {
+            outputStream.write(packetData, 0, packet.serialize(packetData));
+            bound = true;
+            flushPending = true;
+            messagesSent++;
+        } finally {
+            BufferPool.shared().release(packetData);
+        }
+
+        // Touch the session to indicate activity
+        if (sessionTouch != null) {
+            sessionTouch.run(); // 30-second timeout
+        }
+    }
+
+    private boolean hasPendingInput() {
+        try {
+            return inputStream.available() > 0;
+        } catch (IOException e) {
+            return false;
+        }
+    }
 
-            // Serialize the packet and send it
-            byte[] packetData = packet.serialize();
-            outputStream.write(packetData);
+    private void flushPendingMessages() throws IOException {
+        if (flushPending) {
+            flushPending = false;
             outputStream.flush();
+        }
+    }
 
-            // Touch the session to indicate activity
-            if (sessionTouch != null) {
-                sessionTouch.run(); // 30-second timeout
-            }
+    /**
+     * Serializes and compresses a message ahead of its send. This can be done on
+     * any thread, the following {@link #sendMessage(Message)} only writes it.
+     *
+     * @param message The message to prepare
+     */
+    public void prepareMessage(Message message) {
+        message.setPreparedPacket(buildPacket(message));
+    }
+
+    private boolean isCompact() {
+        return bound && protocolVersion >= ProtocolVersion.V2;
+    }
+
+    private Packet buildPacket(Message message) {
+        byte[] messageData = message.serialize();
+        if (isCompact()) {
+            return Packet.compact(connectionId, sessionId, message.getMessageType(), messageData,
+                    message.isCompressible());
         }
+
+        // Create a packet with the message data
+        return new Packet(
+                connectionId,
+                sessionId,
+                packetId,
+                message.getMessageType().getCode(),
+                messageData
+        );
     }
 
     /**
@@ -135,42 +248,27 @@ public class TcpConnection implements AutoCloseable {
                     sessionTouch.run(); // 30-second timeout
                 }
 
-                // Read the packet length
-                byte[] lengthBytes = new byte[4];
-                this.inputStream = socket.getInputStream();
-                int bytesRead = inputStream.read(lengthBytes);
-                if (bytesRead != 4) {
-                    if (bytesRead == -1) {
-                        return null;
-                    }
-                    throw new IOException("Failed to read packet length");
+                // The first byte tells the framing of the packet
+                var raw = socket.getInputStream();
+                if (raw != rawInputStream) {
+                    rawInputStream = raw;
+                    inputStream = new BufferedInputStream(raw);
                 }
-
-                int packetLength = ByteBuffer.wrap(lengthBytes).getInt();
-                if (packetLength <= 0 || packetLength > (maxPacketSize + 1024)) {
-                    log.error("Packet length out of range was {} max is {}", packetLength, maxPacketSize);
-                    throw new IOException("Invalid packet length: " + packetLength);
+                // Nothing more to read, the queued messages must reach the peer
+                if (!hasPendingInput()) {
+                    flush();
                 }
-
-                // Read the rest of the packet
-                byte[] packetData = new byte[packetLength];
-                System.arraycopy(lengthBytes, 0, packetData, 0, 4);
-
-                int remaining = packetLength - 4;
-                int offset = 4;
-
-                while (remaining > 0) {
-                    bytesRead = inputStream.read(packetData, offset, remaining);
-                    if (bytesRead == -1) {
-                        throw new IOException("End of stream reached");
-                    }
-
-                    offset += bytesRead;
-                    remaining -= bytesRead;
+                int first = inputStream.read();
+                if (first == -1) {
+                    return null;
                 }
 
-                // Deserialize the packet
-                Packet packet = Packet.deserialize(packetData);
+                Packet packet;
+                if (Packet.isCompact(first)) {
+                    packet = Packet.readCompact(first, inputStream, maxPacketSize + 1024, connectionId, sessionId);
+                } else {
+                    packet = readPacket(first);
+                }
 
                 // Deserialize the message
                 var result = Message.deserialize(packet.getDecompressedContent());
@@ -178,6 +276,14 @@ public class TcpConnection implements AutoCloseable {
                 if (result.getMessageType() == MessageType.KEEP_ALIVE) {
                     DebugLogger.log.debug("[{}-{}] Keep alive received", server ? "SERVER" :"CLIENT",
                             getConnectionId());
+                    var queuePosition = ((KeepAlive) result).getQueuePosition();
+                    if (queuePosition > 0) {
+                        log.info("[{}-{}] Waiting for the folder, queue position {}", server ? "SERVER" : "CLIENT",
+                                getConnectionId(), queuePosition);
+                        if (queuePositionListener != null) {
+                            queuePositionListener.accept(queuePosition);
+                        }
+                    }
                     continue;
                 } else if (result.getMessageType() == MessageType.ERROR) {
                     var errorMessage = (ErrorMessage) result;
@@ -186,6 +292,8 @@ public class TcpConnection implements AutoCloseable {
                     if (errorMessage.getErrorCode().equals("ERR_BUSY")) {
                         throw new RetryException(errorMessage.getErrorCode(),
                                 errorMessage.getErrorMessage(), errorMessage.getDetails());
+                    } else if (errorMessage.getErrorCode().equals("ERR_REDIRECT")) {
+                        throw RedirectException.fromDetails(errorMessage.getErrorMessage(), errorMessage.getDetails());
                     }
                     throw new IOException(errorMessage.getErrorCode() + "-" + errorMessage.getErrorMessage() + "-" + errorMessage.getDetails());
                 }
@@ -198,6 +306,41 @@ public class TcpConnection implements AutoCloseable {
         }
     }
 
+    private Packet readPacket(int first) throws IOException {
+        // Read the packet length
+        lengthBytes[0] = (byte) first;
+        readFully(lengthBytes, 1, 3);
+
+        int packetLength = ByteBuffer.wrap(lengthBytes).getInt();
+        if (packetLength <= 0 || packetLength > (maxPacketSize + 1024)) {
+            log.error("Packet length out of range was {} max is {}", packetLength, maxPacketSize);
+            throw new IOException("Invalid packet length: " + packetLength);
+        }
+
+        // Read the rest of the packet, the pooled array can be longer than the packet
+        byte[] packetData = BufferPool.shared().acquire(packetLength);
+        try {
+            System.arraycopy(lengthBytes, 0, packetData, 0, 4);
+            readFully(packetData, 4, packetLength - 4);
+
+            // Deserialize the packet
+            return Packet.deserialize(packetData);
+        } finally {
+            BufferPool.shared().release(packetData);
+        }
+    }
+
+    private void readFully(byte[] target, int offset, int length) throws IOException {
+        while (length > 0) {
+            int bytesRead = inputStream.read(target, offset, length);
+            if (bytesRead == -1) {
+                throw new EOFException("End of stream reached");
+            }
+            offset += bytesRead;
+            length -= bytesRead;
+        }
+    }
+
     /**
      * Closes the connection.
      *
@@ -205,8 +348,17 @@ public class TcpConnection implements AutoCloseable {
      */
     @Override
     public void close() throws IOException {
+        if (!closed) {
+            try {
+                flush();
+            } catch (IOException e) {
+                log.trace("[{}-{}] Unable to flush before closing: {}", server ? "SERVER" : "CLIENT",
+                        getConnectionId(), e.getMessage());
+            }
+        }
         this.closed=true;
-        log.debug("[{}-{}] Closing socket", server ? "SERVER" : "CLIENT", getConnectionId());
+        log.debug("[{}-{}] Closing socket, {} messages sent in {} writes", server ? "SERVER" : "CLIENT",
+                getConnectionId(), getMessagesSent(), getSocketWrites());
         inputStream.close();
         outputStream.close();
         socket.close();
@@ -260,14 +412,98 @@ public class TcpConnection implements AutoCloseable {
         this.maxPacketSize = maxPacketSize;
     }
 
+    /**
+     * Gets the protocol version used on this connection.
+     *
+     * @return The protocol version
+     */
+    public int getProtocolVersion() {
+        return protocolVersion;
+    }
+
+    /**
+     * Sets the protocol version negotiated for the session. The compact framing starts
+     * after the first packet sent on the connection.
+     *
+     * @param protocolVersion The protocol version
+     */
+    public void setProtocolVersion(int protocolVersion) {
+        this.protocolVersion = protocolVersion;
+    }
+
+    /**
+     * Gets the size of the largest file sent inside its descriptor.
+     *
+     * @return The size in bytes, 0 when the files are never sent inline
+     */
+    public int getInlineThreshold() {
+        return inlineThreshold;
+    }
+
+    public void setInlineThreshold(int inlineThreshold) {
+        this.inlineThreshold = inlineThreshold;
+    }
+
+    /**
+     * Gets the number of messages sent on this connection.
+     *
+     * @return The messages sent
+     */
+    public long getMessagesSent() {
+        synchronized (lock) {
+            return messagesSent;
+        }
+    }
+
+    /**
+     * Gets the number of writes done on the socket, each one a system call.
+     *
+     * @return The socket writes
+     */
+    public long getSocketWrites() {
+        return socketOutputStream.writes;
+    }
+
     public boolean isClosed() {
         return !socket.isConnected() || socket.isClosed() || !socket.isBound();
     }
 
+    /**
+     * Sets the listener notified when the server reports the position in a folder wait queue.
+     *
+     * @param queuePositionListener The listener receiving the 1-based queue position
+     */
+    public void setQueuePositionListener(IntConsumer queuePositionListener) {
+        this.queuePositionListener = queuePositionListener;
+    }
+
     /**
      * Sets the client session associated with this connection.
      */
     public void setSession(Runnable sessionTouch) {
         this.sessionTouch = sessionTouch;
     }
+
+    /**
+     * Counts the writes reaching the socket.
+     */
+    private static class CountingOutputStream extends FilterOutputStream {
+        private volatile long writes;
+
+        private CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            writes++;
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            writes++;
+            out.write(b, off, len);
+        }
+    }
 }
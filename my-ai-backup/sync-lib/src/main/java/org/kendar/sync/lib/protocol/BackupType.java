@@ -27,6 +27,12 @@ public enum BackupType {
      * During restore, the date structure is ignored and files are placed directly in the target directory.
      */
     DATE_SEPARATED,
+    /**
+     * Backup/Restore with a complete snapshot directory for every backup.
+     * The files unchanged since the previous snapshot are hard links to it.
+     * During restore, the latest snapshot is copied to the target directory.
+     */
+    SNAPSHOT,
     /**
      * Two-way synchronization.
      * Files are synchronized in both directions, ensuring both source and target have the latest versions.
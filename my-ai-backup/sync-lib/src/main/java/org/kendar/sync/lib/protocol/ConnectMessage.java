@@ -22,6 +22,10 @@ public class ConnectMessage extends Message {
     private boolean ignoreSystemFiles = true;
     private boolean ignoreHiddenFiles = true;
     private List<String> ignoredPatterns = new ArrayList<>();
+    private String hashAlgorithm;
+    private int protocolVersion = ProtocolVersion.V1;
+    private String pointInTime;
+    private String resumeToken;
 
     public String getHostName() {
         return hostName;
@@ -55,6 +59,58 @@ public class ConnectMessage extends Message {
         this.ignoredPatterns = ignoredPatterns;
     }
 
+    /**
+     * Gets the algorithm the client uses to hash the transferred files.
+     *
+     * @return The algorithm, or null if the client does not send content hashes
+     */
+    public String getHashAlgorithm() {
+        return hashAlgorithm;
+    }
+
+    public void setHashAlgorithm(String hashAlgorithm) {
+        this.hashAlgorithm = hashAlgorithm;
+    }
+
+    /**
+     * Gets the latest protocol version known by the client.
+     *
+     * @return The protocol version
+     */
+    public int getProtocolVersion() {
+        return protocolVersion;
+    }
+
+    public void setProtocolVersion(int protocolVersion) {
+        this.protocolVersion = protocolVersion;
+    }
+
+    /**
+     * Gets the date of the versions to restore.
+     *
+     * @return The date, in the yyyy-MM-dd format, or null for the latest versions
+     */
+    public String getPointInTime() {
+        return pointInTime;
+    }
+
+    public void setPointInTime(String pointInTime) {
+        this.pointInTime = pointInTime;
+    }
+
+    /**
+     * Gets the token of the backup session to resume.
+     *
+     * @return The token, or null to start a new session
+     */
+    public String getResumeToken() {
+        return resumeToken;
+    }
+
+    public void setResumeToken(String resumeToken) {
+        this.resumeToken = resumeToken;
+    }
+
     // Default constructor for Jackson
     public ConnectMessage() {
     }
@@ -100,6 +156,25 @@ public class ConnectMessage extends Message {
         if(patterns != null && !patterns.isEmpty()) {
             ignoredPatterns = List.of(patterns.split(","));
         }
+        // Older clients do not send the hash algorithm
+        if (buffer.getRemaining() > 0) {
+            var algorithm = buffer.readType(String.class);
+            hashAlgorithm = algorithm == null || algorithm.isEmpty() ? null : algorithm;
+        }
+        // Nor the protocol version
+        if (buffer.getRemaining() > 0) {
+            protocolVersion = buffer.readType(Integer.class);
+        }
+        // Nor the point in time
+        if (buffer.getRemaining() > 0) {
+            var date = buffer.readType(String.class);
+            pointInTime = date == null || date.isEmpty() ? null : date;
+        }
+        // Nor the resume token
+        if (buffer.getRemaining() > 0) {
+            var token = buffer.readType(String.class);
+            resumeToken = token == null || token.isEmpty() ? null : token;
+        }
         return this;
     }
 
@@ -124,6 +199,10 @@ public class ConnectMessage extends Message {
         } else {
             buffer.writeType("");
         }
+        buffer.writeType(hashAlgorithm != null ? hashAlgorithm : "");
+        buffer.writeType(protocolVersion);
+        buffer.writeType(pointInTime != null ? pointInTime : "");
+        buffer.writeType(resumeToken != null ? resumeToken : "");
     }
 
     // Getters and setters
@@ -20,6 +20,10 @@ public class ConnectResponseMessage extends Message {
     private boolean ignoreSystemFiles = true;
     private boolean ignoreHiddenFiles = true;
     private List<String> ignoredPatterns = new ArrayList<>();
+    private int protocolVersion = ProtocolVersion.V1;
+    private int inlineThreshold;
+    private String resumeToken;
+    private boolean resumed;
 
     public boolean isIgnoreSystemFiles() {
         return ignoreSystemFiles;
@@ -106,6 +110,20 @@ public class ConnectResponseMessage extends Message {
         if(patterns != null && !patterns.isEmpty()) {
             ignoredPatterns = List.of(patterns.split(","));
         }
+        // Older servers do not send the protocol version
+        if (buffer.getRemaining() > 0) {
+            protocolVersion = buffer.readType(Integer.class);
+        }
+        // Nor the inline threshold
+        if (buffer.getRemaining() > 0) {
+            inlineThreshold = buffer.readType(Integer.class);
+        }
+        // Nor the resume token
+        if (buffer.getRemaining() > 0) {
+            var token = buffer.readType(String.class);
+            resumeToken = token == null || token.isEmpty() ? null : token;
+            resumed = buffer.readType(Boolean.class);
+        }
         return this;
     }
 
@@ -129,6 +147,10 @@ public class ConnectResponseMessage extends Message {
         } else {
             buffer.writeType("");
         }
+        buffer.writeType(protocolVersion);
+        buffer.writeType(inlineThreshold);
+        buffer.writeType(resumeToken != null ? resumeToken : "");
+        buffer.writeType(resumed);
     }
 
     // Getters and setters
@@ -172,4 +194,58 @@ public class ConnectResponseMessage extends Message {
     public void setMaxConnections(int maxConnections) {
         this.maxConnections = maxConnections;
     }
-}
\ No newline at end of file
+
+    /**
+     * Gets the protocol version chosen by the server for the session.
+     *
+     * @return The protocol version
+     */
+    public int getProtocolVersion() {
+        return protocolVersion;
+    }
+
+    public void setProtocolVersion(int protocolVersion) {
+        this.protocolVersion = protocolVersion;
+    }
+
+    /**
+     * Gets the size of the largest file that can be sent inside its descriptor.
+     *
+     * @return The size in bytes, 0 when the server does not accept inline files
+     */
+    public int getInlineThreshold() {
+        return inlineThreshold;
+    }
+
+    public void setInlineThreshold(int inlineThreshold) {
+        this.inlineThreshold = inlineThreshold;
+    }
+
+    /**
+     * Gets the token to present when connecting again after a network drop.
+     *
+     * @return The token, or null if the session cannot be resumed
+     */
+    public String getResumeToken() {
+        return resumeToken;
+    }
+
+    public void setResumeToken(String resumeToken) {
+        this.resumeToken = resumeToken;
+    }
+
+    /**
+     * Tells if a previous session was resumed. Then the server follows with the
+     * {@link FileListResponseMessage} of the files still to transfer, without waiting
+     * for the file list.
+     *
+     * @return True if resumed
+     */
+    public boolean isResumed() {
+        return resumed;
+    }
+
+    public void setResumed(boolean resumed) {
+        this.resumed = resumed;
+    }
+}
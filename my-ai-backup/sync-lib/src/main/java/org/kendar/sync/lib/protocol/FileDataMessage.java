@@ -1,9 +1,13 @@
 package org.kendar.sync.lib.protocol;
 
 import org.kendar.sync.lib.buffer.ByteContainer;
+import org.kendar.sync.lib.utils.BlockCodec;
 
 /**
  * Message containing a chunk of file data.
+ * <p>
+ * From {@link ProtocolVersion#V5} the data can be compressed on its own, then the packet
+ * carrying it is not compressed again and the raw length of the block travels with it.
  */
 public class FileDataMessage extends Message {
 
@@ -11,6 +15,10 @@ public class FileDataMessage extends Message {
     private int blockNumber;
     private int totalBlocks;
     private byte[] data;
+    private boolean compressed;
+    private int rawLength;
+    // Kept by the sender after compressing, never serialized
+    private byte[] rawData;
 
     // Default constructor for Jackson
     public FileDataMessage() {
@@ -31,6 +39,21 @@ public class FileDataMessage extends Message {
         this.data = data;
     }
 
+    /**
+     * Creates a new file data message with data already compressed.
+     *
+     * @param relativePath The relative path of the file
+     * @param blockNumber  The block number (0-based)
+     * @param totalBlocks  The total number of blocks
+     * @param data         The file data, compressed with ZLIB
+     * @param rawLength    The length of the data once decompressed
+     */
+    public FileDataMessage(String relativePath, int blockNumber, int totalBlocks, byte[] data, int rawLength) {
+        this(relativePath, blockNumber, totalBlocks, data);
+        this.compressed = true;
+        this.rawLength = rawLength;
+    }
+
     @Override
     public MessageType getMessageType() {
         return MessageType.FILE_DATA;
@@ -42,6 +65,11 @@ public class FileDataMessage extends Message {
         blockNumber = buffer.readType(Integer.class);
         totalBlocks = buffer.readType(Integer.class);
         data = buffer.readType(byte[].class);
+        // Nor the compression
+        if (buffer.getRemaining() > 0) {
+            compressed = buffer.readType(Boolean.class);
+            rawLength = buffer.readType(Integer.class);
+        }
         return this;
     }
 
@@ -51,6 +79,34 @@ public class FileDataMessage extends Message {
         buffer.writeType(blockNumber);
         buffer.writeType(totalBlocks);
         buffer.writeType(data);
+        if (compressed) {
+            buffer.writeType(true);
+            buffer.writeType(rawLength);
+        }
+    }
+
+    @Override
+    public boolean isCompressible() {
+        return !compressed;
+    }
+
+    /**
+     * Compresses the data, when it gets smaller. The raw data is kept for the sender.
+     *
+     * @return This message
+     */
+    public FileDataMessage compress() {
+        if (compressed || data == null || data.length < Packet.COMPRESSION_THRESHOLD) {
+            return this;
+        }
+        var compressedData = BlockCodec.deflate(data);
+        if (compressedData.length < data.length) {
+            rawData = data;
+            rawLength = data.length;
+            data = compressedData;
+            compressed = true;
+        }
+        return this;
     }
 
     // Getters and setters
@@ -86,6 +142,39 @@ public class FileDataMessage extends Message {
         this.data = data;
     }
 
+    /**
+     * Tells if the data is compressed with ZLIB, see {@link #getRawData()}.
+     *
+     * @return True if compressed
+     */
+    public boolean isCompressed() {
+        return compressed;
+    }
+
+    /**
+     * Gets the length of the block once decompressed.
+     *
+     * @return The raw length
+     */
+    public int getRawLength() {
+        return compressed ? rawLength : data.length;
+    }
+
+    /**
+     * Gets the block as in the file, decompressing the data when needed.
+     *
+     * @return The raw data
+     */
+    public byte[] getRawData() {
+        if (!compressed) {
+            return data;
+        }
+        if (rawData == null) {
+            rawData = BlockCodec.inflate(data);
+        }
+        return rawData;
+    }
+
     /**
      * Checks if this is the first block of the file.
      *
@@ -5,10 +5,15 @@ import org.kendar.sync.lib.model.FileInfo;
 
 /**
  * Message sent before transferring a file to describe its metadata.
+ * <p>
+ * From {@link ProtocolVersion#V7} the files smaller than the threshold announced by the
+ * server carry their whole content, then no data and end messages follow and the server
+ * answers only with the {@link FileEndAckMessage}.
  */
 public class FileDescriptorMessage extends Message {
 
     private FileInfo fileInfo;
+    private byte[] inlineData;
 
     // Default constructor for Jackson
     public FileDescriptorMessage() {
@@ -31,12 +36,18 @@ public class FileDescriptorMessage extends Message {
     @Override
     protected Message deserialize(ByteContainer buffer) {
         fileInfo = FileInfo.fromLine(buffer.readType(String.class));
+        if (buffer.getRemaining() > 0) {
+            inlineData = buffer.readType(byte[].class);
+        }
         return this;
     }
 
     @Override
     protected void serialize(ByteContainer buffer) {
         buffer.writeType(fileInfo.toLine());
+        if (inlineData != null) {
+            buffer.writeType(inlineData);
+        }
     }
 
     // Getters and setters
@@ -47,4 +58,21 @@ public class FileDescriptorMessage extends Message {
     public void setFileInfo(FileInfo fileInfo) {
         this.fileInfo = fileInfo;
     }
-}
\ No newline at end of file
+
+    /**
+     * Gets the content of a file sent inside the descriptor.
+     *
+     * @return The whole content, or null if sent with the data messages
+     */
+    public byte[] getInlineData() {
+        return inlineData;
+    }
+
+    public void setInlineData(byte[] inlineData) {
+        this.inlineData = inlineData;
+    }
+
+    public boolean isInline() {
+        return inlineData != null;
+    }
+}
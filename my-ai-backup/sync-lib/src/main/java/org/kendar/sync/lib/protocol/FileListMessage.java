@@ -17,6 +17,8 @@ public class FileListMessage extends Message {
     private boolean isBackup;
     private int partNumber;
     private int totalParts;
+    private boolean partial;
+    private List<String> deletedFiles = new ArrayList<>();
 
     // Default constructor for Jackson
     public FileListMessage() {
@@ -55,6 +57,16 @@ public class FileListMessage extends Message {
         isBackup = buffer.readType(Boolean.class);
         partNumber = buffer.readType(Integer.class);
         totalParts = buffer.readType(Integer.class);
+        // Nor the partial lists
+        if (buffer.getRemaining() > 0) {
+            partial = buffer.readType(Boolean.class);
+            deletedFiles = new ArrayList<>();
+            for (var deleted : buffer.readType(String.class).split("\n")) {
+                if (!deleted.isEmpty()) {
+                    deletedFiles.add(deleted);
+                }
+            }
+        }
         return this;
     }
 
@@ -67,6 +79,10 @@ public class FileListMessage extends Message {
         buffer.writeType(isBackup);
         buffer.writeType(partNumber);
         buffer.writeType(totalParts);
+        if (partial) {
+            buffer.writeType(true);
+            buffer.writeType(String.join("\n", deletedFiles));
+        }
     }
 
     // Getters and setters
@@ -102,6 +118,33 @@ public class FileListMessage extends Message {
         this.totalParts = totalParts;
     }
 
+    /**
+     * Tells if the list holds only the changed files of a backup. The server then leaves the
+     * other stored files alone and removes only the {@link #getDeletedFiles()}.
+     *
+     * @return True if partial
+     */
+    public boolean isPartial() {
+        return partial;
+    }
+
+    public void setPartial(boolean partial) {
+        this.partial = partial;
+    }
+
+    /**
+     * Gets the files and directories deleted since the previous list, for a partial list.
+     *
+     * @return The relative paths
+     */
+    public List<String> getDeletedFiles() {
+        return deletedFiles;
+    }
+
+    public void setDeletedFiles(List<String> deletedFiles) {
+        this.deletedFiles = deletedFiles;
+    }
+
     /**
      * Adds a file to the list.
      *
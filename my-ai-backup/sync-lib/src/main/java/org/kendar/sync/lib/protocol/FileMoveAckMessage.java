@@ -0,0 +1,58 @@
+package org.kendar.sync.lib.protocol;
+
+import org.kendar.sync.lib.buffer.ByteContainer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Message sent by the server in response to a file move message.
+ * Contains the targets of the moves applied, the others are sent again by the client.
+ */
+public class FileMoveAckMessage extends Message {
+
+    private List<String> applied;
+
+    // Default constructor for Jackson
+    public FileMoveAckMessage() {
+        this.applied = new ArrayList<>();
+    }
+
+    /**
+     * Creates a new file move acknowledgment message.
+     *
+     * @param applied The targets of the moves applied
+     */
+    public FileMoveAckMessage(List<String> applied) {
+        this.applied = applied;
+    }
+
+    @Override
+    public MessageType getMessageType() {
+        return MessageType.FILE_MOVE_ACK;
+    }
+
+    @Override
+    protected Message deserialize(ByteContainer buffer) {
+        applied = new ArrayList<>();
+        for (var line : buffer.readType(String.class).split("\n")) {
+            if (!line.isEmpty()) {
+                applied.add(line);
+            }
+        }
+        return this;
+    }
+
+    @Override
+    protected void serialize(ByteContainer buffer) {
+        buffer.writeType(String.join("\n", applied));
+    }
+
+    public List<String> getApplied() {
+        return applied;
+    }
+
+    public void setApplied(List<String> applied) {
+        this.applied = applied;
+    }
+}
@@ -0,0 +1,95 @@
+package org.kendar.sync.lib.protocol;
+
+import org.kendar.sync.lib.buffer.ByteContainer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Message sent by the client before the file list, from {@link ProtocolVersion#V3}.
+ * Contains the files moved or copied on the client since the previous backup, so that
+ * the server can rename or copy its stored copies instead of receiving them again.
+ */
+public class FileMoveMessage extends Message {
+
+    private List<Move> moves;
+
+    // Default constructor for Jackson
+    public FileMoveMessage() {
+        this.moves = new ArrayList<>();
+    }
+
+    /**
+     * Creates a new file move message.
+     *
+     * @param moves The moved or copied files
+     */
+    public FileMoveMessage(List<Move> moves) {
+        this.moves = moves;
+    }
+
+    @Override
+    public MessageType getMessageType() {
+        return MessageType.FILE_MOVE;
+    }
+
+    @Override
+    protected Message deserialize(ByteContainer buffer) {
+        moves = new ArrayList<>();
+        for (var line : buffer.readType(String.class).split("\n")) {
+            var parts = line.split("\t", 3);
+            if (parts.length == 3) {
+                moves.add(new Move(parts[1], parts[2], "C".equals(parts[0])));
+            }
+        }
+        return this;
+    }
+
+    @Override
+    protected void serialize(ByteContainer buffer) {
+        buffer.writeType(moves.stream()
+                .map(move -> (move.isCopy() ? "C" : "M") + "\t" + move.getSource() + "\t" + move.getTarget())
+                .collect(Collectors.joining("\n")));
+    }
+
+    public List<Move> getMoves() {
+        return moves;
+    }
+
+    public void setMoves(List<Move> moves) {
+        this.moves = moves;
+    }
+
+    /**
+     * A file moved or copied on the client, the paths are relative to the source folder.
+     */
+    public static class Move {
+        private final String source;
+        private final String target;
+        private final boolean copy;
+
+        public Move(String source, String target, boolean copy) {
+            this.source = source;
+            this.target = target;
+            this.copy = copy;
+        }
+
+        public String getSource() {
+            return source;
+        }
+
+        public String getTarget() {
+            return target;
+        }
+
+        /**
+         * Checks if the source is still present on the client.
+         *
+         * @return True for a copy, false for a move
+         */
+        public boolean isCopy() {
+            return copy;
+        }
+    }
+}
@@ -5,6 +5,7 @@ import org.kendar.sync.lib.twoway.LogEntry;
 
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.stream.Collectors;
 
@@ -19,6 +20,7 @@ public class FileSyncMessage extends Message {
     private int totalParts;
     private List<LogEntry> changes;
     private Instant lastlyUpdateTime;
+    private List<String> directories;
 
     // Default constructor for Jackson
     public FileSyncMessage() {
@@ -42,6 +44,13 @@ public class FileSyncMessage extends Message {
         }
         partNumber = buffer.readType(Integer.class);
         totalParts = buffer.readType(Integer.class);
+        // Nor the directories
+        if (buffer.getRemaining() > 0) {
+            // The count tells an empty list from the root alone
+            var count = buffer.readType(Integer.class);
+            var lines = buffer.readType(String.class).split("\n", -1);
+            directories = new ArrayList<>(Arrays.asList(lines).subList(0, count));
+        }
         return this;
     }
 
@@ -53,6 +62,10 @@ public class FileSyncMessage extends Message {
         buffer.writeType(String.join("\n", filesLines));
         buffer.writeType(partNumber);
         buffer.writeType(totalParts);
+        if (directories != null) {
+            buffer.writeType(directories.size());
+            buffer.writeType(String.join("\n", directories));
+        }
     }
 
 
@@ -80,6 +93,20 @@ public class FileSyncMessage extends Message {
         this.changes = changes;
     }
 
+    /**
+     * Gets the directories compared, found with the {@link SyncTreeMessage}. The changes
+     * contain the latest operation of every file in them, their subdirectories excluded.
+     *
+     * @return The directories, or null to compare the whole folder
+     */
+    public List<String> getDirectories() {
+        return directories;
+    }
+
+    public void setDirectories(List<String> directories) {
+        this.directories = directories;
+    }
+
     public Instant getLastlyUpdateTime() {
         return lastlyUpdateTime;
     }
@@ -3,15 +3,26 @@ package org.kendar.sync.lib.protocol;
 import org.kendar.sync.lib.buffer.ByteContainer;
 
 /**
- * Message sent before transferring a file to describe its metadata.
+ * Message sent periodically to keep the connection alive.
+ * When sent by the server to a client waiting for a busy folder, it carries
+ * the position of the client in the folder wait queue.
  */
 public class KeepAlive extends Message {
 
+    private int queuePosition;
 
     // Default constructor for Jackson
     public KeepAlive() {
     }
 
+    /**
+     * Creates a keep alive reporting the position in the folder wait queue.
+     *
+     * @param queuePosition The 1-based position in the queue
+     */
+    public KeepAlive(int queuePosition) {
+        this.queuePosition = queuePosition;
+    }
 
     @Override
     public MessageType getMessageType() {
@@ -20,12 +31,28 @@ public class KeepAlive extends Message {
 
     @Override
     protected Message deserialize(ByteContainer buffer) {
-        // No fields to deserialize
+        // Older peers send keep alives without fields
+        if (buffer.getRemaining() > 0) {
+            queuePosition = buffer.readType(Integer.class);
+        }
         return this;
     }
 
     @Override
     protected void serialize(ByteContainer buffer) {
-        // No fields to serialize
+        buffer.writeType(queuePosition);
+    }
+
+    /**
+     * Gets the position in the folder wait queue.
+     *
+     * @return The 1-based position, or 0 when not waiting
+     */
+    public int getQueuePosition() {
+        return queuePosition;
+    }
+
+    public void setQueuePosition(int queuePosition) {
+        this.queuePosition = queuePosition;
     }
-}
\ No newline at end of file
+}
@@ -19,6 +19,8 @@ public abstract class Message {
 
     private int packetId;
 
+    private volatile Packet preparedPacket;
+
     /**
      * Deserializes a message from a JSON byte array.
      *
@@ -108,6 +110,28 @@ public abstract class Message {
 
     protected abstract void serialize(ByteContainer buffer);
 
+    /**
+     * Tells if the packet of this message should be compressed.
+     *
+     * @return False if the content is already compressed
+     */
+    public boolean isCompressible() {
+        return true;
+    }
+
+    /**
+     * Gets the packet already built for this message, if prepared ahead of the send.
+     *
+     * @return The packet, or null
+     */
+    public Packet getPreparedPacket() {
+        return preparedPacket;
+    }
+
+    public void setPreparedPacket(Packet preparedPacket) {
+        this.preparedPacket = preparedPacket;
+    }
+
     public void initialize(int connectionId, UUID sessionId, int packetId) {
         this.connectionId = connectionId;
         this.sessionId = sessionId;
@@ -5,7 +5,8 @@ import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Defines the types of messages that can be exchanged in the sync protocol.
- * Each message type is represented by a 2-character code.
+ * Each message type is represented by a 2-character code, and by its position
+ * in the compact framing: new types must be added at the end.
  */
 public enum MessageType {
     // Connection and authentication
@@ -35,8 +36,13 @@ public enum MessageType {
 
     KEEP_ALIVE("KA", KeepAlive.class),
     FILE_SYNC("SY", FileSyncMessage.class),
-    FILE_SYNC_ACK("SK", FileSyncMessageAck.class);             // Error message
+    FILE_SYNC_ACK("SK", FileSyncMessageAck.class),             // Error message
+    FILE_MOVE("MV", FileMoveMessage.class),         // Files moved or copied on the client
+    FILE_MOVE_ACK("MA", FileMoveAckMessage.class),  // Moves applied by the server
+    SYNC_TREE("TR", SyncTreeMessage.class),         // Directory hashes of a two-way sync
+    SYNC_TREE_RESPONSE("TA", SyncTreeResponseMessage.class); // Directories that differ on the server
 
+    private static final MessageType[] byId = values();
     private final String code;
     private final Class<?> clazz;
 
@@ -63,6 +69,25 @@ public enum MessageType {
         return null;
     }
 
+    /**
+     * Gets the message type from its id in the compact framing.
+     *
+     * @param id The id
+     * @return The corresponding message type, or null if not found
+     */
+    public static MessageType fromId(int id) {
+        return id >= 0 && id < byId.length ? byId[id] : null;
+    }
+
+    /**
+     * Gets the 1-byte id for this message type, used in the compact framing.
+     *
+     * @return The message type id
+     */
+    public int getId() {
+        return ordinal();
+    }
+
     /**
      * Gets the 2-character code for this message type.
      *
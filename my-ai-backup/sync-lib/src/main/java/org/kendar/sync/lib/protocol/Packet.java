@@ -1,11 +1,13 @@
 package org.kendar.sync.lib.protocol;
 
-import java.io.ByteArrayOutputStream;
+import org.kendar.sync.lib.buffer.BufferPool;
+import org.kendar.sync.lib.utils.BlockCodec;
+
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.util.UUID;
-import java.util.zip.Deflater;
-import java.util.zip.Inflater;
 
 /**
  * Represents a packet in the sync protocol.
@@ -16,14 +18,36 @@ import java.util.zip.Inflater;
  * - Integer: packet id used when sending data in multiple blocks
  * - char[2]: containing the type of message
  * - byte[]: containing the zipped content of the message
+ * <p>
+ * Compact packet structure, used from {@link ProtocolVersion#V2} once the first packet
+ * of the connection bound the session and the connection id:
+ * - byte: flags, the high bit always set (the first byte of a full packet never has it)
+ * - byte: the id of the message type
+ * - varint: length of the content
+ * - byte[]: the content, zipped unless flagged as uncompressed
  */
 public class Packet {
+    /**
+     * Marks a compact packet.
+     */
+    public static final int COMPACT_MARKER = 0x80;
+    /**
+     * Flag of the compact packets whose content is not compressed.
+     */
+    public static final int FLAG_UNCOMPRESSED = 0x01;
+    /**
+     * Smaller contents are never compressed in compact packets.
+     */
+    public static final int COMPRESSION_THRESHOLD = 64;
     private int length;
     private int connectionId;
     private UUID sessionId;
     private int packetId;
     private String messageType;
     private byte[] content;
+    private boolean compact = false;
+    private int typeId;
+    private boolean compressed = true;
 
     // Default constructor for deserialization
     public Packet() {
@@ -53,9 +77,133 @@ public class Packet {
 
         // Calculate the length of the packet
         // 4 (length) + 4 (connectionId) + 16 (UUID) + 4 (packetId) + 2 (messageType) + content.length
+        // The 32 bytes for the UUID are kept, the peers expect the padding at the end
         this.length = 4 + 4 + 32 + 4 + 2 + this.content.length;
     }
 
+    /**
+     * Creates a compact packet. The content is compressed only when it gets smaller.
+     *
+     * @param connectionId The connection ID bound to the connection
+     * @param sessionId    The session ID bound to the connection
+     * @param messageType  The message type
+     * @param content      The content of the packet
+     * @return The packet
+     */
+    public static Packet compact(int connectionId, UUID sessionId, MessageType messageType, byte[] content) {
+        return compact(connectionId, sessionId, messageType, content, true);
+    }
+
+    /**
+     * Creates a compact packet.
+     *
+     * @param connectionId The connection ID bound to the connection
+     * @param sessionId    The session ID bound to the connection
+     * @param messageType  The message type
+     * @param content      The content of the packet
+     * @param compress     False to skip the compression, e.g. when the content is already compressed
+     * @return The packet
+     */
+    public static Packet compact(int connectionId, UUID sessionId, MessageType messageType, byte[] content,
+                                 boolean compress) {
+        var packet = new Packet();
+        packet.compact = true;
+        packet.connectionId = connectionId;
+        packet.sessionId = sessionId;
+        packet.messageType = messageType.getCode();
+        packet.typeId = messageType.getId();
+        packet.content = content;
+        packet.compressed = false;
+        if (compress && content.length >= COMPRESSION_THRESHOLD) {
+            var compressedContent = packet.compress(content);
+            if (compressedContent.length < content.length) {
+                packet.content = compressedContent;
+                packet.compressed = true;
+            }
+        }
+        packet.length = 2 + varintSize(packet.content.length) + packet.content.length;
+        return packet;
+    }
+
+    /**
+     * Checks if a packet starting with the given byte is compact.
+     *
+     * @param firstByte The first byte of the packet
+     * @return True if compact
+     */
+    public static boolean isCompact(int firstByte) {
+        return (firstByte & COMPACT_MARKER) != 0;
+    }
+
+    /**
+     * Reads the rest of a compact packet, after its first byte.
+     *
+     * @param flags          The first byte
+     * @param input          The stream
+     * @param maxContentSize The maximum size of the content
+     * @param connectionId   The connection ID bound to the connection
+     * @param sessionId      The session ID bound to the connection
+     * @return The packet
+     * @throws IOException If an I/O error occurs or the packet is invalid
+     */
+    public static Packet readCompact(int flags, InputStream input, int maxContentSize,
+                                     int connectionId, UUID sessionId) throws IOException {
+        var type = MessageType.fromId(readByte(input));
+        if (type == null) {
+            throw new IOException("Invalid message type in compact packet");
+        }
+        var contentLength = readVarint(input);
+        if (contentLength < 0 || contentLength > maxContentSize) {
+            throw new IOException("Invalid packet length: " + contentLength);
+        }
+        var packet = new Packet();
+        packet.compact = true;
+        packet.compressed = (flags & FLAG_UNCOMPRESSED) == 0;
+        packet.connectionId = connectionId;
+        packet.sessionId = sessionId;
+        packet.messageType = type.getCode();
+        packet.typeId = type.getId();
+        packet.content = new byte[contentLength];
+        var offset = 0;
+        while (offset < contentLength) {
+            var read = input.read(packet.content, offset, contentLength - offset);
+            if (read == -1) {
+                throw new EOFException("End of stream reached");
+            }
+            offset += read;
+        }
+        packet.length = 2 + varintSize(contentLength) + contentLength;
+        return packet;
+    }
+
+    private static int readByte(InputStream input) throws IOException {
+        var result = input.read();
+        if (result == -1) {
+            throw new EOFException("End of stream reached");
+        }
+        return result;
+    }
+
+    private static int readVarint(InputStream input) throws IOException {
+        var result = 0;
+        for (var shift = 0; shift < 32; shift += 7) {
+            var current = readByte(input);
+            result |= (current & 0x7F) << shift;
+            if ((current & 0x80) == 0) {
+                return result;
+            }
+        }
+        throw new IOException("Invalid varint");
+    }
+
+    private static int varintSize(int value) {
+        var size = 1;
+        while ((value >>>= 7) != 0) {
+            size++;
+        }
+        return size;
+    }
+
     /**
      * Deserializes a packet from a byte array.
      *
@@ -98,7 +246,22 @@ public class Packet {
      * @return The serialized packet
      */
     public byte[] serialize() {
-        ByteBuffer buffer = ByteBuffer.allocate(length);
+        var result = new byte[length];
+        serialize(result);
+        return result;
+    }
+
+    /**
+     * Serializes the packet into an existing array, e.g. taken from the {@link BufferPool}.
+     *
+     * @param target The array, at least {@link #getLength()} bytes long
+     * @return The serialized length
+     */
+    public int serialize(byte[] target) {
+        if (compact) {
+            return serializeCompact(target);
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(target, 0, length);
 
         // Write the packet length
         buffer.putInt(length);
@@ -120,7 +283,21 @@ public class Packet {
         // Write the content
         buffer.put(content);
 
-        return buffer.array();
+        return length;
+    }
+
+    private int serializeCompact(byte[] target) {
+        var offset = 0;
+        target[offset++] = (byte) (COMPACT_MARKER | (compressed ? 0 : FLAG_UNCOMPRESSED));
+        target[offset++] = (byte) typeId;
+        var value = content.length;
+        while ((value & ~0x7F) != 0) {
+            target[offset++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        target[offset++] = (byte) value;
+        System.arraycopy(content, 0, target, offset, content.length);
+        return offset + content.length;
     }
 
     /**
@@ -130,24 +307,7 @@ public class Packet {
      * @return The compressed data
      */
     private byte[] compress(byte[] data) {
-        Deflater deflater = new Deflater();
-        deflater.setInput(data);
-        deflater.finish();
-
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream(data.length);
-        byte[] buffer = new byte[1024];
-        while (!deflater.finished()) {
-            int count = deflater.deflate(buffer);
-            outputStream.write(buffer, 0, count);
-        }
-
-        try {
-            outputStream.close();
-        } catch (IOException e) {
-            throw new RuntimeException("Error compressing data", e);
-        }
-
-        return outputStream.toByteArray();
+        return BlockCodec.deflate(data);
     }
 
     /**
@@ -156,22 +316,10 @@ public class Packet {
      * @return The decompressed content
      */
     public byte[] getDecompressedContent() {
-        Inflater inflater = new Inflater();
-        inflater.setInput(content);
-
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream(content.length);
-        byte[] buffer = new byte[1024];
-        try {
-            while (!inflater.finished()) {
-                int count = inflater.inflate(buffer);
-                outputStream.write(buffer, 0, count);
-            }
-            outputStream.close();
-        } catch (Exception e) {
-            throw new RuntimeException("Error decompressing data", e);
+        if (!compressed) {
+            return content;
         }
-
-        return outputStream.toByteArray();
+        return BlockCodec.inflate(content);
     }
 
     // Getters and setters
@@ -198,4 +346,12 @@ public class Packet {
     public byte[] getContent() {
         return content;
     }
+
+    public boolean isCompact() {
+        return compact;
+    }
+
+    public boolean isCompressed() {
+        return compressed;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,65 @@
+package org.kendar.sync.lib.protocol;
+
+/**
+ * Versions of the sync protocol.
+ * <p>
+ * The client offers its latest version in the {@link ConnectMessage}, the server answers in the
+ * {@link ConnectResponseMessage} with the highest version both sides know. Peers that do not send
+ * a version speak {@link #V1}. Every version includes the features of the previous ones.
+ */
+public final class ProtocolVersion {
+    /**
+     * Original framing, every packet carries the full header.
+     */
+    public static final int V1 = 1;
+    /**
+     * Compact framing, session and connection are bound at the handshake.
+     */
+    public static final int V2 = 2;
+    /**
+     * The client sends the files moved since the previous backup, see {@link FileMoveMessage}.
+     */
+    public static final int V3 = 3;
+    /**
+     * The two-way sync exchanges only the changes of the directories that differ, found
+     * comparing their hashes, see {@link SyncTreeMessage}.
+     */
+    public static final int V4 = 4;
+    /**
+     * The file blocks are compressed on their own, see {@link FileDataMessage#isCompressed()},
+     * so that the server can store them and send them back as received.
+     */
+    public static final int V5 = 5;
+    /**
+     * The file list can carry only the changed and the deleted files, see
+     * {@link FileListMessage#isPartial()}. Used by the servers to push the changes to their replicas.
+     */
+    public static final int V6 = 6;
+    /**
+     * The small files travel inside their descriptor, see {@link FileDescriptorMessage#getInlineData()},
+     * and the server answers only with the file end acknowledgment.
+     */
+    public static final int V7 = 7;
+    /**
+     * A backup dropped by the network continues with the files not yet stored, presenting
+     * the token of {@link ConnectResponseMessage#getResumeToken()} in the {@link ConnectMessage}.
+     */
+    public static final int V8 = 8;
+    /**
+     * The latest version known by this build.
+     */
+    public static final int LATEST = V8;
+
+    private ProtocolVersion() {
+    }
+
+    /**
+     * Chooses the version to use with a peer.
+     *
+     * @param offered The version offered by the peer
+     * @return The highest version known by both sides
+     */
+    public static int negotiate(int offered) {
+        return Math.max(V1, Math.min(offered, LATEST));
+    }
+}
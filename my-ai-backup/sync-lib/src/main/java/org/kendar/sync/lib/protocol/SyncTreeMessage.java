@@ -0,0 +1,64 @@
+package org.kendar.sync.lib.protocol;
+
+import org.kendar.sync.lib.buffer.ByteContainer;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * Message sent by the client of a two-way sync before the changes, from {@link ProtocolVersion#V4}.
+ * Contains the hashes of some directories of its {@link org.kendar.sync.lib.twoway.MerkleTree},
+ * starting from the root. The server answers with the directories that differ, and the
+ * client goes on with their subdirectories until the differences are found.
+ */
+public class SyncTreeMessage extends Message {
+
+    private Map<String, String> hashes;
+
+    // Default constructor for Jackson
+    public SyncTreeMessage() {
+        this.hashes = new LinkedHashMap<>();
+    }
+
+    /**
+     * Creates a new sync tree message.
+     *
+     * @param hashes The hash of every directory, null for the ones missing on the client
+     */
+    public SyncTreeMessage(Map<String, String> hashes) {
+        this.hashes = hashes;
+    }
+
+    @Override
+    public MessageType getMessageType() {
+        return MessageType.SYNC_TREE;
+    }
+
+    @Override
+    protected Message deserialize(ByteContainer buffer) {
+        hashes = new LinkedHashMap<>();
+        for (var line : buffer.readType(String.class).split("\n")) {
+            var parts = line.split("\t", 2);
+            if (parts.length == 2) {
+                hashes.put(parts[0], parts[1].isEmpty() ? null : parts[1]);
+            }
+        }
+        return this;
+    }
+
+    @Override
+    protected void serialize(ByteContainer buffer) {
+        buffer.writeType(hashes.entrySet().stream()
+                .map(entry -> entry.getKey() + "\t" + (entry.getValue() == null ? "" : entry.getValue()))
+                .collect(Collectors.joining("\n")));
+    }
+
+    public Map<String, String> getHashes() {
+        return hashes;
+    }
+
+    public void setHashes(Map<String, String> hashes) {
+        this.hashes = hashes;
+    }
+}
@@ -0,0 +1,73 @@
+package org.kendar.sync.lib.protocol;
+
+import org.kendar.sync.lib.buffer.ByteContainer;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * Message sent by the server in response to a sync tree message.
+ * Contains the directories with a different hash, each one with the subdirectories
+ * found on the server, so that the client can compare also the ones it does not have.
+ */
+public class SyncTreeResponseMessage extends Message {
+
+    private Map<String, List<String>> differences;
+
+    // Default constructor for Jackson
+    public SyncTreeResponseMessage() {
+        this.differences = new LinkedHashMap<>();
+    }
+
+    /**
+     * Creates a new sync tree response message.
+     *
+     * @param differences The subdirectories on the server of every directory that differs
+     */
+    public SyncTreeResponseMessage(Map<String, List<String>> differences) {
+        this.differences = differences;
+    }
+
+    @Override
+    public MessageType getMessageType() {
+        return MessageType.SYNC_TREE_RESPONSE;
+    }
+
+    @Override
+    protected Message deserialize(ByteContainer buffer) {
+        differences = new LinkedHashMap<>();
+        for (var line : buffer.readType(String.class).split("\n")) {
+            // Every line has at least a tab, also the root without subdirectories
+            if (line.isEmpty()) {
+                continue;
+            }
+            var parts = line.split("\t", -1);
+            var children = new ArrayList<String>();
+            for (var i = 1; i < parts.length; i++) {
+                if (!parts[i].isEmpty()) {
+                    children.add(parts[i]);
+                }
+            }
+            differences.put(parts[0], children);
+        }
+        return this;
+    }
+
+    @Override
+    protected void serialize(ByteContainer buffer) {
+        buffer.writeType(differences.entrySet().stream()
+                .map(entry -> entry.getKey() + "\t" + String.join("\t", entry.getValue()))
+                .collect(Collectors.joining("\n")));
+    }
+
+    public Map<String, List<String>> getDifferences() {
+        return differences;
+    }
+
+    public void setDifferences(Map<String, List<String>> differences) {
+        this.differences = differences;
+    }
+}
@@ -0,0 +1,103 @@
+package org.kendar.sync.lib.twoway;
+
+import org.kendar.sync.lib.utils.ContentHasher;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Hashes of the directories of a two-way sync folder.
+ * <p>
+ * The hash of a directory covers the path, size and modification time of its files and
+ * the hashes of its subdirectories, so two folders with the same root hash are in sync
+ * and a difference can be narrowed down comparing only the hashes of the subdirectories
+ * that differ. The tree is built from the latest operation log entries, the deleted
+ * files are not part of it. The directories are identified by their uniform path, the
+ * root is the empty string.
+ */
+public class MerkleTree {
+    public static final String ROOT = "";
+
+    private final Map<String, String> hashes = new HashMap<>();
+    private final Map<String, TreeSet<String>> children = new HashMap<>();
+
+    private MerkleTree() {
+    }
+
+    /**
+     * Builds the tree of a folder.
+     *
+     * @param entries The latest operation log entry of every file
+     * @param ignored The relative paths of the files not synchronized
+     * @return The tree
+     */
+    public static MerkleTree build(Collection<LogEntry> entries, Set<String> ignored) {
+        var result = new MerkleTree();
+        var files = new HashMap<String, TreeMap<String, LogEntry>>();
+        result.children.put(ROOT, new TreeSet<>());
+        for (var entry : entries) {
+            if ("DE".equals(entry.getOperation()) || ignored.contains(entry.getRelativePath())) {
+                continue;
+            }
+            var directory = parent(entry.getRelativePath());
+            files.computeIfAbsent(directory, k -> new TreeMap<>()).put(entry.getRelativePath(), entry);
+            // Register the directory in all its ancestors
+            while (!ROOT.equals(directory)) {
+                result.children.computeIfAbsent(directory, k -> new TreeSet<>());
+                var ancestor = parent(directory);
+                if (!result.children.computeIfAbsent(ancestor, k -> new TreeSet<>()).add(directory)) {
+                    break;
+                }
+                directory = ancestor;
+            }
+        }
+        result.hash(ROOT, files);
+        return result;
+    }
+
+    /**
+     * Gets the directory containing a path.
+     *
+     * @param path The uniform relative path
+     * @return The parent directory, {@link #ROOT} for the files in the root
+     */
+    public static String parent(String path) {
+        var slash = path.lastIndexOf('/');
+        return slash < 0 ? ROOT : path.substring(0, slash);
+    }
+
+    private String hash(String directory, Map<String, TreeMap<String, LogEntry>> files) {
+        var hasher = ContentHasher.create(ContentHasher.SHA256);
+        for (var entry : files.getOrDefault(directory, new TreeMap<>()).values()) {
+            hasher.update(("F\t" + entry.getRelativePath() + "\t" + entry.getSize() + "\t" +
+                    entry.getModificationTime().getEpochSecond() + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+        for (var child : children.get(directory)) {
+            hasher.update(("D\t" + child + "\t" + hash(child, files) + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+        var result = hasher.digest();
+        hashes.put(directory, result);
+        return result;
+    }
+
+    /**
+     * Gets the hash of a directory.
+     *
+     * @param directory The directory
+     * @return The hash, or null if the directory has no files
+     */
+    public String getHash(String directory) {
+        return hashes.get(directory);
+    }
+
+    /**
+     * Gets the subdirectories of a directory.
+     *
+     * @param directory The directory
+     * @return The paths of the subdirectories, empty if the directory has no files
+     */
+    public List<String> getChildren(String directory) {
+        var result = children.get(directory);
+        return result == null ? List.of() : new ArrayList<>(result);
+    }
+}
@@ -23,6 +23,10 @@ public class StatusAnalyzer {
     private static final String LAST_UPDATE_LOG = ".lastupdate.log";
     private static final String OPERATION_LOG = ".operation.log";
     private static final String LAST_COMPACT_LOG = ".lastcompact.log";
+    /**
+     * The conflicts found by the server, kept on the server only.
+     */
+    public static final String CONFLICTS_LOG = ".conflicts.log";
     private static final DateTimeFormatter TIMESTAMP_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
 
     private final Path baseDirectory;
@@ -115,7 +119,22 @@ public class StatusAnalyzer {
     }
 
     public SyncActions compare(Map<String, LogEntry> remoteOperations) throws IOException {
+        return compare(remoteOperations, null);
+    }
+
+    /**
+     * Compares the files of some directories with the remote ones.
+     *
+     * @param remoteOperations The latest remote operations of the files in the directories
+     * @param directories      The directories to compare, their subdirectories excluded,
+     *                         or null for the whole folder
+     * @return SyncActions containing lists of files to update/delete
+     */
+    public SyncActions compare(Map<String, LogEntry> remoteOperations, Set<String> directories) throws IOException {
         Map<String, LogEntry> localOperations = loadOperationLog(operationLogPath);
+        if (directories != null) {
+            localOperations.keySet().removeIf(path -> !directories.contains(MerkleTree.parent(path)));
+        }
         SyncActions actions = new SyncActions();
         Set<String> allFiles = new HashSet<>();
         allFiles.addAll(localOperations.keySet());
@@ -152,6 +171,32 @@ public class StatusAnalyzer {
         return actions;
     }
 
+    /**
+     * Builds the tree of the directory hashes from the operation log, the last
+     * {@link #analyze()} must be called before.
+     *
+     * @return The tree
+     */
+    public MerkleTree buildTree() throws IOException {
+        return MerkleTree.build(loadOperationLog(operationLogPath).values(), Set.of(CONFLICTS_LOG));
+    }
+
+    /**
+     * Gets the latest operation of the files in some directories, the deleted ones included.
+     *
+     * @param directories The directories, their subdirectories excluded
+     * @return The operations
+     */
+    public List<LogEntry> getEntries(Set<String> directories) throws IOException {
+        List<LogEntry> result = new ArrayList<>();
+        for (LogEntry entry : loadOperationLog(operationLogPath).values()) {
+            if (directories.contains(MerkleTree.parent(entry.relativePath))) {
+                result.add(entry);
+            }
+        }
+        return result;
+    }
+
     private Map<String, LogEntry> loadOperationLog(Path logPath) throws IOException {
         Map<String, LogEntry> operations = new HashMap<>();
 
@@ -7,6 +7,7 @@ public class Attributes {
     private Instant creationTime;
     private Instant modificationTime;
     private long size;
+    private String fileKey;
 
     public Instant getCreationTime() {
         return creationTime;
@@ -58,6 +59,19 @@ public class Attributes {
         return umask;
     }
 
+    /**
+     * Gets the identity of the file on its file system, like the device and inode.
+     *
+     * @return The key, or null if the file system does not provide it
+     */
+    public String getFileKey() {
+        return fileKey;
+    }
+
+    public void setFileKey(String fileKey) {
+        this.fileKey = fileKey;
+    }
+
     public static boolean isDirectory(int umask) {
         return (0x8000 & umask) != 0;
     }
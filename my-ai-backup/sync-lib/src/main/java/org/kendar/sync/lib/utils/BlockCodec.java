@@ -0,0 +1,85 @@
+package org.kendar.sync.lib.utils;
+
+import org.kendar.sync.lib.buffer.BufferPool;
+
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses the packets and the file blocks with ZLIB, through the arrays of the
+ * shared {@link BufferPool}.
+ */
+public final class BlockCodec {
+
+    private BlockCodec() {
+    }
+
+    /**
+     * Compresses the data.
+     *
+     * @param data The data to compress
+     * @return The compressed data
+     */
+    public static byte[] deflate(byte[] data) {
+        var pool = BufferPool.shared();
+        Deflater deflater = new Deflater();
+        // Enough for incompressible data, grown only in the worst cases
+        var buffer = pool.acquire(data.length + data.length / 100 + 64);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            var count = 0;
+            while (!deflater.finished()) {
+                if (count == buffer.length) {
+                    buffer = grow(pool, buffer, count);
+                }
+                count += deflater.deflate(buffer, count, buffer.length - count);
+            }
+            return Arrays.copyOf(buffer, count);
+        } finally {
+            deflater.end();
+            pool.release(buffer);
+        }
+    }
+
+    /**
+     * Decompresses the data.
+     *
+     * @param data The compressed data
+     * @return The decompressed data
+     */
+    public static byte[] inflate(byte[] data) {
+        var pool = BufferPool.shared();
+        Inflater inflater = new Inflater();
+        var buffer = pool.acquire(Math.max(1024, data.length * 2));
+        try {
+            inflater.setInput(data);
+            var count = 0;
+            while (!inflater.finished()) {
+                if (count == buffer.length) {
+                    buffer = grow(pool, buffer, count);
+                }
+                var inflated = inflater.inflate(buffer, count, buffer.length - count);
+                if (inflated == 0 && !inflater.finished() && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new DataFormatException("Truncated content");
+                }
+                count += inflated;
+            }
+            return Arrays.copyOf(buffer, count);
+        } catch (DataFormatException e) {
+            throw new RuntimeException("Error decompressing data", e);
+        } finally {
+            inflater.end();
+            pool.release(buffer);
+        }
+    }
+
+    private static byte[] grow(BufferPool pool, byte[] buffer, int count) {
+        var larger = pool.acquire(buffer.length * 2);
+        System.arraycopy(buffer, 0, larger, 0, count);
+        pool.release(buffer);
+        return larger;
+    }
+}
@@ -0,0 +1,332 @@
+package org.kendar.sync.lib.utils;
+
+import org.kendar.sync.lib.buffer.BufferPool;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reads a file in blocks ahead of their use.
+ * <p>
+ * A background task reads the blocks in order and hands them to a shared pool of
+ * converters, e.g. building the compressed packets, so that several blocks of the same
+ * file are converted on different cores while the caller sends the current one. The
+ * blocks are returned in file order. The blocks read and not yet taken are reserved
+ * on the shared {@link BufferPool}, so that the read-ahead waits when the memory
+ * budget of the process is exhausted. Files larger than the mmap
+ * threshold are read through memory mapped windows instead of read calls.
+ * The content can also come from a {@link Source} stream, e.g. a remote storage.
+ *
+ * @param <T> The type of the converted blocks
+ */
+public class BlockReader<T> implements AutoCloseable {
+    /**
+     * Default size from which the files are memory mapped.
+     */
+    public static final long DEFAULT_MMAP_THRESHOLD = 64L * 1024 * 1024;
+    private static final int MMAP_WINDOW = 64 * 1024 * 1024;
+    private static final int CORES = Runtime.getRuntime().availableProcessors();
+    private static final Object END = new Object();
+    private static final AtomicInteger threadCounter = new AtomicInteger();
+    private static final ExecutorService readers = Executors.newCachedThreadPool(r -> {
+        var thread = new Thread(r, "read-ahead-" + threadCounter.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static final ExecutorService converters = Executors.newFixedThreadPool(CORES, r -> {
+        var thread = new Thread(r, "compress-" + threadCounter.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final File file;
+    private final Source source;
+    private final int blockSize;
+    private final long mmapThreshold;
+    private final BlockConverter<T> converter;
+    private final BlockingQueue<Object> ready;
+    private final long size;
+    private volatile boolean closed = false;
+    private boolean started = false;
+    private boolean ended = false;
+
+    /**
+     * Creates a new reader, the reads start with the first call to {@link #next()}.
+     *
+     * @param file          The file to read
+     * @param blockSize     The size of the blocks
+     * @param mmapThreshold The size from which the file is memory mapped, 0 or less to never map it
+     * @param converter     Converts the blocks, called concurrently for different blocks
+     */
+    public BlockReader(File file, int blockSize, long mmapThreshold, BlockConverter<T> converter) {
+        this(file, blockSize, mmapThreshold, Math.max(2, CORES), converter);
+    }
+
+    /**
+     * Creates a new reader with a given number of blocks converted ahead.
+     *
+     * @param file          The file to read
+     * @param blockSize     The size of the blocks
+     * @param mmapThreshold The size from which the file is memory mapped, 0 or less to never map it
+     * @param readAhead     The maximum number of blocks read ahead
+     * @param converter     Converts the blocks, called concurrently for different blocks
+     */
+    BlockReader(File file, int blockSize, long mmapThreshold, int readAhead, BlockConverter<T> converter) {
+        this(file, null, file.length(), blockSize, mmapThreshold, readAhead, converter);
+    }
+
+    /**
+     * Creates a new reader of a stream, the reads start with the first call to {@link #next()}.
+     *
+     * @param source    Opens the stream of the content
+     * @param size      The size of the content
+     * @param blockSize The size of the blocks
+     * @param converter Converts the blocks, called concurrently for different blocks
+     */
+    public BlockReader(Source source, long size, int blockSize, BlockConverter<T> converter) {
+        this(null, source, size, blockSize, 0, Math.max(2, CORES), converter);
+    }
+
+    private BlockReader(File file, Source source, long size, int blockSize, long mmapThreshold, int readAhead,
+                        BlockConverter<T> converter) {
+        this.file = file;
+        this.source = source;
+        this.blockSize = blockSize;
+        this.mmapThreshold = mmapThreshold;
+        this.converter = converter;
+        this.ready = new ArrayBlockingQueue<>(Math.max(1, readAhead));
+        this.size = size;
+    }
+
+    /**
+     * Gets the number of blocks, at least one also for empty files.
+     *
+     * @return The number of blocks
+     */
+    public int getTotalBlocks() {
+        return Math.max(1, (int) ((size + blockSize - 1) / blockSize));
+    }
+
+    /**
+     * Gets the next converted block, waiting for it to be ready.
+     *
+     * @return The block, or null when the file is completed
+     * @throws IOException If an I/O error occurs
+     */
+    @SuppressWarnings("unchecked")
+    public T next() throws IOException {
+        if (ended) {
+            return null;
+        }
+        if (!started) {
+            started = true;
+            readers.execute(this::readAll);
+        }
+        Object item;
+        try {
+            item = ready.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted reading " + getName(), e);
+        }
+        if (item == END) {
+            ended = true;
+            return null;
+        }
+        if (item instanceof Failure) {
+            ended = true;
+            throw ((Failure) item).error;
+        }
+        var block = (Block<T>) item;
+        try {
+            return block.converted.join();
+        } catch (CompletionException e) {
+            ended = true;
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        } finally {
+            BufferPool.shared().unreserve(block.permits);
+        }
+    }
+
+    private String getName() {
+        return file != null ? file.toString() : "stream";
+    }
+
+    private void readAll() {
+        try {
+            if (source != null) {
+                try (var stream = source.open()) {
+                    readBlocks(stream);
+                }
+            } else {
+                readBlocks();
+            }
+            put(END);
+        } catch (IOException e) {
+            put(new Failure(e));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            put(new Failure(new IOException("Interrupted reading " + getName(), e)));
+        } catch (RuntimeException e) {
+            put(new Failure(new IOException(e)));
+        } finally {
+            if (closed) {
+                discardReady();
+            }
+        }
+    }
+
+    private void readBlocks() throws IOException, InterruptedException {
+        try (var channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            var blockNumber = 0;
+            if (mmapThreshold > 0 && size >= mmapThreshold) {
+                // Windows aligned to the blocks, a mapping cannot exceed 2GB
+                var window = (long) Math.max(1, MMAP_WINDOW / blockSize) * blockSize;
+                for (long position = 0; position < size && !closed; position += window) {
+                    MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(window, size - position));
+                    while (mapped.hasRemaining() && !closed) {
+                        var permits = acquire(Math.min(blockSize, mapped.remaining()));
+                        var data = new byte[Math.min(blockSize, mapped.remaining())];
+                        mapped.get(data);
+                        submit(blockNumber++, data, permits);
+                    }
+                }
+            } else {
+                var buffer = ByteBuffer.allocate(blockSize);
+                while (!closed) {
+                    buffer.clear();
+                    while (buffer.hasRemaining() && channel.read(buffer) != -1) {
+                        // Fill the whole block
+                    }
+                    if (buffer.position() == 0) break;
+                    var permits = acquire(buffer.position());
+                    var data = new byte[buffer.position()];
+                    buffer.flip();
+                    buffer.get(data);
+                    submit(blockNumber++, data, permits);
+                }
+            }
+        }
+    }
+
+    private void readBlocks(InputStream stream) throws IOException, InterruptedException {
+        var blockNumber = 0;
+        long position = 0;
+        while (!closed && position < size) {
+            var permits = acquire((int) Math.min(blockSize, size - position));
+            var data = stream.readNBytes((int) Math.min(blockSize, size - position));
+            if (data.length == 0) {
+                BufferPool.shared().unreserve(permits);
+                break;
+            }
+            position += data.length;
+            submit(blockNumber++, data, permits);
+        }
+    }
+
+    private int acquire(int bytes) throws InterruptedException {
+        while (!BufferPool.shared().tryReserve(bytes, 100)) {
+            if (closed) return 0;
+        }
+        return bytes;
+    }
+
+    private void submit(int blockNumber, byte[] data, int permits) throws InterruptedException {
+        var converted = CompletableFuture.supplyAsync(() -> {
+            try {
+                return converter.convert(blockNumber, data);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }, converters);
+        if (!put(new Block<>(converted, permits))) {
+            BufferPool.shared().unreserve(permits);
+        }
+    }
+
+    private boolean put(Object item) {
+        try {
+            while (!closed) {
+                if (ready.offer(item, 100, TimeUnit.MILLISECONDS)) {
+                    return true;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
+
+    private void discardReady() {
+        Object item;
+        while ((item = ready.poll()) != null) {
+            if (item instanceof Block) {
+                BufferPool.shared().unreserve(((Block<?>) item).permits);
+            }
+        }
+    }
+
+    /**
+     * Stops the read-ahead, the blocks not yet taken are discarded.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        discardReady();
+    }
+
+    /**
+     * Opens the stream read by a reader.
+     */
+    public interface Source {
+        /**
+         * Opens the stream, closed by the reader when completed.
+         *
+         * @return The stream of the content
+         * @throws IOException If an I/O error occurs
+         */
+        InputStream open() throws IOException;
+    }
+
+    /**
+     * Converts a block read from the file.
+     *
+     * @param <T> The type of the converted block
+     */
+    public interface BlockConverter<T> {
+        /**
+         * Converts a block.
+         *
+         * @param blockNumber The block number, starting from 0
+         * @param data        The block content, owned by the converter
+         * @return The converted block
+         * @throws IOException If an I/O error occurs
+         */
+        T convert(int blockNumber, byte[] data) throws IOException;
+    }
+
+    private static class Block<T> {
+        private final CompletableFuture<T> converted;
+        private final int permits;
+
+        private Block(CompletableFuture<T> converted, int permits) {
+            this.converted = converted;
+            this.permits = permits;
+        }
+    }
+
+    private static class Failure {
+        private final IOException error;
+
+        private Failure(IOException error) {
+            this.error = error;
+        }
+    }
+}
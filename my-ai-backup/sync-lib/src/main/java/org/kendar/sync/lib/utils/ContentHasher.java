@@ -0,0 +1,167 @@
+package org.kendar.sync.lib.utils;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Locale;
+import java.util.zip.CRC32C;
+
+/**
+ * Computes the hash of a file content while it is streamed, block by block.
+ * <p>
+ * The hashes are exchanged as strings with the algorithm as prefix, e.g.
+ * {@code crc32c:1a2b3c4d} or {@code sha256:...}, so that both sides can
+ * tell which algorithm must be used to verify them. CRC32C is the default:
+ * it is hardware accelerated and cheap enough to run on every transfer.
+ * SHA-256 can be chosen when a cryptographic hash is needed, it is the only one
+ * strong enough to skip sending a file whose stored copy has the same hash.
+ */
+public class ContentHasher {
+    public static final String CRC32C = "crc32c";
+    public static final String SHA256 = "sha256";
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final String algorithm;
+    private final CRC32C crc;
+    private final MessageDigest digest;
+    private long length = 0;
+
+    private ContentHasher(String algorithm) {
+        this.algorithm = algorithm;
+        if (CRC32C.equals(algorithm)) {
+            this.crc = new CRC32C();
+            this.digest = null;
+        } else {
+            this.crc = null;
+            try {
+                this.digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException("SHA-256 not available", e);
+            }
+        }
+    }
+
+    /**
+     * Creates a new hasher.
+     *
+     * @param algorithm The algorithm, {@link #CRC32C} or {@link #SHA256}
+     * @return The hasher
+     * @throws IllegalArgumentException If the algorithm is not supported
+     */
+    public static ContentHasher create(String algorithm) {
+        var normalized = normalize(algorithm);
+        if (normalized == null) {
+            throw new IllegalArgumentException("Unsupported hash algorithm: " + algorithm);
+        }
+        return new ContentHasher(normalized);
+    }
+
+    /**
+     * Checks if an algorithm is supported.
+     *
+     * @param algorithm The algorithm name
+     * @return True if supported
+     */
+    public static boolean isSupported(String algorithm) {
+        return normalize(algorithm) != null;
+    }
+
+    /**
+     * Extracts the algorithm from a hash string.
+     *
+     * @param hash The hash, e.g. {@code crc32c:1a2b3c4d}
+     * @return The algorithm, or null if the hash is empty or its algorithm is not supported
+     */
+    public static String algorithmOf(String hash) {
+        if (hash == null) return null;
+        var index = hash.indexOf(':');
+        if (index <= 0) return null;
+        return normalize(hash.substring(0, index));
+    }
+
+    /**
+     * Checks if a hash can tell that two contents are identical. A CRC32C only detects
+     * the transfer errors, different contents of the same size can have the same one.
+     *
+     * @param hash The hash, e.g. {@code sha256:...}
+     * @return True if the hash is a SHA-256
+     */
+    public static boolean isCollisionResistant(String hash) {
+        return SHA256.equals(algorithmOf(hash));
+    }
+
+    /**
+     * Hashes a whole file.
+     *
+     * @param path      The file
+     * @param algorithm The algorithm
+     * @return The hash string
+     * @throws IOException If an I/O error occurs
+     */
+    public static String hashFile(Path path, String algorithm) throws IOException {
+        var hasher = create(algorithm);
+        try (var fis = new FileInputStream(path.toFile())) {
+            var buffer = new byte[READ_BUFFER_SIZE];
+            int read;
+            while ((read = fis.read(buffer)) != -1) {
+                hasher.update(buffer, 0, read);
+            }
+        }
+        return hasher.digest();
+    }
+
+    private static String normalize(String algorithm) {
+        if (algorithm == null) return null;
+        var lower = algorithm.trim().toLowerCase(Locale.ROOT);
+        if (CRC32C.equals(lower)) return CRC32C;
+        if (SHA256.equals(lower) || "sha-256".equals(lower)) return SHA256;
+        return null;
+    }
+
+    public void update(byte[] data) {
+        update(data, 0, data.length);
+    }
+
+    public void update(byte[] data, int offset, int len) {
+        if (crc != null) {
+            crc.update(data, offset, len);
+        } else {
+            digest.update(data, offset, len);
+        }
+        length += len;
+    }
+
+    /**
+     * Completes the computation. The hasher must not be used afterwards.
+     *
+     * @return The hash string, prefixed with the algorithm
+     */
+    public String digest() {
+        if (crc != null) {
+            return algorithm + ":" + String.format("%08x", crc.getValue());
+        }
+        var bytes = digest.digest();
+        var result = new StringBuilder(algorithm.length() + 1 + bytes.length * 2);
+        result.append(algorithm).append(':');
+        for (var b : bytes) {
+            result.append(HEX[(b >> 4) & 0xF]).append(HEX[b & 0xF]);
+        }
+        return result.toString();
+    }
+
+    public String getAlgorithm() {
+        return algorithm;
+    }
+
+    /**
+     * Gets the number of bytes hashed so far.
+     *
+     * @return The length
+     */
+    public long getLength() {
+        return length;
+    }
+}
@@ -0,0 +1,142 @@
+package org.kendar.sync.lib.utils;
+
+import org.kendar.sync.lib.model.FileInfo;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Scans a directory tree in parallel on a fork/join pool.
+ * <p>
+ * Every entry is a task reading its attributes with a single call, and every directory
+ * lists its children and waits for their tasks, so that the latency of the calls on
+ * network file systems overlaps. The results are in a deterministic order: each
+ * directory comes before its children, the children sorted by name. The symbolic links
+ * are not followed and not included.
+ */
+public class DirectoryScanner {
+    /**
+     * Default number of entries read in parallel.
+     */
+    public static final int DEFAULT_PARALLELISM = 8;
+    private static final AtomicInteger threadCounter = new AtomicInteger();
+
+    private final int parallelism;
+    private final boolean ignoreHiddenFiles;
+    private final boolean ignoreSystemFiles;
+
+    /**
+     * Creates a new scanner.
+     *
+     * @param parallelism       The number of entries read in parallel
+     * @param ignoreHiddenFiles True to skip the hidden files
+     * @param ignoreSystemFiles True to skip the files starting with a dot
+     */
+    public DirectoryScanner(int parallelism, boolean ignoreHiddenFiles, boolean ignoreSystemFiles) {
+        this.parallelism = Math.max(1, parallelism);
+        this.ignoreHiddenFiles = ignoreHiddenFiles;
+        this.ignoreSystemFiles = ignoreSystemFiles;
+    }
+
+    /**
+     * Scans a directory, including the directory itself.
+     *
+     * @param directory The directory to scan
+     * @param basePath  The base directory for calculating the relative paths
+     * @return The files and directories found
+     * @throws IOException If an I/O error occurs
+     */
+    public List<FileInfo> scan(Path directory, Path basePath) throws IOException {
+        var root = directory.toAbsolutePath();
+        var base = basePath.toAbsolutePath();
+        var pool = new ForkJoinPool(parallelism, p -> {
+            var thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p);
+            thread.setName("scanner-" + threadCounter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }, null, false);
+        try {
+            var attributes = FileUtils.toAttributes(root,
+                    Files.readAttributes(root, BasicFileAttributes.class));
+            return pool.invoke(new DirectoryTask(root, base, attributes));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private class DirectoryTask extends RecursiveTask<List<FileInfo>> {
+        private final Path directory;
+        private final Path basePath;
+        private final Attributes attributes;
+
+        private DirectoryTask(Path directory, Path basePath, Attributes attributes) {
+            this.directory = directory;
+            this.basePath = basePath;
+            this.attributes = attributes;
+        }
+
+        @Override
+        protected List<FileInfo> compute() {
+            var result = new ArrayList<FileInfo>();
+            result.add(FileInfo.fromAttributes(directory, basePath, attributes));
+
+            var children = new ArrayList<Path>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+                stream.forEach(children::add);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            children.sort(null);
+
+            var tasks = new ArrayList<EntryTask>(children.size());
+            for (var child : children) {
+                tasks.add(new EntryTask(child, basePath));
+            }
+            for (var task : ForkJoinTask.invokeAll(tasks)) {
+                result.addAll(task.join());
+            }
+            return result;
+        }
+    }
+
+    private class EntryTask extends RecursiveTask<List<FileInfo>> {
+        private final Path path;
+        private final Path basePath;
+
+        private EntryTask(Path path, Path basePath) {
+            this.path = path;
+            this.basePath = basePath;
+        }
+
+        @Override
+        protected List<FileInfo> compute() {
+            Attributes attributes;
+            try {
+                attributes = FileUtils.toAttributes(path,
+                        Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            if (attributes.isHidden() && ignoreHiddenFiles) return List.of();
+            if (attributes.isSymbolicLink()) return List.of();
+            if (path.getFileName().toString().startsWith(".") && ignoreSystemFiles) return List.of();
+            if (attributes.isDirectory()) {
+                return new DirectoryTask(path, basePath, attributes).compute();
+            }
+            return List.of(FileInfo.fromAttributes(path, basePath, attributes));
+        }
+    }
+}
@@ -342,12 +342,23 @@ public class FileUtils {
 
     public static Attributes readFileAttributes(Path path) throws IOException {
         BasicFileAttributes attributes =Files.readAttributes(path, BasicFileAttributes.class);
+        return toAttributes(path, attributes);
+    }
+
+    /**
+     * Converts the attributes already read for a path.
+     *
+     * @param path       The path
+     * @param attributes The attributes read for it
+     * @return The attributes with the extended umask
+     */
+    public static Attributes toAttributes(Path path, BasicFileAttributes attributes) {
         int umask = 0x0;
         var file = path.toFile();
         if(file.isHidden()){
             umask |= 0x1000;
         }
-        if(file.isDirectory()){
+        if(attributes.isDirectory()){
             umask |= 0x8000;
         }
         if(attributes.isSymbolicLink()){
@@ -389,8 +400,12 @@ public class FileUtils {
         }
 
 
-        return new Attributes(umask,attributes.creationTime().toInstant(),attributes.lastModifiedTime().toInstant(),
+        var result = new Attributes(umask,attributes.creationTime().toInstant(),attributes.lastModifiedTime().toInstant(),
                 attributes.size());
+        if (attributes.fileKey() != null) {
+            result.setFileKey(attributes.fileKey().toString());
+        }
+        return result;
     }
 
 
@@ -0,0 +1,139 @@
+package org.kendar.sync.client;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.kendar.sync.lib.model.FileInfo;
+import org.kendar.sync.lib.network.TcpConnection;
+import org.kendar.sync.lib.protocol.*;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for the file transfer of the BaseSyncClientProcess class, the server side of the
+ * connection is scripted.
+ */
+public class BaseSyncClientProcessTest {
+
+    private static final int MAX_PACKET_SIZE = 1024;
+    private Path source;
+    private CommandLineArgs args;
+    private ServerSocket listener;
+    private TcpConnection clientSide;
+    private TcpConnection serverSide;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        source = Path.of("target", "tests", UUID.randomUUID().toString(), "BaseSyncClientProcessTest").toAbsolutePath();
+        Files.createDirectories(source);
+        args = new CommandLineArgs();
+        args.setSourceFolder(source.toString());
+        listener = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        var sessionId = UUID.randomUUID();
+        var socket = new Socket(listener.getInetAddress(), listener.getLocalPort());
+        var accepted = listener.accept();
+        clientSide = new TcpConnection(socket, sessionId, 1, MAX_PACKET_SIZE, false);
+        serverSide = new TcpConnection(accepted, sessionId, 1, MAX_PACKET_SIZE, true);
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        clientSide.close();
+        serverSide.close();
+        listener.close();
+    }
+
+    private FileInfo createSource(String relativePath, String content) throws IOException {
+        var path = source.resolve(relativePath);
+        Files.writeString(path, content);
+        return FileInfo.fromFile(path.toFile(), source.toString());
+    }
+
+    private void setProtocol(int protocolVersion, int inlineThreshold) {
+        clientSide.setProtocolVersion(protocolVersion);
+        serverSide.setProtocolVersion(protocolVersion);
+        clientSide.setInlineThreshold(inlineThreshold);
+    }
+
+    /**
+     * Receives a file on the server side, as a server that does not read the inline content.
+     *
+     * @return The messages received
+     */
+    private CompletableFuture<List<Message>> receiveWithoutInline() {
+        return CompletableFuture.supplyAsync(() -> {
+            var result = new ArrayList<Message>();
+            try {
+                var message = serverSide.receiveMessage();
+                result.add(message);
+                var relativePath = ((FileDescriptorMessage) message).getFileInfo().getRelativePath();
+                serverSide.sendMessage(FileDescriptorAckMessage.ready(relativePath));
+                do {
+                    message = serverSide.receiveMessage();
+                    result.add(message);
+                    if (message.getMessageType() == MessageType.FILE_DATA) {
+                        serverSide.sendMessage(new FileDataAck());
+                    }
+                } while (message.getMessageType() != MessageType.FILE_END);
+                serverSide.sendMessage(FileEndAckMessage.success(relativePath));
+                return result;
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+    }
+
+    @Test
+    void testEmptyFileIsNotInlineOnV6() throws Exception {
+        var file = createSource("empty.txt", "");
+        setProtocol(ProtocolVersion.V6, 0);
+        var script = receiveWithoutInline();
+
+        assertTrue(new SyncClientBackup().transferFile(file, args, clientSide));
+
+        var received = script.get();
+        assertFalse(((FileDescriptorMessage) received.get(0)).isInline());
+        assertEquals(MessageType.FILE_END, received.get(received.size() - 1).getMessageType());
+    }
+
+    @Test
+    void testNoInlineWhenDisabledByTheServer() throws Exception {
+        var file = createSource("small.txt", "small");
+        setProtocol(ProtocolVersion.V7, 0);
+        var script = receiveWithoutInline();
+
+        assertTrue(new SyncClientBackup().transferFile(file, args, clientSide));
+
+        assertFalse(((FileDescriptorMessage) script.get().get(0)).isInline());
+    }
+
+    @Test
+    void testSmallFileIsInline() throws Exception {
+        var file = createSource("small.txt", "small");
+        setProtocol(ProtocolVersion.V7, 4096);
+        var script = CompletableFuture.supplyAsync(() -> {
+            try {
+                var message = (FileDescriptorMessage) serverSide.receiveMessage();
+                serverSide.sendMessage(FileEndAckMessage.success(message.getFileInfo().getRelativePath()));
+                return message;
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+
+        assertTrue(new SyncClientBackup().transferFile(file, args, clientSide));
+
+        assertArrayEquals("small".getBytes(), script.get().getInlineData());
+    }
+}
@@ -0,0 +1,91 @@
+package org.kendar.sync.client;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.kendar.sync.lib.model.FileInfo;
+import org.kendar.sync.lib.utils.ContentHasher;
+import org.kendar.sync.lib.utils.DirectoryScanner;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for the MoveDetector class.
+ */
+public class MoveDetectorTest {
+
+    private Path source;
+    private Path stateFile;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        var root = Path.of("target", "tests", UUID.randomUUID().toString(), "MoveDetectorTest").toAbsolutePath();
+        source = root.resolve("source");
+        stateFile = root.resolve("state").resolve("test.state");
+        Files.createDirectories(source.resolve("old"));
+        Files.writeString(source.resolve("old/moved.txt"), "moved content");
+        Files.writeString(source.resolve("original.txt"), "copied content");
+    }
+
+    private List<FileInfo> scan() throws IOException {
+        var files = new DirectoryScanner(1, true, true).scan(source, source);
+        for (var file : files) {
+            if (!file.getRelativePath().isEmpty() && Files.isRegularFile(source.resolve(file.getRelativePath()))) {
+                file.setHash(ContentHasher.hashFile(source.resolve(file.getRelativePath()), ContentHasher.CRC32C));
+            }
+        }
+        return files;
+    }
+
+    @Test
+    void testMovesAndCopiesAreDetected() throws IOException {
+        MoveDetector.load(stateFile, ContentHasher.CRC32C).save(scan());
+
+        Files.createDirectories(source.resolve("new"));
+        Files.move(source.resolve("old/moved.txt"), source.resolve("new/moved.txt"));
+        Files.copy(source.resolve("original.txt"), source.resolve("copy.txt"),
+                StandardCopyOption.COPY_ATTRIBUTES);
+        Files.writeString(source.resolve("unrelated.txt"), "other content");
+
+        var moves = MoveDetector.load(stateFile, ContentHasher.CRC32C)
+                .detect(new DirectoryScanner(1, true, true).scan(source, source), source);
+
+        assertEquals(2, moves.size());
+        var copy = moves.stream().filter(m -> m.getTarget().equals("copy.txt")).findFirst().orElseThrow();
+        assertEquals("original.txt", copy.getSource());
+        assertTrue(copy.isCopy());
+        var move = moves.stream().filter(m -> m.getTarget().equals("new/moved.txt")).findFirst().orElseThrow();
+        assertEquals("old/moved.txt", move.getSource());
+        assertFalse(move.isCopy());
+    }
+
+    @Test
+    void testChangedContentIsNotAMove() throws IOException {
+        MoveDetector.load(stateFile, ContentHasher.CRC32C).save(scan());
+
+        var modified = Files.getLastModifiedTime(source.resolve("original.txt"));
+        // Written before deleting the original, so that it does not reuse its inode
+        Files.writeString(source.resolve("renamed.txt"), "COPIED CONTENT");
+        Files.setLastModifiedTime(source.resolve("renamed.txt"), modified);
+        Files.delete(source.resolve("original.txt"));
+
+        var moves = MoveDetector.load(stateFile, ContentHasher.CRC32C)
+                .detect(new DirectoryScanner(1, true, true).scan(source, source), source);
+
+        assertTrue(moves.isEmpty());
+    }
+
+    @Test
+    void testMissingStateDetectsNothing() throws IOException {
+        var moves = MoveDetector.load(stateFile, ContentHasher.CRC32C).detect(scan(), source);
+
+        assertTrue(moves.isEmpty());
+        assertFalse(Files.exists(stateFile));
+    }
+}
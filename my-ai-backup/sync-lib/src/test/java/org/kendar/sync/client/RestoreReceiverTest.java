@@ -0,0 +1,235 @@
+package org.kendar.sync.client;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.kendar.sync.lib.buffer.BufferPool;
+import org.kendar.sync.lib.model.FileInfo;
+import org.kendar.sync.lib.network.TcpConnection;
+import org.kendar.sync.lib.protocol.*;
+import org.kendar.sync.lib.utils.ContentHasher;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for the RestoreReceiver class, the server side of the connections is scripted.
+ */
+public class RestoreReceiverTest {
+
+    private static final int MAX_PACKET_SIZE = 1024;
+    private final List<TcpConnection> serverSides = new ArrayList<>();
+    private Path source;
+    private Path target;
+    private CommandLineArgs args;
+    private ServerSocket listener;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        var root = Path.of("target", "tests", UUID.randomUUID().toString(), "RestoreReceiverTest").toAbsolutePath();
+        source = root.resolve("source");
+        target = root.resolve("target");
+        Files.createDirectories(source);
+        Files.createDirectories(target);
+        args = new CommandLineArgs();
+        args.setSourceFolder(target.toString());
+        listener = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        for (var serverSide : serverSides) {
+            serverSide.close();
+        }
+        listener.close();
+    }
+
+    /**
+     * Opens connected pairs, the client sides are returned and the server sides kept to be scripted.
+     */
+    private List<TcpConnection> connect(int count) throws IOException {
+        var sessionId = UUID.randomUUID();
+        var clientSides = new ArrayList<TcpConnection>();
+        for (var i = 1; i <= count; i++) {
+            var socket = new Socket(listener.getInetAddress(), listener.getLocalPort());
+            var accepted = listener.accept();
+            clientSides.add(new TcpConnection(socket, sessionId, i, MAX_PACKET_SIZE, false));
+            serverSides.add(new TcpConnection(accepted, sessionId, i, MAX_PACKET_SIZE, true));
+        }
+        return clientSides;
+    }
+
+    private FileInfo createSource(String relativePath, int size) throws IOException {
+        var path = source.resolve(relativePath);
+        Files.createDirectories(path.getParent());
+        var content = new byte[size];
+        for (var i = 0; i < size; i++) {
+            content[i] = (byte) (relativePath.hashCode() + i);
+        }
+        Files.write(path, content);
+        Files.setLastModifiedTime(path, FileTime.from(Instant.parse("2020-01-02T03:04:05Z")));
+        return FileInfo.fromFile(path.toFile(), source.toString());
+    }
+
+    /**
+     * Sends the files on the server side of a connection, as the server does during a restore,
+     * then closes it.
+     *
+     * @return The file end acknowledgements received
+     */
+    private CompletableFuture<List<FileEndAckMessage>> serve(TcpConnection serverSide, FileInfo... files) {
+        return CompletableFuture.supplyAsync(() -> {
+            var result = new ArrayList<FileEndAckMessage>();
+            try {
+                for (var file : files) {
+                    serverSide.sendMessage(new FileDescriptorMessage(file));
+                    assertEquals(MessageType.FILE_DESCRIPTOR_ACK, serverSide.receiveMessage().getMessageType());
+                    var content = Files.readAllBytes(source.resolve(file.getRelativePath()));
+                    var totalBlocks = Math.max(1, (content.length + MAX_PACKET_SIZE - 1) / MAX_PACKET_SIZE);
+                    for (var block = 0; block * MAX_PACKET_SIZE < content.length; block++) {
+                        var data = Arrays.copyOfRange(content, block * MAX_PACKET_SIZE,
+                                Math.min(content.length, (block + 1) * MAX_PACKET_SIZE));
+                        serverSide.sendMessage(new FileDataMessage(file.getRelativePath(), block, totalBlocks, data));
+                        assertEquals(MessageType.FILE_DATA_ACK, serverSide.receiveMessage().getMessageType());
+                    }
+                    serverSide.sendMessage(new FileEndMessage(file.getRelativePath(), file));
+                    result.add((FileEndAckMessage) serverSide.receiveMessage());
+                }
+                serverSide.close();
+                return result;
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+    }
+
+    private void assertRestored(FileInfo file) throws IOException {
+        var restored = target.resolve(file.getRelativePath());
+        assertArrayEquals(Files.readAllBytes(source.resolve(file.getRelativePath())), Files.readAllBytes(restored));
+    }
+
+    @Test
+    void testFilesAreReceivedOnSeveralConnections() throws Exception {
+        var files = new ArrayList<FileInfo>();
+        for (var i = 0; i < 6; i++) {
+            files.add(createSource("dir" + (i % 2) + "/file" + i + ".bin", i * 1500));
+        }
+        var connections = connect(3);
+        var scripts = List.of(
+                serve(serverSides.get(0), files.get(0), files.get(1)),
+                serve(serverSides.get(1), files.get(2), files.get(3)),
+                serve(serverSides.get(2), files.get(4), files.get(5)));
+
+        var failed = new RestoreReceiver(args, () -> true).receive(connections, files);
+
+        assertEquals(0, failed);
+        for (var script : scripts) {
+            assertTrue(script.get().stream().allMatch(FileEndAckMessage::isSuccess));
+        }
+        for (var file : files) {
+            assertRestored(file);
+        }
+    }
+
+    @Test
+    void testFileNotInTransferListIsSkipped() throws Exception {
+        var expected = createSource("expected.txt", 3000);
+        var unexpected = createSource("unexpected.txt", 3000);
+        var connections = connect(1);
+        var script = serve(serverSides.get(0), unexpected, expected);
+
+        var failed = new RestoreReceiver(args, () -> true).receive(connections, List.of(expected));
+
+        assertEquals(0, failed);
+        assertEquals(2, script.get().size());
+        assertRestored(expected);
+        assertFalse(Files.exists(target.resolve("unexpected.txt")));
+    }
+
+    @Test
+    void testPendingFilesFailWhenAllReadersAreGone() throws Exception {
+        var files = List.of(createSource("sent.txt", 100),
+                createSource("lost1.txt", 100),
+                createSource("lost2.txt", 100));
+        var connections = connect(2);
+        // Both connections drop before sending the other files
+        serve(serverSides.get(0), files.get(0));
+        serve(serverSides.get(1));
+
+        var failed = assertTimeoutPreemptively(Duration.ofSeconds(10),
+                () -> new RestoreReceiver(args, () -> true).receive(connections, files));
+
+        assertEquals(2, failed);
+        assertRestored(files.get(0));
+    }
+
+    @Test
+    void testBlocksAreWrittenInOrderAndFinalized() throws Exception {
+        var file = createSource("large.bin", 50 * MAX_PACKET_SIZE + 10);
+        var connections = connect(1);
+        serve(serverSides.get(0), file);
+
+        var failed = new RestoreReceiver(args, () -> true).receive(connections, List.of(file));
+
+        assertEquals(0, failed);
+        assertRestored(file);
+        var restored = target.resolve("large.bin");
+        assertEquals(Instant.parse("2020-01-02T03:04:05Z"), Files.getLastModifiedTime(restored).toInstant());
+    }
+
+    @Test
+    void testFailingWriteFailsTheFileAndReleasesTheBudget() throws Exception {
+        var blocked = createSource("blocked.bin", 20 * MAX_PACKET_SIZE);
+        var written = createSource("written.bin", 20 * MAX_PACKET_SIZE);
+        // The file cannot be opened for writing
+        Files.createDirectories(target.resolve("blocked.bin"));
+        var usedBefore = BufferPool.shared().getUsed();
+        var connections = connect(2);
+        serve(serverSides.get(0), blocked);
+        serve(serverSides.get(1), written);
+
+        var failed = new RestoreReceiver(args, () -> true).receive(connections, List.of(blocked, written));
+
+        assertEquals(1, failed);
+        assertRestored(written);
+        assertTrue(Files.isDirectory(target.resolve("blocked.bin")));
+        // The reservations are given back by the write workers
+        var deadline = System.currentTimeMillis() + 5000;
+        while (BufferPool.shared().getUsed() != usedBefore && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(usedBefore, BufferPool.shared().getUsed());
+    }
+
+    @Test
+    void testHashMismatchFailsTheFile() throws Exception {
+        var corrupted = createSource("corrupted.txt", 3000);
+        corrupted.setHash("crc32c:00000000");
+        var verified = createSource("verified.txt", 3000);
+        verified.setHash(ContentHasher.hashFile(source.resolve("verified.txt"), ContentHasher.CRC32C));
+        var connections = connect(1);
+        var script = serve(serverSides.get(0), corrupted, verified);
+
+        var failed = new RestoreReceiver(args, () -> true).receive(connections, List.of(corrupted, verified));
+
+        assertEquals(1, failed);
+        var acks = script.get();
+        assertFalse(acks.get(0).isSuccess());
+        assertTrue(acks.get(1).isSuccess());
+        assertRestored(verified);
+    }
+}
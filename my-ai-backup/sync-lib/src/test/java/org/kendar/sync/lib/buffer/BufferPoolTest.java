@@ -0,0 +1,103 @@
+package org.kendar.sync.lib.buffer;
+
+import org.junit.jupiter.api.Test;
+import org.kendar.sync.lib.protocol.Packet;
+
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for the BufferPool class.
+ */
+public class BufferPoolTest {
+
+    @Test
+    void testSizeClasses() {
+        var pool = new BufferPool(1024 * 1024);
+
+        assertEquals(1024, pool.acquire(1).length);
+        assertEquals(1024, pool.acquire(1024).length);
+        assertEquals(2048, pool.acquire(1025).length);
+        assertEquals(1024 + 2048 + 1024, pool.getUsed());
+    }
+
+    @Test
+    void testReleasedBuffersAreReused() {
+        var pool = new BufferPool(1024 * 1024);
+
+        var first = pool.acquire(4000);
+        pool.release(first);
+        var second = pool.acquire(3000);
+
+        assertSame(first, second);
+        pool.release(second);
+        assertEquals(0, pool.getUsed());
+    }
+
+    @Test
+    void testAcquireWaitsWhenTheBudgetIsExhausted() throws Exception {
+        var pool = new BufferPool(8 * 1024);
+        var first = pool.acquire(8 * 1024);
+        var acquired = new CountDownLatch(1);
+
+        var thread = new Thread(() -> {
+            pool.release(pool.acquire(1024));
+            acquired.countDown();
+        });
+        thread.start();
+
+        assertFalse(acquired.await(200, TimeUnit.MILLISECONDS));
+        pool.release(first);
+        assertTrue(acquired.await(5, TimeUnit.SECONDS));
+        assertEquals(0, pool.getUsed());
+    }
+
+    @Test
+    void testReservationsTakeHalfTheCapacity() throws Exception {
+        var pool = new BufferPool(8 * 1024);
+        pool.reserve(4 * 1024);
+
+        assertFalse(pool.tryReserve(1024, 50));
+        // The buffers in flight can still use the other half
+        var buffer = pool.acquire(4 * 1024);
+        pool.release(buffer);
+
+        pool.unreserve(4 * 1024);
+        assertTrue(pool.tryReserve(1024, 50));
+    }
+
+    @Test
+    void testRequestLargerThanTheCapacityRunsAlone() {
+        var pool = new BufferPool(1024);
+
+        var buffer = pool.acquire(64 * 1024);
+
+        assertEquals(64 * 1024, buffer.length);
+        pool.release(buffer);
+        assertEquals(0, pool.getUsed());
+    }
+
+    @Test
+    void testPacketRoundTripWithPooledBuffers() {
+        var random = new Random(7);
+        for (var size : new int[]{0, 10, 1024, 100_000}) {
+            var content = new byte[size];
+            random.nextBytes(content);
+            var packet = new Packet(1, UUID.randomUUID(), 0, "FD", content);
+
+            var serialized = new byte[packet.getLength() + 100];
+            var length = packet.serialize(serialized);
+            var received = Packet.deserialize(serialized);
+
+            assertEquals(packet.getLength(), length);
+            assertArrayEquals(content, received.getDecompressedContent());
+        }
+        var zeros = new byte[1024 * 1024];
+        var packet = Packet.deserialize(new Packet(1, UUID.randomUUID(), 0, "FD", zeros).serialize());
+        assertArrayEquals(zeros, packet.getDecompressedContent());
+    }
+}
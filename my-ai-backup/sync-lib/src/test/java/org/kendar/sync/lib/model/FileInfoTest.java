@@ -165,4 +165,26 @@ class FileInfoTest {
         assertTrue(toString.contains(String.valueOf(fileInfo.getSize())));
         assertTrue(toString.contains(fileInfo.getModificationTime().toString()));
     }
-}
\ No newline at end of file
+
+    @Test
+    void testLineWithHash() throws IOException {
+        FileInfo fileInfo = FileInfo.fromFile(testFile, baseDir);
+        fileInfo.setHash("crc32c:0a1b2c3d");
+
+        FileInfo parsed = FileInfo.fromLine(fileInfo.toLine());
+
+        assertEquals(fileInfo.getRelativePath(), parsed.getRelativePath());
+        assertEquals("crc32c:0a1b2c3d", parsed.getHash());
+    }
+
+    @Test
+    void testLineWithoutHash() throws IOException {
+        FileInfo fileInfo = FileInfo.fromFile(testFile, baseDir);
+
+        var line = fileInfo.toLine();
+        FileInfo parsed = FileInfo.fromLine(line);
+
+        assertEquals(5, line.split("\t").length);
+        assertNull(parsed.getHash());
+    }
+}
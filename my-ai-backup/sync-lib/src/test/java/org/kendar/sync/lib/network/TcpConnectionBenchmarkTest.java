@@ -0,0 +1,103 @@
+package org.kendar.sync.lib.network;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.kendar.sync.lib.model.FileInfo;
+import org.kendar.sync.lib.protocol.*;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Measures the socket writes, each one a system call, needed to restore small files
+ * over the loopback, sending every message with its own write or coalescing the last
+ * block with the file end and the acknowledgments with the following messages.
+ * Run with {@code mvn test -Dbenchmark=true -Dtest=TcpConnectionBenchmarkTest}.
+ */
+@EnabledIfSystemProperty(named = "benchmark", matches = "true")
+public class TcpConnectionBenchmarkTest {
+    private static final int FILES = 2000;
+    private static final int BLOCK_SIZE = 4096;
+
+    @Test
+    void benchmarkWritesPerFile() throws Exception {
+        var separate = transfer(false);
+        var coalesced = transfer(true);
+        assertTrue(coalesced <= separate);
+    }
+
+    private double transfer(boolean coalesce) throws Exception {
+        var sessionId = UUID.randomUUID();
+        try (var serverSocket = SocketOptions.listen(0)) {
+            var senderSocket = SocketOptions.connect("localhost", serverSocket.getLocalPort());
+            var receiverSocket = serverSocket.accept();
+            SocketOptions.accepted(receiverSocket);
+            try (var sender = new TcpConnection(senderSocket, sessionId, 1, BLOCK_SIZE * 2, true);
+                 var receiver = new TcpConnection(receiverSocket, sessionId, 1, BLOCK_SIZE * 2, false)) {
+                var receiving = CompletableFuture.runAsync(() -> receiveAll(receiver, coalesce));
+
+                var data = new byte[BLOCK_SIZE];
+                var start = System.nanoTime();
+                for (var i = 0; i < FILES; i++) {
+                    var file = new FileInfo("file" + i, "file" + i, data.length, Instant.now(), Instant.now(), 0);
+                    sender.sendMessage(new FileDescriptorMessage(file));
+                    sender.receiveMessage();
+                    var block = new FileDataMessage(file.getRelativePath(), 0, 1, data);
+                    if (coalesce) {
+                        sender.queueMessage(block);
+                    } else {
+                        sender.sendMessage(block);
+                        sender.receiveMessage();
+                    }
+                    sender.sendMessage(new FileEndMessage(file.getRelativePath(), file));
+                    if (coalesce) {
+                        sender.receiveMessage();
+                    }
+                    sender.receiveMessage();
+                }
+                sender.sendMessage(new SyncEndMessage());
+                receiving.join();
+                var seconds = (System.nanoTime() - start) / 1_000_000_000.0;
+
+                var writes = (double) (sender.getSocketWrites() + receiver.getSocketWrites()) / FILES;
+                System.out.printf("[BENCHMARK] %s: %.2f sender and %.2f receiver writes per file, %.0f files/s%n",
+                        coalesce ? "Coalesced" : "Separate",
+                        (double) sender.getSocketWrites() / FILES, (double) receiver.getSocketWrites() / FILES,
+                        FILES / seconds);
+                return writes;
+            }
+        }
+    }
+
+    private static void receiveAll(TcpConnection receiver, boolean coalesce) {
+        try {
+            Message message;
+            while ((message = receiver.receiveMessage()) != null) {
+                Message answer;
+                switch (message.getMessageType()) {
+                    case FILE_DESCRIPTOR:
+                        answer = FileDescriptorAckMessage.ready(((FileDescriptorMessage) message).getFileInfo().getRelativePath());
+                        break;
+                    case FILE_DATA:
+                        answer = new FileDataAck();
+                        break;
+                    case FILE_END:
+                        answer = FileEndAckMessage.success(((FileEndMessage) message).getRelativePath());
+                        break;
+                    default:
+                        return;
+                }
+                receiver.sendMessage(answer);
+                if (!coalesce) {
+                    receiver.flush();
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
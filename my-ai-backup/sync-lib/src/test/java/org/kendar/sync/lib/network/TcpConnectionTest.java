@@ -4,10 +4,16 @@ import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.kendar.sync.lib.protocol.ErrorMessage;
 import org.kendar.sync.lib.protocol.FileDataAck;
+import org.kendar.sync.lib.protocol.FileDataMessage;
+import org.kendar.sync.lib.protocol.FileEndAckMessage;
 import org.kendar.sync.lib.protocol.Message;
 import org.kendar.sync.lib.protocol.MessageType;
+import org.kendar.sync.lib.protocol.Packet;
+import org.kendar.sync.lib.protocol.ProtocolVersion;
+import org.kendar.sync.lib.protocol.SyncEndMessage;
 
 import java.io.IOException;
+import java.util.Random;
 import java.util.UUID;
 
 import static org.junit.jupiter.api.Assertions.*;
@@ -86,6 +92,138 @@ class TcpConnectionTest {
         assertEquals(MessageType.FILE_DATA_ACK, clientReceivedMessage.getMessageType());
     }
 
+    @Test
+    void testCompactFramingAfterTheFirstPacket() throws Exception {
+        clientConnection.setProtocolVersion(ProtocolVersion.V2);
+        serverConnection.setProtocolVersion(ProtocolVersion.V2);
+
+        // The first packet binds the session, the next ones are compact
+        clientConnection.sendMessage(new FileDataAck());
+        var firstLength = clientSocket.getOutputStreamData().length;
+        clientConnection.sendMessage(new FileDataAck());
+        var data = clientSocket.getOutputStreamData();
+
+        assertFalse(Packet.isCompact(data[0]));
+        assertTrue(Packet.isCompact(data[firstLength]));
+        assertTrue(data.length - firstLength < 16);
+
+        transferClientToServer();
+        var first = serverConnection.receiveMessage();
+        var second = serverConnection.receiveMessage();
+
+        assertEquals(MessageType.FILE_DATA_ACK, first.getMessageType());
+        assertEquals(MessageType.FILE_DATA_ACK, second.getMessageType());
+        assertEquals(sessionId, second.getSessionId());
+        assertEquals(connectionId, second.getConnectionId());
+    }
+
+    @Test
+    void testCompactFramingCompressesOnlyWhenSmaller() throws Exception {
+        clientConnection.setProtocolVersion(ProtocolVersion.V2);
+        clientConnection.sendMessage(new FileDataAck());
+
+        var zerosStart = clientSocket.getOutputStreamData().length;
+        var zeros = new byte[MAX_PACKET_SIZE / 2];
+        clientConnection.sendMessage(new FileDataMessage("zeros", 0, 1, zeros));
+        var randomStart = clientSocket.getOutputStreamData().length;
+        var random = new byte[MAX_PACKET_SIZE / 2];
+        new Random(1).nextBytes(random);
+        clientConnection.sendMessage(new FileDataMessage("random", 0, 1, random));
+        var data = clientSocket.getOutputStreamData();
+
+        assertEquals(0, data[zerosStart] & Packet.FLAG_UNCOMPRESSED);
+        assertTrue(randomStart - zerosStart < zeros.length);
+        assertEquals(Packet.FLAG_UNCOMPRESSED, data[randomStart] & Packet.FLAG_UNCOMPRESSED);
+
+        transferClientToServer();
+        serverConnection.receiveMessage();
+        var compressed = (FileDataMessage) serverConnection.receiveMessage();
+        var uncompressed = (FileDataMessage) serverConnection.receiveMessage();
+
+        assertArrayEquals(zeros, compressed.getData());
+        assertArrayEquals(random, uncompressed.getData());
+    }
+
+    @Test
+    void testCompressedBlockIsNotCompressedAgain() throws Exception {
+        clientConnection.setProtocolVersion(ProtocolVersion.V5);
+        clientConnection.sendMessage(new FileDataAck());
+
+        var start = clientSocket.getOutputStreamData().length;
+        var zeros = new byte[MAX_PACKET_SIZE / 2];
+        var block = new FileDataMessage("zeros", 0, 1, zeros).compress();
+        clientConnection.sendMessage(block);
+        var data = clientSocket.getOutputStreamData();
+
+        assertTrue(block.isCompressed());
+        assertEquals(Packet.FLAG_UNCOMPRESSED, data[start] & Packet.FLAG_UNCOMPRESSED);
+
+        transferClientToServer();
+        serverConnection.receiveMessage();
+        var received = (FileDataMessage) serverConnection.receiveMessage();
+
+        assertTrue(received.isCompressed());
+        assertArrayEquals(block.getData(), received.getData());
+        assertEquals(zeros.length, received.getRawLength());
+        assertArrayEquals(zeros, received.getRawData());
+    }
+
+    @Test
+    void testVersionOnePeerKeepsTheFullHeader() throws Exception {
+        clientConnection.sendMessage(new FileDataAck());
+        var firstLength = clientSocket.getOutputStreamData().length;
+        clientConnection.sendMessage(new FileDataAck());
+        var data = clientSocket.getOutputStreamData();
+
+        assertEquals(firstLength * 2, data.length);
+        assertFalse(Packet.isCompact(data[firstLength]));
+    }
+
+    @Test
+    void testAcknowledgmentsLeaveWithTheNextMessage() throws Exception {
+        clientConnection.sendMessage(new SyncEndMessage());
+        clientConnection.sendMessage(new SyncEndMessage());
+        transferClientToServer();
+
+        // The next message is already there, the first ack waits for the second one
+        serverConnection.receiveMessage();
+        serverConnection.sendMessage(new FileDataAck());
+        assertEquals(0, serverSocket.getOutputStreamData().length);
+        serverConnection.receiveMessage();
+        serverConnection.sendMessage(FileEndAckMessage.success("file.txt"));
+
+        assertEquals(2, serverConnection.getMessagesSent());
+        assertEquals(1, serverConnection.getSocketWrites());
+        transferServerToClient();
+        assertEquals(MessageType.FILE_DATA_ACK, clientConnection.receiveMessage().getMessageType());
+        assertEquals(MessageType.FILE_END_ACK, clientConnection.receiveMessage().getMessageType());
+    }
+
+    @Test
+    void testQueuedMessagesAreFlushedBeforeWaiting() throws Exception {
+        clientConnection.queueMessage(new SyncEndMessage());
+        clientConnection.queueMessage(new SyncEndMessage());
+        assertEquals(0, clientSocket.getOutputStreamData().length);
+
+        // Nothing to read, the peer must get the queued messages first
+        assertNull(clientConnection.receiveMessage());
+
+        assertEquals(1, clientConnection.getSocketWrites());
+        transferClientToServer();
+        assertEquals(MessageType.SYNC_END, serverConnection.receiveMessage().getMessageType());
+        assertEquals(MessageType.SYNC_END, serverConnection.receiveMessage().getMessageType());
+    }
+
+    @Test
+    void testExplicitFlush() throws Exception {
+        clientConnection.queueMessage(new SyncEndMessage());
+        clientConnection.flush();
+        clientConnection.flush();
+
+        assertEquals(1, clientConnection.getSocketWrites());
+        assertTrue(clientSocket.getOutputStreamData().length > 0);
+    }
+
     @Test
     void testGetters() throws IOException {
         // Test getters
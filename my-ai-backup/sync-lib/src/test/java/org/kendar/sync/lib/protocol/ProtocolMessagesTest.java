@@ -5,11 +5,13 @@ import org.kendar.sync.lib.model.FileInfo;
 import org.kendar.sync.lib.utils.Attributes;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.text.SimpleDateFormat;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
 
 import static org.junit.jupiter.api.Assertions.*;
@@ -167,6 +169,28 @@ class ProtocolMessagesTest {
         assertEquals(fileInfo.getExtendedUmask(), deserializedFileInfo.getExtendedUmask());
     }
 
+    @Test
+    void testInlineFileDescriptorMessage() {
+        FileInfo fileInfo = new FileInfo("/test/small.txt", "small.txt", 5L,
+                Instant.now(), Instant.now(), 0);
+        FileDescriptorMessage originalMessage = new FileDescriptorMessage(fileInfo);
+        originalMessage.setInlineData("small".getBytes());
+
+        FileDescriptorMessage deserializedMessage = Message.deserialize(originalMessage.serialize(), FileDescriptorMessage.class);
+        assertTrue(deserializedMessage.isInline());
+        assertArrayEquals("small".getBytes(), deserializedMessage.getInlineData());
+
+        // Empty files are inline too
+        originalMessage.setInlineData(new byte[0]);
+        deserializedMessage = Message.deserialize(originalMessage.serialize(), FileDescriptorMessage.class);
+        assertTrue(deserializedMessage.isInline());
+        assertEquals(0, deserializedMessage.getInlineData().length);
+
+        // Older clients never send the content
+        deserializedMessage = Message.deserialize(new FileDescriptorMessage(fileInfo).serialize(), FileDescriptorMessage.class);
+        assertFalse(deserializedMessage.isInline());
+    }
+
     @Test
     void testFileDescriptorAckMessage() throws IOException {
         // Create a test message
@@ -298,6 +322,25 @@ class ProtocolMessagesTest {
         FileInfo deserializedDir = deserializedMessage.getFiles().get(1);
         assertEquals("dir", deserializedDir.getRelativePath());
         assertTrue(Attributes.isDirectory(deserializedDir.getExtendedUmask()));
+        assertFalse(deserializedMessage.isPartial());
+        assertTrue(deserializedMessage.getDeletedFiles().isEmpty());
+    }
+
+    @Test
+    void testPartialFileListMessage() throws IOException {
+        List<FileInfo> files = new ArrayList<>();
+        files.add(new FileInfo("/test/file1.txt", "file1.txt", 100L,
+                Instant.now(), Instant.now(), 0));
+
+        FileListMessage originalMessage = new FileListMessage(files, true, 1, 1);
+        originalMessage.setPartial(true);
+        originalMessage.setDeletedFiles(Arrays.asList("old/file2.txt", "dir"));
+
+        FileListMessage deserializedMessage = Message.deserialize(originalMessage.serialize(), FileListMessage.class);
+
+        assertTrue(deserializedMessage.isPartial());
+        assertEquals(1, deserializedMessage.getFiles().size());
+        assertEquals(Arrays.asList("old/file2.txt", "dir"), deserializedMessage.getDeletedFiles());
     }
 
     @Test
@@ -386,4 +429,153 @@ class ProtocolMessagesTest {
         assertFalse(deserializedErrorMessage.isSuccess());
         assertEquals("Sync failed", deserializedErrorMessage.getErrorMessage());
     }
+
+    @Test
+    void testProtocolVersionNegotiation() {
+        ConnectMessage connectMessage = new ConnectMessage("user", "password", "documents",
+                1024, 5, false, "host", true, true, List.of());
+        assertEquals(ProtocolVersion.V1, connectMessage.getProtocolVersion());
+        connectMessage.setProtocolVersion(ProtocolVersion.LATEST);
+
+        ConnectMessage deserializedMessage = Message.deserialize(connectMessage.serialize(), ConnectMessage.class);
+        assertEquals(ProtocolVersion.LATEST, deserializedMessage.getProtocolVersion());
+
+        ConnectResponseMessage response = ConnectResponseMessage.accepted(1024, 5, true, true, List.of());
+        response.setProtocolVersion(ProtocolVersion.negotiate(deserializedMessage.getProtocolVersion()));
+        ConnectResponseMessage deserializedResponse = Message.deserialize(response.serialize(), ConnectResponseMessage.class);
+        assertEquals(ProtocolVersion.LATEST, deserializedResponse.getProtocolVersion());
+        assertEquals(0, deserializedResponse.getInlineThreshold());
+
+        response.setInlineThreshold(4096);
+        deserializedResponse = Message.deserialize(response.serialize(), ConnectResponseMessage.class);
+        assertEquals(4096, deserializedResponse.getInlineThreshold());
+
+        // Versions unknown to this build fall back to the latest known
+        assertEquals(ProtocolVersion.LATEST, ProtocolVersion.negotiate(ProtocolVersion.LATEST + 1));
+        assertEquals(ProtocolVersion.V1, ProtocolVersion.negotiate(0));
+    }
+
+    @Test
+    void testConnectMessagePointInTime() {
+        ConnectMessage connectMessage = new ConnectMessage("user", "password", "documents",
+                1024, 5, false, "host", true, true, List.of());
+        assertNull(Message.deserialize(connectMessage.serialize(), ConnectMessage.class).getPointInTime());
+
+        connectMessage.setPointInTime("2024-03-01");
+        ConnectMessage deserializedMessage = Message.deserialize(connectMessage.serialize(), ConnectMessage.class);
+        assertEquals("2024-03-01", deserializedMessage.getPointInTime());
+    }
+
+    @Test
+    void testResumeToken() {
+        ConnectMessage connectMessage = new ConnectMessage("user", "password", "documents",
+                1024, 5, false, "host", true, true, List.of());
+        assertNull(Message.deserialize(connectMessage.serialize(), ConnectMessage.class).getResumeToken());
+        connectMessage.setResumeToken("token");
+        assertEquals("token", Message.deserialize(connectMessage.serialize(), ConnectMessage.class).getResumeToken());
+
+        ConnectResponseMessage response = ConnectResponseMessage.accepted(1024, 5, true, true, List.of());
+        ConnectResponseMessage deserializedResponse = Message.deserialize(response.serialize(), ConnectResponseMessage.class);
+        assertNull(deserializedResponse.getResumeToken());
+        assertFalse(deserializedResponse.isResumed());
+
+        response.setResumeToken("token");
+        response.setResumed(true);
+        deserializedResponse = Message.deserialize(response.serialize(), ConnectResponseMessage.class);
+        assertEquals("token", deserializedResponse.getResumeToken());
+        assertTrue(deserializedResponse.isResumed());
+    }
+
+    @Test
+    void testCompressedFileDataMessage() {
+        var data = "repeated ".repeat(50).getBytes(StandardCharsets.UTF_8);
+        var originalMessage = new FileDataMessage("file.txt", 1, 3, data).compress();
+        assertTrue(originalMessage.isCompressed());
+        assertFalse(originalMessage.isCompressible());
+        assertTrue(originalMessage.getData().length < data.length);
+
+        FileDataMessage deserializedMessage = Message.deserialize(originalMessage.serialize(), FileDataMessage.class);
+
+        assertTrue(deserializedMessage.isCompressed());
+        assertEquals(1, deserializedMessage.getBlockNumber());
+        assertEquals(data.length, deserializedMessage.getRawLength());
+        assertArrayEquals(data, deserializedMessage.getRawData());
+
+        // Incompressible data is sent as it is
+        var small = Message.deserialize(new FileDataMessage("file.txt", 0, 1, new byte[]{1, 2, 3}).compress().serialize(),
+                FileDataMessage.class);
+        assertFalse(small.isCompressed());
+        assertArrayEquals(new byte[]{1, 2, 3}, small.getRawData());
+    }
+
+    @Test
+    void testFileMoveMessage() {
+        FileMoveMessage originalMessage = new FileMoveMessage(List.of(
+                new FileMoveMessage.Move("old/a.txt", "new/a.txt", false),
+                new FileMoveMessage.Move("b.txt", "copy of b.txt", true)));
+
+        FileMoveMessage deserializedMessage = Message.deserialize(originalMessage.serialize(), FileMoveMessage.class);
+
+        assertEquals(MessageType.FILE_MOVE, deserializedMessage.getMessageType());
+        assertEquals(2, deserializedMessage.getMoves().size());
+        assertEquals("old/a.txt", deserializedMessage.getMoves().get(0).getSource());
+        assertEquals("new/a.txt", deserializedMessage.getMoves().get(0).getTarget());
+        assertFalse(deserializedMessage.getMoves().get(0).isCopy());
+        assertEquals("copy of b.txt", deserializedMessage.getMoves().get(1).getTarget());
+        assertTrue(deserializedMessage.getMoves().get(1).isCopy());
+
+        FileMoveAckMessage ack = Message.deserialize(new FileMoveAckMessage(List.of("new/a.txt")).serialize(), FileMoveAckMessage.class);
+        assertEquals(List.of("new/a.txt"), ack.getApplied());
+        assertTrue(Message.deserialize(new FileMoveAckMessage(List.of()).serialize(), FileMoveAckMessage.class).getApplied().isEmpty());
+    }
+
+    @Test
+    void testSyncTreeMessages() {
+        var hashes = new LinkedHashMap<String, String>();
+        hashes.put("", "sha256:01");
+        hashes.put("a/b", null);
+        SyncTreeMessage tree = Message.deserialize(new SyncTreeMessage(hashes).serialize(), SyncTreeMessage.class);
+        assertEquals(MessageType.SYNC_TREE, tree.getMessageType());
+        assertEquals(hashes, tree.getHashes());
+
+        var differences = new LinkedHashMap<String, List<String>>();
+        differences.put("", List.of());
+        differences.put("a", List.of("a/b", "a/c"));
+        SyncTreeResponseMessage response = Message.deserialize(new SyncTreeResponseMessage(differences).serialize(),
+                SyncTreeResponseMessage.class);
+        assertEquals(differences, response.getDifferences());
+    }
+
+    @Test
+    void testFileSyncMessageDirectories() {
+        var message = new FileSyncMessage();
+        assertNull(Message.deserialize(message.serialize(), FileSyncMessage.class).getDirectories());
+
+        message.setDirectories(List.of());
+        assertEquals(List.of(), Message.deserialize(message.serialize(), FileSyncMessage.class).getDirectories());
+
+        message.setDirectories(List.of("", "a/b"));
+        assertEquals(List.of("", "a/b"), Message.deserialize(message.serialize(), FileSyncMessage.class).getDirectories());
+    }
+
+    @Test
+    void testKeepAliveWithQueuePosition() {
+        KeepAlive originalMessage = new KeepAlive(3);
+
+        byte[] serialized = originalMessage.serialize();
+        KeepAlive deserializedMessage = Message.deserialize(serialized, KeepAlive.class);
+
+        assertEquals(MessageType.KEEP_ALIVE, deserializedMessage.getMessageType());
+        assertEquals(3, deserializedMessage.getQueuePosition());
+    }
+
+    @Test
+    void testKeepAliveWithoutFields() {
+        // Keep alive as sent by older peers, with the message type only
+        byte[] serialized = Arrays.copyOf(new KeepAlive().serialize(), 2);
+
+        KeepAlive deserializedMessage = Message.deserialize(serialized, KeepAlive.class);
+
+        assertEquals(0, deserializedMessage.getQueuePosition());
+    }
 }
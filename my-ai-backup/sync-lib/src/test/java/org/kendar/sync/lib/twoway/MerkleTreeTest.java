@@ -0,0 +1,64 @@
+package org.kendar.sync.lib.twoway;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MerkleTreeTest {
+
+    private static final Instant TIME = Instant.parse("2024-01-10T10:00:00Z");
+
+    private static LogEntry entry(String operation, String path, long size) {
+        return new LogEntry(TIME, TIME, TIME, size, operation, path);
+    }
+
+    private static List<LogEntry> folder() {
+        return new ArrayList<>(List.of(
+                entry("CR", "root.txt", 1),
+                entry("CR", "a/one.txt", 2),
+                entry("CR", "a/b/two.txt", 3),
+                entry("CR", "c/d/three.txt", 4)));
+    }
+
+    @Test
+    void testSameFilesHaveTheSameHashes() {
+        var entries = folder();
+        var tree = MerkleTree.build(entries, Set.of());
+        entries.add(entry("DE", "deleted.txt", 0));
+        entries.add(entry("CR", StatusAnalyzer.CONFLICTS_LOG, 10));
+        var other = MerkleTree.build(entries, Set.of(StatusAnalyzer.CONFLICTS_LOG));
+
+        assertEquals(tree.getHash(MerkleTree.ROOT), other.getHash(MerkleTree.ROOT));
+        assertEquals(List.of("a", "c"), tree.getChildren(MerkleTree.ROOT));
+        assertEquals(List.of("a/b"), tree.getChildren("a"));
+        assertEquals(List.of("c/d"), tree.getChildren("c"));
+        assertNotNull(tree.getHash("c"));
+        assertNull(tree.getHash("missing"));
+        assertTrue(tree.getChildren("missing").isEmpty());
+    }
+
+    @Test
+    void testChangesAffectOnlyTheirAncestors() {
+        var tree = MerkleTree.build(folder(), Set.of());
+        var entries = folder();
+        entries.set(2, entry("MO", "a/b/two.txt", 30));
+        var changed = MerkleTree.build(entries, Set.of());
+
+        assertNotEquals(tree.getHash(MerkleTree.ROOT), changed.getHash(MerkleTree.ROOT));
+        assertNotEquals(tree.getHash("a"), changed.getHash("a"));
+        assertNotEquals(tree.getHash("a/b"), changed.getHash("a/b"));
+        assertEquals(tree.getHash("c"), changed.getHash("c"));
+        assertEquals(tree.getHash("c/d"), changed.getHash("c/d"));
+    }
+
+    @Test
+    void testParent() {
+        assertEquals(MerkleTree.ROOT, MerkleTree.parent("file.txt"));
+        assertEquals("a/b", MerkleTree.parent("a/b/file.txt"));
+    }
+}
@@ -0,0 +1,69 @@
+package org.kendar.sync.lib.utils;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.kendar.sync.lib.protocol.Packet;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Measures the throughput of a single connection reading and compressing a file with
+ * a growing number of blocks compressed in parallel.
+ * Run with {@code mvn test -Dbenchmark=true -Dtest=BlockReaderBenchmarkTest}.
+ */
+@EnabledIfSystemProperty(named = "benchmark", matches = "true")
+public class BlockReaderBenchmarkTest {
+    private static final int FILE_SIZE = 256 * 1024 * 1024;
+    private static final int BLOCK_SIZE = 1024 * 1024;
+
+    @Test
+    void benchmarkCompressionScaling() throws IOException {
+        var root = Path.of("target", "tests", UUID.randomUUID().toString(), "BlockReaderBenchmarkTest");
+        Files.createDirectories(root);
+        var file = root.resolve("data.bin");
+        // Half random and half repeated content, to give the deflater some real work
+        var random = new Random(1);
+        var block = new byte[BLOCK_SIZE];
+        try (var out = Files.newOutputStream(file)) {
+            for (var i = 0; i < FILE_SIZE / BLOCK_SIZE; i++) {
+                random.nextBytes(block);
+                for (var j = 0; j < block.length / 2; j++) block[j] = (byte) (j % 31);
+                out.write(block);
+            }
+        }
+
+        var sessionId = UUID.randomUUID();
+        var cores = Runtime.getRuntime().availableProcessors();
+        double single = 0;
+        for (var parallelism = 1; parallelism <= cores; parallelism *= 2) {
+            // Warm up once, then measure
+            readFile(file, sessionId, parallelism);
+            var start = System.nanoTime();
+            var bytes = readFile(file, sessionId, parallelism);
+            var seconds = (System.nanoTime() - start) / 1_000_000_000.0;
+            var throughput = bytes / seconds / (1024 * 1024);
+            if (parallelism == 1) single = throughput;
+            System.out.printf("[BENCHMARK] %d blocks in parallel: %.1f MB/s (x%.2f)%n",
+                    parallelism, throughput, throughput / single);
+        }
+        assertTrue(single > 0);
+    }
+
+    private long readFile(Path file, UUID sessionId, int parallelism) throws IOException {
+        long total = 0;
+        try (var reader = new BlockReader<Packet>(file.toFile(), BLOCK_SIZE, 0, parallelism,
+                (blockNumber, data) -> new Packet(1, sessionId, 0, "FD", data))) {
+            Packet packet;
+            while ((packet = reader.next()) != null) {
+                total += packet.serialize().length;
+            }
+        }
+        return total > 0 ? Files.size(file) : 0;
+    }
+}
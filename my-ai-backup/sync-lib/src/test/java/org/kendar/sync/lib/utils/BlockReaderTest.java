@@ -0,0 +1,168 @@
+package org.kendar.sync.lib.utils;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for the BlockReader class.
+ */
+public class BlockReaderTest {
+
+    private Path testRoot;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        testRoot = Path.of("target", "tests", UUID.randomUUID().toString(), "BlockReaderTest");
+        Files.createDirectories(testRoot);
+    }
+
+    private Path createFile(int size) throws IOException {
+        var data = new byte[size];
+        new Random(size).nextBytes(data);
+        var file = testRoot.resolve("file_" + size + ".bin");
+        Files.write(file, data);
+        return file;
+    }
+
+    private byte[] readAll(Path file, int blockSize, long mmapThreshold, List<Integer> blockNumbers) throws IOException {
+        var result = new ByteArrayOutputStream();
+        try (var reader = new BlockReader<byte[]>(file.toFile(), blockSize, mmapThreshold, (blockNumber, data) -> {
+            blockNumbers.add(blockNumber);
+            return data;
+        })) {
+            byte[] block;
+            while ((block = reader.next()) != null) {
+                assertTrue(block.length <= blockSize);
+                result.write(block);
+            }
+        }
+        return result.toByteArray();
+    }
+
+    @Test
+    void testReadsAllTheBlocksInOrder() throws IOException {
+        var file = createFile(10_000);
+        var blockNumbers = Collections.synchronizedList(new ArrayList<Integer>());
+
+        var content = readAll(file, 1024, 0, blockNumbers);
+
+        assertArrayEquals(Files.readAllBytes(file), content);
+        // The blocks are converted concurrently, each exactly once
+        Collections.sort(blockNumbers);
+        assertEquals(List.of(0, 1, 2, 3, 4, 5, 6, 7, 8, 9), blockNumbers);
+    }
+
+    @Test
+    void testMemoryMappedReadGivesTheSameBlocks() throws IOException {
+        var file = createFile(10_000);
+        var blockNumbers = Collections.synchronizedList(new ArrayList<Integer>());
+
+        var content = readAll(file, 1024, 1, blockNumbers);
+
+        assertArrayEquals(Files.readAllBytes(file), content);
+        assertEquals(10, blockNumbers.size());
+    }
+
+    @Test
+    void testStreamSourceGivesTheSameBlocks() throws IOException {
+        var file = createFile(10_000);
+        var blockNumbers = Collections.synchronizedList(new ArrayList<Integer>());
+        var result = new ByteArrayOutputStream();
+
+        try (var reader = new BlockReader<byte[]>(() -> Files.newInputStream(file), 10_000, 1024, (blockNumber, data) -> {
+            blockNumbers.add(blockNumber);
+            return data;
+        })) {
+            assertEquals(10, reader.getTotalBlocks());
+            byte[] block;
+            while ((block = reader.next()) != null) {
+                result.write(block);
+            }
+        }
+
+        assertArrayEquals(Files.readAllBytes(file), result.toByteArray());
+        assertEquals(10, blockNumbers.size());
+    }
+
+    @Test
+    void testParallelConversionKeepsTheOrder() throws IOException {
+        var file = createFile(64 * 1024);
+        var random = new Random(42);
+        var delays = new int[64];
+        for (var i = 0; i < delays.length; i++) delays[i] = random.nextInt(5);
+
+        var result = new ByteArrayOutputStream();
+        try (var reader = new BlockReader<byte[]>(file.toFile(), 1024, 0, 8, (blockNumber, data) -> {
+            try {
+                Thread.sleep(delays[blockNumber]);
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            return data;
+        })) {
+            byte[] block;
+            while ((block = reader.next()) != null) {
+                result.write(block);
+            }
+        }
+
+        assertArrayEquals(Files.readAllBytes(file), result.toByteArray());
+    }
+
+    @Test
+    void testEmptyFile() throws IOException {
+        var file = createFile(0);
+        var blockNumbers = new ArrayList<Integer>();
+
+        try (var reader = new BlockReader<byte[]>(file.toFile(), 1024, 0, (blockNumber, data) -> data)) {
+            assertEquals(1, reader.getTotalBlocks());
+        }
+        assertEquals(0, readAll(file, 1024, 0, blockNumbers).length);
+        assertTrue(blockNumbers.isEmpty());
+    }
+
+    @Test
+    void testTotalBlocks() throws IOException {
+        var file = createFile(2048);
+
+        try (var reader = new BlockReader<byte[]>(file.toFile(), 1024, 0, (blockNumber, data) -> data)) {
+            assertEquals(2, reader.getTotalBlocks());
+        }
+    }
+
+    @Test
+    void testConverterErrorIsReported() throws IOException {
+        var file = createFile(4096);
+
+        try (var reader = new BlockReader<byte[]>(file.toFile(), 1024, 0, (blockNumber, data) -> {
+            if (blockNumber == 1) throw new IOException("Broken block");
+            return data;
+        })) {
+            assertNotNull(reader.next());
+            var error = assertThrows(IOException.class, reader::next);
+            assertEquals("Broken block", error.getMessage());
+            assertNull(reader.next());
+        }
+    }
+
+    @Test
+    void testCloseBeforeTheEnd() throws IOException {
+        var file = createFile(100_000);
+
+        var reader = new BlockReader<byte[]>(file.toFile(), 1024, 0, (blockNumber, data) -> data);
+        assertNotNull(reader.next());
+        reader.close();
+    }
+}
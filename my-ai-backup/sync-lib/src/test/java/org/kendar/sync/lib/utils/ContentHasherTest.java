@@ -0,0 +1,75 @@
+package org.kendar.sync.lib.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for the ContentHasher class.
+ */
+public class ContentHasherTest {
+
+    private static final byte[] DATA = "123456789".getBytes(StandardCharsets.US_ASCII);
+
+    @Test
+    void testCrc32cKnownValue() {
+        var hasher = ContentHasher.create(ContentHasher.CRC32C);
+        hasher.update(DATA);
+
+        assertEquals("crc32c:e3069283", hasher.digest());
+        assertEquals(9, hasher.getLength());
+    }
+
+    @Test
+    void testSha256KnownValue() {
+        var hasher = ContentHasher.create("SHA-256");
+        hasher.update(DATA);
+
+        assertEquals("sha256:15e2b0d3c33891ebb0f1ef609ec419420c20e320ce94c65fbc8c3312448eb225", hasher.digest());
+    }
+
+    @Test
+    void testBlocksGiveTheSameHashOfTheWholeContent() {
+        var whole = ContentHasher.create(ContentHasher.SHA256);
+        whole.update(DATA);
+        var blocks = ContentHasher.create(ContentHasher.SHA256);
+        blocks.update(DATA, 0, 4);
+        blocks.update(DATA, 4, 5);
+
+        assertEquals(whole.digest(), blocks.digest());
+    }
+
+    @Test
+    void testHashFile() throws IOException {
+        var root = Path.of("target", "tests", UUID.randomUUID().toString());
+        Files.createDirectories(root);
+        var file = root.resolve("data.bin");
+        Files.write(file, DATA);
+
+        assertEquals("crc32c:e3069283", ContentHasher.hashFile(file, ContentHasher.CRC32C));
+    }
+
+    @Test
+    void testAlgorithmOf() {
+        assertEquals(ContentHasher.CRC32C, ContentHasher.algorithmOf("crc32c:e3069283"));
+        assertEquals(ContentHasher.SHA256, ContentHasher.algorithmOf("sha256:00"));
+        assertNull(ContentHasher.algorithmOf("md5:00"));
+        assertNull(ContentHasher.algorithmOf("e3069283"));
+        assertNull(ContentHasher.algorithmOf(null));
+        assertFalse(ContentHasher.isSupported("md5"));
+        assertThrows(IllegalArgumentException.class, () -> ContentHasher.create("md5"));
+    }
+
+    @Test
+    void testIsCollisionResistant() {
+        assertTrue(ContentHasher.isCollisionResistant("sha256:00"));
+        assertFalse(ContentHasher.isCollisionResistant("crc32c:e3069283"));
+        assertFalse(ContentHasher.isCollisionResistant(null));
+    }
+}
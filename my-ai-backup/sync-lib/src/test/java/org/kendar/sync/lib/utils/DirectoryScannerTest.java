@@ -0,0 +1,89 @@
+package org.kendar.sync.lib.utils;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.kendar.sync.lib.model.FileInfo;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for the DirectoryScanner class.
+ */
+public class DirectoryScannerTest {
+
+    private Path testRoot;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        testRoot = Path.of("target", "tests", UUID.randomUUID().toString(), "DirectoryScannerTest").toAbsolutePath();
+        Files.createDirectories(testRoot);
+        for (var dir : List.of("b", "a", "a/c")) {
+            Files.createDirectories(testRoot.resolve(dir));
+        }
+        for (var file : List.of("z.txt", "b/2.txt", "b/1.txt", "a/c/x.txt", "a/y.txt", ".hidden", "a/.DS_Store")) {
+            Files.writeString(testRoot.resolve(file), file);
+        }
+    }
+
+    private List<String> relativePaths(List<FileInfo> files) {
+        return files.stream().map(FileInfo::getRelativePath).collect(Collectors.toList());
+    }
+
+    @Test
+    void testDeterministicOrder() throws IOException {
+        var files = new DirectoryScanner(4, true, true).scan(testRoot, testRoot);
+
+        assertEquals(List.of("", "a", "a/c", "a/c/x.txt", "a/y.txt", "b", "b/1.txt", "b/2.txt", "z.txt"),
+                relativePaths(files));
+        // The same result with a single thread
+        assertEquals(relativePaths(files), relativePaths(new DirectoryScanner(1, true, true).scan(testRoot, testRoot)));
+    }
+
+    @Test
+    void testHiddenAndSystemFilesAreIncludedOnRequest() throws IOException {
+        var files = relativePaths(new DirectoryScanner(4, false, false).scan(testRoot, testRoot));
+
+        assertTrue(files.contains(".hidden"));
+        assertTrue(files.contains("a/.DS_Store"));
+    }
+
+    @Test
+    void testSameFileInfoAsTheSingleFileRead() throws IOException {
+        var files = new DirectoryScanner(4, true, true).scan(testRoot, testRoot);
+
+        for (var scanned : files) {
+            var expected = FileInfo.fromFile(Path.of(scanned.getPath()).toFile(), testRoot.toString());
+            assertEquals(expected.getRelativePath(), scanned.getRelativePath());
+            assertEquals(expected.getPath(), scanned.getPath());
+            assertEquals(expected.getSize(), scanned.getSize());
+            assertEquals(expected.getModificationTime(), scanned.getModificationTime());
+            assertEquals(expected.getExtendedUmask(), scanned.getExtendedUmask());
+        }
+    }
+
+    @Test
+    void testSymbolicLinksAreSkipped() throws IOException {
+        try {
+            Files.createSymbolicLink(testRoot.resolve("link"), testRoot.resolve("a"));
+        } catch (UnsupportedOperationException | IOException e) {
+            return;
+        }
+
+        var files = relativePaths(new DirectoryScanner(4, true, true).scan(testRoot, testRoot));
+
+        assertFalse(files.stream().anyMatch(f -> f.startsWith("link")));
+    }
+
+    @Test
+    void testMissingDirectory() {
+        assertThrows(IOException.class,
+                () -> new DirectoryScanner(4, true, true).scan(testRoot.resolve("missing"), testRoot));
+    }
+}
@@ -3,6 +3,7 @@ package org.kendar.sync.server.api.controller;
 import org.kendar.sync.lib.model.ServerSettings;
 import org.kendar.sync.server.api.model.JwtRequest;
 import org.kendar.sync.server.api.model.JwtResponse;
+import org.kendar.sync.server.config.ServerConfig;
 import org.kendar.sync.server.security.JwtTokenUtil;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.PostMapping;
@@ -10,6 +11,7 @@ import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
 
+import java.io.IOException;
 import java.util.Optional;
 
 /**
@@ -19,11 +21,11 @@ import java.util.Optional;
 @RequestMapping("/api/auth")
 public class AuthController {
     private final JwtTokenUtil jwtTokenUtil;
-    private final ServerSettings serverSettings;
+    private final ServerConfig serverConfig;
 
-    public AuthController(JwtTokenUtil jwtTokenUtil, ServerSettings serverSettings) {
+    public AuthController(JwtTokenUtil jwtTokenUtil, ServerConfig serverConfig) {
         this.jwtTokenUtil = jwtTokenUtil;
-        this.serverSettings = serverSettings;
+        this.serverConfig = serverConfig;
     }
 
     /**
@@ -31,11 +33,13 @@ public class AuthController {
      *
      * @param authenticationRequest The authentication request
      * @return The JWT token
+     * @throws IOException If an I/O error occurs
      */
     @PostMapping("/login")
-    public ResponseEntity<?> createAuthenticationToken(@RequestBody JwtRequest authenticationRequest) {
+    public ResponseEntity<?> createAuthenticationToken(@RequestBody JwtRequest authenticationRequest) throws IOException {
+        var snapshot = serverConfig.snapshot();
         // Authenticate the user
-        Optional<ServerSettings.User> userOpt = serverSettings.authenticate(
+        Optional<ServerSettings.User> userOpt = snapshot.authenticate(
                 authenticationRequest.getUsername(), authenticationRequest.getPassword());
 
         if (userOpt.isEmpty()) {
@@ -49,6 +53,6 @@ public class AuthController {
 
         return ResponseEntity.ok(new JwtResponse(
                 token, user.getUsername(), user.getId(), user.isAdmin(),
-                serverSettings.getPort()));
+                snapshot.getSettings().getPort()));
     }
 }
\ No newline at end of file
@@ -0,0 +1,60 @@
+package org.kendar.sync.server.api.controller;
+
+import org.kendar.sync.server.config.SyncServerRunner;
+import org.kendar.sync.server.replication.ReplicationService;
+import org.kendar.sync.server.replication.ReplicationStatus;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.security.access.prepost.PreAuthorize;
+import org.springframework.web.bind.annotation.*;
+
+import java.util.List;
+
+/**
+ * Controller for the replication of the backup folders to other servers.
+ */
+@RestController
+@RequestMapping("/api/replication")
+public class ReplicationController {
+    private final SyncServerRunner serverRunner;
+
+    public ReplicationController(SyncServerRunner serverRunner) {
+        this.serverRunner = serverRunner;
+    }
+
+    /**
+     * Gets the lag and the counters of every replica.
+     *
+     * @return The statuses
+     */
+    @GetMapping
+    @PreAuthorize("hasRole('ADMIN')")
+    public ResponseEntity<List<ReplicationStatus>> getStatuses() {
+        var replicationService = getReplicationService();
+        if (replicationService == null) {
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).build();
+        }
+        return ResponseEntity.ok(replicationService.getStatuses());
+    }
+
+    /**
+     * Pushes the pending changes without waiting for the next interval.
+     *
+     * @return Accepted
+     */
+    @PostMapping
+    @PreAuthorize("hasRole('ADMIN')")
+    public ResponseEntity<Void> replicate() {
+        var replicationService = getReplicationService();
+        if (replicationService == null) {
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).build();
+        }
+        replicationService.trigger();
+        return ResponseEntity.status(HttpStatus.ACCEPTED).build();
+    }
+
+    private ReplicationService getReplicationService() {
+        var server = serverRunner.getServer();
+        return server == null ? null : server.getReplicationService();
+    }
+}
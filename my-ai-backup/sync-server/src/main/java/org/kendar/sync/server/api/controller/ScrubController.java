@@ -0,0 +1,80 @@
+package org.kendar.sync.server.api.controller;
+
+import org.kendar.sync.server.config.SyncServerRunner;
+import org.kendar.sync.server.scrub.ScrubReport;
+import org.kendar.sync.server.scrub.ScrubService;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.security.access.prepost.PreAuthorize;
+import org.springframework.web.bind.annotation.*;
+
+import java.util.List;
+
+/**
+ * Controller for the scrub of the backup folders.
+ */
+@RestController
+@RequestMapping("/api/scrub")
+public class ScrubController {
+    private final SyncServerRunner serverRunner;
+
+    public ScrubController(SyncServerRunner serverRunner) {
+        this.serverRunner = serverRunner;
+    }
+
+    /**
+     * Gets the last scrub report of every folder.
+     *
+     * @return The reports
+     */
+    @GetMapping
+    @PreAuthorize("hasRole('ADMIN')")
+    public ResponseEntity<List<ScrubReport>> getReports() {
+        var scrubService = getScrubService();
+        if (scrubService == null) {
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).build();
+        }
+        return ResponseEntity.ok(scrubService.getReports());
+    }
+
+    /**
+     * Gets the last scrub report of a folder.
+     *
+     * @param folder The folder virtual name
+     * @return The report
+     */
+    @GetMapping("/{folder}")
+    @PreAuthorize("hasRole('ADMIN')")
+    public ResponseEntity<ScrubReport> getReport(@PathVariable String folder) {
+        var scrubService = getScrubService();
+        if (scrubService == null) {
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).build();
+        }
+        return scrubService.getReport(folder)
+                .map(ResponseEntity::ok)
+                .orElse(ResponseEntity.notFound().build());
+    }
+
+    /**
+     * Starts the scrub of a folder.
+     *
+     * @param folder The folder virtual name
+     * @return The queued report, conflict if the folder is unknown or already being scrubbed
+     */
+    @PostMapping("/{folder}")
+    @PreAuthorize("hasRole('ADMIN')")
+    public ResponseEntity<ScrubReport> startScrub(@PathVariable String folder) {
+        var scrubService = getScrubService();
+        if (scrubService == null) {
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).build();
+        }
+        return scrubService.scrub(folder)
+                .map(report -> ResponseEntity.status(HttpStatus.ACCEPTED).body(report))
+                .orElse(ResponseEntity.status(HttpStatus.CONFLICT).build());
+    }
+
+    private ScrubService getScrubService() {
+        var server = serverRunner.getServer();
+        return server == null ? null : server.getScrubService();
+    }
+}
@@ -20,11 +20,9 @@ import java.util.UUID;
 @RequestMapping("/api/settings")
 public class SettingsController {
     private final ServerConfig serverConfig;
-    private ServerSettings serverSettings;
 
-    public SettingsController(ServerConfig serverConfig, ServerSettings serverSettings) {
+    public SettingsController(ServerConfig serverConfig) {
         this.serverConfig = serverConfig;
-        this.serverSettings = serverSettings;
     }
 
     /**
@@ -34,8 +32,8 @@ public class SettingsController {
      */
     @GetMapping
     @PreAuthorize("hasRole('ADMIN')")
-    public ResponseEntity<ServerSettings> getSettings() {
-        return ResponseEntity.ok(serverSettings);
+    public ResponseEntity<ServerSettings> getSettings() throws IOException {
+        return ResponseEntity.ok(serverConfig.snapshot().getSettings());
     }
 
     /**
@@ -48,9 +46,7 @@ public class SettingsController {
     @PutMapping
     @PreAuthorize("hasRole('ADMIN')")
     public ResponseEntity<ServerSettings> updateSettings(@RequestBody ServerSettings settings) throws IOException {
-        settings.save(serverConfig.getSettingsFile());
-        serverSettings = serverConfig.reloadSettings();
-        return ResponseEntity.ok(serverSettings);
+        return ResponseEntity.ok(serverConfig.replaceSettings(settings));
     }
 
     /**
@@ -60,8 +56,8 @@ public class SettingsController {
      */
     @GetMapping("/users")
     @PreAuthorize("hasRole('ADMIN')")
-    public ResponseEntity<List<ServerSettings.User>> getUsers() {
-        return ResponseEntity.ok(serverSettings.getUsers());
+    public ResponseEntity<List<ServerSettings.User>> getUsers() throws IOException {
+        return ResponseEntity.ok(serverConfig.snapshot().getSettings().getUsers());
     }
 
     /**
@@ -72,15 +68,14 @@ public class SettingsController {
      */
     @GetMapping("/users/{id}")
     @PreAuthorize("hasRole('ADMIN') or hasRole('USER')")
-    public ResponseEntity<?> getUser(Principal principal, @PathVariable String id) {
-        Optional<ServerSettings.User> user = serverSettings.getUsers().stream()
-                .filter(u -> u.getId().equals(id))
-                .findFirst();
+    public ResponseEntity<?> getUser(Principal principal, @PathVariable String id) throws IOException {
+        var snapshot = serverConfig.snapshot();
+        Optional<ServerSettings.User> user = snapshot.getUserById(id);
 
         if (user.isEmpty()) {
             return ResponseEntity.notFound().build();
         }
-        var loginUser = serverSettings.getUsers().stream().filter(u -> u.getUsername().equalsIgnoreCase(principal.getName())).findFirst().get();
+        var loginUser = snapshot.getUserByLogin(principal.getName()).get();
         if (loginUser.getId().equalsIgnoreCase(user.get().getId()) || loginUser.isAdmin()) {
             return ResponseEntity.ok(user.get());
         }
@@ -102,18 +97,23 @@ public class SettingsController {
             user.setId(UUID.randomUUID().toString());
         }
 
-        // Check if the username already exists
-        boolean usernameExists = serverSettings.getUsers().stream()
-                .anyMatch(u -> u.getUsername().equals(user.getUsername()));
+        var created = serverConfig.updateSettings(settings -> {
+            // Check if the username already exists
+            boolean usernameExists = settings.getUsers().stream()
+                    .anyMatch(u -> u.getUsername().equals(user.getUsername()));
 
-        if (usernameExists) {
-            return ResponseEntity.badRequest().build();
-        }
+            if (usernameExists) {
+                return null;
+            }
 
-        serverSettings.getUsers().add(user);
-        serverSettings.save(serverConfig.getSettingsFile());
+            settings.getUsers().add(user);
+            return user;
+        });
 
-        return ResponseEntity.ok(user);
+        if (created == null) {
+            return ResponseEntity.badRequest().build();
+        }
+        return ResponseEntity.ok(created);
     }
 
     /**
@@ -127,38 +127,44 @@ public class SettingsController {
     @PutMapping("/users/{id}")
     @PreAuthorize("hasRole('ADMIN')  or hasRole('USER')")
     public ResponseEntity<?> updateUser(Principal principal, @PathVariable String id, @RequestBody ServerSettings.User user) throws IOException {
-        // Find the user
-        Optional<ServerSettings.User> existingUser = serverSettings.getUsers().stream()
-                .filter(u -> u.getId().equals(id))
-                .findFirst();
-        var loginUser = serverSettings.getUsers().stream().filter(u -> u.getUsername().equalsIgnoreCase(principal.getName())).findFirst().get();
-
+        var snapshot = serverConfig.snapshot();
+        var loginUser = snapshot.getUserByLogin(principal.getName()).get();
 
+        // Find the user
+        Optional<ServerSettings.User> existingUser = snapshot.getUserById(id);
         if (existingUser.isEmpty()) {
             return ResponseEntity.notFound().build();
         }
 
-        // Update the user
-        ServerSettings.User userToUpdate = existingUser.get();
-
         // Only admins can change the admin status
-        if (!userToUpdate.isAdmin() && user.isAdmin() && !loginUser.isAdmin()) {
+        if (!existingUser.get().isAdmin() && user.isAdmin() && !loginUser.isAdmin()) {
             return ResponseEntity.status(403).build();
         }
-
-        userToUpdate.setUsername(user.getUsername());
-        userToUpdate.setPassword(user.getPassword());
-
-        if (loginUser.isAdmin()) {
-            userToUpdate.setAdmin(user.isAdmin());
-        }
-        if (loginUser.getId().equalsIgnoreCase(userToUpdate.getId()) || loginUser.isAdmin()) {
-            serverSettings.save(serverConfig.getSettingsFile());
-            return ResponseEntity.ok(userToUpdate);
+        if (!loginUser.getId().equalsIgnoreCase(id) && !loginUser.isAdmin()) {
+            return ResponseEntity.notFound().build();
         }
 
+        // Update the user
+        var updated = serverConfig.updateSettings(settings -> {
+            var userToUpdate = settings.getUsers().stream()
+                    .filter(u -> u.getId().equals(id))
+                    .findFirst().orElse(null);
+            if (userToUpdate == null) {
+                return null;
+            }
+            userToUpdate.setUsername(user.getUsername());
+            userToUpdate.setPassword(user.getPassword());
 
-        return ResponseEntity.notFound().build();
+            if (loginUser.isAdmin()) {
+                userToUpdate.setAdmin(user.isAdmin());
+            }
+            return userToUpdate;
+        });
+
+        if (updated == null) {
+            return ResponseEntity.notFound().build();
+        }
+        return ResponseEntity.ok(updated);
 
     }
 
@@ -172,25 +178,29 @@ public class SettingsController {
     @DeleteMapping("/users/{id}")
     @PreAuthorize("hasRole('ADMIN')")
     public ResponseEntity<?> deleteUser(@PathVariable String id) throws IOException {
-        // Find the user
-        Optional<ServerSettings.User> existingUser = serverSettings.getUsers().stream()
-                .filter(u -> u.getId().equals(id))
-                .findFirst();
+        var removed = serverConfig.updateSettings(settings -> {
+            // Find the user
+            Optional<ServerSettings.User> existingUser = settings.getUsers().stream()
+                    .filter(u -> u.getId().equals(id))
+                    .findFirst();
+
+            if (existingUser.isEmpty()) {
+                return null;
+            }
 
-        if (existingUser.isEmpty()) {
-            return ResponseEntity.notFound().build();
-        }
+            // Remove the user
+            settings.getUsers().remove(existingUser.get());
 
-        // Remove the user
-        serverSettings.getUsers().remove(existingUser.get());
+            // Remove the user from all backup folders
+            for (ServerSettings.BackupFolder folder : settings.getBackupFolders()) {
+                folder.getAllowedUsers().remove(id);
+            }
+            return existingUser.get();
+        });
 
-        // Remove the user from all backup folders
-        for (ServerSettings.BackupFolder folder : serverSettings.getBackupFolders()) {
-            folder.getAllowedUsers().remove(id);
+        if (removed == null) {
+            return ResponseEntity.notFound().build();
         }
-
-        serverSettings.save(serverConfig.getSettingsFile());
-
         return ResponseEntity.noContent().build();
     }
 
@@ -201,10 +211,11 @@ public class SettingsController {
      */
     @GetMapping("/folders")
     @PreAuthorize("hasRole('ADMIN') or hasRole('USER')")
-    public ResponseEntity<List<ServerSettings.BackupFolder>> getFolders(Principal principal) {
+    public ResponseEntity<List<ServerSettings.BackupFolder>> getFolders(Principal principal) throws IOException {
+        var snapshot = serverConfig.snapshot();
         var result = new ArrayList<ServerSettings.BackupFolder>();
-        var user = serverSettings.getUsers().stream().filter(u -> u.getUsername().equalsIgnoreCase(principal.getName())).findFirst().get();
-        for (var bff : serverSettings.getBackupFolders()) {
+        var user = snapshot.getUserByLogin(principal.getName()).get();
+        for (var bff : snapshot.getSettings().getBackupFolders()) {
             if (bff.getAllowedUsers().contains(user.getId()) || user.isAdmin()) {
                 result.add(bff);
             }
@@ -220,15 +231,14 @@ public class SettingsController {
      */
     @GetMapping("/folders/{name}")
     @PreAuthorize("hasRole('ADMIN') or hasRole('USER')")
-    public ResponseEntity<?> getFolder(Principal principal, @PathVariable String name) {
-        Optional<ServerSettings.BackupFolder> folder = serverSettings.getBackupFolders().stream()
-                .filter(f -> f.getVirtualName().equals(name))
-                .findFirst();
+    public ResponseEntity<?> getFolder(Principal principal, @PathVariable String name) throws IOException {
+        var snapshot = serverConfig.snapshot();
+        Optional<ServerSettings.BackupFolder> folder = snapshot.getFolder(name);
 
         if (folder.isEmpty()) {
             return ResponseEntity.notFound().build();
         }
-        var user = serverSettings.getUsers().stream().filter(u -> u.getUsername().equalsIgnoreCase(principal.getName())).findFirst().get();
+        var user = snapshot.getUserByLogin(principal.getName()).get();
         if (!folder.get().getAllowedUsers().contains(user.getId()) && !user.isAdmin()) {
             return ResponseEntity.status(403).build();
         }
@@ -246,18 +256,23 @@ public class SettingsController {
     @PostMapping("/folders")
     @PreAuthorize("hasRole('ADMIN')")
     public ResponseEntity<ServerSettings.BackupFolder> createFolder(@RequestBody ServerSettings.BackupFolder folder) throws IOException {
-        // Check if the folder name already exists
-        boolean folderExists = serverSettings.getBackupFolders().stream()
-                .anyMatch(f -> f.getVirtualName().equals(folder.getVirtualName()));
+        var created = serverConfig.updateSettings(settings -> {
+            // Check if the folder name already exists
+            boolean folderExists = settings.getBackupFolders().stream()
+                    .anyMatch(f -> f.getVirtualName().equals(folder.getVirtualName()));
 
-        if (folderExists) {
-            return ResponseEntity.badRequest().build();
-        }
+            if (folderExists) {
+                return null;
+            }
 
-        serverSettings.getBackupFolders().add(folder);
-        serverSettings.save(serverConfig.getSettingsFile());
+            settings.getBackupFolders().add(folder);
+            return folder;
+        });
 
-        return ResponseEntity.ok(folder);
+        if (created == null) {
+            return ResponseEntity.badRequest().build();
+        }
+        return ResponseEntity.ok(created);
     }
 
     /**
@@ -271,28 +286,37 @@ public class SettingsController {
     @PutMapping("/folders/{name}")
     @PreAuthorize("hasRole('ADMIN')")
     public ResponseEntity<?> updateFolder(@PathVariable String name, @RequestBody ServerSettings.BackupFolder folder) throws IOException {
-        // Find the folder
-        Optional<ServerSettings.BackupFolder> existingFolder = serverSettings.getBackupFolders().stream()
-                .filter(f -> f.getVirtualName().equals(name))
-                .findFirst();
+        var updated = serverConfig.updateSettings(settings -> {
+            // Find the folder
+            Optional<ServerSettings.BackupFolder> existingFolder = settings.getBackupFolders().stream()
+                    .filter(f -> f.getVirtualName().equals(name))
+                    .findFirst();
+
+            if (existingFolder.isEmpty()) {
+                return null;
+            }
+
+            // Update the folder
+            ServerSettings.BackupFolder folderToUpdate = existingFolder.get();
+            folderToUpdate.setVirtualName(folder.getVirtualName());
+            folderToUpdate.setRealPath(folder.getRealPath());
+            folderToUpdate.setBackupType(folder.getBackupType());
+            folderToUpdate.setAllowedUsers(folder.getAllowedUsers());
+            folderToUpdate.setIgnoredPatterns(folder.getIgnoredPatterns() == null ? new ArrayList<>() : folder.getIgnoredPatterns());
+            folderToUpdate.setIgnoreSystemFiles(folder.isIgnoreSystemFiles());
+            folderToUpdate.setIgnoreHiddenFiles(folder.isIgnoreHiddenFiles());
+            folderToUpdate.setCompressAtRest(folder.isCompressAtRest());
+            // The replicas are not edited by the folders page, kept when not sent
+            if (folder.getReplicas() != null && !folder.getReplicas().isEmpty()) {
+                folderToUpdate.setReplicas(folder.getReplicas());
+            }
+            return folderToUpdate;
+        });
 
-        if (existingFolder.isEmpty()) {
+        if (updated == null) {
             return ResponseEntity.notFound().build();
         }
-
-        // Update the folder
-        ServerSettings.BackupFolder folderToUpdate = existingFolder.get();
-        folderToUpdate.setVirtualName(folder.getVirtualName());
-        folderToUpdate.setRealPath(folder.getRealPath());
-        folderToUpdate.setBackupType(folder.getBackupType());
-        folderToUpdate.setAllowedUsers(folder.getAllowedUsers());
-        folderToUpdate.setIgnoredPatterns(folder.getIgnoredPatterns() == null ? new ArrayList<>() : folder.getIgnoredPatterns());
-        folderToUpdate.setIgnoreSystemFiles(folder.isIgnoreSystemFiles());
-        folderToUpdate.setIgnoreHiddenFiles(folder.isIgnoreHiddenFiles());
-
-        serverSettings.save(serverConfig.getSettingsFile());
-
-        return ResponseEntity.ok(folderToUpdate);
+        return ResponseEntity.ok(updated);
     }
 
     /**
@@ -305,19 +329,24 @@ public class SettingsController {
     @DeleteMapping("/folders/{name}")
     @PreAuthorize("hasRole('ADMIN')")
     public ResponseEntity<?> deleteFolder(@PathVariable String name) throws IOException {
-        // Find the folder
-        Optional<ServerSettings.BackupFolder> existingFolder = serverSettings.getBackupFolders().stream()
-                .filter(f -> f.getVirtualName().equals(name))
-                .findFirst();
+        var removed = serverConfig.updateSettings(settings -> {
+            // Find the folder
+            Optional<ServerSettings.BackupFolder> existingFolder = settings.getBackupFolders().stream()
+                    .filter(f -> f.getVirtualName().equals(name))
+                    .findFirst();
+
+            if (existingFolder.isEmpty()) {
+                return null;
+            }
+
+            // Remove the folder
+            settings.getBackupFolders().remove(existingFolder.get());
+            return existingFolder.get();
+        });
 
-        if (existingFolder.isEmpty()) {
+        if (removed == null) {
             return ResponseEntity.notFound().build();
         }
-
-        // Remove the folder
-        serverSettings.getBackupFolders().remove(existingFolder.get());
-        serverSettings.save(serverConfig.getSettingsFile());
-
         return ResponseEntity.noContent().build();
     }
 
@@ -331,10 +360,12 @@ public class SettingsController {
     @PutMapping("/port")
     @PreAuthorize("hasRole('ADMIN')")
     public ResponseEntity<ServerSettings> updatePort(@RequestBody int port) throws IOException {
-        serverSettings.setPort(port);
-        serverSettings.save(serverConfig.getSettingsFile());
+        var updated = serverConfig.updateSettings(settings -> {
+            settings.setPort(port);
+            return settings;
+        });
 
-        return ResponseEntity.ok(serverSettings);
+        return ResponseEntity.ok(updated);
     }
 
     /**
@@ -347,10 +378,12 @@ public class SettingsController {
     @PutMapping("/maxPacketSize")
     @PreAuthorize("hasRole('ADMIN')")
     public ResponseEntity<ServerSettings> updateMaxPacketSize(@RequestBody int maxPacketSize) throws IOException {
-        serverSettings.setMaxPacketSize(maxPacketSize);
-        serverSettings.save(serverConfig.getSettingsFile());
+        var updated = serverConfig.updateSettings(settings -> {
+            settings.setMaxPacketSize(maxPacketSize);
+            return settings;
+        });
 
-        return ResponseEntity.ok(serverSettings);
+        return ResponseEntity.ok(updated);
     }
 
     /**
@@ -363,9 +396,11 @@ public class SettingsController {
     @PutMapping("/maxConnections")
     @PreAuthorize("hasRole('ADMIN')")
     public ResponseEntity<ServerSettings> updateMaxConnections(@RequestBody int maxConnections) throws IOException {
-        serverSettings.setMaxConnections(maxConnections);
-        serverSettings.save(serverConfig.getSettingsFile());
+        var updated = serverConfig.updateSettings(settings -> {
+            settings.setMaxConnections(maxConnections);
+            return settings;
+        });
 
-        return ResponseEntity.ok(serverSettings);
+        return ResponseEntity.ok(updated);
     }
 }
\ No newline at end of file
@@ -1,6 +1,7 @@
 package org.kendar.sync.server.api.controller;
 
 import jakarta.annotation.security.PermitAll;
+import org.kendar.sync.server.config.SyncServerRunner;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
@@ -11,11 +12,17 @@ import java.util.Map;
 /**
  * Controller for system status information.
  * Provides public endpoints for health checks and status information.
+ * In a cluster the status includes the live nodes with their load.
  */
 @RestController
 @PermitAll
 @RequestMapping("/api/status")
 public class StatusController {
+    private final SyncServerRunner serverRunner;
+
+    public StatusController(SyncServerRunner serverRunner) {
+        this.serverRunner = serverRunner;
+    }
 
     /**
      * Returns the current system status.
@@ -29,6 +36,15 @@ public class StatusController {
         Map<String, Object> status = new HashMap<>();
         status.put("status", "UP");
         status.put("timestamp", System.currentTimeMillis());
+        var server = serverRunner.getServer();
+        if (server != null) {
+            status.put("sessions", server.getActiveSessions());
+            var cluster = server.getCluster();
+            if (cluster != null) {
+                status.put("node", cluster.getSelf().getNodeId());
+                status.put("nodes", cluster.getLiveNodes());
+            }
+        }
         return status;
     }
 }
\ No newline at end of file
@@ -1,22 +1,41 @@
 package org.kendar.sync.server.backup;
 
+import org.kendar.sync.lib.buffer.BufferPool;
 import org.kendar.sync.lib.model.FileInfo;
 import org.kendar.sync.lib.network.TcpConnection;
 import org.kendar.sync.lib.protocol.*;
 import org.kendar.sync.lib.utils.Attributes;
+import org.kendar.sync.lib.utils.BlockReader;
+import org.kendar.sync.lib.utils.ContentHasher;
 import org.kendar.sync.lib.utils.FileUtils;
+import org.kendar.sync.server.io.DiskIoScheduler;
+import org.kendar.sync.server.replication.ReplicationJournal;
+import org.kendar.sync.server.replication.ReplicationJournals;
+import org.kendar.sync.server.replication.ReplicationService;
 import org.kendar.sync.server.server.ClientSession;
+import org.kendar.sync.server.storage.LocalStorageBackend;
+import org.kendar.sync.server.storage.StorageBackend;
+import org.kendar.sync.server.storage.StorageBackends;
+import org.kendar.sync.server.storage.StoredObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.UUID;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
 /**
@@ -25,6 +44,476 @@ import java.util.stream.Collectors;
 public abstract class BackupHandler {
 
     private static final Logger log = LoggerFactory.getLogger(BackupHandler.class);
+    /**
+     * Maximum number of stored files read or deleted at the same time, shared by all the sessions.
+     */
+    private static final int DIFF_CONCURRENCY = 16;
+    /**
+     * Number of stored files handled by a single task of the diff pool.
+     */
+    private static final int DIFF_CHUNK_SIZE = 256;
+    private static final AtomicInteger diffThreadCounter = new AtomicInteger();
+    private static final ExecutorService diffPool = Executors.newFixedThreadPool(DIFF_CONCURRENCY, r -> {
+        var thread = new Thread(r, "diff-" + diffThreadCounter.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final StorageBackends storages = new StorageBackends();
+    private final Map<UUID, SessionWrites> sessionWrites = new ConcurrentHashMap<>();
+    private DiskIoScheduler ioScheduler;
+    private ReplicationJournals replicationJournals;
+    private HashCatalogs hashCatalogs;
+
+    /**
+     * Sets the scheduler used to write the received blocks. When not set,
+     * the blocks are written directly by the calling thread.
+     *
+     * @param ioScheduler The disk I/O scheduler
+     */
+    public void setIoScheduler(DiskIoScheduler ioScheduler) {
+        this.ioScheduler = ioScheduler;
+    }
+
+    /**
+     * Sets the catalogs where the content hashes of the received files are stored.
+     * When not set, the hashes are only verified.
+     *
+     * @param hashCatalogs The hash catalogs
+     */
+    public void setHashCatalogs(HashCatalogs hashCatalogs) {
+        this.hashCatalogs = hashCatalogs;
+    }
+
+    /**
+     * Sets the journals where the changes of the folders with replicas are recorded.
+     * When not set, the changes are not replicated.
+     *
+     * @param replicationJournals The replication journals
+     */
+    public void setReplicationJournals(ReplicationJournals replicationJournals) {
+        this.replicationJournals = replicationJournals;
+    }
+
+    /**
+     * Records a change of the session folder, to be pushed to its replicas.
+     *
+     * @param session The client session
+     * @param path    The path of the stored file or directory, relative to the folder
+     * @param deleted True if deleted, false if created or updated
+     */
+    protected void journalChange(ClientSession session, String path, boolean deleted) {
+        var folder = session.getFolder();
+        if (replicationJournals == null || session.isDryRun() || !ReplicationService.isReplicated(folder)) {
+            return;
+        }
+        try {
+            replicationJournals.get(folder.getRealPath()).append(FileUtils.makeUniformPath(path), deleted);
+        } catch (IOException e) {
+            log.warn("[SERVER] Unable to journal the change of {}: {}", path, e.getMessage());
+        }
+    }
+
+    /**
+     * Sends the files the client must transfer. The plan of a backup is kept in the
+     * session, to resume it with the remaining files after a network drop.
+     *
+     * @param connection    The TCP connection
+     * @param session       The client session
+     * @param filesToSend   The files to transfer
+     * @param filesToDelete The files the client must delete
+     * @throws IOException If an I/O error occurs
+     */
+    protected void sendFilesToTransfer(TcpConnection connection, ClientSession session, List<FileInfo> filesToSend,
+                                       List<String> filesToDelete) throws IOException {
+        if (session.isBackup()) {
+            session.setTransferPlan(filesToSend);
+        }
+        connection.sendMessage(new FileListResponseMessage(filesToSend, filesToDelete, true, 1, 1));
+    }
+
+    /**
+     * Acknowledges a file stored, recording it as done for a resumed session.
+     *
+     * @param connection   The TCP connection
+     * @param session      The client session
+     * @param relativePath The relative path of the file
+     * @throws IOException If an I/O error occurs
+     */
+    protected void sendFileStored(TcpConnection connection, ClientSession session, String relativePath) throws IOException {
+        session.markTransferred(relativePath);
+        connection.sendMessage(FileEndAckMessage.success(relativePath));
+    }
+
+    /**
+     * Gets the hash catalog of the session folder.
+     *
+     * @param session The client session
+     * @return The catalog, or null if the hashes are not stored for this folder
+     * @throws IOException If the catalog cannot be loaded
+     */
+    protected HashCatalog getHashCatalog(ClientSession session) throws IOException {
+        if (hashCatalogs == null) {
+            return null;
+        }
+        return hashCatalogs.get(session.getFolder().getRealPath());
+    }
+
+    /**
+     * Verifies the content received on the connection against the hash sent by the client.
+     * When the client sent no data for a non-empty file, because the server already
+     * stores an identical copy, its hash must be a SHA-256 matching the one in the catalog.
+     *
+     * @param connection  The TCP connection the file was received on
+     * @param session     The client session
+     * @param fileInfo    The file info sent with the file end
+     * @param catalogPath The path of the stored file, relative to the folder
+     * @return The hash of the stored content, or null if unknown
+     * @throws IOException If the content does not match or was not received
+     */
+    protected String verifyContentHash(TcpConnection connection, ClientSession session,
+                                       FileInfo fileInfo, String catalogPath) throws IOException {
+        var hasher = session.endContentHash(connection.getConnectionId());
+        if (session.isDryRun()) {
+            return null;
+        }
+        var expected = fileInfo.getHash();
+        if (hasher != null && (hasher.getLength() > 0 || fileInfo.getSize() == 0)) {
+            var actual = hasher.digest();
+            if (expected != null && hasher.getAlgorithm().equals(ContentHasher.algorithmOf(expected))
+                    && !expected.equals(actual)) {
+                throw new IOException("Content hash mismatch for " + fileInfo.getRelativePath() +
+                        " expected " + expected + " received " + actual);
+            }
+            return expected != null ? expected : actual;
+        }
+        if (expected == null) {
+            return null;
+        }
+        var catalog = getHashCatalog(session);
+        var stored = catalog == null ? null : catalog.get(catalogPath);
+        if (stored != null && ContentHasher.isCollisionResistant(expected) && expected.equals(stored.getHash())) {
+            log.debug("[SERVER] Content unchanged for {}", fileInfo.getRelativePath());
+            return expected;
+        }
+        if (hasher == null) {
+            // The client did not announce the hashes, nothing can be checked
+            return null;
+        }
+        throw new IOException("Content not received for " + fileInfo.getRelativePath());
+    }
+
+    /**
+     * Stores the content hash of a completed file in the folder catalog.
+     *
+     * @param session     The client session
+     * @param catalogPath The path of the stored file, relative to the folder
+     * @param realPath    The stored file
+     * @param hash        The content hash, when null the stale entry is dropped
+     */
+    protected void storeContentHash(ClientSession session, String catalogPath, Path realPath, String hash) {
+        if (session.isDryRun()) {
+            return;
+        }
+        try {
+            var catalog = getHashCatalog(session);
+            if (catalog == null) {
+                return;
+            }
+            if (hash == null) {
+                catalog.remove(catalogPath);
+                return;
+            }
+            var stored = getStorage(session).stat(getStoragePath(session, realPath));
+            if (stored == null) {
+                catalog.remove(catalogPath);
+                return;
+            }
+            catalog.put(catalogPath, getOriginalSize(session, realPath, stored.getSize()),
+                    stored.getModificationTime().toEpochMilli(), hash);
+        } catch (IOException e) {
+            log.warn("[SERVER] Unable to store the hash of {}: {}", catalogPath, e.getMessage());
+        }
+    }
+
+    /**
+     * Drops the content hash of a deleted file from the folder catalog.
+     *
+     * @param session     The client session
+     * @param catalogPath The path of the deleted file, relative to the folder
+     */
+    protected void removeContentHash(ClientSession session, String catalogPath) {
+        storeContentHash(session, catalogPath, null, null);
+    }
+
+    /**
+     * Moves the content hash of a renamed or copied file in the folder catalog.
+     *
+     * @param session    The client session
+     * @param sourcePath The path of the original file, relative to the folder
+     * @param targetPath The path of the new file, relative to the folder
+     * @param copy       True if the original file is still present
+     */
+    protected void moveContentHash(ClientSession session, String sourcePath, String targetPath, boolean copy) {
+        try {
+            var catalog = getHashCatalog(session);
+            var entry = catalog == null ? null : catalog.get(sourcePath);
+            if (entry == null) {
+                return;
+            }
+            catalog.put(targetPath, entry.getSize(), entry.getModificationMillis(), entry.getHash());
+            if (!copy) {
+                catalog.remove(sourcePath);
+            }
+        } catch (IOException e) {
+            log.warn("[SERVER] Unable to move the hash of {}: {}", sourcePath, e.getMessage());
+        }
+    }
+
+    /**
+     * Adds the stored hash to a file the client should send, when the stored copy has the
+     * same size, was not touched since it was hashed and its hash is a SHA-256. The client
+     * can then skip sending the data if its content has the same hash.
+     *
+     * @param session     The client session
+     * @param catalogPath The path of the stored file, relative to the folder
+     * @param clientFile  The file info sent by the client
+     * @param attr        The attributes of the stored file
+     */
+    protected void offerStoredHash(ClientSession session, String catalogPath, FileInfo clientFile, Attributes attr) {
+        if (clientFile == null || attr == null || clientFile.getSize() != attr.getSize()) {
+            return;
+        }
+        try {
+            var catalog = getHashCatalog(session);
+            var entry = catalog == null ? null : catalog.getValid(catalogPath, attr.getSize(), attr.getModificationTime());
+            if (entry != null && ContentHasher.isCollisionResistant(entry.getHash())) {
+                clientFile.setHash(entry.getHash());
+            }
+        } catch (IOException e) {
+            log.warn("[SERVER] Unable to read the hash of {}: {}", catalogPath, e.getMessage());
+        }
+    }
+
+    /**
+     * Finds the stored hash of a file about to be restored.
+     *
+     * @param session    The client session
+     * @param sourcePath The stored file
+     * @return The hash, or null if unknown or outdated
+     */
+    private String findStoredHash(ClientSession session, Path sourcePath) {
+        try {
+            var catalog = getHashCatalog(session);
+            if (catalog == null) {
+                return null;
+            }
+            var catalogPath = getStoragePath(session, sourcePath);
+            var stored = getStorage(session).stat(catalogPath);
+            if (stored == null) {
+                return null;
+            }
+            var entry = catalog.getValid(catalogPath, getOriginalSize(session, sourcePath, stored.getSize()),
+                    stored.getModificationTime());
+            return entry == null ? null : entry.getHash();
+        } catch (IOException e) {
+            log.warn("[SERVER] Unable to read the hash of {}: {}", sourcePath, e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Gets the storage configured for the session folder, holding the stored files.
+     *
+     * @param session The client session
+     * @return The storage backend
+     * @throws IOException If the folder storage is not valid
+     */
+    protected StorageBackend getStorage(ClientSession session) throws IOException {
+        return storages.get(session.getFolder());
+    }
+
+    /**
+     * Tells if the files of the session folder are on the local disk, where the attributes
+     * and the times of the clients are kept.
+     *
+     * @param session The client session
+     * @return True if stored in the real path
+     * @throws IOException If the folder storage is not valid
+     */
+    protected boolean isLocalStorage(ClientSession session) throws IOException {
+        return getStorage(session) instanceof LocalStorageBackend;
+    }
+
+    /**
+     * Gets the path of a stored file on the storage of the session folder.
+     *
+     * @param session  The client session
+     * @param realPath The file in the real path of the folder
+     * @return The path relative to the folder, with forward slashes
+     */
+    protected static String getStoragePath(ClientSession session, Path realPath) {
+        return FileUtils.makeUniformPath(Path.of(session.getFolder().getRealPath()).toAbsolutePath().normalize()
+                .relativize(realPath.toAbsolutePath().normalize()).toString());
+    }
+
+    /**
+     * Tells if the files of the session folder are stored compressed, as received.
+     *
+     * @param session The client session
+     * @return True if stored in the {@link CompressedBlockFile} format
+     */
+    protected static boolean isCompressedAtRest(ClientSession session) {
+        return CompressedBlockFile.isUsedBy(session.getFolder());
+    }
+
+    /**
+     * Gets the size of the original content of a stored file.
+     *
+     * @param session  The client session
+     * @param realPath The stored file
+     * @param size     The size of the stored file
+     * @return The original size, different from the stored one when compressed at rest
+     * @throws IOException If an I/O error occurs
+     */
+    protected static long getOriginalSize(ClientSession session, Path realPath, long size) throws IOException {
+        if (!isCompressedAtRest(session)) {
+            return size;
+        }
+        var index = CompressedBlockFile.read(realPath);
+        return index == null ? size : index.getSize();
+    }
+
+    /**
+     * Writes a received block on the target file, through the disk scheduler if available.
+     *
+     * @param connection The TCP connection the block was received on
+     * @param session    The client session
+     * @param file       The target file
+     * @param message    The file data message
+     * @throws IOException If an I/O error occurs
+     */
+    protected void writeBlock(TcpConnection connection, ClientSession session, File file, FileDataMessage message) throws IOException {
+        var storage = getStorage(session);
+        var writes = sessionWrites.computeIfAbsent(session.getSessionId(), id -> new SessionWrites());
+        var realPath = file.toPath().toAbsolutePath().normalize();
+        var path = getStoragePath(session, realPath);
+        byte[] data;
+        if (isCompressedAtRest(session)) {
+            // Stored as received, the index is appended when the file is complete
+            data = message.getData();
+            var index = message.getBlockNumber() == 0 ? new CompressedBlockFile() : writes.blockIndexes.get(realPath);
+            if (index == null) {
+                throw new IOException("Missing the previous blocks of " + path);
+            }
+            index.add(data.length, message.getRawLength(), message.isCompressed());
+            writes.blockIndexes.put(realPath, index);
+        } else {
+            data = message.getRawData();
+        }
+        // The blocks of a connection arrive in order, each one continues the previous
+        long offset = 0;
+        if (message.getBlockNumber() != 0) {
+            var previous = writes.offsets.get(realPath);
+            if (previous != null) {
+                offset = previous;
+            } else {
+                var stored = storage.stat(path);
+                offset = stored == null ? 0 : stored.getSize();
+            }
+        }
+        writes.offsets.put(realPath, offset + data.length);
+        var blockOffset = offset;
+        if (ioScheduler == null) {
+            writeBlock(storage, path, blockOffset, data);
+            return;
+        }
+        // The queued block counts on the memory budget until written, the receiver waits when exhausted
+        var pool = BufferPool.shared();
+        pool.reserve(data.length);
+        try {
+            ioScheduler.submit(session.getFolder().getRealPath(), session.getSessionId(),
+                    connection.getConnectionId(), new DiskIoScheduler.IoTask() {
+                        @Override
+                        public void run() throws IOException {
+                            try {
+                                writeBlock(storage, path, blockOffset, data);
+                            } finally {
+                                pool.unreserve(data.length);
+                            }
+                        }
+
+                        @Override
+                        public void discard() {
+                            pool.unreserve(data.length);
+                        }
+                    });
+        } catch (IOException e) {
+            pool.unreserve(data.length);
+            throw e;
+        }
+    }
+
+    /**
+     * Waits for the blocks queued on the connection to be written.
+     *
+     * @param connection The TCP connection
+     * @param session    The client session
+     * @throws IOException If one of the writes failed
+     */
+    protected void awaitPendingWrites(TcpConnection connection, ClientSession session) throws IOException {
+        if (ioScheduler == null) {
+            return;
+        }
+        ioScheduler.await(session.getFolder().getRealPath(), session.getSessionId(), connection.getConnectionId());
+    }
+
+    /**
+     * Waits for the blocks of a file to be written and commits them on the storage.
+     *
+     * @param connection The TCP connection the blocks were received on
+     * @param session    The client session
+     * @param realPath   The target file
+     * @throws IOException If one of the writes or the commit failed
+     */
+    protected void completeWrites(TcpConnection connection, ClientSession session, Path realPath) throws IOException {
+        var key = realPath.toAbsolutePath().normalize();
+        var writes = sessionWrites.get(session.getSessionId());
+        if (writes == null) {
+            awaitPendingWrites(connection, session);
+            return;
+        }
+        try {
+            awaitPendingWrites(connection, session);
+            var offset = writes.offsets.get(key);
+            if (offset != null) {
+                var storage = getStorage(session);
+                var path = getStoragePath(session, key);
+                var index = writes.blockIndexes.get(key);
+                if (index != null) {
+                    writeBlock(storage, path, offset, index.serializeIndex());
+                }
+                storage.commit(path);
+            }
+        } finally {
+            writes.offsets.remove(key);
+            writes.blockIndexes.remove(key);
+        }
+    }
+
+    private static void writeBlock(StorageBackend storage, String path, long offset, byte[] data) throws IOException {
+        try (var out = storage.openForWrite(path, offset)) {
+            out.write(data);
+        }
+    }
+
+    /**
+     * The files of a session being written: where the next block continues and, when
+     * compressed at rest, the index of the blocks written.
+     */
+    private static final class SessionWrites {
+        private final Map<Path, Long> offsets = new ConcurrentHashMap<>();
+        private final Map<Path, CompressedBlockFile> blockIndexes = new ConcurrentHashMap<>();
+    }
 
     /**
      * Handles a file list message.
@@ -68,6 +557,70 @@ public abstract class BackupHandler {
      */
     public abstract void handleFileEnd(TcpConnection connection, ClientSession session, FileEndMessage message) throws IOException;
 
+    /**
+     * Handles a file sent inside its descriptor: the content is written and verified
+     * at once, and only the file end acknowledgment is sent back.
+     *
+     * @param connection The TCP connection
+     * @param session    The client session
+     * @param message    The file descriptor message with the content
+     * @throws IOException If an I/O error occurs
+     */
+    public void handleInlineFile(TcpConnection connection, ClientSession session, FileDescriptorMessage message) throws IOException {
+        var fileInfo = message.getFileInfo();
+        log.debug("[SERVER] Received inline file {} on connection {}", fileInfo.getRelativePath(), connection.getConnectionId());
+        var data = new FileDataMessage(fileInfo.getRelativePath(), 0, 1, message.getInlineData());
+        session.updateContentHash(connection.getConnectionId(), data);
+        if (session.isDryRun()) {
+            log.debug("[SERVER] Dry run: Would create file {}", fileInfo.getRelativePath());
+        } else {
+            try {
+                writeBlock(connection, session, getTargetFilePath(session, fileInfo).toFile(), data);
+            } catch (IOException e) {
+                log.error("[SERVER] Error writing {}: {}", fileInfo.getRelativePath(), e.getMessage());
+                connection.sendMessage(FileEndAckMessage.failure(fileInfo.getRelativePath(), e.getMessage()));
+                return;
+            }
+        }
+        storeFile(connection, session, fileInfo);
+    }
+
+    /**
+     * Completes a received file: waits for its blocks to be written, verifies its content,
+     * applies its attributes and acknowledges it.
+     *
+     * @param connection The TCP connection the file was received on
+     * @param session    The client session
+     * @param fileInfo   The file info sent with the file end
+     * @throws IOException If an I/O error occurs
+     */
+    protected void storeFile(TcpConnection connection, ClientSession session, FileInfo fileInfo) throws IOException {
+        var catalogPath = getCatalogPath(session, fileInfo);
+        var realPath = getTargetFilePath(session, fileInfo);
+        String contentHash;
+        try {
+            completeWrites(connection, session, realPath);
+            contentHash = verifyContentHash(connection, session, fileInfo, catalogPath);
+        } catch (IOException e) {
+            log.error("[SERVER] Error writing {}: {}", fileInfo.getRelativePath(), e.getMessage());
+            connection.sendMessage(FileEndAckMessage.failure(fileInfo.getRelativePath(), e.getMessage()));
+            return;
+        }
+        if (session.isDryRun()) {
+            sendFileStored(connection, session, fileInfo.getRelativePath());
+            return;
+        }
+
+        if (isLocalStorage(session)) {
+            var attr = Files.readAttributes(realPath, BasicFileAttributes.class);
+            FileUtils.writeFileAttributes(realPath, fileInfo.getExtendedUmask(), attr);
+            FileUtils.setFileTimes(realPath.toFile(), fileInfo.getCreationTime(), fileInfo.getModificationTime());
+        }
+        storeContentHash(session, catalogPath, realPath, contentHash);
+        fileStored(session, fileInfo, catalogPath);
+        sendFileStored(connection, session, fileInfo.getRelativePath());
+    }
+
     /**
      * Handles a sync end message.
      *
@@ -82,12 +635,69 @@ public abstract class BackupHandler {
         connection.sendMessage(new SyncEndAckMessage(true, "Sync completed"));
     }
 
+    /**
+     * Drops the state kept for a session, when it ends for any reason: completed,
+     * expired, dropped by the network or not resumed in time.
+     *
+     * @param session The client session
+     */
+    public void releaseSession(ClientSession session) {
+        // The files cut off mid-transfer are sent again from the start
+        sessionWrites.remove(session.getSessionId());
+    }
+
     /**
      * Gets the source file path for the given file info during restore operations.
      * This allows different handlers to customize where files are read from.
      */
     protected abstract Path getSourceFilePath(ClientSession session, FileInfo fileInfo);
 
+    /**
+     * Gets where a received file is written.
+     *
+     * @param session  The client session
+     * @param fileInfo The received file
+     * @return The target file
+     */
+    protected Path getTargetFilePath(ClientSession session, FileInfo fileInfo) {
+        return Path.of(session.getFolder().getRealPath(), fileInfo.getRelativePath());
+    }
+
+    /**
+     * Gets the path of a received file in the hash catalog of the folder.
+     *
+     * @param session  The client session
+     * @param fileInfo The received file
+     * @return The path relative to the folder
+     */
+    protected String getCatalogPath(ClientSession session, FileInfo fileInfo) {
+        return FileUtils.makeUniformPath(fileInfo.getRelativePath());
+    }
+
+    /**
+     * Records a received file once stored, before acknowledging it.
+     *
+     * @param session     The client session
+     * @param fileInfo    The stored file
+     * @param catalogPath The path of the stored file, relative to the folder
+     * @throws IOException If an I/O error occurs
+     */
+    protected void fileStored(ClientSession session, FileInfo fileInfo, String catalogPath) throws IOException {
+        journalChange(session, catalogPath, false);
+    }
+
+    /**
+     * Gets the file to restore when it has been moved into a {@link VersionPack}.
+     *
+     * @param session  The client session
+     * @param fileInfo The file to restore
+     * @return The packed file, or null if stored as a plain file
+     * @throws IOException If the pack is not valid
+     */
+    protected VersionPack.Entry getPackedFile(ClientSession session, FileInfo fileInfo) throws IOException {
+        return null;
+    }
+
     /**
      * Common implementation for handling file restore operations.
      * This method handles the common workflow of sending files to the client during restore.
@@ -146,6 +756,12 @@ public abstract class BackupHandler {
             }
             var connectionId = currentConnection.getConnectionId();
 
+            // The client verifies the received content against the stored hash
+            if (!Attributes.isDirectory(file.getExtendedUmask())) {
+                var packed = getPackedFile(session, file);
+                file.setHash(packed != null ? packed.getHash() : findStoredHash(session, getSourceFilePath(session, file)));
+            }
+
             // Send file descriptor
             FileDescriptorMessage fileDescriptorMessage = new FileDescriptorMessage(file);
             currentConnection.sendMessage(fileDescriptorMessage);
@@ -173,15 +789,24 @@ public abstract class BackupHandler {
             }
 
             // Send file data
+            var unacknowledged = 0;
             if (!session.isDryRun()) {
-                sendFileData(currentConnection, session, file, connectionId);
+                unacknowledged = sendFileData(currentConnection, session, file, connectionId);
             } else {
                 log.debug("[SERVER] Dry run: Would send file data for {}", file.getRelativePath());
             }
 
-            // Send the file termination message
+            // Send the file termination message, together with the last block
             FileEndMessage fileEndMessage = new FileEndMessage(file.getRelativePath(), file);
             currentConnection.sendMessage(fileEndMessage);
+            for (var i = 0; i < unacknowledged; i++) {
+                response = currentConnection.receiveMessage();
+                if (response.getMessageType() != MessageType.FILE_DATA_ACK) {
+                    currentConnection.sendError("UNEXPECTED_RESPONSE",response.getMessageType().toString());
+                    log.error("[SERVER] Unexpected response 9: {}", response.getMessageType());
+                    return;
+                }
+            }
 
             // Wait for file end ack
             response = currentConnection.receiveMessage();
@@ -209,44 +834,287 @@ public abstract class BackupHandler {
     }
 
     /**
-     * Sends file data in chunks to the client.
+     * Sends file data in chunks to the client. The last block is only queued, to leave
+     * with the file end message, and its acknowledgment is read after it.
+     *
+     * @return The number of blocks sent whose acknowledgment was not read
      */
-    private void sendFileData(TcpConnection connection, ClientSession session, FileInfo file, int connectionId) throws IOException {
+    private int sendFileData(TcpConnection connection, ClientSession session, FileInfo file, int connectionId) throws IOException {
+        var packed = getPackedFile(session, file);
+        if (packed != null) {
+            return sendStoredBlocks(connection, file, connectionId, packed.getPack(), packed.getBlocks());
+        }
         Path sourcePath = getSourceFilePath(session, file);
-        File sourceFile = sourcePath.toFile();
+        if (isCompressedAtRest(session)) {
+            var index = CompressedBlockFile.read(sourcePath);
+            if (index != null) {
+                return sendStoredBlocks(connection, file, connectionId, sourcePath, index);
+            }
+        }
+        var storage = getStorage(session);
+        var path = getStoragePath(session, sourcePath);
+        var stored = storage.stat(path);
+        if (stored == null) {
+            throw new IOException("Missing the stored file " + path);
+        }
 
-        long fileSize = sourceFile.length();
+        long fileSize = stored.getSize();
         int maxPacketSize = connection.getMaxPacketSize();
 
         // Calculate how many blocks we need to send
-        int totalBlocks = (int) Math.ceil((double) fileSize / maxPacketSize);
-        if (totalBlocks == 0) totalBlocks = 1; // Ensure at least one block for empty files
+        int totalBlocks = Math.max(1, (int) Math.ceil((double) fileSize / maxPacketSize)); // At least one block for empty files
 
         log.debug("[SERVER-{}] Sending file {} in {} blocks ({} bytes)", connectionId, file.getRelativePath(), totalBlocks, fileSize);
 
-        try (FileInputStream fis = new FileInputStream(sourceFile)) {
-            byte[] buffer = new byte[maxPacketSize];
-            int blockNumber = 0;
-            int bytesRead;
-
-            while ((bytesRead = fis.read(buffer)) != -1) {
-                // If we read less than the buffer size, create a smaller array with just the data
-                byte[] blockData = bytesRead == buffer.length ? buffer : java.util.Arrays.copyOf(buffer, bytesRead);
+        // The next blocks are read and compressed in parallel while the current one is sent
+        try (var reader = new BlockReader<FileDataMessage>(() -> storage.read(path, 0, fileSize), fileSize, maxPacketSize,
+                (blockNumber, blockData) -> {
+                    var fileDataMessage = new FileDataMessage(file.getRelativePath(), blockNumber, totalBlocks, blockData);
+                    connection.prepareMessage(fileDataMessage);
+                    return fileDataMessage;
+                })) {
+            return sendBlocks(connection, connectionId, totalBlocks, reader::next);
+        }
+    }
 
-                FileDataMessage fileDataMessage = new FileDataMessage(
-                        file.getRelativePath(), blockNumber, totalBlocks, blockData);
-                connection.sendMessage(fileDataMessage);
-                var response = connection.receiveMessage();
-                if (response.getMessageType() != MessageType.FILE_DATA_ACK) {
-                    connection.sendError("UNEXPECTED_RESPONSE",response.getMessageType().toString());
-                    log.error("[SERVER] Unexpected response 9: {}", response.getMessageType());
-                    return;
+    /**
+     * Sends a file stored compressed at rest. The clients knowing the compressed blocks
+     * receive them as stored, the other ones the decompressed content.
+     *
+     * @return The number of blocks sent whose acknowledgment was not read
+     */
+    private int sendStoredBlocks(TcpConnection connection, FileInfo file, int connectionId,
+                                 Path sourcePath, CompressedBlockFile index) throws IOException {
+        var maxPacketSize = connection.getMaxPacketSize();
+        var blocks = index.getBlocks();
+        var asStored = connection.getProtocolVersion() >= ProtocolVersion.V5 &&
+                blocks.stream().allMatch(b -> b.getStoredLength() <= maxPacketSize);
+        if (asStored) {
+            log.debug("[SERVER-{}] Sending file {} in {} stored blocks ({} bytes)", connectionId,
+                    file.getRelativePath(), blocks.size(), index.getLength());
+            try (var channel = FileChannel.open(sourcePath, StandardOpenOption.READ)) {
+                var next = new AtomicInteger();
+                return sendBlocks(connection, connectionId, blocks.size(), () -> {
+                    var blockNumber = next.getAndIncrement();
+                    if (blockNumber == blocks.size()) {
+                        return null;
+                    }
+                    var block = blocks.get(blockNumber);
+                    var data = CompressedBlockFile.readBlock(channel, block);
+                    return block.isCompressed() ?
+                            new FileDataMessage(file.getRelativePath(), blockNumber, blocks.size(), data, block.getRawLength()) :
+                            new FileDataMessage(file.getRelativePath(), blockNumber, blocks.size(), data);
+                });
+            }
+        }
+        // Decompressed and sent in blocks of the packet size, compressed again by the packets
+        var totalBlocks = Math.max(1, (int) Math.ceil((double) index.getSize() / maxPacketSize));
+        log.debug("[SERVER-{}] Sending file {} decompressed in {} blocks ({} bytes)", connectionId,
+                file.getRelativePath(), totalBlocks, index.getSize());
+        try (var input = index.openRaw(sourcePath)) {
+            var next = new AtomicInteger();
+            return sendBlocks(connection, connectionId, totalBlocks, () -> {
+                var data = input.readNBytes(maxPacketSize);
+                if (data.length == 0 && next.get() > 0) {
+                    return null;
                 }
+                return new FileDataMessage(file.getRelativePath(), next.getAndIncrement(), totalBlocks, data);
+            });
+        }
+    }
 
-                log.debug("[SERVER-{}] Sent block {} of {} ({} bytes)", connectionId, blockNumber + 1, totalBlocks, blockData.length);
+    /**
+     * The blocks of a file to send, in order.
+     */
+    private interface BlockSource {
+        FileDataMessage next() throws IOException;
+    }
 
+    /**
+     * Sends the blocks of a file, waiting for the acknowledgment of each one but the last.
+     *
+     * @return The number of blocks sent whose acknowledgment was not read
+     */
+    private int sendBlocks(TcpConnection connection, int connectionId, int totalBlocks, BlockSource blocks) throws IOException {
+        int blockNumber = 0;
+        int unacknowledged = 0;
+        FileDataMessage fileDataMessage;
+
+        while ((fileDataMessage = blocks.next()) != null) {
+            if (blockNumber + 1 >= totalBlocks) {
+                connection.queueMessage(fileDataMessage);
+                unacknowledged++;
                 blockNumber++;
+                continue;
+            }
+            connection.sendMessage(fileDataMessage);
+            var response = connection.receiveMessage();
+            if (response.getMessageType() != MessageType.FILE_DATA_ACK) {
+                connection.sendError("UNEXPECTED_RESPONSE",response.getMessageType().toString());
+                log.error("[SERVER] Unexpected response 9: {}", response.getMessageType());
+                return 0;
             }
+
+            log.debug("[SERVER-{}] Sent block {} of {}", connectionId, blockNumber + 1, totalBlocks);
+
+            blockNumber++;
+        }
+        return unacknowledged;
+    }
+
+    /**
+     * A stored file with the attributes read while computing the differences with the client.
+     */
+    protected static class StoredFile {
+        private final Path path;
+        private final String relativePath;
+        private final Attributes attributes;
+        private final boolean ignored;
+
+        protected StoredFile(Path path, String relativePath, Attributes attributes, boolean ignored) {
+            this.path = path;
+            this.relativePath = relativePath;
+            this.attributes = attributes;
+            this.ignored = ignored;
+        }
+
+        public Path getPath() {
+            return path;
+        }
+
+        public String getRelativePath() {
+            return relativePath;
+        }
+
+        public Attributes getAttributes() {
+            return attributes;
+        }
+
+        public boolean isIgnored() {
+            return ignored;
+        }
+    }
+
+    /**
+     * Reads the attributes of the stored files in parallel, at most {@link #DIFF_CONCURRENCY}
+     * at a time, and checks if they are ignored. The decisions taken on them depend on the
+     * order, so the results are in the same order of the files.
+     *
+     * @param session        The client session
+     * @param files          The stored files
+     * @param toRelativePath Calculates the path used to match the files of the client
+     * @return The stored files with their attributes
+     * @throws IOException If the attributes of a file cannot be read
+     */
+    protected List<StoredFile> readStoredFiles(ClientSession session, List<Path> files,
+                                               Function<Path, String> toRelativePath) throws IOException {
+        var result = new StoredFile[files.size()];
+        forEachInParallel(files.size(), index -> {
+            var file = files.get(index);
+            result[index] = toStoredFile(session, file, FileUtils.readFileAttributes(file), toRelativePath);
+        });
+        return Arrays.asList(result);
+    }
+
+    /**
+     * Checks the files listed by the storage of the session folder, whose attributes are
+     * already known, in parallel like {@link #readStoredFiles(ClientSession, List, Function)}.
+     *
+     * @param session        The client session
+     * @param objects        The files listed by the storage
+     * @param toRelativePath Calculates the path used to match the files of the client,
+     *                       from the path of the file in the folder real path
+     * @return The stored files with their attributes
+     * @throws IOException If a file cannot be checked
+     */
+    protected List<StoredFile> readStoredObjects(ClientSession session, List<StoredObject> objects,
+                                                 Function<Path, String> toRelativePath) throws IOException {
+        var root = Path.of(session.getFolder().getRealPath());
+        var result = new StoredFile[objects.size()];
+        forEachInParallel(objects.size(), index -> {
+            var object = objects.get(index);
+            result[index] = toStoredFile(session, root.resolve(object.getPath()), object.getAttributes(), toRelativePath);
+        });
+        return Arrays.asList(result);
+    }
+
+    private StoredFile toStoredFile(ClientSession session, Path file, Attributes attr,
+                                    Function<Path, String> toRelativePath) throws IOException {
+        if (!attr.isDirectory() && isCompressedAtRest(session)) {
+            // The client compares the size of its files with the original ones
+            var originalSize = getOriginalSize(session, file, attr.getSize());
+            if (originalSize != attr.getSize()) {
+                var fileKey = attr.getFileKey();
+                attr = new Attributes(attr.getExtendedUmask(), attr.getCreationTime(),
+                        attr.getModificationTime(), originalSize);
+                attr.setFileKey(fileKey);
+            }
+        }
+        return new StoredFile(file, toRelativePath.apply(file), attr,
+                shouldIgnoreFileByAttrAndPattern(session, file, attr));
+    }
+
+    /**
+     * Deletes the stored files from the storage of the session folder in parallel,
+     * at most {@link #DIFF_CONCURRENCY} at a time.
+     *
+     * @param session The client session
+     * @param paths   The paths of the files to delete, relative to the folder
+     * @throws IOException If a file cannot be deleted
+     */
+    protected void deleteStoredFiles(ClientSession session, List<String> paths) throws IOException {
+        var storage = getStorage(session);
+        forEachInParallel(paths.size(), index -> storage.delete(paths.get(index)));
+    }
+
+    /**
+     * A task run on the diff pool for every index of a list.
+     */
+    protected interface IndexedTask {
+        void run(int index) throws IOException;
+    }
+
+    /**
+     * Runs a task for every index of a list on the diff pool, at most
+     * {@link #DIFF_CONCURRENCY} at a time, and waits for all of them.
+     *
+     * @param size The list size
+     * @param task The task
+     * @throws IOException The first error thrown by the task
+     */
+    protected static void forEachInParallel(int size, IndexedTask task) throws IOException {
+        var futures = new ArrayList<Future<?>>();
+        for (var start = 0; start < size; start += DIFF_CHUNK_SIZE) {
+            var from = start;
+            var to = Math.min(size, start + DIFF_CHUNK_SIZE);
+            futures.add(diffPool.submit(() -> {
+                for (var index = from; index < to; index++) {
+                    task.run(index);
+                }
+                return null;
+            }));
+        }
+        IOException error = null;
+        for (var future : futures) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while handling the stored files", e);
+            } catch (ExecutionException e) {
+                if (error != null) continue;
+                var cause = e.getCause();
+                if (cause instanceof IOException) {
+                    error = (IOException) cause;
+                } else if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                } else {
+                    error = new IOException(cause);
+                }
+            }
+        }
+        if (error != null) {
+            throw error;
         }
     }
 
@@ -273,20 +1141,32 @@ public abstract class BackupHandler {
             return new ArrayList<>();
         }
 
+        var catalogFile = sourcePath.resolve(HashCatalog.CATALOG_FILE);
+        var indexFile = sourcePath.resolve(VersionIndex.INDEX_FILE);
+        var journalDir = sourcePath.resolve(ReplicationJournal.DIRECTORY);
+        var packsDir = sourcePath.resolve(VersionPack.DIRECTORY);
         try (var result = Files.walk(sourcePath)) {
-            return result.filter(path -> !Files.isDirectory(path))
+            return result.filter(path -> !Files.isDirectory(path) && !path.equals(catalogFile) && !path.equals(indexFile)
+                            && !path.startsWith(journalDir) && !path.startsWith(packsDir))
                     .collect(Collectors.toList());
         }
     }
 
-    protected List<Path> listAllFilesAndDirs(Path sourcePath) throws IOException {
-        if (!Files.exists(sourcePath) || !Files.isDirectory(sourcePath)) {
-            return new ArrayList<>();
-        }
-
-        try (var result = Files.walk(sourcePath)) {
-            return result.collect(Collectors.toList());
-        }
+    /**
+     * Lists the files on the storage of the session folder, but the catalogs, the
+     * indexes and the journals kept with them.
+     *
+     * @param session The client session
+     * @return The stored files with their attributes
+     * @throws IOException If the files cannot be listed
+     */
+    protected List<StoredObject> listStoredFiles(ClientSession session) throws IOException {
+        return getStorage(session).list("").stream()
+                .filter(stored -> !stored.getPath().equals(HashCatalog.CATALOG_FILE)
+                        && !stored.getPath().equals(VersionIndex.INDEX_FILE)
+                        && !stored.getPath().startsWith(ReplicationJournal.DIRECTORY + "/")
+                        && !stored.getPath().startsWith(VersionPack.DIRECTORY + "/"))
+                .collect(Collectors.toList());
     }
 
     protected boolean shouldUpdate(FileInfo fileInfo, Path file, Attributes attr) {
@@ -296,7 +1176,82 @@ public abstract class BackupHandler {
         return fileInfo.getSize() == attr.getSize();
     }
 
+    /**
+     * Handles a file move message, renaming or copying the stored files so that the
+     * client does not send them again. The moves that cannot be applied are skipped,
+     * the client sends those files with the file list as usual.
+     *
+     * @param connection The TCP connection
+     * @param session    The client session
+     * @param message    The file move message
+     * @throws IOException If an I/O error occurs
+     */
+    public void handleFileMove(TcpConnection connection, ClientSession session, FileMoveMessage message) throws IOException {
+        log.debug("[SERVER] Received FILE_MOVE message with {} moves", message.getMoves().size());
+        var applied = new ArrayList<String>();
+        if (!session.isDryRun()) {
+            var root = Path.of(session.getFolder().getRealPath()).toAbsolutePath().normalize();
+            for (var move : message.getMoves()) {
+                if (applyMove(session, root, move)) {
+                    applied.add(move.getTarget());
+                }
+            }
+        }
+        log.debug("[SERVER] Applied {} of {} moves", applied.size(), message.getMoves().size());
+        connection.sendMessage(new FileMoveAckMessage(applied));
+    }
+
+    /**
+     * Applies a move inside the folder, renaming or copying the stored file.
+     *
+     * @param session The client session
+     * @param root    The folder real path
+     * @param move    The move
+     * @return True if applied
+     */
+    protected boolean applyMove(ClientSession session, Path root, FileMoveMessage.Move move) {
+        var source = resolveInside(root, move.getSource());
+        var target = resolveInside(root, move.getTarget());
+        if (source == null || target == null || !Files.isRegularFile(source) || Files.exists(target)) {
+            return false;
+        }
+        try {
+            Files.createDirectories(target.getParent());
+            if (move.isCopy()) {
+                Files.copy(source, target, StandardCopyOption.COPY_ATTRIBUTES);
+            } else {
+                Files.move(source, target);
+            }
+        } catch (IOException e) {
+            log.warn("[SERVER] Unable to move {} to {}: {}", move.getSource(), move.getTarget(), e.getMessage());
+            return false;
+        }
+        moveContentHash(session, FileUtils.makeUniformPath(move.getSource()),
+                FileUtils.makeUniformPath(move.getTarget()), move.isCopy());
+        journalChange(session, move.getTarget(), false);
+        if (!move.isCopy()) {
+            journalChange(session, move.getSource(), true);
+        }
+        return true;
+    }
+
+    /**
+     * Resolves a path sent by the client, refusing the ones outside the folder.
+     *
+     * @param root         The folder real path, absolute and normalized
+     * @param relativePath The path relative to the folder
+     * @return The path, or null if outside the folder
+     */
+    protected static Path resolveInside(Path root, String relativePath) {
+        var result = root.resolve(relativePath).normalize();
+        return result.startsWith(root) && !result.equals(root) ? result : null;
+    }
+
     public void handleFileSync(TcpConnection connection, ClientSession session, FileSyncMessage message) {
         throw new RuntimeException("Invalid operation for this handler type. This handler does not support file sync operations.");
     }
+
+    public void handleSyncTree(TcpConnection connection, ClientSession session, SyncTreeMessage message) throws IOException {
+        throw new RuntimeException("Invalid operation for this handler type. This handler does not support file sync operations.");
+    }
 }
\ No newline at end of file
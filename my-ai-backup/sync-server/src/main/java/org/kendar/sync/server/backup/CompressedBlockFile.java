@@ -0,0 +1,266 @@
+package org.kendar.sync.server.backup;
+
+import org.kendar.sync.lib.model.ServerSettings;
+import org.kendar.sync.lib.protocol.BackupType;
+import org.kendar.sync.lib.utils.BlockCodec;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The format of the files of the folders stored compressed, see
+ * {@link ServerSettings.BackupFolder#isCompressAtRest()}.
+ * <p>
+ * The file holds the blocks as received from the client, compressed or not, one after
+ * the other, followed by the block index and a fixed size trailer:
+ * - per block: byte flags (1 when compressed), int stored length, int raw length
+ * - long: offset of the index
+ * - int: number of blocks
+ * - long: size of the original file
+ * - long: {@link #MAGIC}
+ * The trailer tells the original size of the file without reading the blocks.
+ */
+public class CompressedBlockFile {
+    /**
+     * "SYNCBLK1", the last bytes of the file.
+     */
+    public static final long MAGIC = 0x53594e43424c4b31L;
+    private static final int ENTRY_SIZE = 1 + 4 + 4;
+    private static final int TRAILER_SIZE = 8 + 4 + 8 + 8;
+    private static final int FLAG_COMPRESSED = 0x01;
+
+    private final List<Block> blocks = new ArrayList<>();
+    private final long start;
+    private long length;
+    private long size;
+
+    public CompressedBlockFile() {
+        this(0);
+    }
+
+    /**
+     * Creates the index of blocks stored inside a larger file, as in a {@link VersionPack}.
+     *
+     * @param start The offset of the first block in the file
+     */
+    public CompressedBlockFile(long start) {
+        this.start = start;
+    }
+
+    /**
+     * Tells if the files of a folder are stored in this format.
+     *
+     * @param folder The backup folder
+     * @return True if stored compressed
+     */
+    public static boolean isUsedBy(ServerSettings.BackupFolder folder) {
+        return folder.isCompressAtRest() && folder.getBackupType() != BackupType.TWO_WAY_SYNC;
+    }
+
+    /**
+     * Adds a block written after the previous ones.
+     *
+     * @param storedLength The length of the block in the file
+     * @param rawLength    The length of the block once decompressed
+     * @param compressed   True if compressed
+     */
+    public void add(int storedLength, int rawLength, boolean compressed) {
+        blocks.add(new Block(start + length, storedLength, rawLength, compressed));
+        length += storedLength;
+        size += rawLength;
+    }
+
+    /**
+     * Serializes the index and the trailer, written after the last block.
+     *
+     * @return The bytes to append to the blocks
+     */
+    public byte[] serializeIndex() {
+        var buffer = ByteBuffer.allocate(blocks.size() * ENTRY_SIZE + TRAILER_SIZE);
+        for (var block : blocks) {
+            buffer.put((byte) (block.compressed ? FLAG_COMPRESSED : 0));
+            buffer.putInt(block.storedLength);
+            buffer.putInt(block.rawLength);
+        }
+        buffer.putLong(length);
+        buffer.putInt(blocks.size());
+        buffer.putLong(size);
+        buffer.putLong(MAGIC);
+        return buffer.array();
+    }
+
+    /**
+     * Reads the index of a stored file.
+     *
+     * @param path The stored file
+     * @return The index, or null if the file is not in this format
+     * @throws IOException If an I/O error occurs
+     */
+    public static CompressedBlockFile read(Path path) throws IOException {
+        if (!Files.isRegularFile(path)) {
+            return null;
+        }
+        try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            var fileLength = channel.size();
+            if (fileLength < TRAILER_SIZE) {
+                return null;
+            }
+            var trailer = readFully(channel, fileLength - TRAILER_SIZE, TRAILER_SIZE);
+            var indexOffset = trailer.getLong();
+            var count = trailer.getInt();
+            var size = trailer.getLong();
+            if (trailer.getLong() != MAGIC || count < 0 || indexOffset < 0 ||
+                    indexOffset + (long) count * ENTRY_SIZE + TRAILER_SIZE != fileLength) {
+                return null;
+            }
+            var result = new CompressedBlockFile();
+            var index = readFully(channel, indexOffset, count * ENTRY_SIZE);
+            for (var i = 0; i < count; i++) {
+                var flags = index.get();
+                result.add(index.getInt(), index.getInt(), (flags & FLAG_COMPRESSED) != 0);
+            }
+            if (result.length != indexOffset || result.size != size) {
+                return null;
+            }
+            return result;
+        }
+    }
+
+    private static ByteBuffer readFully(FileChannel channel, long position, int length) throws IOException {
+        var buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of file");
+            }
+        }
+        return buffer.flip();
+    }
+
+    /**
+     * Reads a block as stored, without decompressing it.
+     *
+     * @param channel The stored file
+     * @param block   The block
+     * @return The stored bytes
+     * @throws IOException If an I/O error occurs
+     */
+    public static byte[] readBlock(FileChannel channel, Block block) throws IOException {
+        return readFully(channel, block.offset, block.storedLength).array();
+    }
+
+    /**
+     * Opens the original content of a stored file.
+     *
+     * @param path The stored file
+     * @return The stream of the decompressed blocks
+     * @throws IOException If an I/O error occurs
+     */
+    public InputStream openRaw(Path path) throws IOException {
+        var channel = FileChannel.open(path, StandardOpenOption.READ);
+        return new InputStream() {
+            private int next = 0;
+            private byte[] current = new byte[0];
+            private int position = 0;
+
+            private boolean fill() throws IOException {
+                while (position == current.length) {
+                    if (next == blocks.size()) {
+                        return false;
+                    }
+                    var block = blocks.get(next++);
+                    var stored = readBlock(channel, block);
+                    current = block.compressed ? BlockCodec.inflate(stored) : stored;
+                    position = 0;
+                }
+                return true;
+            }
+
+            @Override
+            public int read() throws IOException {
+                return fill() ? current[position++] & 0xFF : -1;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0) {
+                    return 0;
+                }
+                if (!fill()) {
+                    return -1;
+                }
+                var count = Math.min(len, current.length - position);
+                System.arraycopy(current, position, b, off, count);
+                position += count;
+                return count;
+            }
+
+            @Override
+            public void close() throws IOException {
+                channel.close();
+            }
+        };
+    }
+
+    public List<Block> getBlocks() {
+        return Collections.unmodifiableList(blocks);
+    }
+
+    /**
+     * Gets the size of the original file.
+     *
+     * @return The sum of the raw lengths of the blocks
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * Gets the length of the blocks in the file, where the index starts.
+     *
+     * @return The sum of the stored lengths of the blocks
+     */
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * A block of a stored file.
+     */
+    public static class Block {
+        private final long offset;
+        private final int storedLength;
+        private final int rawLength;
+        private final boolean compressed;
+
+        private Block(long offset, int storedLength, int rawLength, boolean compressed) {
+            this.offset = offset;
+            this.storedLength = storedLength;
+            this.rawLength = rawLength;
+            this.compressed = compressed;
+        }
+
+        public long getOffset() {
+            return offset;
+        }
+
+        public int getStoredLength() {
+            return storedLength;
+        }
+
+        public int getRawLength() {
+            return rawLength;
+        }
+
+        public boolean isCompressed() {
+            return compressed;
+        }
+    }
+}
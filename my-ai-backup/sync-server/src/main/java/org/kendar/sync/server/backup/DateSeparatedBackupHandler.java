@@ -9,16 +9,19 @@ import org.kendar.sync.server.server.ClientSession;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.attribute.FileTime;
 import java.text.SimpleDateFormat;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 
@@ -26,6 +29,10 @@ import java.util.stream.Collectors;
  * Handles backup operations for the DATE_SEPARATED backup type.
  * Files on the target that don't exist on the source are preserved.
  * Files are organized in directories based on their modification date.
+ * The versions stored in the date directories are tracked by a {@link VersionIndex},
+ * restores take the latest version of every file or the one at the session point in time.
+ * The versions of the cold date directories can be moved by the tiering into a {@link VersionPack},
+ * from where they are read transparently.
  */
 
 @SuppressWarnings("DuplicatedCode")
@@ -34,10 +41,24 @@ public class DateSeparatedBackupHandler extends BackupHandler {
     private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd");
     private static final Logger log = LoggerFactory.getLogger(DateSeparatedBackupHandler.class);
     private final ConcurrentHashMap<String, FileInfo> filesOnClient = new ConcurrentHashMap<>();
+    private final Map<Path, VersionIndex> versionIndexes = new ConcurrentHashMap<>();
 
 
     @Override
     protected Path getSourceFilePath(ClientSession session, FileInfo fileInfo) {
+        var root = Path.of(session.getFolder().getRealPath());
+        var path = FileUtils.makeUniformPath(fileInfo.getRelativePath());
+        try {
+            var index = getVersionIndex(session);
+            var version = session.getPointInTime() == null ?
+                    index.latest(path) : index.at(path, session.getPointInTime());
+            if (version != null) {
+                return VersionIndex.resolve(root, path, version);
+            }
+        } catch (IOException e) {
+            log.warn("[SERVER] Unable to load the version index of {}: {}", root, e.getMessage());
+        }
+
         String date = new SimpleDateFormat("yyyy-MM-dd")
                 .format(new java.util.Date(fileInfo.getCreationTime().toEpochMilli()));
         var relPath = Path.of(session.getFolder().getRealPath(), date, fileInfo.getRelativePath());
@@ -47,6 +68,57 @@ public class DateSeparatedBackupHandler extends BackupHandler {
         return relPath;
     }
 
+    @Override
+    protected Path getTargetFilePath(ClientSession session, FileInfo fileInfo) {
+        return Path.of(session.getFolder().getRealPath(), getDateDir(fileInfo), fileInfo.getRelativePath());
+    }
+
+    @Override
+    protected String getCatalogPath(ClientSession session, FileInfo fileInfo) {
+        return getDateDir(fileInfo) + "/" + FileUtils.makeUniformPath(fileInfo.getRelativePath());
+    }
+
+    @Override
+    protected void fileStored(ClientSession session, FileInfo fileInfo, String catalogPath) throws IOException {
+        super.fileStored(session, fileInfo, catalogPath);
+        getVersionIndex(session).put(FileUtils.makeUniformPath(fileInfo.getRelativePath()), getDateDir(fileInfo));
+    }
+
+    private static String getDateDir(FileInfo fileInfo) {
+        return new SimpleDateFormat("yyyy-MM-dd").format(new java.util.Date(fileInfo.getCreationTime().toEpochMilli()));
+    }
+
+    @Override
+    protected VersionPack.Entry getPackedFile(ClientSession session, FileInfo fileInfo) throws IOException {
+        var path = FileUtils.makeUniformPath(fileInfo.getRelativePath());
+        var index = getVersionIndex(session);
+        var version = session.getPointInTime() == null ?
+                index.latest(path) : index.at(path, session.getPointInTime());
+        return version == null ? null : index.getPacks().find(path, version);
+    }
+
+    /**
+     * Gets the version index of the session folder, loading it on first use.
+     *
+     * @param session The client session
+     * @return The index
+     * @throws IOException If the index cannot be loaded
+     */
+    protected VersionIndex getVersionIndex(ClientSession session) throws IOException {
+        var root = Path.of(session.getFolder().getRealPath()).toAbsolutePath().normalize();
+        try {
+            return versionIndexes.computeIfAbsent(root, k -> {
+                try {
+                    return VersionIndex.load(k);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
     @Override
     public void handleFileList(TcpConnection connection, ClientSession session, FileListMessage message) throws IOException {
         log.debug("[SERVER] Received FILE_LIST message");
@@ -56,44 +128,37 @@ public class DateSeparatedBackupHandler extends BackupHandler {
                 value -> value
         ));
 
-        var allFiles = listAllFiles(Path.of(session.getFolder().getRealPath()));
-        for (var file : allFiles) {
-            var fts = FileUtils.makeUniformPath(file.toString()).replace(FileUtils.makeUniformPath(session.getFolder().getRealPath()), "");
-            if(fts.startsWith("/"))fts=fts.substring(1);
-            var filePath = session.getFolder().getRealPath() + File.separator + fts;
-            var attr = FileUtils.readFileAttributes(Path.of(filePath));
+        var basePath = Path.of(session.getFolder().getRealPath()).toAbsolutePath();
+        var pointInTime = message.isBackup() ? null : session.getPointInTime();
+        var index = getVersionIndex(session);
+        List<StoredFile> storedFiles;
+        try {
+            storedFiles = readVersions(session, basePath, index, pointInTime);
+        } catch (NoSuchFileException e) {
+            log.warn("[SERVER] Version index of {} out of date, rebuilding it: {} is missing", basePath, e.getFile());
+            index.rebuild();
+            storedFiles = readVersions(session, basePath, index, pointInTime);
+        }
 
-            if (shouldIgnoreFileByAttrAndPattern(session, file, attr)) continue;
+        for (var stored : storedFiles) {
+            if (stored.isIgnored()) continue;
 
-            if (!fts.matches(".*\\d{4}-\\d{2}-\\d{2}.*")) {
+            var file = stored.getPath();
+            var fts = stored.getRelativePath();
+            var attr = stored.getAttributes();
 
-                if (shouldUpdate(filesOnClient.get(fts), file, attr)) {
-                    filesOnClient.remove(fts);
-                }
-                if (!message.isBackup()) {
-                    if (filesOnClient.get(fts) == null) {
-                        filesOnClient.put(fts, FileInfo.fromFile(file.toFile(), session.getFolder().getRealPath()));
-                    }
-                }
-            } else {
-                var newFts = fts.substring(11);
-                //if(newFts.startsWith("/"))newFts=newFts.substring(1);// Remove the date prefix
-                if (shouldUpdate(filesOnClient.get(newFts), file, attr)) {
-                    filesOnClient.remove(fts);
-                }
-                if (!message.isBackup()) {
-                    if (filesOnClient.get(newFts) == null) {
-                        var fi = FileInfo.fromFile(file.toFile(), session.getFolder().getRealPath());
-                        fi.setRelativePath(newFts);
-                        filesOnClient.put(newFts, fi);
-                    }
-                }
+            if (shouldUpdate(filesOnClient.get(fts), file, attr)) {
+                filesOnClient.remove(fts);
+            } else if (!message.isBackup() && filesOnClient.get(fts) == null) {
+                var fi = FileInfo.fromAttributes(file, basePath, attr);
+                fi.setRelativePath(fts);
+                filesOnClient.put(fts, fi);
             }
         }
 
         var filesToSend = filesOnClient.values().stream().filter(f ->
                 !Attributes.isDirectory(f.getExtendedUmask())).collect(Collectors.toList());
-        connection.sendMessage(new FileListResponseMessage(filesToSend, new ArrayList<>(), true, 1, 1));
+        sendFilesToTransfer(connection, session, filesToSend, new ArrayList<>());
 
         if (message.isBackup()) {
             return;
@@ -102,6 +167,63 @@ public class DateSeparatedBackupHandler extends BackupHandler {
         handleFileRestore(connection, session, filesToSend);
     }
 
+    /**
+     * Copies the latest version of the source into the same date directory, the versions
+     * of the source are kept as the other files of this backup type.
+     */
+    @Override
+    protected boolean applyMove(ClientSession session, Path root, FileMoveMessage.Move move) {
+        var source = FileUtils.makeUniformPath(move.getSource());
+        var target = FileUtils.makeUniformPath(move.getTarget());
+        try {
+            var index = getVersionIndex(session);
+            var version = index.latest(source);
+            if (version == null || index.latest(target) != null ||
+                    resolveInside(root, target) == null || resolveInside(root, source) == null) {
+                return false;
+            }
+            var sourceFile = VersionIndex.resolve(root, source, version);
+            var targetFile = VersionIndex.resolve(root, target, version);
+            if (!Files.isRegularFile(sourceFile) || Files.exists(targetFile)) {
+                return false;
+            }
+            Files.createDirectories(targetFile.getParent());
+            Files.copy(sourceFile, targetFile, StandardCopyOption.COPY_ATTRIBUTES);
+            index.put(target, version);
+            var prefix = VersionIndex.UNDATED.equals(version) ? "" : version + "/";
+            moveContentHash(session, prefix + source, prefix + target, true);
+            journalChange(session, prefix + target, false);
+            return true;
+        } catch (IOException e) {
+            log.warn("[SERVER] Unable to copy {} to {}: {}", move.getSource(), move.getTarget(), e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Reads the selected version of every stored file, the relative paths of the results
+     * are the ones without the date directory. The attributes of the packed versions are
+     * the ones stored in the packs.
+     */
+    private List<StoredFile> readVersions(ClientSession session, Path root, VersionIndex index,
+                                          String pointInTime) throws IOException {
+        var relativePaths = new HashMap<Path, String>();
+        var packed = new ArrayList<StoredFile>();
+        for (var entry : index.versions(pointInTime).entrySet()) {
+            var path = VersionIndex.resolve(root, entry.getKey(), entry.getValue());
+            var packedFile = index.getPacks().find(entry.getKey(), entry.getValue());
+            if (packedFile != null) {
+                var attr = packedFile.getAttributes();
+                packed.add(new StoredFile(path, entry.getKey(), attr, shouldIgnoreFileByAttrAndPattern(session, path, attr)));
+            } else {
+                relativePaths.put(path, entry.getKey());
+            }
+        }
+        var result = new ArrayList<>(readStoredFiles(session, new ArrayList<>(relativePaths.keySet()), relativePaths::get));
+        result.addAll(packed);
+        return result;
+    }
+
     @Override
     public void handleFileDescriptor(TcpConnection connection, ClientSession session, FileDescriptorMessage message) throws IOException {
         int connectionId = connection.getConnectionId();
@@ -131,19 +253,7 @@ public class DateSeparatedBackupHandler extends BackupHandler {
 
         log.debug("[SERVER] Received FILE_DATA message");
         var fileInfo = filesOnClient.get(message.getRelativePath());
-        String dateDir = new java.text.SimpleDateFormat("yyyy-MM-dd").format(
-                new java.util.Date(fileInfo.getCreationTime().toEpochMilli()));
-
-        String relativePath = message.getRelativePath();
-        File targetFile = new File(new File(session.getFolder().getRealPath(), dateDir), relativePath);
-
-        //noinspection ResultOfMethodCallIgnored
-        targetFile.getParentFile().mkdirs();
-
-        try (FileOutputStream fos = new FileOutputStream(targetFile, message.isFirstBlock())) {
-            fos.write(message.getData());
-        }
-        message.isLastBlock();
+        writeBlock(connection, session, getTargetFilePath(session, fileInfo).toFile(), message);
     }
 
     @Override
@@ -151,14 +261,10 @@ public class DateSeparatedBackupHandler extends BackupHandler {
         log.debug("[SERVER] Received FILE_END message");
 
         var fileInfo = message.getFileInfo();
-
-        String dateDir = new java.text.SimpleDateFormat("yyyy-MM-dd").format(
-                new java.util.Date(fileInfo.getCreationTime().toEpochMilli()));
-        var realPath = Path.of(session.getFolder().getRealPath() + File.separator + dateDir + File.separator + fileInfo.getRelativePath());
-        var attr = Files.readAttributes(realPath, BasicFileAttributes.class);
-        FileUtils.writeFileAttributes(realPath,fileInfo.getExtendedUmask(),attr);
-        FileUtils.setFileTimes(realPath.toFile(),fileInfo.getCreationTime(), fileInfo.getModificationTime());
-        filesOnClient.remove(fileInfo.getRelativePath());
-        connection.sendMessage(FileEndAckMessage.success(message.getRelativePath()));
+        try {
+            storeFile(connection, session, fileInfo);
+        } finally {
+            filesOnClient.remove(fileInfo.getRelativePath());
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,214 @@
+package org.kendar.sync.server.backup;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Stores the content hashes of the files of a backup folder.
+ * <p>
+ * The catalog is an append-only log kept in the root of the folder, one line per
+ * change: {@code hash TAB size TAB modificationMillis TAB path}, where the path is
+ * relative to the folder and a {@code -} hash marks a removed file. The log is
+ * compacted when loaded if it holds too many obsolete lines.
+ * An entry is meaningful only while the file on disk still has the stored size and
+ * modification time, see {@link #getValid(String, long, Instant)}.
+ */
+public class HashCatalog {
+    public static final String CATALOG_FILE = ".sync-hashes";
+    private static final Logger log = LoggerFactory.getLogger(HashCatalog.class);
+    private static final String REMOVED = "-";
+    private static final int MIN_LINES_TO_COMPACT = 1000;
+
+    private final Path file;
+    private final Map<String, Entry> entries = new HashMap<>();
+    private int lines = 0;
+
+    private HashCatalog(Path file) {
+        this.file = file;
+    }
+
+    /**
+     * Loads the catalog of a folder. A missing catalog is empty.
+     *
+     * @param root The folder real path
+     * @return The catalog
+     * @throws IOException If an I/O error occurs
+     */
+    public static HashCatalog load(Path root) throws IOException {
+        var catalog = new HashCatalog(root.resolve(CATALOG_FILE));
+        if (Files.exists(catalog.file)) {
+            for (var line : Files.readAllLines(catalog.file, StandardCharsets.UTF_8)) {
+                catalog.apply(line);
+            }
+            if (catalog.lines > MIN_LINES_TO_COMPACT && catalog.lines > catalog.entries.size() * 2) {
+                catalog.compact();
+            }
+        }
+        return catalog;
+    }
+
+    private void apply(String line) {
+        var parts = line.split("\t", 4);
+        if (parts.length < 4) return;
+        lines++;
+        try {
+            if (REMOVED.equals(parts[0])) {
+                entries.remove(parts[3]);
+            } else {
+                entries.put(parts[3], new Entry(parts[3], Long.parseLong(parts[1]), Long.parseLong(parts[2]), parts[0]));
+            }
+        } catch (NumberFormatException e) {
+            log.warn("[SERVER] Invalid hash catalog line in {}: {}", file, line);
+        }
+    }
+
+    /**
+     * Gets the entry of a file.
+     *
+     * @param path The path relative to the folder
+     * @return The entry, or null if not known
+     */
+    public synchronized Entry get(String path) {
+        return entries.get(path);
+    }
+
+    /**
+     * Gets the entry of a file if it still describes the file on disk.
+     *
+     * @param path             The path relative to the folder
+     * @param size             The current size of the file
+     * @param modificationTime The current modification time of the file
+     * @return The entry, or null if not known or outdated
+     */
+    public synchronized Entry getValid(String path, long size, Instant modificationTime) {
+        var entry = entries.get(path);
+        if (entry == null || modificationTime == null || !entry.matches(size, modificationTime.toEpochMilli())) {
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * Stores the hash of a file.
+     *
+     * @param path               The path relative to the folder
+     * @param size               The size of the file
+     * @param modificationMillis The modification time of the file
+     * @param hash               The content hash
+     * @throws IOException If an I/O error occurs
+     */
+    public synchronized void put(String path, long size, long modificationMillis, String hash) throws IOException {
+        var entry = new Entry(path, size, modificationMillis, hash);
+        if (entry.equals(entries.get(path))) return;
+        append(hash + "\t" + size + "\t" + modificationMillis + "\t" + path);
+        entries.put(path, entry);
+    }
+
+    /**
+     * Forgets the hash of a file.
+     *
+     * @param path The path relative to the folder
+     * @throws IOException If an I/O error occurs
+     */
+    public synchronized void remove(String path) throws IOException {
+        if (!entries.containsKey(path)) return;
+        append(REMOVED + "\t0\t0\t" + path);
+        entries.remove(path);
+    }
+
+    /**
+     * Gets a copy of all the entries.
+     *
+     * @return The entries
+     */
+    public synchronized List<Entry> entries() {
+        return new ArrayList<>(entries.values());
+    }
+
+    /**
+     * Rewrites the log with only the current entries.
+     *
+     * @throws IOException If an I/O error occurs
+     */
+    public synchronized void compact() throws IOException {
+        var content = new StringBuilder();
+        for (var entry : entries.values()) {
+            content.append(entry.hash).append('\t').append(entry.size).append('\t')
+                    .append(entry.modificationMillis).append('\t').append(entry.path).append('\n');
+        }
+        var temp = file.resolveSibling(CATALOG_FILE + ".tmp");
+        Files.writeString(temp, content.toString(), StandardCharsets.UTF_8);
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        lines = entries.size();
+    }
+
+    private void append(String line) throws IOException {
+        Files.createDirectories(file.getParent());
+        Files.writeString(file, line + "\n", StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        lines++;
+    }
+
+    /**
+     * The stored hash of a file.
+     */
+    public static final class Entry {
+        private final String path;
+        private final long size;
+        private final long modificationMillis;
+        private final String hash;
+
+        public Entry(String path, long size, long modificationMillis, String hash) {
+            this.path = path;
+            this.size = size;
+            this.modificationMillis = modificationMillis;
+            this.hash = hash;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getModificationMillis() {
+            return modificationMillis;
+        }
+
+        public String getHash() {
+            return hash;
+        }
+
+        public boolean matches(long size, long modificationMillis) {
+            return this.size == size && this.modificationMillis == modificationMillis;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Entry entry = (Entry) o;
+            return size == entry.size && modificationMillis == entry.modificationMillis &&
+                    path.equals(entry.path) && hash.equals(entry.hash);
+        }
+
+        @Override
+        public int hashCode() {
+            return path.hashCode();
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package org.kendar.sync.server.backup;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps one loaded {@link HashCatalog} per backup folder, shared by all the sessions.
+ */
+public class HashCatalogs {
+    private final Map<Path, HashCatalog> catalogs = new ConcurrentHashMap<>();
+
+    /**
+     * Gets the catalog of a folder, loading it on first use.
+     *
+     * @param realPath The folder real path
+     * @return The catalog
+     * @throws IOException If the catalog cannot be loaded
+     */
+    public HashCatalog get(String realPath) throws IOException {
+        var root = Path.of(realPath).toAbsolutePath().normalize();
+        try {
+            return catalogs.computeIfAbsent(root, k -> {
+                try {
+                    return HashCatalog.load(k);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+}
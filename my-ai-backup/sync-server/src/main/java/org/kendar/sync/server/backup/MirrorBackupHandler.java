@@ -10,11 +10,9 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.FileTime;
 import java.util.ArrayList;
 import java.util.stream.Collectors;
@@ -28,6 +26,53 @@ public class MirrorBackupHandler extends BackupHandler {
 
     private static final Logger log = LoggerFactory.getLogger(MirrorBackupHandler.class);
 
+    /**
+     * Handles the partial list of a server replicating its folder: only the listed files are
+     * compared, the deleted ones are removed and the other stored files are left alone.
+     */
+    private void handlePartialFileList(TcpConnection connection, ClientSession session, FileListMessage message) throws IOException {
+        var root = Path.of(session.getFolder().getRealPath()).toAbsolutePath().normalize();
+        var storage = getStorage(session);
+        var filesToDelete = new ArrayList<String>();
+        var directoriesToDelete = new ArrayList<Path>();
+        for (var deleted : message.getDeletedFiles()) {
+            var path = resolveInside(root, deleted);
+            if (path == null) continue;
+            var storagePath = getStoragePath(session, path);
+            if (storage.stat(storagePath) != null) {
+                filesToDelete.add(storagePath);
+                removeContentHash(session, storagePath);
+            } else {
+                // A deleted directory, with all the files inside
+                var contained = storage.list(storagePath + "/");
+                if (contained.isEmpty() && !Files.isDirectory(path)) continue;
+                for (var stored : contained) {
+                    filesToDelete.add(stored.getPath());
+                    removeContentHash(session, stored.getPath());
+                }
+                directoriesToDelete.add(path);
+            }
+            journalChange(session, deleted, true);
+        }
+        deleteStoredFiles(session, filesToDelete);
+        for (var directory : directoriesToDelete) {
+            if (Files.isDirectory(directory)) {
+                FileUtils.deleteDirectoryContents(directory);
+                Files.deleteIfExists(directory);
+            }
+        }
+
+        var filesToSend = new ArrayList<FileInfo>();
+        for (var file : message.getFiles()) {
+            var path = resolveInside(root, file.getRelativePath());
+            if (path == null || Attributes.isDirectory(file.getExtendedUmask())) continue;
+            var stored = storage.stat(getStoragePath(session, path));
+            if (stored != null && shouldUpdate(file, path, stored.getAttributes())) continue;
+            filesToSend.add(file);
+        }
+        sendFilesToTransfer(connection, session, filesToSend, new ArrayList<>());
+    }
+
     @Override
     protected Path getSourceFilePath(ClientSession session, FileInfo fileInfo) {
         return Path.of(session.getFolder().getRealPath(), fileInfo.getRelativePath());
@@ -36,6 +81,10 @@ public class MirrorBackupHandler extends BackupHandler {
     @Override
     public void handleFileList(TcpConnection connection, ClientSession session, FileListMessage message) throws IOException {
         log.debug("[SERVER] Received FILE_LIST message");
+        if (message.isBackup() && message.isPartial()) {
+            handlePartialFileList(connection, session, message);
+            return;
+        }
 
         var filesOnClient = message.getFiles().stream().collect(Collectors.toMap(
                 FileInfo::getRelativePath,
@@ -46,25 +95,30 @@ public class MirrorBackupHandler extends BackupHandler {
                 .map(FileInfo::getRelativePath)
                 .collect(Collectors.toSet());
 
-        var allFiles = listAllFilesAndDirs(Path.of(session.getFolder().getRealPath()));
+        var realPath = session.getFolder().getRealPath();
+        var basePath = Path.of(realPath).toAbsolutePath();
+        var storedFiles = readStoredObjects(session, listStoredFiles(session), file ->
+                FileUtils.makeUniformPath(FileUtils.makeUniformPath(file.toString()).replace(FileUtils.makeUniformPath(realPath), "")));
         var removedFiles = new ArrayList<String>();
+        var filesToDelete = new ArrayList<String>();
 
-        for (var file : allFiles) {
-            var fts = FileUtils.makeUniformPath(file.toString()).replace(FileUtils.makeUniformPath(session.getFolder().getRealPath()), "");
-            var filePath = session.getFolder().getRealPath() + "/" + fts;
-            var fp = Path.of(filePath);
-            var attr = FileUtils.readFileAttributes(fp);
+        for (var stored : storedFiles) {
+            if (stored.isIgnored()) continue;
 
-            if (shouldIgnoreFileByAttrAndPattern(session, file, attr)) continue;
+            var file = stored.getPath();
+            var fts = stored.getRelativePath();
+            var attr = stored.getAttributes();
 
-
-            if (file.toFile().isDirectory()) {
-                filesOnClient.remove(fts);
-                filesToRemove.remove(fts);
-                continue;
+            // The storage lists only the files, their directories are kept on the client
+            for (var parent = Path.of(fts).getParent(); parent != null; parent = parent.getParent()) {
+                var directory = FileUtils.makeUniformPath(parent.toString());
+                filesOnClient.remove(directory);
+                filesToRemove.remove(directory);
             }
             if (message.isBackup() && !filesOnClient.containsKey(fts)) {
-                Files.delete(fp);
+                filesToDelete.add(fts);
+                removeContentHash(session, fts);
+                journalChange(session, fts, true);
                 continue;
             } else if (!message.isBackup()) {
                 filesToRemove.remove(fts);
@@ -72,15 +126,19 @@ public class MirrorBackupHandler extends BackupHandler {
 
             if (message.isBackup() && shouldUpdate(filesOnClient.get(fts), file, attr)) {
                 filesOnClient.remove(fts);
-            } else if (!message.isBackup()) {
+            } else if (message.isBackup()) {
+                // Let the client skip the content if it did not really change
+                offerStoredHash(session, fts, filesOnClient.get(fts), attr);
+            } else {
                 if (filesOnClient.get(fts) == null) {
-                    var fi = FileInfo.fromFile(file.toFile(), session.getFolder().getRealPath());
+                    var fi = FileInfo.fromAttributes(file.toAbsolutePath(), basePath, attr);
                     filesOnClient.put(fi.getRelativePath(), fi);
                 } else if (shouldUpdate(filesOnClient.get(fts), file, attr)) {
                     filesOnClient.remove(fts);
                 }
             }
         }
+        deleteStoredFiles(session, filesToDelete);
         if (!message.isBackup()) {
             removedFiles.addAll(filesToRemove);
             for (var toRemove : filesToRemove) {
@@ -90,7 +148,7 @@ public class MirrorBackupHandler extends BackupHandler {
         var filesToSend = filesOnClient.values().stream().filter(f ->
                 !Attributes.isDirectory(f.getExtendedUmask())).collect(Collectors.toList());
 
-        connection.sendMessage(new FileListResponseMessage(filesToSend, removedFiles, true, 1, 1));
+        sendFilesToTransfer(connection, session, filesToSend, removedFiles);
 
         if (message.isBackup()) {
             return;
@@ -147,12 +205,7 @@ public class MirrorBackupHandler extends BackupHandler {
             relativePath = message.getRelativePath();
         }
         File file = new File(session.getFolder().getRealPath(), relativePath);
-        //noinspection ResultOfMethodCallIgnored
-        file.getParentFile().mkdirs();
-        try (FileOutputStream fos = new FileOutputStream(file, message.isFirstBlock())) {
-            fos.write(message.getData());
-        }
-        message.isLastBlock();
+        writeBlock(connection, session, file, message);
     }
 
     @Override
@@ -175,10 +228,6 @@ public class MirrorBackupHandler extends BackupHandler {
             log.debug("[SERVER] 4 Received FILE_END message for {} on connection {}", message.getRelativePath(), connectionId);
         }
 
-        var realPath = Path.of(session.getFolder().getRealPath() + File.separator + fileInfo.getRelativePath());
-        var attr = Files.readAttributes(realPath, BasicFileAttributes.class);
-        FileUtils.writeFileAttributes(realPath,fileInfo.getExtendedUmask(),attr);
-        FileUtils.setFileTimes(realPath.toFile(),fileInfo.getCreationTime(), fileInfo.getModificationTime());
-        connection.sendMessage(FileEndAckMessage.success(fileInfo.getRelativePath()));
+        storeFile(connection, session, fileInfo);
     }
 }
\ No newline at end of file
@@ -10,11 +10,9 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.FileTime;
 import java.util.ArrayList;
 import java.util.stream.Collectors;
@@ -33,6 +31,14 @@ public class PreserveBackupHandler extends BackupHandler {
         return Path.of(session.getFolder().getRealPath(), fileInfo.getRelativePath());
     }
 
+    /**
+     * The files removed from the source are preserved, so a move keeps the original.
+     */
+    @Override
+    protected boolean applyMove(ClientSession session, Path root, FileMoveMessage.Move move) {
+        return super.applyMove(session, root, new FileMoveMessage.Move(move.getSource(), move.getTarget(), true));
+    }
+
     @Override
     public void handleFileList(TcpConnection connection, ClientSession session, FileListMessage message) throws IOException {
         log.debug("[SERVER] Received FILE_LIST message");
@@ -42,21 +48,26 @@ public class PreserveBackupHandler extends BackupHandler {
                 value -> value
         ));
 
-        var allFiles = listAllFiles(Path.of(session.getFolder().getRealPath()));
+        var realPath = session.getFolder().getRealPath();
+        var basePath = Path.of(realPath).toAbsolutePath();
+        var storedFiles = readStoredObjects(session, listStoredFiles(session), file ->
+                FileUtils.makeUniformPath(FileUtils.makeUniformPath(file.toString()).replace(FileUtils.makeUniformPath(realPath), "")));
 
-        for (var file : allFiles) {
-            var fts = FileUtils.makeUniformPath(file.toString()).replace(FileUtils.makeUniformPath(session.getFolder().getRealPath()), "");
-            var filePath = session.getFolder().getRealPath() + "/" + fts;
+        for (var stored : storedFiles) {
+            if (stored.isIgnored()) continue;
 
-            var attr = FileUtils.readFileAttributes(Path.of(filePath));
-
-            if (shouldIgnoreFileByAttrAndPattern(session, file, attr)) continue;
+            var file = stored.getPath();
+            var fts = stored.getRelativePath();
+            var attr = stored.getAttributes();
 
             if (message.isBackup() && shouldUpdate(filesOnClient.get(fts), file, attr)) {
                 filesOnClient.remove(fts);
-            } else if (!message.isBackup()) {
+            } else if (message.isBackup()) {
+                // Let the client skip the content if it did not really change
+                offerStoredHash(session, fts, filesOnClient.get(fts), attr);
+            } else {
                 if (filesOnClient.get(fts) == null) {
-                    var fi = FileInfo.fromFile(file.toFile(), session.getFolder().getRealPath());
+                    var fi = FileInfo.fromAttributes(file.toAbsolutePath(), basePath, attr);
                     filesOnClient.put(fi.getRelativePath(), fi);
                 } else if (shouldUpdate(filesOnClient.get(fts), file, attr)) {
                     filesOnClient.remove(fts);
@@ -66,7 +77,7 @@ public class PreserveBackupHandler extends BackupHandler {
 
         var filesToSend = filesOnClient.values().stream().filter(f ->
                 !Attributes.isDirectory(f.getExtendedUmask())).collect(Collectors.toList());
-        connection.sendMessage(new FileListResponseMessage(filesToSend, new ArrayList<>(), true, 1, 1));
+        sendFilesToTransfer(connection, session, filesToSend, new ArrayList<>());
 
         if (message.isBackup()) {
             return;
@@ -123,12 +134,7 @@ public class PreserveBackupHandler extends BackupHandler {
             relativePath = message.getRelativePath();
         }
         File file = new File(session.getFolder().getRealPath(), relativePath);
-        //noinspection ResultOfMethodCallIgnored
-        file.getParentFile().mkdirs();
-        try (FileOutputStream fos = new FileOutputStream(file, message.isFirstBlock())) {
-            fos.write(message.getData());
-        }
-        message.isLastBlock();
+        writeBlock(connection, session, file, message);
     }
 
     @Override
@@ -149,10 +155,6 @@ public class PreserveBackupHandler extends BackupHandler {
             log.debug("[SERVER] 4 Received FILE_END message for {} on connection {}", message.getRelativePath(), connectionId);
         }
 
-        var realPath = Path.of(session.getFolder().getRealPath() + File.separator + fileInfo.getRelativePath());
-        var attr = Files.readAttributes(realPath, BasicFileAttributes.class);
-        FileUtils.writeFileAttributes(realPath,fileInfo.getExtendedUmask(),attr);
-        FileUtils.setFileTimes(realPath.toFile(),fileInfo.getCreationTime(), fileInfo.getModificationTime());
-        connection.sendMessage(FileEndAckMessage.success(fileInfo.getRelativePath()));
+        storeFile(connection, session, fileInfo);
     }
 }
\ No newline at end of file
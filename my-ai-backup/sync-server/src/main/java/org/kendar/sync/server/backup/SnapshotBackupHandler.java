@@ -0,0 +1,326 @@
+package org.kendar.sync.server.backup;
+
+import org.kendar.sync.lib.model.FileInfo;
+import org.kendar.sync.lib.network.TcpConnection;
+import org.kendar.sync.lib.protocol.*;
+import org.kendar.sync.lib.utils.Attributes;
+import org.kendar.sync.lib.utils.FileUtils;
+import org.kendar.sync.server.server.ClientSession;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * Handles backup operations for the SNAPSHOT backup type.
+ * Every backup creates a complete snapshot directory, named after its date and time.
+ * The files unchanged since the previous snapshot are hard-linked from it, only the
+ * transferred files are written. The snapshot is built in a partial directory and
+ * renamed when the backup ends, so an interrupted backup leaves the previous snapshots
+ * untouched. A restore walks the latest snapshot, or the latest one at the session
+ * point in time.
+ */
+@SuppressWarnings("DuplicatedCode")
+public class SnapshotBackupHandler extends BackupHandler {
+
+    private static final Logger log = LoggerFactory.getLogger(SnapshotBackupHandler.class);
+    private static final DateTimeFormatter SNAPSHOT_FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd_HH-mm-ss");
+    private static final Pattern SNAPSHOT_NAME = Pattern.compile("\\d{4}-\\d{2}-\\d{2}_\\d{2}-\\d{2}-\\d{2}(_\\d+)?");
+    private static final String PARTIAL_SUFFIX = ".partial";
+    private final Map<UUID, Snapshot> snapshots = new ConcurrentHashMap<>();
+    private final Map<UUID, Map<String, String>> pendingMoves = new ConcurrentHashMap<>();
+
+    /**
+     * Finds the latest complete snapshot of a folder.
+     *
+     * @param root        The folder real path
+     * @param pointInTime The date, in the yyyy-MM-dd format, or null for the latest snapshot
+     * @return The snapshot name, or null if there is none
+     * @throws IOException If the folder cannot be listed
+     */
+    static String findSnapshot(Path root, String pointInTime) throws IOException {
+        if (!Files.isDirectory(root)) {
+            return null;
+        }
+        try (var children = Files.list(root)) {
+            return children.filter(Files::isDirectory)
+                    .map(p -> p.getFileName().toString())
+                    .filter(name -> SNAPSHOT_NAME.matcher(name).matches())
+                    .filter(name -> pointInTime == null || name.substring(0, 10).compareTo(pointInTime) <= 0)
+                    .max(String::compareTo)
+                    .orElse(null);
+        }
+    }
+
+    @Override
+    protected Path getSourceFilePath(ClientSession session, FileInfo fileInfo) {
+        return getSnapshot(session).directory.resolve(fileInfo.getRelativePath());
+    }
+
+    @Override
+    protected Path getTargetFilePath(ClientSession session, FileInfo fileInfo) {
+        return getSnapshot(session).directory.resolve(fileInfo.getRelativePath());
+    }
+
+    /**
+     * The catalog refers to the final snapshot directory.
+     */
+    @Override
+    protected String getCatalogPath(ClientSession session, FileInfo fileInfo) {
+        return getSnapshot(session).name + "/" + FileUtils.makeUniformPath(fileInfo.getRelativePath());
+    }
+
+    private Snapshot getSnapshot(ClientSession session) {
+        var snapshot = snapshots.get(session.getSessionId());
+        if (snapshot == null) {
+            throw new IllegalStateException("No snapshot started for session " + session.getSessionId());
+        }
+        return snapshot;
+    }
+
+    /**
+     * The moves are received before the snapshot is started, so they are kept until the
+     * file list and applied as links from the previous snapshot, like the unchanged files.
+     * Every move is a copy, the previous snapshot is never changed.
+     */
+    @Override
+    public void handleFileMove(TcpConnection connection, ClientSession session, FileMoveMessage message) throws IOException {
+        log.debug("[SERVER] Received FILE_MOVE message with {} moves", message.getMoves().size());
+        var applied = new ArrayList<String>();
+        var root = Path.of(session.getFolder().getRealPath()).toAbsolutePath().normalize();
+        var previous = findSnapshot(root, null);
+        if (!session.isDryRun() && previous != null) {
+            var moves = pendingMoves.computeIfAbsent(session.getSessionId(), k -> new ConcurrentHashMap<>());
+            var previousDirectory = root.resolve(previous);
+            for (var move : message.getMoves()) {
+                var source = resolveInside(previousDirectory, move.getSource());
+                if (source != null && resolveInside(previousDirectory, move.getTarget()) != null &&
+                        Files.isRegularFile(source)) {
+                    moves.put(FileUtils.makeUniformPath(move.getTarget()), FileUtils.makeUniformPath(move.getSource()));
+                    applied.add(move.getTarget());
+                }
+            }
+        }
+        log.debug("[SERVER] Applied {} of {} moves", applied.size(), message.getMoves().size());
+        connection.sendMessage(new FileMoveAckMessage(applied));
+    }
+
+    @Override
+    public void handleFileList(TcpConnection connection, ClientSession session, FileListMessage message) throws IOException {
+        log.debug("[SERVER] Received FILE_LIST message");
+
+        var filesOnClient = message.getFiles().stream().collect(Collectors.toMap(
+                FileInfo::getRelativePath,
+                value -> value
+        ));
+        var root = Path.of(session.getFolder().getRealPath()).toAbsolutePath();
+
+        if (message.isBackup()) {
+            var previous = findSnapshot(root, null);
+            var snapshot = startSnapshot(session, root);
+            snapshots.put(session.getSessionId(), snapshot);
+
+            var moves = pendingMoves.getOrDefault(session.getSessionId(), Map.of());
+            var linkedFrom = new ArrayList<String>();
+            var linked = new ArrayList<String>();
+            var directories = new ArrayList<String>();
+            var previousFiles = previous == null ? Map.<String, StoredFile>of() : readSnapshot(session, root.resolve(previous));
+            for (var clientFile : message.getFiles()) {
+                if (Attributes.isDirectory(clientFile.getExtendedUmask())) {
+                    directories.add(clientFile.getRelativePath());
+                    continue;
+                }
+                var relativePath = clientFile.getRelativePath();
+                var stored = previousFiles.get(relativePath);
+                if (stored == null && moves.containsKey(FileUtils.makeUniformPath(relativePath))) {
+                    // Moved, it is a link to the previous copy of the source
+                    stored = previousFiles.get(moves.get(FileUtils.makeUniformPath(relativePath)));
+                }
+                if (stored != null && shouldUpdate(clientFile, stored.getPath(), stored.getAttributes())) {
+                    // Unchanged, it is a link to the previous copy
+                    linkedFrom.add(stored.getRelativePath());
+                    linked.add(relativePath);
+                    filesOnClient.remove(clientFile.getRelativePath());
+                }
+            }
+            if (!session.isDryRun()) {
+                for (var directory : directories) {
+                    Files.createDirectories(snapshot.directory.resolve(directory));
+                }
+                if (previous != null) {
+                    linkFiles(root.resolve(previous), linkedFrom, snapshot.directory, linked);
+                }
+            }
+            log.debug("[SERVER] Snapshot {} links {} unchanged files", snapshot.name, linked.size());
+        } else {
+            var name = findSnapshot(root, session.getPointInTime());
+            var snapshot = new Snapshot(name, name == null ? root : root.resolve(name));
+            snapshots.put(session.getSessionId(), snapshot);
+            var storedFiles = name == null ? Map.<String, StoredFile>of() : readSnapshot(session, snapshot.directory);
+            for (var stored : storedFiles.values()) {
+                var fts = stored.getRelativePath();
+                if (filesOnClient.get(fts) == null) {
+                    filesOnClient.put(fts, FileInfo.fromAttributes(stored.getPath(), snapshot.directory, stored.getAttributes()));
+                } else if (shouldUpdate(filesOnClient.get(fts), stored.getPath(), stored.getAttributes())) {
+                    filesOnClient.remove(fts);
+                }
+            }
+        }
+
+        var filesToSend = filesOnClient.values().stream().filter(f ->
+                !Attributes.isDirectory(f.getExtendedUmask())).collect(Collectors.toList());
+        sendFilesToTransfer(connection, session, filesToSend, new ArrayList<>());
+
+        if (message.isBackup()) {
+            return;
+        }
+
+        handleFileRestore(connection, session, filesToSend);
+    }
+
+    /**
+     * Creates the partial directory of a new snapshot, removing the ones left by
+     * interrupted backups.
+     */
+    private Snapshot startSnapshot(ClientSession session, Path root) throws IOException {
+        var name = LocalDateTime.now().format(SNAPSHOT_FORMATTER);
+        var unique = name;
+        for (var i = 2; Files.exists(root.resolve(unique)); i++) {
+            unique = name + "_" + i;
+        }
+        var snapshot = new Snapshot(unique, root.resolve(unique + PARTIAL_SUFFIX));
+        if (session.isDryRun()) {
+            return snapshot;
+        }
+        if (Files.isDirectory(root)) {
+            try (var children = Files.list(root)) {
+                for (var stale : children.filter(p -> p.getFileName().toString().endsWith(PARTIAL_SUFFIX))
+                        .collect(Collectors.toList())) {
+                    log.info("[SERVER] Removing the interrupted snapshot {}", stale);
+                    FileUtils.deleteDirectoryContents(stale);
+                    Files.deleteIfExists(stale);
+                }
+            }
+        }
+        Files.createDirectories(snapshot.directory);
+        return snapshot;
+    }
+
+    /**
+     * Reads the files of a snapshot by their path relative to it.
+     */
+    private Map<String, StoredFile> readSnapshot(ClientSession session, Path directory) throws IOException {
+        var result = new HashMap<String, StoredFile>();
+        for (var stored : readStoredFiles(session, listAllFiles(directory), file ->
+                FileUtils.makeUniformPath(directory.relativize(file).toString()))) {
+            if (!stored.isIgnored()) {
+                result.put(stored.getRelativePath(), stored);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Hard-links the unchanged files from the previous snapshot, copying them when the
+     * file system does not support links.
+     */
+    private void linkFiles(Path previous, List<String> sources, Path directory, List<String> targets) throws IOException {
+        forEachInParallel(targets.size(), index -> {
+            var source = previous.resolve(sources.get(index));
+            var target = directory.resolve(targets.get(index));
+            Files.createDirectories(target.getParent());
+            try {
+                Files.createLink(target, source);
+            } catch (UnsupportedOperationException | FileSystemException e) {
+                log.debug("[SERVER] Unable to link {}, copying it: {}", source, e.getMessage());
+                Files.copy(source, target, StandardCopyOption.COPY_ATTRIBUTES);
+            }
+        });
+    }
+
+    @Override
+    public void handleFileDescriptor(TcpConnection connection, ClientSession session, FileDescriptorMessage message) throws IOException {
+        int connectionId = connection.getConnectionId();
+        log.debug("[SERVER] Received FILE_DESCRIPTOR message: {} on connection {}", message.getFileInfo().getRelativePath(), connectionId);
+
+        if (session.isDryRun()) {
+            log.debug("[SERVER] Dry run: Would create file {}", message.getFileInfo().getRelativePath());
+        }
+        connection.sendMessage(FileDescriptorAckMessage.ready(message.getFileInfo().getRelativePath()));
+    }
+
+    @Override
+    public void handleFileData(TcpConnection connection, ClientSession session, FileDataMessage message) throws IOException {
+        if (session.isDryRun()) {
+            return;
+        }
+
+        int connectionId = connection.getConnectionId();
+        var fileInfo = session.getCurrentFile(connectionId);
+        if (fileInfo == null || fileInfo.getRelativePath() == null) {
+            throw new RuntimeException("No file info found for connection " + connectionId);
+        }
+        log.debug("[SERVER] Received FILE_DATA message for {} on connection {} (block {} of {}, {} bytes)", fileInfo.getRelativePath(), connectionId, message.getBlockNumber() + 1, message.getTotalBlocks(), message.getData().length);
+
+        File file = getSnapshot(session).directory.resolve(fileInfo.getRelativePath()).toFile();
+        writeBlock(connection, session, file, message);
+    }
+
+    @Override
+    public void handleFileEnd(TcpConnection connection, ClientSession session, FileEndMessage message) throws IOException {
+        int connectionId = connection.getConnectionId();
+        var fileInfo = message.getFileInfo() != null ? message.getFileInfo() : session.getCurrentFile(connectionId);
+        if (fileInfo == null) {
+            log.error("[SERVER] No file info found for connection {}", connectionId);
+            connection.sendMessage(FileEndAckMessage.failure(message.getRelativePath(), "No file info found"));
+            return;
+        }
+        log.debug("[SERVER] Received FILE_END message for {} on connection {}", fileInfo.getRelativePath(), connectionId);
+
+        storeFile(connection, session, fileInfo);
+    }
+
+    @Override
+    public void handleSyncEnd(TcpConnection connection, ClientSession session, SyncEndMessage message) throws IOException {
+        var snapshot = snapshots.remove(session.getSessionId());
+        pendingMoves.remove(session.getSessionId());
+        if (snapshot != null && session.isBackup() && !session.isDryRun()) {
+            var completed = snapshot.directory.resolveSibling(snapshot.name);
+            Files.move(snapshot.directory, completed, StandardCopyOption.ATOMIC_MOVE);
+            log.info("[SERVER] Completed snapshot {}", completed);
+        }
+        super.handleSyncEnd(connection, session, message);
+    }
+
+    @Override
+    public void releaseSession(ClientSession session) {
+        super.releaseSession(session);
+        // The partial snapshot of an interrupted backup is left as it is
+        snapshots.remove(session.getSessionId());
+        pendingMoves.remove(session.getSessionId());
+    }
+
+    /**
+     * The snapshot used by a session.
+     */
+    private static final class Snapshot {
+        private final String name;
+        private final Path directory;
+
+        private Snapshot(String name, Path directory) {
+            this.name = name;
+            this.directory = directory;
+        }
+    }
+}
@@ -5,6 +5,7 @@ import org.kendar.sync.lib.network.TcpConnection;
 import org.kendar.sync.lib.protocol.*;
 import org.kendar.sync.lib.twoway.ConflictItem;
 import org.kendar.sync.lib.twoway.LogEntry;
+import org.kendar.sync.lib.twoway.MerkleTree;
 import org.kendar.sync.lib.twoway.StatusAnalyzer;
 import org.kendar.sync.lib.utils.FileUtils;
 import org.kendar.sync.server.server.ClientSession;
@@ -12,21 +13,18 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.FileTime;
 import java.time.Instant;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Optional;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 
 public class SyncBackupHandler extends BackupHandler {
     private static final Logger log = LoggerFactory.getLogger(SyncBackupHandler.class);
-    private StatusAnalyzer statusAnalyzer;
+    private final Map<UUID, Analysis> analyses = new ConcurrentHashMap<>();
 
 
     @Override
@@ -77,12 +75,7 @@ public class SyncBackupHandler extends BackupHandler {
             relativePath = message.getRelativePath();
         }
         File file = new File(session.getFolder().getRealPath(), relativePath);
-        //noinspection ResultOfMethodCallIgnored
-        file.getParentFile().mkdirs();
-        try (FileOutputStream fos = new FileOutputStream(file, message.isFirstBlock())) {
-            fos.write(message.getData());
-        }
-        message.isLastBlock();
+        writeBlock(connection, session, file, message);
     }
 
     @Override
@@ -105,12 +98,16 @@ public class SyncBackupHandler extends BackupHandler {
             log.debug("[SERVER] 4 Received FILE_END message for {} on connection {}", message.getRelativePath(), connectionId);
         }
 
-        var realPath = Path.of(session.getFolder().getRealPath() + File.separator + fileInfo.getRelativePath());
-        var attr = Files.readAttributes(realPath, BasicFileAttributes.class);
-        FileUtils.writeFileAttributes(realPath,fileInfo.getExtendedUmask(),attr);
-        FileUtils.setFileTimes(realPath.toFile(),fileInfo.getCreationTime(), fileInfo.getModificationTime());
+        storeFile(connection, session, fileInfo);
+    }
 
-        connection.sendMessage(FileEndAckMessage.success(fileInfo.getRelativePath()));
+    /**
+     * Two-way sync folders track their changes in the operation log, the content
+     * hashes are verified during the transfers but not stored.
+     */
+    @Override
+    protected HashCatalog getHashCatalog(ClientSession session) {
+        return null;
     }
 
     @Override
@@ -118,32 +115,71 @@ public class SyncBackupHandler extends BackupHandler {
         return Path.of(session.getFolder().getRealPath(), fileInfo.getRelativePath());
     }
 
+    /**
+     * Compares the directory hashes of the client with the ones of the folder. The folder
+     * is analyzed at the first message of the session, the file sync message that follows
+     * uses the same analysis.
+     */
+    @Override
+    public void handleSyncTree(TcpConnection connection, ClientSession session, SyncTreeMessage message) throws IOException {
+        var analysis = analyses.get(session.getSessionId());
+        if (analysis == null) {
+            var statusAnalyzer = new StatusAnalyzer(session.getFolder().getRealPath());
+            statusAnalyzer.analyze();
+            analysis = new Analysis(statusAnalyzer, statusAnalyzer.buildTree());
+            analyses.put(session.getSessionId(), analysis);
+        }
+        var tree = analysis.tree;
+        var differences = new LinkedHashMap<String, List<String>>();
+        for (var entry : message.getHashes().entrySet()) {
+            if (!Objects.equals(entry.getValue(), tree.getHash(entry.getKey()))) {
+                differences.put(entry.getKey(), tree.getChildren(entry.getKey()));
+            }
+        }
+        log.debug("[SERVER] {} of {} directories differ", differences.size(), message.getHashes().size());
+        connection.sendMessage(new SyncTreeResponseMessage(differences));
+    }
+
+    @Override
+    public void handleSyncEnd(TcpConnection connection, ClientSession session, SyncEndMessage message) throws IOException {
+        analyses.remove(session.getSessionId());
+        super.handleSyncEnd(connection, session, message);
+    }
+
+    @Override
+    public void releaseSession(ClientSession session) {
+        super.releaseSession(session);
+        analyses.remove(session.getSessionId());
+    }
+
     @Override
     public void handleFileSync(TcpConnection connection, ClientSession session, FileSyncMessage message) {
-        try {
+        StatusAnalyzer statusAnalyzer;
+        List<LogEntry> localChanges = List.of();
+        var analysis = analyses.remove(session.getSessionId());
+        if (analysis != null) {
+            statusAnalyzer = analysis.statusAnalyzer;
+        } else {
             statusAnalyzer = new StatusAnalyzer(session.getFolder().getRealPath());
-            var localChanges = statusAnalyzer.analyze();
+        }
+        try {
+            if (analysis == null) {
+                localChanges = statusAnalyzer.analyze();
+            }
             var localLastUpdateTime = statusAnalyzer.getLastUpdateTime();
             if (localLastUpdateTime.isEmpty()) {
                 localLastUpdateTime = Optional.of(Instant.now()); //TODO
             }
             var remoteChanges = message.getChanges().stream().collect(Collectors.
                     toMap(LogEntry::getRelativePath, c -> c));
-            var result = statusAnalyzer.compare(remoteChanges);
+            var directories = message.getDirectories() == null ? null : new HashSet<>(message.getDirectories());
+            var result = statusAnalyzer.compare(remoteChanges, directories);
             var conflictFiles = result.getConflicts().stream().map(ConflictItem::getRelativePath).collect(Collectors.joining("\n"));
-            Files.writeString(Path.of(session.getFolder().getRealPath(), ".conflicts.log"), conflictFiles);
+            Files.writeString(Path.of(session.getFolder().getRealPath(), StatusAnalyzer.CONFLICTS_LOG), conflictFiles);
 
-            for (var delete : result.getFilesToDelete()) {
-                var pathToDelete = Path.of(session.getFolder().getRealPath(), delete);
-                if (Files.exists(pathToDelete)) {
-                    Files.delete(pathToDelete);
-                }
-            }
-            var filesToRemoveRemote = new ArrayList<String>();
-            for (var delete : result.getFilesToDeleteRemote()) {
-                var pathToDelete = Path.of(session.getFolder().getRealPath(), delete);
-                filesToRemoveRemote.add(delete);
-            }
+            deleteStoredFiles(session, result.getFilesToDelete().stream()
+                    .map(FileUtils::makeUniformPath).collect(Collectors.toList()));
+            var filesToRemoveRemote = new ArrayList<String>(result.getFilesToDeleteRemote());
 
             List<FileInfo> filesToSend = new ArrayList<>();
             for (var file : result.getFilesToUpdate()) {
@@ -197,4 +233,18 @@ public class SyncBackupHandler extends BackupHandler {
             }
         }
     }
+
+    /**
+     * The analysis of the folder made for the directory hashes of a session, used
+     * by its file sync.
+     */
+    private static final class Analysis {
+        private final StatusAnalyzer statusAnalyzer;
+        private final MerkleTree tree;
+
+        private Analysis(StatusAnalyzer statusAnalyzer, MerkleTree tree) {
+            this.statusAnalyzer = statusAnalyzer;
+            this.tree = tree;
+        }
+    }
 }
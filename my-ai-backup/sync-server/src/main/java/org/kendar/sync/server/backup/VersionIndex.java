@@ -0,0 +1,208 @@
+package org.kendar.sync.server.backup;
+
+import org.kendar.sync.lib.utils.FileUtils;
+import org.kendar.sync.server.replication.ReplicationJournal;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * Stores the versions of the files of a date separated backup folder.
+ * <p>
+ * Every version of a file is stored in a directory named after its date, so the index
+ * maps the path relative to the date directory to the sorted dates where it is stored.
+ * The files found in the root of the folder, outside the date directories, have the
+ * {@link #UNDATED} version, older than any date.
+ * The index is an append-only log kept in the root of the folder, one line per
+ * version: {@code version TAB path}. A missing index is built from the folder content,
+ * the versions moved by the tiering into a {@link VersionPack} included.
+ */
+public class VersionIndex {
+    public static final String INDEX_FILE = ".sync-versions";
+    public static final String UNDATED = "";
+    private static final Logger log = LoggerFactory.getLogger(VersionIndex.class);
+    private static final Pattern DATE_DIRECTORY = Pattern.compile("\\d{4}-\\d{2}-\\d{2}");
+    private static final String UNDATED_LINE = ".";
+
+    private final Path root;
+    private final Path file;
+    private final Map<String, TreeSet<String>> versions = new HashMap<>();
+    private final VersionPacks packs;
+
+    private VersionIndex(Path root) {
+        this.root = root;
+        this.file = root.resolve(INDEX_FILE);
+        this.packs = new VersionPacks(root);
+    }
+
+    /**
+     * Loads the index of a folder, building it if missing.
+     *
+     * @param root The folder real path
+     * @return The index
+     * @throws IOException If an I/O error occurs
+     */
+    public static VersionIndex load(Path root) throws IOException {
+        var index = new VersionIndex(root);
+        if (Files.exists(index.file)) {
+            for (var line : Files.readAllLines(index.file, StandardCharsets.UTF_8)) {
+                var parts = line.split("\t", 2);
+                if (parts.length < 2) {
+                    log.warn("[SERVER] Invalid version index line in {}: {}", index.file, line);
+                    continue;
+                }
+                index.add(parts[1], UNDATED_LINE.equals(parts[0]) ? UNDATED : parts[0]);
+            }
+        } else {
+            index.rebuild();
+        }
+        return index;
+    }
+
+    /**
+     * Checks if a directory name is a version date.
+     *
+     * @param name The directory name
+     * @return True if it is a date directory
+     */
+    public static boolean isDateDirectory(String name) {
+        return DATE_DIRECTORY.matcher(name).matches();
+    }
+
+    /**
+     * Gets the real path of a version of a file.
+     *
+     * @param root    The folder real path
+     * @param path    The path relative to the date directory
+     * @param version The version date, or {@link #UNDATED}
+     * @return The path of the stored file
+     */
+    public static Path resolve(Path root, String path, String version) {
+        return UNDATED.equals(version) ? root.resolve(path) : root.resolve(version).resolve(path);
+    }
+
+    private static boolean isMetadata(String relative) {
+        return relative.equals(INDEX_FILE) || relative.equals(INDEX_FILE + ".tmp") ||
+                relative.equals(HashCatalog.CATALOG_FILE) || relative.equals(HashCatalog.CATALOG_FILE + ".tmp") ||
+                relative.startsWith(VersionPack.DIRECTORY + "/") ||
+                relative.startsWith(ReplicationJournal.DIRECTORY + "/");
+    }
+
+    /**
+     * Gets the packs of the folder.
+     *
+     * @return The packs holding the cold versions
+     */
+    public VersionPacks getPacks() {
+        return packs;
+    }
+
+    private boolean add(String path, String version) {
+        return versions.computeIfAbsent(path, k -> new TreeSet<>()).add(version);
+    }
+
+    /**
+     * Gets the latest version of a file.
+     *
+     * @param path The path relative to the date directory
+     * @return The version, or null if the file is not stored
+     */
+    public synchronized String latest(String path) {
+        var fileVersions = versions.get(path);
+        return fileVersions == null ? null : fileVersions.last();
+    }
+
+    /**
+     * Gets the version of a file at a point in time.
+     *
+     * @param path        The path relative to the date directory
+     * @param pointInTime The date, in the yyyy-MM-dd format
+     * @return The latest version not after the date, or null if there is none
+     */
+    public synchronized String at(String path, String pointInTime) {
+        var fileVersions = versions.get(path);
+        return fileVersions == null ? null : fileVersions.floor(pointInTime);
+    }
+
+    /**
+     * Gets the version of every file at a point in time.
+     *
+     * @param pointInTime The date, in the yyyy-MM-dd format, or null for the latest versions
+     * @return The versions by path, without the files not stored yet at that time
+     */
+    public synchronized Map<String, String> versions(String pointInTime) {
+        var result = new HashMap<String, String>();
+        for (var entry : versions.entrySet()) {
+            var version = pointInTime == null ? entry.getValue().last() : entry.getValue().floor(pointInTime);
+            if (version != null) {
+                result.put(entry.getKey(), version);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Stores a version of a file.
+     *
+     * @param path    The path relative to the date directory
+     * @param version The version date
+     * @throws IOException If an I/O error occurs
+     */
+    public synchronized void put(String path, String version) throws IOException {
+        if (!add(path, version)) return;
+        Files.createDirectories(file.getParent());
+        Files.writeString(file, (UNDATED.equals(version) ? UNDATED_LINE : version) + "\t" + path + "\n",
+                StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Rebuilds the index from the files of the folder, when it is missing or no
+     * longer matches the folder content.
+     *
+     * @throws IOException If an I/O error occurs
+     */
+    public synchronized void rebuild() throws IOException {
+        versions.clear();
+        if (!Files.isDirectory(root)) return;
+        try (var walk = Files.walk(root)) {
+            for (var stored : walk.filter(Files::isRegularFile).collect(Collectors.toList())) {
+                var relative = FileUtils.makeUniformPath(root.relativize(stored).toString());
+                if (isMetadata(relative)) continue;
+                var slash = relative.indexOf('/');
+                if (slash > 0 && isDateDirectory(relative.substring(0, slash))) {
+                    add(relative.substring(slash + 1), relative.substring(0, slash));
+                } else {
+                    add(relative, UNDATED);
+                }
+            }
+        }
+        for (var date : VersionPack.listDates(root)) {
+            for (var entry : packs.get(date).getEntries()) {
+                add(entry.getPath(), date);
+            }
+        }
+
+        var content = new StringBuilder();
+        for (var entry : versions.entrySet()) {
+            for (var version : entry.getValue()) {
+                content.append(UNDATED.equals(version) ? UNDATED_LINE : version)
+                        .append('\t').append(entry.getKey()).append('\n');
+            }
+        }
+        var temp = file.resolveSibling(INDEX_FILE + ".tmp");
+        Files.writeString(temp, content.toString(), StandardCharsets.UTF_8);
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        log.debug("[SERVER] Rebuilt the version index of {} with {} files", root, versions.size());
+    }
+}
@@ -0,0 +1,365 @@
+package org.kendar.sync.server.backup;
+
+import org.kendar.sync.lib.utils.Attributes;
+import org.kendar.sync.lib.utils.BlockCodec;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.time.Instant;
+import java.util.*;
+
+/**
+ * The cold versions of a date directory of a date separated folder, packed in a single file.
+ * <p>
+ * The tiering moves the files of the old date directories into the {@link #DIRECTORY} of
+ * the folder, one pack per date, to save the inodes and the overhead of the small files.
+ * The files are stored one after the other as blocks compressed when smaller, the same
+ * blocks of the {@link CompressedBlockFile}, followed by the index and a fixed size trailer:
+ * - int: number of files
+ * - per file: UTF path, long creation millis, long modification millis, int extended umask,
+ *   UTF content hash ("" when unknown), int number of blocks, and per block byte flags
+ *   (1 when compressed), int stored length, int raw length
+ * - long: offset of the index
+ * - long: {@link #MAGIC}
+ * Only the index is read to find a file, the blocks of a single file are then read directly.
+ */
+public class VersionPack {
+    /**
+     * The directory of the packs, inside the folder.
+     */
+    public static final String DIRECTORY = ".sync-packs";
+    /**
+     * "SYNCPACK", the last bytes of the file.
+     */
+    public static final long MAGIC = 0x53594e435041434bL;
+    static final int BLOCK_SIZE = 1024 * 1024;
+    private static final String EXTENSION = ".pack";
+    private static final int TRAILER_SIZE = 8 + 8;
+    private static final int FLAG_COMPRESSED = 0x01;
+
+    private final Path path;
+    private final Map<String, Entry> entries = new LinkedHashMap<>();
+
+    private VersionPack(Path path) {
+        this.path = path;
+    }
+
+    /**
+     * Gets the pack of a date directory.
+     *
+     * @param root The folder real path
+     * @param date The date directory name
+     * @return The path of the pack, existing or not
+     */
+    public static Path locate(Path root, String date) {
+        return root.resolve(DIRECTORY).resolve(date + EXTENSION);
+    }
+
+    /**
+     * Lists the dates with a pack.
+     *
+     * @param root The folder real path
+     * @return The dates, sorted
+     * @throws IOException If an I/O error occurs
+     */
+    public static SortedSet<String> listDates(Path root) throws IOException {
+        var result = new TreeSet<String>();
+        var directory = root.resolve(DIRECTORY);
+        if (!Files.isDirectory(directory)) {
+            return result;
+        }
+        try (var files = Files.newDirectoryStream(directory, "*" + EXTENSION)) {
+            for (var file : files) {
+                var name = file.getFileName().toString();
+                var date = name.substring(0, name.length() - EXTENSION.length());
+                if (VersionIndex.isDateDirectory(date)) {
+                    result.add(date);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Reads the index of a pack.
+     *
+     * @param path The pack file
+     * @return The pack, or null if missing
+     * @throws IOException If the pack is not valid
+     */
+    public static VersionPack read(Path path) throws IOException {
+        if (!Files.isRegularFile(path)) {
+            return null;
+        }
+        try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            var fileLength = channel.size();
+            if (fileLength < TRAILER_SIZE) {
+                throw new IOException("Invalid pack " + path);
+            }
+            var trailer = ByteBuffer.allocate(TRAILER_SIZE);
+            while (trailer.hasRemaining()) {
+                if (channel.read(trailer, fileLength - TRAILER_SIZE + trailer.position()) < 0) {
+                    throw new EOFException();
+                }
+            }
+            trailer.flip();
+            var indexOffset = trailer.getLong();
+            if (trailer.getLong() != MAGIC || indexOffset < 0 || indexOffset > fileLength - TRAILER_SIZE) {
+                throw new IOException("Invalid pack " + path);
+            }
+            var indexLength = fileLength - TRAILER_SIZE - indexOffset;
+            if (indexLength > Integer.MAX_VALUE) {
+                throw new IOException("Invalid pack " + path);
+            }
+            var index = ByteBuffer.allocate((int) indexLength);
+            while (index.hasRemaining()) {
+                if (channel.read(index, indexOffset + index.position()) < 0) {
+                    throw new EOFException();
+                }
+            }
+            var result = new VersionPack(path);
+            var input = new DataInputStream(new ByteArrayInputStream(index.array()));
+            var offset = 0L;
+            var count = input.readInt();
+            for (var i = 0; i < count; i++) {
+                var filePath = input.readUTF();
+                var creationTime = Instant.ofEpochMilli(input.readLong());
+                var modificationTime = Instant.ofEpochMilli(input.readLong());
+                var extendedUmask = input.readInt();
+                var hash = input.readUTF();
+                var blockCount = input.readInt();
+                // The blocks of a file follow the ones of the previous file
+                var blocks = new CompressedBlockFile(offset);
+                for (var j = 0; j < blockCount; j++) {
+                    var flags = input.readByte();
+                    blocks.add(input.readInt(), input.readInt(), (flags & FLAG_COMPRESSED) != 0);
+                }
+                offset += blocks.getLength();
+                result.entries.put(filePath, new Entry(path, filePath, creationTime, modificationTime, extendedUmask,
+                        hash.isEmpty() ? null : hash, blocks));
+            }
+            if (offset != indexOffset) {
+                throw new IOException("Invalid pack index " + path);
+            }
+            return result;
+        }
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    /**
+     * Gets a file of the pack.
+     *
+     * @param filePath The path relative to the date directory
+     * @return The file, or null if not in the pack
+     */
+    public Entry get(String filePath) {
+        return entries.get(filePath);
+    }
+
+    public Collection<Entry> getEntries() {
+        return Collections.unmodifiableCollection(entries.values());
+    }
+
+    /**
+     * A file of a pack.
+     */
+    public static class Entry {
+        private final Path pack;
+        private final String path;
+        private final Instant creationTime;
+        private final Instant modificationTime;
+        private final int extendedUmask;
+        private final String hash;
+        private final CompressedBlockFile blocks;
+
+        private Entry(Path pack, String path, Instant creationTime, Instant modificationTime, int extendedUmask,
+                      String hash, CompressedBlockFile blocks) {
+            this.pack = pack;
+            this.path = path;
+            this.creationTime = creationTime;
+            this.modificationTime = modificationTime;
+            this.extendedUmask = extendedUmask;
+            this.hash = hash;
+            this.blocks = blocks;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        /**
+         * Gets the pack holding the file.
+         *
+         * @return The pack file
+         */
+        public Path getPack() {
+            return pack;
+        }
+
+        /**
+         * Gets the content hash stored when packed.
+         *
+         * @return The hash, or null if unknown
+         */
+        public String getHash() {
+            return hash;
+        }
+
+        /**
+         * Gets the blocks of the file, with their offsets in the pack.
+         *
+         * @return The block index
+         */
+        public CompressedBlockFile getBlocks() {
+            return blocks;
+        }
+
+        /**
+         * Gets the attributes of the original file.
+         *
+         * @return The attributes, with the original size
+         */
+        public Attributes getAttributes() {
+            return new Attributes(extendedUmask, creationTime, modificationTime, blocks.getSize());
+        }
+    }
+
+    /**
+     * Writes a new pack to a temporary file, replacing the previous pack only when committed.
+     */
+    public static class Writer implements Closeable {
+        private final Path target;
+        private final Path temp;
+        private final FileChannel channel;
+        private final List<Entry> written = new ArrayList<>();
+        private long position;
+        private boolean committed;
+
+        /**
+         * Creates a new pack.
+         *
+         * @param target The pack file
+         * @throws IOException If an I/O error occurs
+         */
+        public Writer(Path target) throws IOException {
+            this.target = target;
+            this.temp = target.resolveSibling(target.getFileName() + ".tmp");
+            Files.createDirectories(target.getParent());
+            this.channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+        }
+
+        /**
+         * Adds a file, compressing its blocks. The files stored compressed at rest are
+         * added with their blocks as stored.
+         *
+         * @param filePath   The path relative to the date directory
+         * @param source     The file to add
+         * @param attributes The attributes of the file
+         * @param hash       The content hash, can be null
+         * @param compressed True if stored in the {@link CompressedBlockFile} format
+         * @throws IOException If an I/O error occurs
+         */
+        public void add(String filePath, Path source, Attributes attributes, String hash,
+                        boolean compressed) throws IOException {
+            var atRest = compressed ? CompressedBlockFile.read(source) : null;
+            if (atRest != null) {
+                copy(source, atRest, new Entry(target, filePath, attributes.getCreationTime(),
+                        attributes.getModificationTime(), attributes.getExtendedUmask(), hash, atRest));
+                return;
+            }
+            var blocks = new CompressedBlockFile(position);
+            try (var input = Files.newInputStream(source)) {
+                byte[] data;
+                while ((data = input.readNBytes(BLOCK_SIZE)).length > 0) {
+                    var deflated = BlockCodec.deflate(data);
+                    var useCompressed = deflated.length < data.length;
+                    var stored = useCompressed ? deflated : data;
+                    write(stored);
+                    blocks.add(stored.length, data.length, useCompressed);
+                }
+            }
+            if (blocks.getBlocks().isEmpty()) {
+                // Empty files are sent as a single empty block
+                blocks.add(0, 0, false);
+            }
+            written.add(new Entry(target, filePath, attributes.getCreationTime(), attributes.getModificationTime(),
+                    attributes.getExtendedUmask(), hash, blocks));
+        }
+
+        /**
+         * Copies a file of another pack, without decompressing it.
+         *
+         * @param from  The pack holding the file
+         * @param entry The file
+         * @throws IOException If an I/O error occurs
+         */
+        public void copy(VersionPack from, Entry entry) throws IOException {
+            copy(from.getPath(), entry.getBlocks(), entry);
+        }
+
+        private void copy(Path file, CompressedBlockFile index, Entry entry) throws IOException {
+            var blocks = new CompressedBlockFile(position);
+            try (var source = FileChannel.open(file, StandardOpenOption.READ)) {
+                for (var block : index.getBlocks()) {
+                    write(CompressedBlockFile.readBlock(source, block));
+                    blocks.add(block.getStoredLength(), block.getRawLength(), block.isCompressed());
+                }
+            }
+            written.add(new Entry(target, entry.path, entry.creationTime, entry.modificationTime, entry.extendedUmask,
+                    entry.hash, blocks));
+        }
+
+        private void write(byte[] data) throws IOException {
+            var buffer = ByteBuffer.wrap(data);
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer);
+            }
+        }
+
+        /**
+         * Writes the index and replaces the previous pack.
+         *
+         * @throws IOException If an I/O error occurs
+         */
+        public void commit() throws IOException {
+            var index = new ByteArrayOutputStream();
+            try (var output = new DataOutputStream(index)) {
+                output.writeInt(written.size());
+                for (var entry : written) {
+                    output.writeUTF(entry.path);
+                    output.writeLong(entry.creationTime.toEpochMilli());
+                    output.writeLong(entry.modificationTime.toEpochMilli());
+                    output.writeInt(entry.extendedUmask);
+                    output.writeUTF(entry.hash == null ? "" : entry.hash);
+                    output.writeInt(entry.blocks.getBlocks().size());
+                    for (var block : entry.blocks.getBlocks()) {
+                        output.writeByte(block.isCompressed() ? FLAG_COMPRESSED : 0);
+                        output.writeInt(block.getStoredLength());
+                        output.writeInt(block.getRawLength());
+                    }
+                }
+                output.writeLong(position);
+                output.writeLong(MAGIC);
+            }
+            write(index.toByteArray());
+            channel.force(true);
+            channel.close();
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            committed = true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+            if (!committed) {
+                Files.deleteIfExists(temp);
+            }
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package org.kendar.sync.server.backup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps the indexes of the {@link VersionPack} files of a folder, read again when the
+ * tiering replaces a pack.
+ */
+public class VersionPacks {
+    private final Path root;
+    private final Map<String, Cached> packs = new ConcurrentHashMap<>();
+
+    public VersionPacks(Path root) {
+        this.root = root;
+    }
+
+    /**
+     * Gets the pack of a date directory.
+     *
+     * @param date The date directory name
+     * @return The pack, or null if the date is not packed
+     * @throws IOException If the pack is not valid
+     */
+    public VersionPack get(String date) throws IOException {
+        if (VersionIndex.UNDATED.equals(date)) {
+            return null;
+        }
+        var path = VersionPack.locate(root, date);
+        if (!Files.isRegularFile(path)) {
+            packs.remove(date);
+            return null;
+        }
+        var modified = Files.getLastModifiedTime(path).toMillis();
+        var size = Files.size(path);
+        var cached = packs.get(date);
+        if (cached == null || cached.modified != modified || cached.size != size) {
+            cached = new Cached(VersionPack.read(path), modified, size);
+            packs.put(date, cached);
+        }
+        return cached.pack;
+    }
+
+    /**
+     * Finds a version of a file moved into a pack.
+     *
+     * @param path    The path relative to the date directory
+     * @param version The version date
+     * @return The packed file, or null if stored as a plain file
+     * @throws IOException If the pack is not valid
+     */
+    public VersionPack.Entry find(String path, String version) throws IOException {
+        if (Files.exists(VersionIndex.resolve(root, path, version))) {
+            // Written again after the packing, newer than the packed copy
+            return null;
+        }
+        var pack = get(version);
+        return pack == null ? null : pack.get(path);
+    }
+
+    private static class Cached {
+        private final VersionPack pack;
+        private final long modified;
+        private final long size;
+
+        private Cached(VersionPack pack, long modified, long size) {
+            this.pack = pack;
+            this.modified = modified;
+            this.size = size;
+        }
+    }
+}
@@ -0,0 +1,252 @@
+package org.kendar.sync.server.cluster;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.kendar.sync.server.server.FolderJobQueue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntSupplier;
+
+/**
+ * Coordinates the sync servers sharing a directory on a common storage.
+ * <p>
+ * Every node publishes its address and load in a heartbeat file of the nodes directory.
+ * The owner of a folder is the live node with the highest hash of node and folder
+ * (rendezvous hashing): the nodes agree on it without talking to each other, and when
+ * a node goes down only its folders are moved. The folder locks are files created
+ * atomically in the locks directory and name the node holding them. Only the owner
+ * locks a folder, so the lock of a node without heartbeats is taken over by a single
+ * node, the new owner.
+ */
+public class ClusterCoordinator implements FolderJobQueue.SharedLock, AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(ClusterCoordinator.class);
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    private final Path nodesDir;
+    private final Path locksDir;
+    private final ClusterNode self;
+    private final long heartbeatMillis;
+    private final long nodeTimeoutMillis;
+    private final IntSupplier load;
+    private final Set<String> heldLocks = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * Creates a new coordinator.
+     *
+     * @param directory          The directory shared by the nodes
+     * @param self               This node
+     * @param heartbeatSeconds   The interval between the heartbeats of this node
+     * @param nodeTimeoutSeconds The time without heartbeats after which a node is down
+     * @param load               Supplies the number of active sessions of this node
+     * @throws IOException If the shared directory is not accessible
+     */
+    public ClusterCoordinator(Path directory, ClusterNode self, int heartbeatSeconds,
+                              int nodeTimeoutSeconds, IntSupplier load) throws IOException {
+        this.nodesDir = directory.resolve("nodes");
+        this.locksDir = directory.resolve("locks");
+        this.self = self;
+        this.heartbeatMillis = Math.max(1, heartbeatSeconds) * 1000L;
+        this.nodeTimeoutMillis = Math.max(heartbeatSeconds * 2, nodeTimeoutSeconds) * 1000L;
+        this.load = load;
+        Files.createDirectories(nodesDir);
+        Files.createDirectories(locksDir);
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            var thread = new Thread(r, "cluster-heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Publishes the first heartbeat and starts the periodic ones.
+     */
+    public void start() {
+        heartbeat();
+        scheduler.scheduleAtFixedRate(this::heartbeat, heartbeatMillis, heartbeatMillis, TimeUnit.MILLISECONDS);
+        log.info("[SERVER] Cluster node {} started on {}:{}", self.getNodeId(), self.getAddress(), self.getPort());
+    }
+
+    /**
+     * Publishes the heartbeat of this node, replacing the previous one atomically.
+     */
+    public void heartbeat() {
+        try {
+            self.setSessions(load.getAsInt());
+            self.setLastSeen(System.currentTimeMillis());
+            var target = nodesDir.resolve(fileName(self.getNodeId()) + ".json");
+            var temp = nodesDir.resolve(fileName(self.getNodeId()) + ".tmp");
+            mapper.writeValue(temp.toFile(), self);
+            try {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            log.warn("[SERVER] Unable to publish the heartbeat of {}: {}", self.getNodeId(), e.getMessage());
+        }
+    }
+
+    /**
+     * Gets the nodes that sent a heartbeat recently, this node included.
+     *
+     * @return The live nodes, sorted by identifier
+     */
+    public List<ClusterNode> getLiveNodes() {
+        var result = new TreeMap<String, ClusterNode>();
+        var now = System.currentTimeMillis();
+        try (var files = Files.newDirectoryStream(nodesDir, "*.json")) {
+            for (var file : files) {
+                try {
+                    var node = mapper.readValue(file.toFile(), ClusterNode.class);
+                    if (now - node.getLastSeen() <= nodeTimeoutMillis) {
+                        result.put(node.getNodeId(), node);
+                    }
+                } catch (IOException e) {
+                    log.debug("[SERVER] Unreadable heartbeat {}: {}", file, e.getMessage());
+                }
+            }
+        } catch (IOException e) {
+            log.warn("[SERVER] Unable to list the cluster nodes: {}", e.getMessage());
+        }
+        // This node is alive even if the shared storage hides its heartbeat
+        result.putIfAbsent(self.getNodeId(), self);
+        return new ArrayList<>(result.values());
+    }
+
+    /**
+     * Gets the live node owning a folder.
+     *
+     * @param folder The folder virtual name
+     * @return The owner
+     */
+    public ClusterNode getOwner(String folder) {
+        ClusterNode owner = null;
+        long best = 0;
+        for (var node : getLiveNodes()) {
+            var weight = weight(node.getNodeId(), folder);
+            if (owner == null || Long.compareUnsigned(weight, best) > 0) {
+                owner = node;
+                best = weight;
+            }
+        }
+        return owner;
+    }
+
+    /**
+     * Checks if a node is this one.
+     *
+     * @param node The node
+     * @return True if local
+     */
+    public boolean isLocal(ClusterNode node) {
+        return node != null && self.getNodeId().equals(node.getNodeId());
+    }
+
+    public ClusterNode getSelf() {
+        return self;
+    }
+
+    @Override
+    public boolean tryLock(String folder) throws IOException {
+        var lock = locksDir.resolve(fileName(folder) + ".lock");
+        for (var attempt = 0; attempt < 2; attempt++) {
+            try {
+                Files.writeString(lock, self.getNodeId(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+                heldLocks.add(folder);
+                return true;
+            } catch (FileAlreadyExistsException e) {
+                var holder = readHolder(lock);
+                if (self.getNodeId().equals(holder)) {
+                    // Left by a previous run of this node
+                    heldLocks.add(folder);
+                    return true;
+                }
+                if (holder == null || isAlive(holder)) {
+                    return false;
+                }
+                log.warn("[SERVER] Taking over the lock of {} held by the node {}", folder, holder);
+                Files.deleteIfExists(lock);
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void unlock(String folder) {
+        if (!heldLocks.remove(folder)) {
+            return;
+        }
+        var lock = locksDir.resolve(fileName(folder) + ".lock");
+        try {
+            if (self.getNodeId().equals(readHolder(lock))) {
+                Files.deleteIfExists(lock);
+            }
+        } catch (IOException e) {
+            log.warn("[SERVER] Unable to release the lock of {}: {}", folder, e.getMessage());
+        }
+    }
+
+    /**
+     * Stops the heartbeats, releases the locks and leaves the cluster.
+     */
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+        for (var folder : new ArrayList<>(heldLocks)) {
+            unlock(folder);
+        }
+        try {
+            Files.deleteIfExists(nodesDir.resolve(fileName(self.getNodeId()) + ".json"));
+        } catch (IOException e) {
+            log.warn("[SERVER] Unable to remove the heartbeat of {}: {}", self.getNodeId(), e.getMessage());
+        }
+    }
+
+    private boolean isAlive(String nodeId) {
+        return getLiveNodes().stream().anyMatch(node -> node.getNodeId().equals(nodeId));
+    }
+
+    /**
+     * Reads the node holding a lock.
+     *
+     * @return The node identifier, "" if the lock disappeared, null if still being written
+     */
+    private String readHolder(Path lock) throws IOException {
+        try {
+            var holder = Files.readString(lock).trim();
+            return holder.isEmpty() ? null : holder;
+        } catch (NoSuchFileException e) {
+            return "";
+        }
+    }
+
+    private static String fileName(String name) {
+        return URLEncoder.encode(name, StandardCharsets.UTF_8);
+    }
+
+    private static long weight(String nodeId, String folder) {
+        try {
+            var digest = MessageDigest.getInstance("SHA-256")
+                    .digest((nodeId + "\n" + folder).getBytes(StandardCharsets.UTF_8));
+            var result = 0L;
+            for (var i = 0; i < 8; i++) {
+                result = (result << 8) | (digest[i] & 0xFF);
+            }
+            return result;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package org.kendar.sync.server.cluster;
+
+/**
+ * The heartbeat of a node of the cluster, with its address and load.
+ */
+public class ClusterNode {
+    private String nodeId;
+    private String address;
+    private int port;
+    private int sessions;
+    private long lastSeen;
+
+    // Default constructor for Jackson
+    public ClusterNode() {
+    }
+
+    /**
+     * Creates a new node.
+     *
+     * @param nodeId  The node identifier
+     * @param address The address the clients use to reach the node
+     * @param port    The TCP port of the node
+     */
+    public ClusterNode(String nodeId, String address, int port) {
+        this.nodeId = nodeId;
+        this.address = address;
+        this.port = port;
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    public void setNodeId(String nodeId) {
+        this.nodeId = nodeId;
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    public void setAddress(String address) {
+        this.address = address;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public void setPort(int port) {
+        this.port = port;
+    }
+
+    /**
+     * Gets the number of sessions active on the node at the last heartbeat.
+     *
+     * @return The active sessions
+     */
+    public int getSessions() {
+        return sessions;
+    }
+
+    public void setSessions(int sessions) {
+        this.sessions = sessions;
+    }
+
+    /**
+     * Gets the time of the last heartbeat.
+     *
+     * @return The epoch milliseconds
+     */
+    public long getLastSeen() {
+        return lastSeen;
+    }
+
+    public void setLastSeen(long lastSeen) {
+        this.lastSeen = lastSeen;
+    }
+}
@@ -6,15 +6,20 @@ import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
 import java.io.IOException;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Configuration for the server.
+ * <p>
+ * The current settings are published as an immutable {@link SettingsSnapshot} through an
+ * atomic reference: readers never lock, writers build a new snapshot and swap it.
  */
 @Configuration
 public class ServerConfig {
+    private final AtomicReference<SettingsSnapshot> snapshot = new AtomicReference<>();
+    private final Object writeLock = new Object();
     @Value("${server.settings.file:settings.json}")
     private String settingsFile;
-    private ServerSettings serverSettings;
 
     /**
      * Creates a server settings bean.
@@ -24,20 +29,83 @@ public class ServerConfig {
      */
     @Bean
     public ServerSettings serverSettings() throws IOException {
-        if (serverSettings == null) {
-            serverSettings = ServerSettings.load(settingsFile);
+        return snapshot().getSettings();
+    }
+
+    /**
+     * Gets the current settings snapshot, loading it from the settings file the first time.
+     *
+     * @return The current snapshot
+     * @throws IOException If an I/O error occurs
+     */
+    public SettingsSnapshot snapshot() throws IOException {
+        var current = snapshot.get();
+        if (current != null) {
+            return current;
+        }
+        synchronized (writeLock) {
+            if (snapshot.get() == null) {
+                snapshot.set(SettingsSnapshot.of(ServerSettings.load(settingsFile)));
+            }
+            return snapshot.get();
         }
-        return serverSettings;
     }
 
     /**
-     * Reloads the server settings.
+     * Reloads the server settings from the settings file and publishes them.
      *
      * @return The reloaded server settings
      * @throws IOException If an I/O error occurs
      */
     public ServerSettings reloadSettings() throws IOException {
-        return ServerSettings.load(settingsFile);
+        synchronized (writeLock) {
+            var reloaded = SettingsSnapshot.of(ServerSettings.load(settingsFile));
+            snapshot.set(reloaded);
+            return reloaded.getSettings();
+        }
+    }
+
+    /**
+     * Applies a change to a copy of the current settings. When the change returns a
+     * result the settings are saved and published as a new snapshot, when it returns
+     * null nothing is modified. Changes are serialized, so no update is lost.
+     *
+     * @param change The change to apply
+     * @param <T>    The type of the result
+     * @return The result of the change
+     * @throws IOException If an I/O error occurs
+     */
+    public <T> T updateSettings(SettingsChange<T> change) throws IOException {
+        synchronized (writeLock) {
+            var settings = snapshot().copySettings();
+            var result = change.apply(settings);
+            if (result != null) {
+                if (settingsFile != null) {
+                    settings.save(settingsFile);
+                }
+                snapshot.set(SettingsSnapshot.of(settings));
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Replaces all the settings, saving and publishing them. Serialized with the other
+     * changes, so a concurrent update cannot overwrite it.
+     *
+     * @param settings The new settings
+     * @return The published settings
+     * @throws IOException If an I/O error occurs
+     */
+    public ServerSettings replaceSettings(ServerSettings settings) throws IOException {
+        synchronized (writeLock) {
+            if (settingsFile != null) {
+                settings.save(settingsFile);
+            }
+            var replaced = SettingsSnapshot.of(settings);
+            snapshot.set(replaced);
+            return replaced.getSettings();
+        }
     }
 
     /**
@@ -50,6 +118,16 @@ public class ServerConfig {
     }
 
     public void setServerSettings(ServerSettings serverSettings) {
-        this.serverSettings = serverSettings;
+        snapshot.set(SettingsSnapshot.of(serverSettings));
+    }
+
+    /**
+     * A change to the server settings.
+     *
+     * @param <T> The type of the result
+     */
+    @FunctionalInterface
+    public interface SettingsChange<T> {
+        T apply(ServerSettings settings) throws IOException;
     }
-}
\ No newline at end of file
+}
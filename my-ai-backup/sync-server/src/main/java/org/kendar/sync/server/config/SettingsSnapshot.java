@@ -0,0 +1,150 @@
+package org.kendar.sync.server.config;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.kendar.sync.lib.model.ServerSettings;
+
+import java.util.*;
+
+/**
+ * Immutable view of the server settings, indexed for the lookups done on every connection.
+ * <p>
+ * A snapshot owns a private deep copy of the settings: it is never modified after
+ * creation and can be read by any number of threads without locking. Changes are applied
+ * to a fresh copy (see {@link #copySettings()}) and published as a new snapshot.
+ */
+public final class SettingsSnapshot {
+    private static final ObjectMapper mapper = new ObjectMapper();
+    private final ServerSettings settings;
+    private final Map<String, ServerSettings.User> usersByName;
+    private final Map<String, ServerSettings.User> usersByLogin;
+    private final Map<String, ServerSettings.User> usersById;
+    private final Map<String, ServerSettings.BackupFolder> foldersByName;
+    private final Map<String, Set<String>> allowedUsersByFolder;
+
+    private SettingsSnapshot(ServerSettings settings) {
+        this.settings = settings;
+        var byName = new HashMap<String, ServerSettings.User>();
+        var byLogin = new HashMap<String, ServerSettings.User>();
+        var byId = new HashMap<String, ServerSettings.User>();
+        for (var user : settings.getUsers()) {
+            if (user.getUsername() != null) {
+                byName.putIfAbsent(user.getUsername(), user);
+                byLogin.putIfAbsent(user.getUsername().toLowerCase(Locale.ROOT), user);
+            }
+            if (user.getId() != null) {
+                byId.putIfAbsent(user.getId(), user);
+            }
+        }
+        var folders = new HashMap<String, ServerSettings.BackupFolder>();
+        var allowed = new HashMap<String, Set<String>>();
+        for (var folder : settings.getBackupFolders()) {
+            if (folder.getVirtualName() == null || folders.containsKey(folder.getVirtualName())) continue;
+            folders.put(folder.getVirtualName(), folder);
+            allowed.put(folder.getVirtualName(), folder.getAllowedUsers() == null ?
+                    Set.of() : Collections.unmodifiableSet(new HashSet<>(folder.getAllowedUsers())));
+        }
+        this.usersByName = Map.copyOf(byName);
+        this.usersByLogin = Map.copyOf(byLogin);
+        this.usersById = Map.copyOf(byId);
+        this.foldersByName = Map.copyOf(folders);
+        this.allowedUsersByFolder = Map.copyOf(allowed);
+    }
+
+    /**
+     * Creates a snapshot from the given settings. The settings are copied, later changes
+     * to the passed object are not visible in the snapshot.
+     *
+     * @param settings The settings
+     * @return The snapshot
+     */
+    public static SettingsSnapshot of(ServerSettings settings) {
+        return new SettingsSnapshot(deepCopy(settings));
+    }
+
+    private static ServerSettings deepCopy(ServerSettings settings) {
+        return mapper.convertValue(settings, ServerSettings.class);
+    }
+
+    /**
+     * Gets the settings held by the snapshot. They must be treated as read-only.
+     *
+     * @return The settings
+     */
+    public ServerSettings getSettings() {
+        return settings;
+    }
+
+    /**
+     * Creates a modifiable copy of the settings, to build the next snapshot.
+     *
+     * @return A deep copy of the settings
+     */
+    public ServerSettings copySettings() {
+        return deepCopy(settings);
+    }
+
+    /**
+     * Authenticates a user.
+     *
+     * @param username The username
+     * @param password The password
+     * @return The user if authentication is successful, or empty if not
+     */
+    public Optional<ServerSettings.User> authenticate(String username, String password) {
+        if (username == null) return Optional.empty();
+        var user = usersByName.get(username);
+        if (user == null || user.getPassword() == null || !user.getPassword().equals(password)) {
+            return Optional.empty();
+        }
+        return Optional.of(user);
+    }
+
+    /**
+     * Finds a user by id.
+     *
+     * @param userId The user ID
+     * @return The user, or empty if not found
+     */
+    public Optional<ServerSettings.User> getUserById(String userId) {
+        if (userId == null) return Optional.empty();
+        return Optional.ofNullable(usersById.get(userId));
+    }
+
+    /**
+     * Finds a user by login name, ignoring the case.
+     *
+     * @param username The username
+     * @return The user, or empty if not found
+     */
+    public Optional<ServerSettings.User> getUserByLogin(String username) {
+        if (username == null) return Optional.empty();
+        return Optional.ofNullable(usersByLogin.get(username.toLowerCase(Locale.ROOT)));
+    }
+
+    /**
+     * Finds a backup folder by virtual name.
+     *
+     * @param folderName The virtual folder name
+     * @return The backup folder, or empty if not found
+     */
+    public Optional<ServerSettings.BackupFolder> getFolder(String folderName) {
+        if (folderName == null) return Optional.empty();
+        return Optional.ofNullable(foldersByName.get(folderName));
+    }
+
+    /**
+     * Checks if a user has access to a backup folder.
+     *
+     * @param userId     The user ID
+     * @param folderName The virtual folder name
+     * @return The backup folder if the user has access, or empty if not
+     */
+    public Optional<ServerSettings.BackupFolder> getUserFolder(String userId, String folderName) {
+        if (folderName == null) return Optional.empty();
+        var allowed = allowedUsersByFolder.get(folderName);
+        if (allowed == null || !allowed.contains(userId)) {
+            return Optional.empty();
+        }
+        return Optional.of(foldersByName.get(folderName));
+    }
+}
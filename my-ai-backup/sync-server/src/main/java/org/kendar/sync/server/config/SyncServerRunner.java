@@ -9,7 +9,7 @@ import org.springframework.stereotype.Component;
 public class SyncServerRunner {
     private static boolean dryRun;
     private final ServerConfig serverConfig;
-    private Server server;
+    private volatile Server server;
 
     public SyncServerRunner(ServerConfig serverConfig) {
         this.serverConfig = serverConfig;
@@ -19,6 +19,15 @@ public class SyncServerRunner {
         SyncServerRunner.dryRun = dryRun;
     }
 
+    /**
+     * Gets the running TCP server.
+     *
+     * @return The server, or null if not started yet
+     */
+    public Server getServer() {
+        return server;
+    }
+
     @PostConstruct
     public void init() {
         new Thread(() -> {
@@ -0,0 +1,330 @@
+package org.kendar.sync.server.io;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Schedules the block writes of all the sessions on the devices that hold the backup folders.
+ * <p>
+ * Folders are grouped by their underlying {@link FileStore}. Every device runs at most
+ * a fixed number of concurrent writers, and picks the next block round-robin between the
+ * sessions that have pending writes, so that a single busy session cannot starve the others.
+ * Blocks of the same stream (a session connection) are always written in order, one at a time.
+ * The network threads only enqueue the blocks and wait when the stream queue is full.
+ */
+public class DiskIoScheduler implements AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(DiskIoScheduler.class);
+    private final int maxWritersPerDevice;
+    private final int maxQueuedBlocksPerStream;
+    private final ExecutorService executorService;
+    private final Map<String, Device> devicesByFolder = new ConcurrentHashMap<>();
+    private final Map<Object, Device> devices = new ConcurrentHashMap<>();
+    private volatile boolean closed = false;
+
+    /**
+     * Creates a new scheduler.
+     *
+     * @param maxWritersPerDevice      The maximum concurrent writers on a single device
+     * @param maxQueuedBlocksPerStream The maximum blocks waiting to be written for a single stream
+     */
+    public DiskIoScheduler(int maxWritersPerDevice, int maxQueuedBlocksPerStream) {
+        this.maxWritersPerDevice = Math.max(1, maxWritersPerDevice);
+        this.maxQueuedBlocksPerStream = Math.max(1, maxQueuedBlocksPerStream);
+        var counter = new AtomicInteger();
+        this.executorService = Executors.newCachedThreadPool(r -> {
+            var thread = new Thread(r, "disk-io-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Queues a write on the device holding the folder. Blocks only when the stream
+     * already has too many pending writes.
+     *
+     * @param folder    The backup folder real path
+     * @param sessionId The session owning the write
+     * @param streamId  The stream (connection) id, writes of the same stream are ordered
+     * @param task      The write to execute
+     * @throws IOException If a previous write of the stream failed
+     */
+    public void submit(String folder, UUID sessionId, int streamId, IoTask task) throws IOException {
+        if (closed) {
+            throw new IOException("Disk scheduler closed");
+        }
+        var device = getDevice(folder);
+        var key = new StreamKey(sessionId, streamId);
+        synchronized (device) {
+            var stream = device.streams.computeIfAbsent(key, k -> new Stream(key));
+            while (stream.pending.size() >= maxQueuedBlocksPerStream && stream.failure == null && !closed) {
+                waitOn(device);
+            }
+            if (stream.failure != null) {
+                throw toIOException(stream.failure);
+            }
+            stream.pending.add(task);
+            if (!device.rotation.contains(sessionId)) {
+                device.rotation.add(sessionId);
+            }
+            dispatch(device);
+        }
+    }
+
+    /**
+     * Waits until all the writes queued for the stream are completed.
+     *
+     * @param folder    The backup folder real path
+     * @param sessionId The session owning the writes
+     * @param streamId  The stream (connection) id
+     * @throws IOException If one of the writes failed
+     */
+    public void await(String folder, UUID sessionId, int streamId) throws IOException {
+        var device = getDevice(folder);
+        var key = new StreamKey(sessionId, streamId);
+        synchronized (device) {
+            var stream = device.streams.get(key);
+            if (stream == null) {
+                return;
+            }
+            while ((!stream.pending.isEmpty() || stream.running) && stream.failure == null && !closed) {
+                waitOn(device);
+            }
+            device.streams.remove(key);
+            if (stream.failure != null) {
+                throw toIOException(stream.failure);
+            }
+        }
+    }
+
+    /**
+     * Drops all the streams of a session, pending writes are discarded.
+     *
+     * @param sessionId The session
+     */
+    public void release(UUID sessionId) {
+        for (var device : devices.values()) {
+            synchronized (device) {
+                device.streams.entrySet().removeIf(e -> {
+                    if (!Objects.equals(e.getKey().sessionId, sessionId)) return false;
+                    discard(e.getValue());
+                    return true;
+                });
+                device.rotation.remove(sessionId);
+                device.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Describes the known devices with the folders they hold.
+     *
+     * @return The folders real paths grouped by device name
+     */
+    public Map<String, List<String>> getDeviceGroups() {
+        var result = new TreeMap<String, List<String>>();
+        for (var entry : devicesByFolder.entrySet()) {
+            result.computeIfAbsent(entry.getValue().name, k -> new ArrayList<>()).add(entry.getKey());
+        }
+        return result;
+    }
+
+    /**
+     * Gets the name of the device holding a folder.
+     *
+     * @param folder The folder real path
+     * @return The device name, the path itself when the device is unknown
+     */
+    public String getDeviceName(String folder) {
+        return getDevice(folder).name;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        for (var device : devices.values()) {
+            synchronized (device) {
+                device.streams.values().forEach(DiskIoScheduler::discard);
+                device.notifyAll();
+            }
+        }
+        executorService.shutdownNow();
+    }
+
+    private Device getDevice(String folder) {
+        return devicesByFolder.computeIfAbsent(folder, f -> {
+            var store = findFileStore(Path.of(f));
+            Object storeKey = store == null ? f : store;
+            return devices.computeIfAbsent(storeKey, k -> {
+                var name = store == null ? f : store.name();
+                log.debug("[SERVER] Registered device {} for folder {}", name, f);
+                return new Device(name);
+            });
+        });
+    }
+
+    private static FileStore findFileStore(Path path) {
+        var current = path.toAbsolutePath();
+        while (current != null && !Files.exists(current)) {
+            current = current.getParent();
+        }
+        if (current == null) return null;
+        try {
+            return Files.getFileStore(current);
+        } catch (IOException e) {
+            log.warn("[SERVER] Unable to find the file store for {}: {}", path, e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Starts writers while there are free slots, choosing the sessions round-robin.
+     * Must be called holding the device lock.
+     */
+    private void dispatch(Device device) {
+        while (device.activeWriters < maxWritersPerDevice && !closed) {
+            var stream = nextStream(device);
+            if (stream == null) {
+                return;
+            }
+            var task = stream.pending.poll();
+            stream.running = true;
+            device.activeWriters++;
+            executorService.execute(() -> runTask(device, stream, task));
+        }
+    }
+
+    private Stream nextStream(Device device) {
+        var sessionsToCheck = device.rotation.size();
+        for (var i = 0; i < sessionsToCheck; i++) {
+            var sessionId = device.rotation.poll();
+            Stream found = null;
+            var hasPending = false;
+            for (var stream : device.streams.values()) {
+                if (!Objects.equals(stream.key.sessionId, sessionId) || stream.pending.isEmpty()) continue;
+                hasPending = true;
+                if (!stream.running && stream.failure == null && found == null) {
+                    found = stream;
+                }
+            }
+            if (hasPending) {
+                device.rotation.add(sessionId);
+            }
+            if (found != null) {
+                return found;
+            }
+        }
+        return null;
+    }
+
+    private void runTask(Device device, Stream stream, IoTask task) {
+        Throwable failure = null;
+        try {
+            task.run();
+        } catch (Throwable e) {
+            log.error("[SERVER] Error writing block for session {}: {}", stream.key.sessionId, e.getMessage());
+            failure = e;
+        }
+        synchronized (device) {
+            stream.running = false;
+            if (failure != null) {
+                stream.failure = failure;
+                discard(stream);
+            }
+            device.activeWriters--;
+            dispatch(device);
+            device.notifyAll();
+        }
+    }
+
+    private static void discard(Stream stream) {
+        IoTask task;
+        while ((task = stream.pending.poll()) != null) {
+            task.discard();
+        }
+    }
+
+    private static void waitOn(Object monitor) throws IOException {
+        try {
+            monitor.wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for disk writes", e);
+        }
+    }
+
+    private static IOException toIOException(Throwable failure) {
+        if (failure instanceof IOException) {
+            return new IOException(failure.getMessage(), failure);
+        }
+        return new IOException("Error writing block", failure);
+    }
+
+    /**
+     * A write operation to run on a device.
+     */
+    @FunctionalInterface
+    public interface IoTask {
+        void run() throws IOException;
+
+        /**
+         * Called instead of {@link #run()} when the write is dropped, e.g. after a failure.
+         */
+        default void discard() {
+        }
+    }
+
+    private static class StreamKey {
+        private final UUID sessionId;
+        private final int streamId;
+
+        private StreamKey(UUID sessionId, int streamId) {
+            this.sessionId = sessionId;
+            this.streamId = streamId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            StreamKey streamKey = (StreamKey) o;
+            return streamId == streamKey.streamId && Objects.equals(sessionId, streamKey.sessionId);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(sessionId, streamId);
+        }
+    }
+
+    private static class Stream {
+        private final StreamKey key;
+        private final ArrayDeque<IoTask> pending = new ArrayDeque<>();
+        private boolean running = false;
+        private Throwable failure;
+
+        private Stream(StreamKey key) {
+            this.key = key;
+        }
+    }
+
+    private static class Device {
+        private final String name;
+        private final Map<StreamKey, Stream> streams = new LinkedHashMap<>();
+        private final ArrayDeque<UUID> rotation = new ArrayDeque<>();
+        private int activeWriters = 0;
+
+        private Device(String name) {
+            this.name = name;
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package org.kendar.sync.server.io;
+
+/**
+ * Token bucket limiting the bytes processed per second, shared between threads.
+ * <p>
+ * The bucket holds at most one second of tokens. A request larger than the
+ * available tokens is granted immediately and leaves the bucket in debt: the caller
+ * sleeps until the debt is paid back, so the average rate is respected whatever the
+ * size of the requests.
+ */
+public class RateLimiter {
+    private final long bytesPerSecond;
+    private double tokens;
+    private long lastRefill;
+
+    /**
+     * Creates a new limiter.
+     *
+     * @param bytesPerSecond The maximum rate, 0 or less for unlimited
+     */
+    public RateLimiter(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+        this.tokens = Math.max(0, bytesPerSecond);
+        this.lastRefill = System.nanoTime();
+    }
+
+    /**
+     * Takes the tokens for the given bytes, waiting if the rate is exceeded.
+     *
+     * @param bytes The bytes about to be processed
+     * @throws InterruptedException If the thread is interrupted while waiting
+     */
+    public void acquire(long bytes) throws InterruptedException {
+        if (bytesPerSecond <= 0 || bytes <= 0) {
+            return;
+        }
+        long waitNanos;
+        synchronized (this) {
+            var now = System.nanoTime();
+            tokens = Math.min(bytesPerSecond, tokens + (now - lastRefill) * bytesPerSecond / 1_000_000_000.0);
+            lastRefill = now;
+            tokens -= bytes;
+            waitNanos = tokens >= 0 ? 0 : (long) (-tokens * 1_000_000_000.0 / bytesPerSecond);
+        }
+        if (waitNanos > 0) {
+            Thread.sleep(waitNanos / 1_000_000, (int) (waitNanos % 1_000_000));
+        }
+    }
+
+    public long getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+}
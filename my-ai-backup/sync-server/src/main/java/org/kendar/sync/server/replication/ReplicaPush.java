@@ -0,0 +1,193 @@
+package org.kendar.sync.server.replication;
+
+import org.kendar.sync.client.BaseSyncClientProcess;
+import org.kendar.sync.client.CommandLineArgs;
+import org.kendar.sync.client.RedirectException;
+import org.kendar.sync.client.RetryException;
+import org.kendar.sync.lib.model.FileInfo;
+import org.kendar.sync.lib.model.ServerSettings;
+import org.kendar.sync.lib.network.SocketOptions;
+import org.kendar.sync.lib.network.TcpConnection;
+import org.kendar.sync.lib.protocol.*;
+import org.kendar.sync.server.backup.HashCatalog;
+import org.kendar.sync.server.io.RateLimiter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.stream.Collectors;
+
+/**
+ * Sends a batch of changes of a folder to one of its replicas, acting as a client of the
+ * server hosting it.
+ * <p>
+ * The changes are sent as a partial file list: the replica answers with the files it
+ * needs, transferred on a secondary connection, and deletes the removed paths.
+ */
+class ReplicaPush extends BaseSyncClientProcess<ReplicaPush> {
+    private static final Logger log = LoggerFactory.getLogger(ReplicaPush.class);
+    private static final int MAX_REDIRECTS = 3;
+
+    private final Path root;
+    private final ServerSettings.Replica replica;
+    private final RateLimiter rateLimiter;
+    private final int maxPacketSize;
+    private long sentBytes;
+
+    /**
+     * Creates a new push.
+     *
+     * @param root          The folder real path
+     * @param replica       The replica receiving the changes
+     * @param rateLimiter   The limiter of the bytes sent, shared by all the replicas
+     * @param maxPacketSize The maximum size of the data blocks
+     */
+    ReplicaPush(Path root, ServerSettings.Replica replica, RateLimiter rateLimiter, int maxPacketSize) {
+        this.root = root;
+        this.replica = replica;
+        this.rateLimiter = rateLimiter;
+        this.maxPacketSize = maxPacketSize;
+    }
+
+    /**
+     * Sends the changes, the last change of every path wins.
+     *
+     * @param entries The changes read from the journal
+     * @throws IOException If the replica did not receive all the changes
+     */
+    void push(List<ReplicationJournal.Entry> entries) throws IOException {
+        var changes = new LinkedHashMap<String, Boolean>();
+        for (var entry : entries) {
+            changes.remove(entry.getPath());
+            changes.put(entry.getPath(), entry.isDeleted());
+        }
+        var files = new LinkedHashMap<String, FileInfo>();
+        var deleted = new ArrayList<String>();
+        for (var change : changes.entrySet()) {
+            if (change.getValue()) {
+                deleted.add(change.getKey());
+                continue;
+            }
+            collectFiles(root.resolve(change.getKey()), files);
+        }
+        if (files.isEmpty() && deleted.isEmpty()) {
+            return;
+        }
+
+        var address = replica.getAddress();
+        var port = replica.getPort();
+        for (var redirects = 0; ; redirects++) {
+            try {
+                push(address, port, new ArrayList<>(files.values()), deleted);
+                return;
+            } catch (RedirectException e) {
+                // The replica is served by another node of its cluster
+                if (redirects >= MAX_REDIRECTS) {
+                    throw new IOException("Too many redirects: " + e.getMessage());
+                }
+                address = e.getAddress();
+                port = e.getPort();
+            } catch (RetryException e) {
+                throw new IOException("Replica busy: " + e.getMessage());
+            }
+        }
+    }
+
+    private void collectFiles(Path path, Map<String, FileInfo> files) throws IOException {
+        if (!Files.exists(path)) {
+            // Removed after the change, its deletion is in the journal too
+            return;
+        }
+        try (var paths = Files.walk(path)) {
+            var internal = List.of(root.resolve(ReplicationJournal.DIRECTORY), root.resolve(HashCatalog.CATALOG_FILE));
+            for (var file : paths.filter(Files::isRegularFile)
+                    .filter(p -> internal.stream().noneMatch(p::startsWith))
+                    .collect(Collectors.toList())) {
+                var info = FileInfo.fromFile(file.toFile(), root.toString());
+                files.put(info.getRelativePath(), info);
+            }
+        }
+    }
+
+    private void push(String address, int port, List<FileInfo> files, List<String> deleted) throws IOException {
+        try (var connection = new TcpConnection(SocketOptions.connect(address, port), UUID.randomUUID(),
+                0, maxPacketSize, false)) {
+            var connectMessage = new ConnectMessage(replica.getUsername(), replica.getPassword(),
+                    replica.getTargetFolder(), maxPacketSize, 1, false, "replication",
+                    false, false, List.of());
+            connectMessage.setProtocolVersion(ProtocolVersion.LATEST);
+            connection.sendMessage(connectMessage);
+
+            var response = connection.receiveMessage();
+            if (response.getMessageType() != MessageType.CONNECT_RESPONSE) {
+                throw new IOException("Unexpected response: " + response.getMessageType());
+            }
+            var connectResponse = (ConnectResponseMessage) response;
+            if (!connectResponse.isAccepted()) {
+                throw new IOException("Connection rejected: " + connectResponse.getErrorMessage());
+            }
+            var protocolVersion = ProtocolVersion.negotiate(connectResponse.getProtocolVersion());
+            if (protocolVersion < ProtocolVersion.V6) {
+                throw new IOException("The replica does not support partial file lists");
+            }
+            if (connectResponse.getBackupType() != BackupType.MIRROR) {
+                throw new IOException("The replica is not a mirror folder: " + connectResponse.getBackupType());
+            }
+            connection.setSessionId(connectResponse.getSessionId());
+            connection.setProtocolVersion(protocolVersion);
+            var packetSize = Math.min(maxPacketSize, connectResponse.getMaxPacketSize());
+            connection.setMaxPacketSize(packetSize);
+            if (protocolVersion >= ProtocolVersion.V7) {
+                connection.setInlineThreshold(Math.min(connectResponse.getInlineThreshold(), packetSize));
+            }
+
+            var fileList = new FileListMessage(files, true, 1, 1);
+            fileList.setPartial(true);
+            fileList.setDeletedFiles(deleted);
+            connection.sendMessage(fileList);
+            response = connection.receiveMessage();
+            if (response.getMessageType() != MessageType.FILE_LIST_RESPONSE) {
+                throw new IOException("Unexpected response: " + response.getMessageType());
+            }
+
+            var toTransfer = ((FileListResponseMessage) response).getFilesToTransfer();
+            if (!toTransfer.isEmpty()) {
+                var args = new CommandLineArgs();
+                args.setServerAddress(address);
+                args.setServerPort(port);
+                args.setSourceFolder(root.toString());
+                try (var transferConnection = getTcpConnection(connection, args, 0, packetSize)) {
+                    for (var file : toTransfer) {
+                        rateLimiter.acquire(file.getSize());
+                        if (!transferFile(file, args, transferConnection)) {
+                            throw new IOException("Unable to send " + file.getRelativePath());
+                        }
+                        sentBytes += file.getSize();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted");
+                }
+            }
+
+            connection.sendMessage(new SyncEndMessage());
+            response = connection.receiveMessage();
+            if (response.getMessageType() != MessageType.SYNC_END_ACK || !((SyncEndAckMessage) response).isSuccess()) {
+                throw new IOException("Sync end not acknowledged");
+            }
+            log.debug("[SERVER] Sent {} files and {} deletions to {}", toTransfer.size(), deleted.size(), replica.getId());
+        }
+    }
+
+    /**
+     * Gets the bytes sent by the last pushes.
+     *
+     * @return The size of the transferred files
+     */
+    long getSentBytes() {
+        return sentBytes;
+    }
+}
@@ -0,0 +1,239 @@
+package org.kendar.sync.server.replication;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * The changes of a backup folder not yet pushed to all its replicas.
+ * <p>
+ * The journal is an append-only file in the {@link #DIRECTORY} of the folder, one line per
+ * change: "U" or "D" for updated or deleted, the time in milliseconds and the path relative
+ * to the folder, separated by tabs. Every replica stores the offset of the first change it
+ * did not receive, so that an interrupted push restarts from there. When all the replicas
+ * received everything the journal is emptied.
+ */
+public class ReplicationJournal {
+    /**
+     * The directory of the journal and of the offsets, inside the folder.
+     */
+    public static final String DIRECTORY = ".sync-replication";
+    private static final Logger log = LoggerFactory.getLogger(ReplicationJournal.class);
+    private static final String JOURNAL_FILE = "journal";
+    private static final String OFFSET_SUFFIX = ".offset";
+
+    private final Path directory;
+    private final Path file;
+
+    /**
+     * Creates the journal of a folder.
+     *
+     * @param root The folder real path
+     */
+    public ReplicationJournal(Path root) {
+        this.directory = root.resolve(DIRECTORY);
+        this.file = directory.resolve(JOURNAL_FILE);
+    }
+
+    /**
+     * Appends a change.
+     *
+     * @param path    The path relative to the folder
+     * @param deleted True if deleted, false if created or updated
+     * @throws IOException If an I/O error occurs
+     */
+    public synchronized void append(String path, boolean deleted) throws IOException {
+        Files.createDirectories(directory);
+        var line = (deleted ? "D" : "U") + "\t" + System.currentTimeMillis() + "\t" + path + "\n";
+        try (var channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND)) {
+            var buffer = ByteBuffer.wrap(line.getBytes(StandardCharsets.UTF_8));
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+    }
+
+    /**
+     * Reads the changes starting at an offset.
+     *
+     * @param offset     The offset of the first change
+     * @param maxEntries The maximum number of changes to read
+     * @return The changes, in the order they happened
+     * @throws IOException If an I/O error occurs
+     */
+    public synchronized List<Entry> read(long offset, int maxEntries) throws IOException {
+        var result = new ArrayList<Entry>();
+        if (!Files.exists(file)) {
+            return result;
+        }
+        try (var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            var length = channel.size();
+            var position = offset;
+            var buffer = ByteBuffer.allocate(64 * 1024);
+            var line = new ByteArrayOutputStream();
+            var lineStart = position;
+            while (position < length && result.size() < maxEntries) {
+                buffer.clear();
+                var read = channel.read(buffer, position);
+                if (read <= 0) break;
+                buffer.flip();
+                while (buffer.hasRemaining() && result.size() < maxEntries) {
+                    var value = buffer.get();
+                    position++;
+                    if (value != '\n') {
+                        line.write(value);
+                        continue;
+                    }
+                    var entry = Entry.parse(line.toString(StandardCharsets.UTF_8), position);
+                    if (entry != null) {
+                        result.add(entry);
+                    } else {
+                        log.warn("[SERVER] Invalid replication journal line at {} in {}", lineStart, file);
+                    }
+                    line.reset();
+                    lineStart = position;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Gets the length of the journal, the offset of the next change.
+     *
+     * @return The length in bytes
+     * @throws IOException If an I/O error occurs
+     */
+    public synchronized long getLength() throws IOException {
+        return Files.exists(file) ? Files.size(file) : 0;
+    }
+
+    /**
+     * Gets the offset of the first change not received by a replica.
+     *
+     * @param replica The replica identifier
+     * @return The offset
+     * @throws IOException If an I/O error occurs
+     */
+    public synchronized long getOffset(String replica) throws IOException {
+        var offsetFile = offsetFile(replica);
+        if (!Files.exists(offsetFile)) {
+            return 0;
+        }
+        try {
+            return Math.min(Long.parseLong(Files.readString(offsetFile).trim()), getLength());
+        } catch (NumberFormatException e) {
+            log.warn("[SERVER] Invalid replication offset in {}, restarting", offsetFile);
+            return 0;
+        }
+    }
+
+    /**
+     * Stores the offset of the first change not received by a replica.
+     *
+     * @param replica The replica identifier
+     * @param offset  The offset
+     * @throws IOException If an I/O error occurs
+     */
+    public synchronized void setOffset(String replica, long offset) throws IOException {
+        Files.createDirectories(directory);
+        var target = offsetFile(replica);
+        var temp = target.resolveSibling(target.getFileName() + ".tmp");
+        Files.writeString(temp, Long.toString(offset));
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Empties the journal when all the replicas received all the changes.
+     *
+     * @param replicas The identifiers of the replicas of the folder
+     * @return True if emptied
+     * @throws IOException If an I/O error occurs
+     */
+    public synchronized boolean compact(Collection<String> replicas) throws IOException {
+        var length = getLength();
+        if (length == 0) {
+            return false;
+        }
+        for (var replica : replicas) {
+            if (getOffset(replica) < length) {
+                return false;
+            }
+        }
+        Files.delete(file);
+        for (var replica : replicas) {
+            setOffset(replica, 0);
+        }
+        return true;
+    }
+
+    private Path offsetFile(String replica) {
+        return directory.resolve(URLEncoder.encode(replica, StandardCharsets.UTF_8) + OFFSET_SUFFIX);
+    }
+
+    /**
+     * A change of the journal.
+     */
+    public static class Entry {
+        private final String path;
+        private final boolean deleted;
+        private final long time;
+        private final long end;
+
+        private Entry(String path, boolean deleted, long time, long end) {
+            this.path = path;
+            this.deleted = deleted;
+            this.time = time;
+            this.end = end;
+        }
+
+        private static Entry parse(String line, long end) {
+            var parts = line.split("\t", 3);
+            if (parts.length != 3 || !(parts[0].equals("U") || parts[0].equals("D"))) {
+                return null;
+            }
+            try {
+                return new Entry(parts[2], parts[0].equals("D"), Long.parseLong(parts[1]), end);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public boolean isDeleted() {
+            return deleted;
+        }
+
+        /**
+         * Gets the time of the change.
+         *
+         * @return The epoch milliseconds
+         */
+        public long getTime() {
+            return time;
+        }
+
+        /**
+         * Gets the offset of the next change.
+         *
+         * @return The offset to store once this change is received by a replica
+         */
+        public long getEnd() {
+            return end;
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package org.kendar.sync.server.replication;
+
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps one {@link ReplicationJournal} per backup folder, shared by the sessions writing
+ * the changes and by the replication pushing them.
+ */
+public class ReplicationJournals {
+    private final Map<Path, ReplicationJournal> journals = new ConcurrentHashMap<>();
+
+    /**
+     * Gets the journal of a folder.
+     *
+     * @param realPath The folder real path
+     * @return The journal
+     */
+    public ReplicationJournal get(String realPath) {
+        var root = Path.of(realPath).toAbsolutePath().normalize();
+        return journals.computeIfAbsent(root, ReplicationJournal::new);
+    }
+}
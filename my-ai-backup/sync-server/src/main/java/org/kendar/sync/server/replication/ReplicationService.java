@@ -0,0 +1,191 @@
+package org.kendar.sync.server.replication;
+
+import org.kendar.sync.lib.model.ServerSettings;
+import org.kendar.sync.lib.protocol.BackupType;
+import org.kendar.sync.server.backup.CompressedBlockFile;
+import org.kendar.sync.server.io.RateLimiter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+/**
+ * Pushes the changes of the backup folders to their replicas, mirror folders on other servers.
+ * <p>
+ * The changes recorded in the {@link ReplicationJournal} of a folder are sent in batches
+ * over the sync protocol, so that the replicas receive what the clients uploaded without
+ * scanning the folders. The offset of a replica is moved forward only when a batch has been
+ * received completely: after an error or a restart the push starts again from the first
+ * change not received. The bytes sent to all the replicas are capped by a {@link RateLimiter}.
+ * In a cluster only the node owning a folder replicates it. The two-way sync folders,
+ * changed on both sides, and the snapshot folders, whose hard links would reach the
+ * replicas as full copies of every file, are not replicated.
+ */
+public class ReplicationService implements AutoCloseable {
+    static final int BATCH_SIZE = 500;
+    private static final Logger log = LoggerFactory.getLogger(ReplicationService.class);
+
+    private final Supplier<ServerSettings> settings;
+    private final ReplicationJournals journals;
+    private final Predicate<String> ownsFolder;
+    private final RateLimiter rateLimiter;
+    private final ScheduledExecutorService scheduler;
+    private final Map<String, ReplicationStatus> statuses = new ConcurrentHashMap<>();
+    private volatile boolean closed = false;
+
+    /**
+     * Creates a new replication service.
+     *
+     * @param settings   The supplier of the current server settings
+     * @param journals   The journals of the folders
+     * @param ownsFolder Tells if this server is in charge of a folder virtual name
+     */
+    public ReplicationService(Supplier<ServerSettings> settings, ReplicationJournals journals,
+                              Predicate<String> ownsFolder) {
+        this.settings = settings;
+        this.journals = journals;
+        this.ownsFolder = ownsFolder;
+        this.rateLimiter = new RateLimiter(settings.get().getReplicationBytesPerSecond());
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            var thread = new Thread(r, "replication");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Checks if the changes of a folder are pushed to its replicas.
+     *
+     * @param folder The backup folder
+     * @return True if the folder has replicas and its backup type can be replicated
+     */
+    public static boolean isReplicated(ServerSettings.BackupFolder folder) {
+        return folder.getReplicas() != null && !folder.getReplicas().isEmpty() &&
+                folder.getBackupType() != BackupType.TWO_WAY_SYNC && folder.getBackupType() != BackupType.SNAPSHOT;
+    }
+
+    /**
+     * Starts the periodic push, if enabled in the settings.
+     */
+    public void start() {
+        var seconds = settings.get().getReplicationIntervalSeconds();
+        if (seconds <= 0) {
+            log.info("[SERVER] Replication disabled");
+            return;
+        }
+        scheduler.scheduleWithFixedDelay(this::replicateAll, seconds, seconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Pushes the pending changes of all the folders, waiting for the completion.
+     */
+    public synchronized void replicateAll() {
+        for (var folder : settings.get().getBackupFolders()) {
+            if (closed) return;
+            if (!isReplicated(folder) || !ownsFolder.test(folder.getVirtualName())) {
+                continue;
+            }
+            var ids = folder.getReplicas().stream()
+                    .map(ServerSettings.Replica::getId)
+                    .collect(Collectors.toList());
+            var journal = journals.get(folder.getRealPath());
+            for (var replica : folder.getReplicas()) {
+                if (closed) return;
+                replicate(folder, replica, journal);
+            }
+            try {
+                journal.compact(ids);
+            } catch (IOException e) {
+                log.warn("[SERVER] Unable to compact the replication journal of {}: {}",
+                        folder.getVirtualName(), e.getMessage());
+            }
+        }
+    }
+
+    private void replicate(ServerSettings.BackupFolder folder, ServerSettings.Replica replica,
+                           ReplicationJournal journal) {
+        var status = statuses.computeIfAbsent(statusKey(folder.getVirtualName(), replica.getId()),
+                k -> new ReplicationStatus(folder.getVirtualName(), replica.getId()));
+        String error = null;
+        try {
+            if (CompressedBlockFile.isUsedBy(folder)) {
+                throw new IOException("Folders stored compressed are not replicated");
+            }
+            var push = new ReplicaPush(Path.of(folder.getRealPath()), replica, rateLimiter,
+                    settings.get().getMaxPacketSize());
+            push.setCheckRunning(() -> !closed);
+            while (!closed) {
+                var entries = journal.read(journal.getOffset(replica.getId()), BATCH_SIZE);
+                if (entries.isEmpty()) break;
+                var sentBefore = push.getSentBytes();
+                push.push(entries);
+                journal.setOffset(replica.getId(), entries.get(entries.size() - 1).getEnd());
+                status.addBatch(entries.size(), push.getSentBytes() - sentBefore);
+            }
+        } catch (IOException | RuntimeException e) {
+            error = e.getMessage() == null ? e.getClass().getSimpleName() : e.getMessage();
+            log.warn("[SERVER] Unable to replicate {} to {}: {}", folder.getVirtualName(), replica.getId(), error);
+        }
+        status.completed(error);
+        updatePending(status, journal, replica);
+    }
+
+    private void updatePending(ReplicationStatus status, ReplicationJournal journal, ServerSettings.Replica replica) {
+        try {
+            var offset = journal.getOffset(replica.getId());
+            var oldest = journal.read(offset, 1);
+            var lag = oldest.isEmpty() ? 0 : (System.currentTimeMillis() - oldest.get(0).getTime()) / 1000;
+            status.setPending(journal.getLength() - offset, Math.max(0, lag));
+        } catch (IOException e) {
+            log.debug("[SERVER] Unable to read the replication journal: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Gets the status of every replica of the configured folders.
+     *
+     * @return The statuses, with the pending changes read from the journals
+     */
+    public List<ReplicationStatus> getStatuses() {
+        var result = new ArrayList<ReplicationStatus>();
+        for (var folder : settings.get().getBackupFolders()) {
+            if (!isReplicated(folder)) continue;
+            for (var replica : folder.getReplicas()) {
+                var status = statuses.computeIfAbsent(statusKey(folder.getVirtualName(), replica.getId()),
+                        k -> new ReplicationStatus(folder.getVirtualName(), replica.getId()));
+                updatePending(status, journals.get(folder.getRealPath()), replica);
+                result.add(status);
+            }
+        }
+        result.sort(Comparator.comparing(ReplicationStatus::getFolder).thenComparing(ReplicationStatus::getReplica));
+        return result;
+    }
+
+    /**
+     * Pushes the pending changes of all the folders in background.
+     */
+    public void trigger() {
+        if (!closed) {
+            scheduler.execute(this::replicateAll);
+        }
+    }
+
+    private static String statusKey(String folder, String replica) {
+        return folder + "\n" + replica;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        scheduler.shutdownNow();
+    }
+}
@@ -0,0 +1,115 @@
+package org.kendar.sync.server.replication;
+
+/**
+ * Progress of the replication of a backup folder to one of its replicas.
+ */
+public class ReplicationStatus {
+    private final String folder;
+    private final String replica;
+    private volatile long pendingBytes;
+    private volatile long lagSeconds;
+    private volatile long sentBytes;
+    private volatile long replicatedChanges;
+    private volatile long lastSuccess;
+    private volatile long lastAttempt;
+    private volatile String lastError;
+
+    public ReplicationStatus(String folder, String replica) {
+        this.folder = folder;
+        this.replica = replica;
+    }
+
+    public String getFolder() {
+        return folder;
+    }
+
+    /**
+     * Gets the replica identifier.
+     *
+     * @return The address, port and folder of the replica
+     */
+    public String getReplica() {
+        return replica;
+    }
+
+    /**
+     * Gets the length of the journal not yet received by the replica.
+     *
+     * @return The bytes of the pending changes, not of the files
+     */
+    public long getPendingBytes() {
+        return pendingBytes;
+    }
+
+    /**
+     * Gets the age of the oldest change not yet received by the replica.
+     *
+     * @return The lag in seconds, 0 when up to date
+     */
+    public long getLagSeconds() {
+        return lagSeconds;
+    }
+
+    void setPending(long pendingBytes, long lagSeconds) {
+        this.pendingBytes = pendingBytes;
+        this.lagSeconds = lagSeconds;
+    }
+
+    /**
+     * Gets the bytes of the files sent since the server started.
+     *
+     * @return The bytes
+     */
+    public long getSentBytes() {
+        return sentBytes;
+    }
+
+    /**
+     * Gets the journal changes received by the replica since the server started.
+     *
+     * @return The changes
+     */
+    public long getReplicatedChanges() {
+        return replicatedChanges;
+    }
+
+    void addBatch(long changes, long bytes) {
+        replicatedChanges += changes;
+        sentBytes += bytes;
+    }
+
+    /**
+     * Gets the time of the last push completed without errors.
+     *
+     * @return The epoch millis, 0 if never
+     */
+    public long getLastSuccess() {
+        return lastSuccess;
+    }
+
+    /**
+     * Gets the time of the last push.
+     *
+     * @return The epoch millis, 0 if never
+     */
+    public long getLastAttempt() {
+        return lastAttempt;
+    }
+
+    /**
+     * Gets the error of the last push.
+     *
+     * @return The error, null if completed
+     */
+    public String getLastError() {
+        return lastError;
+    }
+
+    void completed(String error) {
+        lastAttempt = System.currentTimeMillis();
+        lastError = error;
+        if (error == null) {
+            lastSuccess = lastAttempt;
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package org.kendar.sync.server.scrub;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Progress and results of the scrub of a backup folder.
+ */
+public class ScrubReport {
+    private final String folder;
+    private final AtomicLong filesChecked = new AtomicLong();
+    private final AtomicLong filesSkipped = new AtomicLong();
+    private final AtomicLong bytesChecked = new AtomicLong();
+    private final AtomicLong pausedMillis = new AtomicLong();
+    private final List<Issue> issues = new ArrayList<>();
+    private volatile State state = State.QUEUED;
+    private volatile long startedAt;
+    private volatile long filesTotal;
+    private volatile long completedAt;
+    private volatile String error;
+
+    public ScrubReport(String folder) {
+        this.folder = folder;
+    }
+
+    public String getFolder() {
+        return folder;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    void setState(State state) {
+        this.state = state;
+        if (state == State.RUNNING && startedAt == 0) {
+            startedAt = System.currentTimeMillis();
+        }
+        if (state == State.COMPLETED || state == State.FAILED || state == State.CANCELLED) {
+            completedAt = System.currentTimeMillis();
+        }
+    }
+
+    public boolean isRunning() {
+        return state == State.QUEUED || state == State.RUNNING || state == State.PAUSED;
+    }
+
+    /**
+     * Gets the start time.
+     *
+     * @return The epoch millis, 0 while queued
+     */
+    public long getStartedAt() {
+        return startedAt;
+    }
+
+    /**
+     * Gets the completion time.
+     *
+     * @return The epoch millis, 0 while running
+     */
+    public long getCompletedAt() {
+        return completedAt;
+    }
+
+    public long getFilesTotal() {
+        return filesTotal;
+    }
+
+    void setFilesTotal(long filesTotal) {
+        this.filesTotal = filesTotal;
+    }
+
+    public long getFilesChecked() {
+        return filesChecked.get();
+    }
+
+    /**
+     * Gets the files not verified because they changed after their hash was stored.
+     *
+     * @return The skipped files count
+     */
+    public long getFilesSkipped() {
+        return filesSkipped.get();
+    }
+
+    public long getBytesChecked() {
+        return bytesChecked.get();
+    }
+
+    /**
+     * Gets the time spent waiting for the sessions on the same volume.
+     *
+     * @return The paused time in milliseconds
+     */
+    public long getPausedMillis() {
+        return pausedMillis.get();
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    void setError(String error) {
+        this.error = error;
+    }
+
+    public List<Issue> getIssues() {
+        synchronized (issues) {
+            return new ArrayList<>(issues);
+        }
+    }
+
+    void fileChecked() {
+        filesChecked.incrementAndGet();
+    }
+
+    void fileSkipped() {
+        filesSkipped.incrementAndGet();
+    }
+
+    void addBytes(long bytes) {
+        bytesChecked.addAndGet(bytes);
+    }
+
+    void addPause(long millis) {
+        pausedMillis.addAndGet(millis);
+    }
+
+    void addIssue(Issue issue) {
+        synchronized (issues) {
+            issues.add(issue);
+        }
+    }
+
+    public enum State {
+        QUEUED,
+        RUNNING,
+        PAUSED,
+        COMPLETED,
+        FAILED,
+        CANCELLED
+    }
+
+    /**
+     * A file that does not match its stored hash.
+     */
+    public static class Issue {
+        private final String path;
+        private final String type;
+        private final String expectedHash;
+        private final String actualHash;
+
+        public Issue(String path, String type, String expectedHash, String actualHash) {
+            this.path = path;
+            this.type = type;
+            this.expectedHash = expectedHash;
+            this.actualHash = actualHash;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        /**
+         * Gets the kind of problem.
+         *
+         * @return {@code CORRUPTED}, {@code MISSING} or {@code UNREADABLE}
+         */
+        public String getType() {
+            return type;
+        }
+
+        public String getExpectedHash() {
+            return expectedHash;
+        }
+
+        public String getActualHash() {
+            return actualHash;
+        }
+    }
+}
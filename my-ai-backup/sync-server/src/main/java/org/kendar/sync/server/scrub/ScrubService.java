@@ -0,0 +1,261 @@
+package org.kendar.sync.server.scrub;
+
+import org.kendar.sync.lib.model.ServerSettings;
+import org.kendar.sync.lib.utils.ContentHasher;
+import org.kendar.sync.server.backup.CompressedBlockFile;
+import org.kendar.sync.server.backup.HashCatalog;
+import org.kendar.sync.server.backup.HashCatalogs;
+import org.kendar.sync.server.io.RateLimiter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * Verifies the backup folders against the content hashes stored in their {@link HashCatalog}.
+ * <p>
+ * Every file whose size and modification time still match its catalog entry is read again
+ * and hashed, to detect the corruptions happened on the storage. The files are hashed in
+ * parallel on a dedicated pool, with the total read rate capped by a {@link RateLimiter}.
+ * The scrub of a folder pauses while any session is working on the same volume, so that it
+ * never competes with the backups. Folders are scrubbed one at a time, periodically or on
+ * request, and the last report of each folder is kept in memory.
+ */
+public class ScrubService implements AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(ScrubService.class);
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final long PAUSE_CHECK_MILLIS = 500;
+
+    private final Supplier<ServerSettings> settings;
+    private final HashCatalogs hashCatalogs;
+    private final Predicate<String> volumeBusy;
+    private final ScheduledExecutorService scheduler;
+    private final ExecutorService hashingPool;
+    private final Map<String, ScrubReport> reports = new ConcurrentHashMap<>();
+    private volatile boolean closed = false;
+
+    /**
+     * Creates a new scrub service.
+     *
+     * @param settings     The supplier of the current server settings
+     * @param hashCatalogs The catalogs holding the stored hashes
+     * @param volumeBusy   Tells if sessions are active on the volume of a folder real path
+     */
+    public ScrubService(Supplier<ServerSettings> settings, HashCatalogs hashCatalogs, Predicate<String> volumeBusy) {
+        this.settings = settings;
+        this.hashCatalogs = hashCatalogs;
+        this.volumeBusy = volumeBusy;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            var thread = new Thread(r, "scrub-scheduler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        var counter = new AtomicInteger();
+        var threads = Math.max(1, settings.get().getScrubThreads());
+        this.hashingPool = Executors.newFixedThreadPool(threads, r -> {
+            var thread = new Thread(r, "scrub-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+    }
+
+    /**
+     * Starts the periodic scrub, if enabled in the settings.
+     */
+    public void start() {
+        var hours = settings.get().getScrubIntervalHours();
+        if (hours <= 0) {
+            log.info("[SERVER] Periodic scrub disabled");
+            return;
+        }
+        log.info("[SERVER] Scrubbing the backup folders every {} hours", hours);
+        scheduler.scheduleWithFixedDelay(() -> {
+            for (var folder : settings.get().getBackupFolders()) {
+                if (closed) return;
+                runScrub(folder, new ScrubReport(folder.getVirtualName()));
+            }
+        }, hours, hours, TimeUnit.HOURS);
+    }
+
+    /**
+     * Queues the scrub of a folder.
+     *
+     * @param folderName The folder virtual name
+     * @return The new report, or empty if the folder does not exist or is already being scrubbed
+     */
+    public Optional<ScrubReport> scrub(String folderName) {
+        var folder = settings.get().getBackupFolders().stream()
+                .filter(f -> f.getVirtualName().equals(folderName))
+                .findFirst();
+        if (folder.isEmpty() || closed) {
+            return Optional.empty();
+        }
+        var report = new ScrubReport(folderName);
+        var previous = reports.compute(folderName, (k, v) -> v != null && v.isRunning() ? v : report);
+        if (previous != report) {
+            return Optional.empty();
+        }
+        scheduler.execute(() -> runScrub(folder.get(), report));
+        return Optional.of(report);
+    }
+
+    /**
+     * Gets the last report of every scrubbed folder.
+     *
+     * @return The reports
+     */
+    public List<ScrubReport> getReports() {
+        var result = new ArrayList<>(reports.values());
+        result.sort(Comparator.comparing(ScrubReport::getFolder));
+        return result;
+    }
+
+    /**
+     * Gets the last report of a folder.
+     *
+     * @param folderName The folder virtual name
+     * @return The report, or empty if never scrubbed
+     */
+    public Optional<ScrubReport> getReport(String folderName) {
+        return Optional.ofNullable(reports.get(folderName));
+    }
+
+    private void runScrub(ServerSettings.BackupFolder folder, ScrubReport report) {
+        reports.put(folder.getVirtualName(), report);
+        report.setState(ScrubReport.State.RUNNING);
+        try {
+            scrubFolder(folder, report);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            report.setState(ScrubReport.State.CANCELLED);
+        } catch (Exception e) {
+            log.error("[SERVER] Error scrubbing {}: {}", folder.getVirtualName(), e.getMessage());
+            report.setError(e.getMessage());
+            report.setState(ScrubReport.State.FAILED);
+        }
+    }
+
+    /**
+     * Scrubs a folder, waiting for the completion.
+     *
+     * @param folder The backup folder
+     * @param report The report to fill
+     * @throws IOException          If the catalog cannot be loaded
+     * @throws InterruptedException If the scrub is interrupted
+     */
+    void scrubFolder(ServerSettings.BackupFolder folder, ScrubReport report) throws IOException, InterruptedException {
+        var realPath = folder.getRealPath();
+        var root = Path.of(realPath);
+        var entries = hashCatalogs.get(realPath).entries();
+        var compressed = CompressedBlockFile.isUsedBy(folder);
+        report.setFilesTotal(entries.size());
+        log.info("[SERVER] Scrubbing {} ({} files)", folder.getVirtualName(), entries.size());
+
+        var limiter = new RateLimiter(settings.get().getScrubBytesPerSecond());
+        var threads = Math.max(1, settings.get().getScrubThreads());
+        // Bound the queued files, the catalogs can be huge
+        var slots = new Semaphore(threads * 2);
+        var pending = new ArrayList<Future<?>>();
+        for (var entry : entries) {
+            if (closed) break;
+            slots.acquire();
+            pending.add(hashingPool.submit(() -> {
+                try {
+                    verify(root, entry, report, limiter, realPath, compressed);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    slots.release();
+                }
+            }));
+            pending.removeIf(Future::isDone);
+        }
+        for (var future : pending) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                throw new IOException(e.getCause());
+            }
+        }
+        report.setState(closed ? ScrubReport.State.CANCELLED : ScrubReport.State.COMPLETED);
+        log.info("[SERVER] Scrub of {} completed: {} checked, {} skipped, {} issues", folder.getVirtualName(),
+                report.getFilesChecked(), report.getFilesSkipped(), report.getIssues().size());
+    }
+
+    private void verify(Path root, HashCatalog.Entry entry, ScrubReport report,
+                        RateLimiter limiter, String realPath, boolean compressed) throws InterruptedException {
+        var path = root.resolve(entry.getPath());
+        var algorithm = ContentHasher.algorithmOf(entry.getHash());
+        if (algorithm == null) {
+            report.fileSkipped();
+            return;
+        }
+        if (!Files.exists(path)) {
+            report.addIssue(new ScrubReport.Issue(entry.getPath(), "MISSING", entry.getHash(), null));
+            return;
+        }
+        try {
+            var attr = Files.readAttributes(path, BasicFileAttributes.class);
+            // The catalog has the original size of the files stored compressed
+            var index = compressed ? CompressedBlockFile.read(path) : null;
+            var size = index == null ? attr.size() : index.getSize();
+            if (!entry.matches(size, attr.lastModifiedTime().toMillis())) {
+                // Changed after the hash was stored, e.g. while a backup is running
+                report.fileSkipped();
+                return;
+            }
+            var hasher = ContentHasher.create(algorithm);
+            try (var fis = index == null ? new FileInputStream(path.toFile()) : index.openRaw(path)) {
+                var buffer = new byte[READ_BUFFER_SIZE];
+                int read;
+                do {
+                    waitWhileVolumeBusy(realPath, report);
+                    if (closed) return;
+                    read = fis.read(buffer);
+                    if (read > 0) {
+                        limiter.acquire(read);
+                        hasher.update(buffer, 0, read);
+                        report.addBytes(read);
+                    }
+                } while (read != -1);
+            }
+            var actual = hasher.digest();
+            if (!actual.equals(entry.getHash())) {
+                log.error("[SERVER] Scrub found a corrupted file {}: expected {} found {}", path, entry.getHash(), actual);
+                report.addIssue(new ScrubReport.Issue(entry.getPath(), "CORRUPTED", entry.getHash(), actual));
+            }
+            report.fileChecked();
+        } catch (IOException e) {
+            report.addIssue(new ScrubReport.Issue(entry.getPath(), "UNREADABLE", entry.getHash(), null));
+        }
+    }
+
+    private void waitWhileVolumeBusy(String realPath, ScrubReport report) throws InterruptedException {
+        while (!closed && volumeBusy.test(realPath)) {
+            report.setState(ScrubReport.State.PAUSED);
+            var start = System.currentTimeMillis();
+            Thread.sleep(PAUSE_CHECK_MILLIS);
+            report.addPause(System.currentTimeMillis() - start);
+        }
+        if (report.getState() == ScrubReport.State.PAUSED) {
+            report.setState(ScrubReport.State.RUNNING);
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        scheduler.shutdownNow();
+        hashingPool.shutdownNow();
+    }
+}
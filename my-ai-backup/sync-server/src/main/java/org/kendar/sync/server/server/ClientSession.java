@@ -4,14 +4,20 @@ import org.kendar.sync.lib.model.FileInfo;
 import org.kendar.sync.lib.model.ServerSettings;
 import org.kendar.sync.lib.network.TcpConnection;
 import org.kendar.sync.lib.protocol.BackupType;
+import org.kendar.sync.lib.protocol.FileDataMessage;
 import org.kendar.sync.lib.protocol.KeepAlive;
+import org.kendar.sync.lib.protocol.ProtocolVersion;
+import org.kendar.sync.lib.utils.ContentHasher;
+import org.kendar.sync.lib.utils.FileUtils;
 import org.kendar.sync.lib.utils.Sleeper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
 
 /**
  * Represents a client session.
@@ -32,6 +38,16 @@ public class ClientSession {
     private boolean ignoreHiddenFiles;
     private boolean ignoreSystemFiles;
     private HashSet<String> ignoredPatterns;
+    private long jobTicket;
+    private String hashAlgorithm;
+    private int protocolVersion = ProtocolVersion.V1;
+    private String pointInTime;
+    private final Map<Integer, ContentHasher> contentHashers = new ConcurrentHashMap<>();
+    private final String resumeToken = UUID.randomUUID().toString();
+    private final Set<String> transferred = ConcurrentHashMap.newKeySet();
+    private volatile List<FileInfo> transferPlan;
+    private int resumeGraceSeconds;
+    private volatile long suspendedUntil;
 
     public ClientSession(UUID sessionId, ServerSettings.User user, ServerSettings.BackupFolder folder,
                          BackupType backupType, boolean dryRun,
@@ -201,4 +217,192 @@ public class ClientSession {
     public HashSet<String> getIgnoredPatterns() {
         return ignoredPatterns;
     }
+
+    /**
+     * Gets the ticket owning the session folder in the {@link FolderJobQueue}.
+     *
+     * @return The ticket, 0 if not owning the folder
+     */
+    public long getJobTicket() {
+        return jobTicket;
+    }
+
+    public void setJobTicket(long jobTicket) {
+        this.jobTicket = jobTicket;
+    }
+
+    /**
+     * Gets the algorithm used by the client to hash the files it sends.
+     *
+     * @return The algorithm, or null if the client does not send content hashes
+     */
+    public String getHashAlgorithm() {
+        return hashAlgorithm;
+    }
+
+    public void setHashAlgorithm(String hashAlgorithm) {
+        this.hashAlgorithm = hashAlgorithm;
+    }
+
+    /**
+     * Gets the protocol version negotiated with the client.
+     *
+     * @return The protocol version
+     */
+    public int getProtocolVersion() {
+        return protocolVersion;
+    }
+
+    public void setProtocolVersion(int protocolVersion) {
+        this.protocolVersion = protocolVersion;
+    }
+
+    /**
+     * Gets the date of the versions to restore, for the backup types keeping them.
+     *
+     * @return The date, in the yyyy-MM-dd format, or null for the latest versions
+     */
+    public String getPointInTime() {
+        return pointInTime;
+    }
+
+    public void setPointInTime(String pointInTime) {
+        this.pointInTime = pointInTime;
+    }
+
+    /**
+     * Gets the token the client presents to resume the session after a network drop.
+     *
+     * @return The token
+     */
+    public String getResumeToken() {
+        return resumeToken;
+    }
+
+    /**
+     * Sets how long the session can be resumed once dropped.
+     *
+     * @param resumeGraceSeconds The grace period in seconds, 0 to never resume
+     */
+    public void setResumeGraceSeconds(int resumeGraceSeconds) {
+        this.resumeGraceSeconds = resumeGraceSeconds;
+    }
+
+    /**
+     * Stores the files the client was asked to transfer, starting the tracking of the
+     * stored ones.
+     *
+     * @param transferPlan The files to transfer
+     */
+    public void setTransferPlan(List<FileInfo> transferPlan) {
+        transferred.clear();
+        this.transferPlan = List.copyOf(transferPlan);
+    }
+
+    /**
+     * Records a file of the transfer plan as stored.
+     *
+     * @param relativePath The relative path of the file
+     */
+    public void markTransferred(String relativePath) {
+        if (transferPlan != null) {
+            transferred.add(FileUtils.makeUniformPath(relativePath));
+        }
+    }
+
+    /**
+     * Gets the files of the transfer plan not yet stored.
+     *
+     * @return The remaining files
+     */
+    public List<FileInfo> getRemainingFiles() {
+        var plan = transferPlan;
+        if (plan == null) return List.of();
+        return plan.stream()
+                .filter(file -> !transferred.contains(FileUtils.makeUniformPath(file.getRelativePath())))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Tells if the session can continue on a new connection: a backup with its file
+     * list already exchanged, with a client knowing the resume.
+     *
+     * @return True if resumable
+     */
+    public boolean isResumable() {
+        return isBackup && !dryRun && transferPlan != null && resumeGraceSeconds > 0
+                && protocolVersion >= ProtocolVersion.V8 && backupType != BackupType.TWO_WAY_SYNC;
+    }
+
+    /**
+     * Keeps the session waiting for the client to resume it, for the grace period.
+     *
+     * @param connection The main connection dropped
+     * @return False if already resumed on another connection
+     */
+    public synchronized boolean suspend(TcpConnection connection) {
+        if (mainConnection != connection) return false;
+        suspendedUntil = System.currentTimeMillis() + resumeGraceSeconds * 1000L;
+        return true;
+    }
+
+    public boolean isSuspended() {
+        return suspendedUntil > 0;
+    }
+
+    /**
+     * Checks if the grace period of a suspended session is over.
+     *
+     * @return True if the session can no longer be resumed
+     */
+    public boolean isResumeExpired() {
+        return isSuspended() && System.currentTimeMillis() >= suspendedUntil;
+    }
+
+    /**
+     * Continues the session on a new main connection.
+     *
+     * @param mainConnection The new main connection
+     */
+    public synchronized void resume(TcpConnection mainConnection) {
+        suspendedUntil = 0;
+        this.mainConnection = mainConnection;
+        touch();
+    }
+
+    /**
+     * Starts hashing the content of the file received on a connection.
+     *
+     * @param connectionId The connection ID
+     */
+    public void startContentHash(int connectionId) {
+        if (hashAlgorithm == null) {
+            contentHashers.remove(connectionId);
+            return;
+        }
+        contentHashers.put(connectionId, ContentHasher.create(hashAlgorithm));
+    }
+
+    /**
+     * Adds a received block to the hash of the current file of a connection.
+     *
+     * @param connectionId The connection ID
+     * @param message      The block, decompressed only when hashed
+     */
+    public void updateContentHash(int connectionId, FileDataMessage message) {
+        var hasher = contentHashers.get(connectionId);
+        if (hasher != null) {
+            hasher.update(message.getRawData());
+        }
+    }
+
+    /**
+     * Completes the hash of the current file of a connection.
+     *
+     * @param connectionId The connection ID
+     * @return The hasher, or null if the content was not hashed
+     */
+    public ContentHasher endContentHash(int connectionId) {
+        return contentHashers.remove(connectionId);
+    }
 }
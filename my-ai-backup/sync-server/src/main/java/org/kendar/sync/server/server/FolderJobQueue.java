@@ -0,0 +1,219 @@
+package org.kendar.sync.server.server;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Grants exclusive access to the backup folders, one session at a time.
+ * <p>
+ * Sessions asking for a busy folder wait in a FIFO queue. When the owner releases
+ * the folder it is handed directly to the first waiter, so a newcomer can never
+ * overtake the sessions already waiting. Every grant is identified by a ticket:
+ * releasing with a stale ticket (e.g. after the session monitor already released
+ * an expired session) has no effect.
+ * <p>
+ * When a {@link SharedLock} is set, a folder is also locked there while a session owns it,
+ * to keep it exclusive across the nodes of a cluster.
+ */
+public class FolderJobQueue {
+    private final Map<String, FolderState> folders = new HashMap<>();
+    private long lastTicket = 0;
+    private SharedLock sharedLock;
+
+    /**
+     * Sets the lock shared with the other nodes of a cluster.
+     *
+     * @param sharedLock The lock, null when running alone
+     */
+    public synchronized void setSharedLock(SharedLock sharedLock) {
+        this.sharedLock = sharedLock;
+    }
+
+    /**
+     * Acquires a folder, waiting in its queue if it is busy.
+     *
+     * @param folder               The folder virtual name
+     * @param maxWaitMillis        The maximum time to wait, 0 to fail immediately when busy
+     * @param reportIntervalMillis The interval between the queue position notifications
+     * @param listener             Notified with the 1-based queue position while waiting, can be null
+     * @return The ticket owning the folder, or 0 if the folder was not acquired in time
+     * or is locked by another node
+     * @throws IOException          If the listener fails, e.g. because the client went away
+     * @throws InterruptedException If the thread is interrupted while waiting
+     */
+    public long acquire(String folder, long maxWaitMillis, long reportIntervalMillis,
+                        QueuePositionListener listener) throws IOException, InterruptedException {
+        Waiter waiter;
+        int position;
+        synchronized (this) {
+            var state = folders.computeIfAbsent(folder, k -> new FolderState());
+            var ticket = ++lastTicket;
+            if (state.owner == 0 && state.waiters.isEmpty()) {
+                if (sharedLock != null && !sharedLock.tryLock(folder)) {
+                    // Still held by another node
+                    folders.remove(folder);
+                    return 0;
+                }
+                state.owner = ticket;
+                return ticket;
+            }
+            if (maxWaitMillis <= 0) {
+                return 0;
+            }
+            waiter = new Waiter(ticket);
+            state.waiters.add(waiter);
+            position = state.waiters.size();
+        }
+
+        var deadline = System.currentTimeMillis() + maxWaitMillis;
+        try {
+            while (true) {
+                if (listener != null) {
+                    listener.onQueuePosition(position);
+                }
+                synchronized (this) {
+                    var state = folders.get(folder);
+                    var remaining = deadline - System.currentTimeMillis();
+                    if (!waiter.granted && remaining > 0) {
+                        wait(Math.min(remaining, Math.max(1, reportIntervalMillis)));
+                    }
+                    if (waiter.granted) {
+                        return waiter.ticket;
+                    }
+                    if (state == null) {
+                        // The queue was cleared while waiting
+                        return 0;
+                    }
+                    if (deadline - System.currentTimeMillis() <= 0) {
+                        state.waiters.remove(waiter);
+                        return 0;
+                    }
+                    position = positionOf(state, waiter);
+                }
+            }
+        } catch (IOException | InterruptedException | RuntimeException e) {
+            synchronized (this) {
+                if (waiter.granted) {
+                    release(folder, waiter.ticket);
+                } else {
+                    var state = folders.get(folder);
+                    if (state != null) state.waiters.remove(waiter);
+                }
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Releases a folder, handing it to the first waiter if any.
+     *
+     * @param folder The folder virtual name
+     * @param ticket The ticket returned by {@link #acquire}
+     * @return True if the ticket was the owner of the folder
+     */
+    public synchronized boolean release(String folder, long ticket) {
+        var state = folders.get(folder);
+        if (state == null || ticket == 0 || state.owner != ticket) {
+            return false;
+        }
+        var next = state.waiters.poll();
+        if (next == null) {
+            folders.remove(folder);
+            if (sharedLock != null) sharedLock.unlock(folder);
+        } else {
+            state.owner = next.ticket;
+            next.granted = true;
+            notifyAll();
+        }
+        return true;
+    }
+
+    /**
+     * Checks if a folder is currently owned by a session.
+     *
+     * @param folder The folder virtual name
+     * @return True if busy
+     */
+    public synchronized boolean isBusy(String folder) {
+        var state = folders.get(folder);
+        return state != null && state.owner != 0;
+    }
+
+    /**
+     * Gets the number of sessions waiting for a folder.
+     *
+     * @param folder The folder virtual name
+     * @return The queue length
+     */
+    public synchronized int getQueueLength(String folder) {
+        var state = folders.get(folder);
+        return state == null ? 0 : state.waiters.size();
+    }
+
+    /**
+     * Drops all owners and waiters. Waiting sessions are rejected.
+     */
+    public synchronized void clear() {
+        if (sharedLock != null) {
+            for (var entry : folders.entrySet()) {
+                if (entry.getValue().owner != 0) sharedLock.unlock(entry.getKey());
+            }
+        }
+        folders.clear();
+        notifyAll();
+    }
+
+    private static int positionOf(FolderState state, Waiter waiter) {
+        var position = 1;
+        for (var item : state.waiters) {
+            if (item == waiter) return position;
+            position++;
+        }
+        return position;
+    }
+
+    /**
+     * Receives the position of a waiting session in the folder queue.
+     */
+    @FunctionalInterface
+    public interface QueuePositionListener {
+        void onQueuePosition(int position) throws IOException;
+    }
+
+    /**
+     * A folder lock shared with other processes.
+     */
+    public interface SharedLock {
+        /**
+         * Locks a folder if no other process holds it.
+         *
+         * @param folder The folder virtual name
+         * @return True if locked
+         * @throws IOException If the lock cannot be checked
+         */
+        boolean tryLock(String folder) throws IOException;
+
+        /**
+         * Unlocks a folder locked by this process.
+         *
+         * @param folder The folder virtual name
+         */
+        void unlock(String folder);
+    }
+
+    private static class Waiter {
+        private final long ticket;
+        private boolean granted = false;
+
+        private Waiter(long ticket) {
+            this.ticket = ticket;
+        }
+    }
+
+    private static class FolderState {
+        private final ArrayDeque<Waiter> waiters = new ArrayDeque<>();
+        private long owner = 0;
+    }
+}
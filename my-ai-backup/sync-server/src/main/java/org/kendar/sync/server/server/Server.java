@@ -1,18 +1,34 @@
 package org.kendar.sync.server.server;
 
 import org.kendar.sync.lib.model.ServerSettings;
+import org.kendar.sync.lib.network.SocketOptions;
 import org.kendar.sync.lib.network.TcpConnection;
 import org.kendar.sync.lib.protocol.*;
+import org.kendar.sync.lib.utils.ContentHasher;
 import org.kendar.sync.lib.utils.Sleeper;
 import org.kendar.sync.server.backup.*;
+import org.kendar.sync.server.cluster.ClusterCoordinator;
+import org.kendar.sync.server.cluster.ClusterNode;
 import org.kendar.sync.server.config.ServerConfig;
+import org.kendar.sync.server.config.SettingsSnapshot;
+import org.kendar.sync.server.io.DiskIoScheduler;
+import org.kendar.sync.server.replication.ReplicationJournals;
+import org.kendar.sync.server.replication.ReplicationService;
+import org.kendar.sync.server.scrub.ScrubService;
+import org.kendar.sync.server.tiering.TieringService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
@@ -21,14 +37,24 @@ public class Server {
     public static final int TIMEOUT_SECONDS = 30;  // 30 seconds by default
 
     private static final Logger log = LoggerFactory.getLogger(Server.class);
+    private static final int MAX_QUEUED_BLOCKS_PER_CONNECTION = 4;
+    private static final long QUEUE_POSITION_REPORT_MILLIS = 2000;
     private final ExecutorService executorService = Executors.newCachedThreadPool();
-    private final Map<UUID, ClientSession> sessions = new HashMap<>();
+    private final Map<UUID, ClientSession> sessions = new ConcurrentHashMap<>();
+    private final FolderJobQueue folderJobs = new FolderJobQueue();
     private final Map<BackupType, BackupHandler> backupHandlers = new HashMap<>();
+    private final HashCatalogs hashCatalogs = new HashCatalogs();
+    private final ReplicationJournals replicationJournals = new ReplicationJournals();
     private final boolean dryRun;
     private final ServerConfig serverConfig;
     private final SessionMonitor sessionMonitor;
     private boolean running = true;
     private ServerSocket mainSocket;
+    private DiskIoScheduler ioScheduler;
+    private ScrubService scrubService;
+    private ClusterCoordinator cluster;
+    private ReplicationService replicationService;
+    private TieringService tieringService;
 
     public Server(ServerConfig serverConfig, boolean dryRun) {
         this.serverConfig = serverConfig;
@@ -38,10 +64,15 @@ public class Server {
         backupHandlers.put(BackupType.PRESERVE, new PreserveBackupHandler());
         backupHandlers.put(BackupType.MIRROR, new MirrorBackupHandler());
         backupHandlers.put(BackupType.DATE_SEPARATED, new DateSeparatedBackupHandler());
+        backupHandlers.put(BackupType.SNAPSHOT, new SnapshotBackupHandler());
         backupHandlers.put(BackupType.TWO_WAY_SYNC, new SyncBackupHandler());
+        for (var handler : backupHandlers.values()) {
+            handler.setHashCatalogs(hashCatalogs);
+            handler.setReplicationJournals(replicationJournals);
+        }
 
         // Initialize the session monitor to check for hung sessions every 10 seconds
-        this.sessionMonitor = new SessionMonitor(sessions, 10);
+        this.sessionMonitor = new SessionMonitor(sessions, folderJobs, backupHandlers, 10);
     }
 
     /**
@@ -49,23 +80,52 @@ public class Server {
      */
     public void startTcpServer() {
         try {
-            ServerSettings settings = serverConfig.serverSettings();
+            ServerSettings settings = serverConfig.snapshot().getSettings();
             int port = settings.getPort();
 
             log.info("Starting TCP server on port {}", port);
 
+            // Route all the block writes through the device aware scheduler
+            ioScheduler = new DiskIoScheduler(settings.getMaxWritersPerDevice(), MAX_QUEUED_BLOCKS_PER_CONNECTION);
+            for (var handler : backupHandlers.values()) {
+                handler.setIoScheduler(ioScheduler);
+            }
+            sessionMonitor.setIoScheduler(ioScheduler);
+
+            // Join the cluster, the folders are served by their owner nodes only
+            if (settings.getClusterDirectory() != null) {
+                cluster = startCluster(settings);
+                folderJobs.setSharedLock(cluster);
+            }
+
+            // Verify the stored content in background, pausing while sessions use the same volume
+            scrubService = new ScrubService(this::currentSettings, hashCatalogs, this::isVolumeBusy);
+            scrubService.start();
+
+            // Push the changes of the folders to their replicas, by the owner node only in a cluster
+            replicationService = new ReplicationService(this::currentSettings, replicationJournals,
+                    folder -> cluster == null || cluster.isLocal(cluster.getOwner(folder)));
+            replicationService.start();
+
+            // Pack the cold versions of the date separated folders
+            tieringService = new TieringService(this::currentSettings, hashCatalogs, folderJobs,
+                    folder -> cluster == null || cluster.isLocal(cluster.getOwner(folder)));
+            tieringService.start();
+
             // Start the session monitor
             sessionMonitor.start();
 
-            try (ServerSocket serverSocket = new ServerSocket(port)) {
+            try (ServerSocket serverSocket = SocketOptions.listen(port)) {
                 mainSocket = serverSocket;
                 while (running) {
                     try {
                         Socket clientSocket = serverSocket.accept();
+                        SocketOptions.accepted(clientSocket);
                         log.debug("[SERVER] Client connected: {}", clientSocket.getInetAddress());
 
-                        // Handle client connection in a separate thread
-                        executorService.submit(() -> handleClient(clientSocket, settings));
+                        // Handle client connection in a separate thread, with the settings current at accept time
+                        var snapshot = serverConfig.snapshot();
+                        executorService.submit(() -> handleClient(clientSocket, snapshot));
                     } catch (IOException e) {
                         log.trace("[SERVER] Error accepting client connection: {}", e.getMessage());
                     }
@@ -78,16 +138,17 @@ public class Server {
         }
     }
 
-    protected static final Set<String> runningJobs = Collections.synchronizedSet(new HashSet<>());
-
     /**
      * Handles a client connection.
      *
      * @param clientSocket The client socket
-     * @param settings     The server settings
+     * @param snapshot     The server settings snapshot
      */
-    private void handleClient(Socket clientSocket, ServerSettings settings) {
+    private void handleClient(Socket clientSocket, SettingsSnapshot snapshot) {
+        var settings = snapshot.getSettings();
         String jobId = null;
+        long jobTicket = 0;
+        ClientSession activeSession = null;
         try {
             // Create a new TCP connection
             UUID sessionId = UUID.randomUUID();
@@ -115,6 +176,7 @@ public class Server {
                     connection.setSessionId(message.getSessionId());
                     connection.setConnectionId(message.getConnectionId());
                     connection.setSession(session::touch);
+                    connection.setProtocolVersion(session.getProtocolVersion());
                     session.setConnection(connection);
                     connection.sendMessage(new StartRestoreAck());
                     return;
@@ -131,9 +193,16 @@ public class Server {
                             connection.setConnectionId(message.getConnectionId());
                             var sess = session;
                             connection.setSession(sess::touch);
+                            connection.setProtocolVersion(sess.getProtocolVersion());
                             session.setConnection(connection);
                             log.debug("[SERVER-{}] Receiving header {}", connection.getConnectionId(),
                                     ((FileDescriptorMessage) message).getFileInfo().getRelativePath());
+                            if (((FileDescriptorMessage) message).isInline()) {
+                                handleInlineFile(connection, session, (FileDescriptorMessage) message);
+                                session = sessions.get(message.getSessionId());
+                                message = connection.receiveMessage();
+                                continue;
+                            }
                             handleFileDescriptor(connection, session, (FileDescriptorMessage) message);
                             message = connection.receiveMessage();
                             var lastMessage = message;
@@ -177,7 +246,7 @@ public class Server {
                 String username = connectMessage.getUsername();
                 String password = connectMessage.getPassword();
 
-                var userOpt = settings.authenticate(username, password);
+                var userOpt = snapshot.authenticate(username, password);
                 if (userOpt.isEmpty()) {
                     connection.sendMessage(new ErrorMessage("ERR_AUTH", "Authentication failed"));
                     connection.close();
@@ -188,7 +257,7 @@ public class Server {
 
                 // Check if the user has access to the requested folder
                 String targetFolder = connectMessage.getTargetFolder();
-                var folderOpt = settings.getUserFolder(user.getId(), targetFolder);
+                var folderOpt = snapshot.getUserFolder(user.getId(), targetFolder);
                 if (folderOpt.isEmpty()) {
                     connection.sendMessage(new ErrorMessage("ERR_ACCESS", "Access to folder denied"));
                     connection.close();
@@ -197,6 +266,30 @@ public class Server {
 
                 var folder = folderOpt.get();
 
+                // Send the client to the node of the cluster owning the folder
+                if (cluster != null) {
+                    var owner = cluster.getOwner(folder.getVirtualName());
+                    if (!cluster.isLocal(owner)) {
+                        log.debug("[SERVER] Redirecting {} to the node {}", folder.getVirtualName(), owner.getNodeId());
+                        connection.sendMessage(new ErrorMessage("ERR_REDIRECT", "Folder served by the node " + owner.getNodeId(),
+                                owner.getAddress() + ":" + owner.getPort()));
+                        Sleeper.sleep(100);
+                        connection.close();
+                        return;
+                    }
+                }
+
+                // Continue a backup dropped by the network, the folder is still reserved to it
+                if (connectMessage.getResumeToken() != null) {
+                    var resumed = findResumable(connectMessage.getResumeToken(), user, folder);
+                    if (resumed != null) {
+                        activeSession = resumed;
+                        resumeSession(connection, resumed, settings);
+                        return;
+                    }
+                    log.info("[SERVER] No session to resume for {}, starting a new one", folder.getVirtualName());
+                }
+
                 var ignoreHiddenFiles = connectMessage.isIgnoreHiddenFiles();
                 if (folder.isIgnoreHiddenFiles()) ignoreHiddenFiles = true;
                 var ignoreSystemFiles = connectMessage.isIgnoreSystemFiles();
@@ -206,7 +299,20 @@ public class Server {
                 ignoredPatterns.addAll(connectMessage.getIgnoredPatterns());
 
                 jobId = folder.getVirtualName();
-                if (!runningJobs.add(jobId)) {
+                if (folderJobs.isBusy(jobId)) {
+                    log.info("[SERVER] Job already running, queuing: {}", jobId);
+                }
+                // Wait in the folder queue, reporting the position with keep alives
+                try {
+                    jobTicket = folderJobs.acquire(jobId, settings.getMaxQueueWaitSeconds() * 1000L,
+                            QUEUE_POSITION_REPORT_MILLIS,
+                            position -> connection.sendMessage(new KeepAlive(position)));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    connection.close();
+                    return;
+                }
+                if (jobTicket == 0) {
                     log.warn("[SERVER] Job already running: {}", jobId);
                     connection.sendMessage(new ErrorMessage("ERR_BUSY", "Folder is busy with another operation"));
                     Sleeper.sleep(100);
@@ -224,55 +330,50 @@ public class Server {
                         TIMEOUT_SECONDS
                 );
 
+                session.setJobTicket(jobTicket);
+                session.touch();
                 sessions.put(sessionId, session);
                 session.setIgnoreHiddenFiles(ignoreHiddenFiles);
                 session.setIgnoreSystemFiles(ignoreSystemFiles);
                 session.setIgnoredPatterns(ignoredPatterns);
+                if (ContentHasher.isSupported(connectMessage.getHashAlgorithm())) {
+                    session.setHashAlgorithm(connectMessage.getHashAlgorithm());
+                }
+                session.setProtocolVersion(ProtocolVersion.negotiate(connectMessage.getProtocolVersion()));
+                session.setPointInTime(parsePointInTime(connectMessage.getPointInTime()));
                 session.setMainConnection(connection);
+                session.setResumeGraceSeconds(settings.getResumeGraceSeconds());
+                activeSession = session;
 
                 // Set the session in the connection and touch it
                 connection.setSession(session::touch);
 
-                // Send connect response
-                connection.sendMessage(new ConnectResponseMessage(true, null, settings.getMaxPacketSize(),
+                // Send connect response, the following packets use the negotiated framing
+                var connectResponse = new ConnectResponseMessage(true, null, settings.getMaxPacketSize(),
                         settings.getMaxConnections(), session.getBackupType(),
-                        ignoreSystemFiles, ignoreHiddenFiles, ignoredPatterns.stream().toList()));
-
-                // Handle messages
-                while (true) {
-                    message = connection.receiveMessage();
-                    if (message == null) {
-                        log.debug("[SERVER-{}] No Data", connection.getConnectionId());
-                        break;
-                    }
-                    log.debug("[SERVER-{}] Received data: {}", connection.getConnectionId(), message.getMessageType());
-                    switch (message.getMessageType()) {
-                        case FILE_LIST:
-                            handleFileList(connection, session, (FileListMessage) message);
-                            break;
-                        case FILE_SYNC:
-                            handleFileSync(connection, session, (FileSyncMessage) message);
-                            break;
-                        case SYNC_END:
-                            log.debug("[SERVER-{}] Received sync end", connection.getConnectionId());
-                            handleSyncEnd(connection, session, (SyncEndMessage) message);
-                            Sleeper.sleep(100);
-                            // End of session
-                            session.closeConnections();
-                            sessions.remove(sessionId);
-                            connection.close();
-                            if (jobId != null) runningJobs.remove(jobId);
-                            return;
-                        default:
-                            connection.sendMessage(new ErrorMessage("ERR_PROTOCOL", "Unexpected message type: " + message.getMessageType()));
-                    }
+                        ignoreSystemFiles, ignoreHiddenFiles, ignoredPatterns.stream().toList());
+                connectResponse.setProtocolVersion(session.getProtocolVersion());
+                connectResponse.setInlineThreshold(Math.min(settings.getInlineFileThreshold(), settings.getMaxPacketSize()));
+                if (session.getProtocolVersion() >= ProtocolVersion.V8) {
+                    connectResponse.setResumeToken(session.getResumeToken());
                 }
+                connection.sendMessage(connectResponse);
+                connection.setProtocolVersion(session.getProtocolVersion());
+                handleSession(connection, session, jobId, jobTicket);
             //}
         } catch (IOException e) {
             log.trace("[SERVER] Error handling client: {}", e.getMessage());
             try {
                 clientSocket.close();
-                if(jobId!=null)runningJobs.remove(jobId);
+                if (activeSession != null && activeSession.isResumable()) {
+                    // The folder stays reserved, also when already resumed on another connection
+                    var main = activeSession.getMainConnection();
+                    if (main != null && main.getSocket() == clientSocket) suspendSession(activeSession, main);
+                } else {
+                    // Nothing must be written after the folder is handed to the next session
+                    if (activeSession != null) releaseSession(activeSession);
+                    if (jobId != null) folderJobs.release(jobId, jobTicket);
+                }
             } catch (IOException ex) {
                 // Ignore
             }
@@ -280,6 +381,225 @@ public class Server {
 
     }
 
+    /**
+     * Handles the messages of the main connection of a session.
+     *
+     * @param connection The main connection
+     * @param session    The client session
+     * @param jobId      The folder reserved to the session
+     * @param jobTicket  The ticket of the reservation
+     * @throws IOException If an I/O error occurs
+     */
+    private void handleSession(TcpConnection connection, ClientSession session, String jobId, long jobTicket) throws IOException {
+        var sessionId = session.getSessionId();
+        Message message;
+
+        // Handle messages
+        while (true) {
+            message = connection.receiveMessage();
+            if (message == null) {
+                log.debug("[SERVER-{}] No Data", connection.getConnectionId());
+                break;
+            }
+            log.debug("[SERVER-{}] Received data: {}", connection.getConnectionId(), message.getMessageType());
+            switch (message.getMessageType()) {
+                case FILE_LIST:
+                    handleFileList(connection, session, (FileListMessage) message);
+                    break;
+                case FILE_MOVE:
+                    handleFileMove(connection, session, (FileMoveMessage) message);
+                    break;
+                case SYNC_TREE:
+                    handleSyncTree(connection, session, (SyncTreeMessage) message);
+                    break;
+                case FILE_SYNC:
+                    handleFileSync(connection, session, (FileSyncMessage) message);
+                    break;
+                case SYNC_END:
+                    log.debug("[SERVER-{}] Received sync end", connection.getConnectionId());
+                    handleSyncEnd(connection, session, (SyncEndMessage) message);
+                    Sleeper.sleep(100);
+                    // End of session
+                    session.closeConnections();
+                    sessions.remove(sessionId);
+                    releaseSession(session);
+                    connection.close();
+                    if (jobId != null) folderJobs.release(jobId, jobTicket);
+                    return;
+                default:
+                    connection.sendMessage(new ErrorMessage("ERR_PROTOCOL", "Unexpected message type: " + message.getMessageType()));
+            }
+        }
+        // The client is gone, a backup can still be resumed
+        if (session.isResumable()) {
+            suspendSession(session, connection);
+        }
+    }
+
+    private ClientSession findResumable(String resumeToken, ServerSettings.User user, ServerSettings.BackupFolder folder) {
+        for (var session : sessions.values()) {
+            if (resumeToken.equals(session.getResumeToken()) && session.isResumable()
+                    && session.getUser().getId().equals(user.getId())
+                    && session.getFolder().getVirtualName().equals(folder.getVirtualName())) {
+                return session;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Continues a session on a new main connection, sending the files still to transfer
+     * in place of waiting for the file list.
+     *
+     * @param connection The new main connection
+     * @param session    The session to resume
+     * @param settings   The server settings
+     * @throws IOException If an I/O error occurs
+     */
+    private void resumeSession(TcpConnection connection, ClientSession session, ServerSettings settings) throws IOException {
+        // The previous connections could still wait for a dropped client
+        var previous = session.getMainConnection();
+        session.resume(connection);
+        session.closeConnections();
+        if (previous != null && previous != connection) previous.close();
+        connection.setSessionId(session.getSessionId());
+        connection.setSession(session::touch);
+
+        var remaining = session.getRemainingFiles();
+        log.info("[SERVER] Resuming session {} on {} with {} files left", session.getSessionId(),
+                session.getFolder().getVirtualName(), remaining.size());
+        var connectResponse = new ConnectResponseMessage(true, null, settings.getMaxPacketSize(),
+                settings.getMaxConnections(), session.getBackupType(),
+                session.isIgnoreSystemFiles(), session.isIgnoreHiddenFiles(), List.copyOf(session.getIgnoredPatterns()));
+        connectResponse.setProtocolVersion(session.getProtocolVersion());
+        connectResponse.setInlineThreshold(Math.min(settings.getInlineFileThreshold(), settings.getMaxPacketSize()));
+        connectResponse.setResumeToken(session.getResumeToken());
+        connectResponse.setResumed(true);
+        connection.sendMessage(connectResponse);
+        connection.setProtocolVersion(session.getProtocolVersion());
+        connection.sendMessage(new FileListResponseMessage(remaining, new ArrayList<>(), true, 1, 1));
+        handleSession(connection, session, session.getFolder().getVirtualName(), session.getJobTicket());
+    }
+
+    /**
+     * Discards the queued writes and the handler state of a session that ended.
+     *
+     * @param session The client session
+     */
+    private void releaseSession(ClientSession session) {
+        if (ioScheduler != null) ioScheduler.release(session.getSessionId());
+        var handler = backupHandlers.get(session.getBackupType());
+        if (handler != null) handler.releaseSession(session);
+    }
+
+    private void suspendSession(ClientSession session, TcpConnection connection) {
+        if (session.suspend(connection)) {
+            log.info("[SERVER] Session {} dropped, kept to be resumed", session.getSessionId());
+            session.closeConnections();
+            // The interrupted files are sent again from the start on resume
+            if (ioScheduler != null) ioScheduler.release(session.getSessionId());
+        }
+    }
+
+    /**
+     * Checks if any session is working on the volume that holds a folder.
+     *
+     * @param realPath The folder real path
+     * @return True if the volume is busy
+     */
+    public boolean isVolumeBusy(String realPath) {
+        var scheduler = ioScheduler;
+        var device = scheduler == null ? realPath : scheduler.getDeviceName(realPath);
+        for (var session : sessions.values()) {
+            var folder = session.getFolder();
+            if (folder == null) continue;
+            var sessionDevice = scheduler == null ? folder.getRealPath() : scheduler.getDeviceName(folder.getRealPath());
+            if (device.equals(sessionDevice)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private ClusterCoordinator startCluster(ServerSettings settings) throws IOException {
+        var address = settings.getClusterAddress();
+        if (address == null || address.isBlank()) {
+            address = InetAddress.getLocalHost().getHostName();
+        }
+        var nodeId = settings.getClusterNodeId();
+        if (nodeId == null || nodeId.isBlank()) {
+            nodeId = address + ":" + settings.getPort();
+        }
+        var result = new ClusterCoordinator(Path.of(settings.getClusterDirectory()),
+                new ClusterNode(nodeId, address, settings.getPort()),
+                settings.getClusterHeartbeatSeconds(), settings.getClusterNodeTimeoutSeconds(), sessions::size);
+        result.start();
+        return result;
+    }
+
+    /**
+     * Gets the coordinator of the cluster.
+     *
+     * @return The coordinator, or null if the server runs alone
+     */
+    public ClusterCoordinator getCluster() {
+        return cluster;
+    }
+
+    /**
+     * Gets the number of the active sessions.
+     *
+     * @return The sessions
+     */
+    public int getActiveSessions() {
+        return sessions.size();
+    }
+
+    private static String parsePointInTime(String pointInTime) {
+        if (pointInTime == null) return null;
+        try {
+            return LocalDate.parse(pointInTime).toString();
+        } catch (DateTimeParseException e) {
+            log.warn("[SERVER] Invalid point in time {}, restoring the latest versions", pointInTime);
+            return null;
+        }
+    }
+
+    private ServerSettings currentSettings() {
+        try {
+            return serverConfig.snapshot().getSettings();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Gets the background scrub service.
+     *
+     * @return The service, or null if the server is not started
+     */
+    public ScrubService getScrubService() {
+        return scrubService;
+    }
+
+    /**
+     * Gets the replication service.
+     *
+     * @return The service, or null if the server is not started
+     */
+    public ReplicationService getReplicationService() {
+        return replicationService;
+    }
+
+    /**
+     * Gets the tiering service.
+     *
+     * @return The service, or null if the server is not started
+     */
+    public TieringService getTieringService() {
+        return tieringService;
+    }
+
     private void handleFileSync(TcpConnection connection, ClientSession session, FileSyncMessage message) throws IOException {
         // Get the appropriate backup handler for the session's backup type
         BackupHandler handler = backupHandlers.get(session.getBackupType());
@@ -293,6 +613,46 @@ public class Server {
         handler.handleFileSync(connection, session, message);
     }
 
+    /**
+     * Handles a sync tree message.
+     *
+     * @param connection The TCP connection
+     * @param session    The client session
+     * @param message    The sync tree message
+     * @throws IOException If an I/O error occurs
+     */
+    private void handleSyncTree(TcpConnection connection, ClientSession session, SyncTreeMessage message) throws IOException {
+        BackupHandler handler = backupHandlers.get(session.getBackupType());
+        if (handler == null) {
+            log.error("No handler found for backup type 8: {}", session.getBackupType());
+            connection.sendError("ERR_BACKUP_TYPE", "Unsupported backup type: " + session.getBackupType());
+            return;
+        }
+
+        // Delegate to the backup handler
+        handler.handleSyncTree(connection, session, message);
+    }
+
+    /**
+     * Handles a file move message.
+     *
+     * @param connection The TCP connection
+     * @param session    The client session
+     * @param message    The file move message
+     * @throws IOException If an I/O error occurs
+     */
+    private void handleFileMove(TcpConnection connection, ClientSession session, FileMoveMessage message) throws IOException {
+        BackupHandler handler = backupHandlers.get(session.getBackupType());
+        if (handler == null) {
+            log.error("No handler found for backup type 7: {}", session.getBackupType());
+            connection.sendError("ERR_BACKUP_TYPE", "Unsupported backup type: " + session.getBackupType());
+            return;
+        }
+
+        // Delegate to the backup handler
+        handler.handleFileMove(connection, session, message);
+    }
+
     /**
      * Handles a file list message.
      *
@@ -329,6 +689,7 @@ public class Server {
         // Store the current file info in the session using connection ID as index
         if (session.isBackup()) {
             session.setCurrentFile(connection.getConnectionId(), message.getFileInfo());
+            session.startContentHash(connection.getConnectionId());
         }
 
         // Get the appropriate backup handler for the session's backup type
@@ -360,6 +721,11 @@ public class Server {
             return;
         }
 
+        // Hash the content while it is received, it is verified on the file end
+        if (session.isBackup()) {
+            session.updateContentHash(connection.getConnectionId(), message);
+        }
+
         // Delegate to the backup handler
         handler.handleFileData(connection, session, message);
         connection.sendMessage(new FileDataAck());
@@ -386,6 +752,31 @@ public class Server {
         handler.handleFileEnd(connection, session, message);
     }
 
+    /**
+     * Handles a file sent inside its descriptor.
+     *
+     * @param connection The TCP connection
+     * @param session    The client session
+     * @param message    The file descriptor message with the content
+     * @throws IOException If an I/O error occurs
+     */
+    private void handleInlineFile(TcpConnection connection, ClientSession session, FileDescriptorMessage message) throws IOException {
+        if (session.isBackup()) {
+            session.setCurrentFile(connection.getConnectionId(), message.getFileInfo());
+            session.startContentHash(connection.getConnectionId());
+        }
+
+        BackupHandler handler = backupHandlers.get(session.getBackupType());
+        if (handler == null) {
+            log.error("No handler found for backup type 9: {}", session.getBackupType());
+            connection.sendError("ERR_BACKUP_TYPE", "Unsupported backup type: " + session.getBackupType());
+            return;
+        }
+
+        // Delegate to the backup handler
+        handler.handleInlineFile(connection, session, message);
+    }
+
     /**
      * Handles a sync end message.
      *
@@ -420,7 +811,12 @@ public class Server {
             this.sessions.clear();
             this.executorService.shutdown();
             this.backupHandlers.clear();
-            this.runningJobs.clear();
+            this.folderJobs.clear();
+            if (cluster != null) cluster.close();
+            if (ioScheduler != null) ioScheduler.close();
+            if (scrubService != null) scrubService.close();
+            if (replicationService != null) replicationService.close();
+            if (tieringService != null) tieringService.close();
 
         } catch (Exception ex) {
             log.error("Error closing session monitor: {}", ex.getMessage());
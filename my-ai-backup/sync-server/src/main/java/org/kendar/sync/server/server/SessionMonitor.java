@@ -1,5 +1,8 @@
 package org.kendar.sync.server.server;
 
+import org.kendar.sync.lib.protocol.BackupType;
+import org.kendar.sync.server.backup.BackupHandler;
+import org.kendar.sync.server.io.DiskIoScheduler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -9,29 +12,44 @@ import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
-import static org.kendar.sync.server.server.Server.runningJobs;
-
 /**
  * Monitors client sessions for timeout/expiration and disconnects expired sessions.
  */
 public class SessionMonitor implements AutoCloseable {
     private static final Logger log = LoggerFactory.getLogger(SessionMonitor.class);
     private final Map<UUID, ClientSession> sessions;
+    private final FolderJobQueue folderJobs;
+    private final Map<BackupType, BackupHandler> backupHandlers;
     private final ScheduledExecutorService scheduler;
     private final long monitorIntervalSeconds;
+    private volatile DiskIoScheduler ioScheduler;
 
     /**
      * Creates a new session monitor.
      *
      * @param sessions               The map of active sessions to monitor
+     * @param folderJobs             The queue granting the folders to the sessions
+     * @param backupHandlers         The handlers keeping the state of the sessions
      * @param monitorIntervalSeconds The interval in seconds between checks for expired sessions
      */
-    public SessionMonitor(Map<UUID, ClientSession> sessions, long monitorIntervalSeconds) {
+    public SessionMonitor(Map<UUID, ClientSession> sessions, FolderJobQueue folderJobs,
+                          Map<BackupType, BackupHandler> backupHandlers, long monitorIntervalSeconds) {
         this.sessions = sessions;
+        this.folderJobs = folderJobs;
+        this.backupHandlers = backupHandlers;
         this.monitorIntervalSeconds = monitorIntervalSeconds;
         this.scheduler = Executors.newSingleThreadScheduledExecutor();
     }
 
+    /**
+     * Sets the scheduler holding the queued writes of the sessions, discarded when a session expires.
+     *
+     * @param ioScheduler The disk I/O scheduler
+     */
+    public void setIoScheduler(DiskIoScheduler ioScheduler) {
+        this.ioScheduler = ioScheduler;
+    }
+
     /**
      * Starts the session monitor.
      */
@@ -55,12 +73,33 @@ public class SessionMonitor implements AutoCloseable {
 
             for (UUID sessionId : sessionIds) {
                 ClientSession session = sessions.get(sessionId);
-                if (session != null && session.isExpired()) {
+                if (session == null) continue;
+                if (session.isSuspended()) {
+                    if (session.isResumeExpired()) {
+                        log.info("Session {} was not resumed, releasing its folder", sessionId);
+                        releaseSession(session);
+                        folderJobs.release(session.getFolder().getVirtualName(), session.getJobTicket());
+                        sessions.remove(sessionId);
+                    }
+                    continue;
+                }
+                if (session.isExpired() && session.isResumable()) {
+                    // The client could come back after a network drop
+                    var mainConnection = session.getMainConnection();
+                    if (session.suspend(mainConnection)) {
+                        log.info("Session {} has expired, keeping it to be resumed", sessionId);
+                        session.closeConnections();
+                        mainConnection.close();
+                        releaseWrites(sessionId);
+                    }
+                } else if (session.isExpired()) {
                     log.info("Session {} has expired, closing connections", sessionId);
                     session.closeConnections();
                     session.getMainConnection().close();
+                    releaseSession(session);
+                    // Hand the folder to the next waiting session
                     var jobId = session.getFolder().getVirtualName();
-                    runningJobs.remove(jobId);
+                    folderJobs.release(jobId, session.getJobTicket());
                     sessions.remove(sessionId);
                 }
             }
@@ -69,6 +108,17 @@ public class SessionMonitor implements AutoCloseable {
         }
     }
 
+    private void releaseWrites(UUID sessionId) {
+        var scheduler = ioScheduler;
+        if (scheduler != null) scheduler.release(sessionId);
+    }
+
+    private void releaseSession(ClientSession session) {
+        releaseWrites(session.getSessionId());
+        var handler = backupHandlers.get(session.getBackupType());
+        if (handler != null) handler.releaseSession(session);
+    }
+
     /**
      * Stops the session monitor.
      */
@@ -0,0 +1,130 @@
+package org.kendar.sync.server.storage;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+
+/**
+ * Signs the requests to an S3-compatible object store with the AWS signature version 4.
+ */
+class AwsSigner {
+    static final String UNSIGNED_PAYLOAD = "UNSIGNED-PAYLOAD";
+    static final String EMPTY_PAYLOAD = "e3b0c44298fc1c149afbf4c8996fb92427ae41e4649b934ca495991b7852b855";
+    private static final String ALGORITHM = "AWS4-HMAC-SHA256";
+    private static final DateTimeFormatter DATE_TIME = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss'Z'").withZone(ZoneOffset.UTC);
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final String region;
+    private final String accessKey;
+    private final String secretKey;
+
+    AwsSigner(String region, String accessKey, String secretKey) {
+        this.region = region;
+        this.accessKey = accessKey;
+        this.secretKey = secretKey;
+    }
+
+    /**
+     * Encodes a string as required by the signature, keeping the slashes when requested.
+     */
+    static String encode(String value, boolean keepSlashes) {
+        var result = new StringBuilder();
+        for (var b : value.getBytes(StandardCharsets.UTF_8)) {
+            var c = (char) (b & 0xFF);
+            if ((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') ||
+                    c == '-' || c == '_' || c == '.' || c == '~' || (keepSlashes && c == '/')) {
+                result.append(c);
+            } else {
+                result.append('%').append(Character.toUpperCase(HEX[(c >> 4) & 0xF]))
+                        .append(Character.toUpperCase(HEX[c & 0xF]));
+            }
+        }
+        return result.toString();
+    }
+
+    static String hex(byte[] bytes) {
+        var result = new StringBuilder(bytes.length * 2);
+        for (var b : bytes) {
+            result.append(HEX[(b >> 4) & 0xF]).append(HEX[b & 0xF]);
+        }
+        return result.toString();
+    }
+
+    static String sha256(byte[] data) {
+        try {
+            return hex(MessageDigest.getInstance("SHA-256").digest(data));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] hmac(byte[] key, String data) {
+        try {
+            var mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(key, "HmacSHA256"));
+            return mac.doFinal(data.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Computes the headers of a signed request.
+     *
+     * @param method      The HTTP method
+     * @param uri         The request URI, with the path and the query already encoded
+     * @param headers     The other headers to sign, like the range
+     * @param payloadHash The hex SHA-256 of the body, or {@link #UNSIGNED_PAYLOAD}
+     * @param time        The time of the request
+     * @return The headers to add to the request, authorization included
+     */
+    Map<String, String> sign(String method, URI uri, Map<String, String> headers, String payloadHash, Instant time) {
+        var amzDate = DATE_TIME.format(time);
+        var date = amzDate.substring(0, 8);
+        var signed = new TreeMap<String, String>();
+        for (var header : headers.entrySet()) {
+            signed.put(header.getKey().toLowerCase(), header.getValue().trim());
+        }
+        var host = uri.getPort() < 0 ? uri.getHost() : uri.getHost() + ":" + uri.getPort();
+        signed.put("host", host);
+        signed.put("x-amz-content-sha256", payloadHash);
+        signed.put("x-amz-date", amzDate);
+
+        var query = new TreeMap<String, String>();
+        if (uri.getRawQuery() != null) {
+            for (var parameter : uri.getRawQuery().split("&")) {
+                var equals = parameter.indexOf('=');
+                query.put(equals < 0 ? parameter : parameter.substring(0, equals),
+                        equals < 0 ? "" : parameter.substring(equals + 1));
+            }
+        }
+        var signedHeaders = String.join(";", signed.keySet());
+        var canonicalRequest = method + "\n" +
+                (uri.getRawPath().isEmpty() ? "/" : uri.getRawPath()) + "\n" +
+                query.entrySet().stream().map(e -> e.getKey() + "=" + e.getValue()).collect(Collectors.joining("&")) + "\n" +
+                signed.entrySet().stream().map(e -> e.getKey() + ":" + e.getValue() + "\n").collect(Collectors.joining()) + "\n" +
+                signedHeaders + "\n" +
+                payloadHash;
+        var scope = date + "/" + region + "/s3/aws4_request";
+        var stringToSign = ALGORITHM + "\n" + amzDate + "\n" + scope + "\n" +
+                sha256(canonicalRequest.getBytes(StandardCharsets.UTF_8));
+        var key = hmac(hmac(hmac(hmac(("AWS4" + secretKey).getBytes(StandardCharsets.UTF_8), date), region), "s3"), "aws4_request");
+        var signature = hex(hmac(key, stringToSign));
+
+        var result = new TreeMap<String, String>();
+        result.put("x-amz-content-sha256", payloadHash);
+        result.put("x-amz-date", amzDate);
+        result.put("Authorization", ALGORITHM + " Credential=" + accessKey + "/" + scope +
+                ",SignedHeaders=" + signedHeaders + ",Signature=" + signature);
+        return result;
+    }
+}
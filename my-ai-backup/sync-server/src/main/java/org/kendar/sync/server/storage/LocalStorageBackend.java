@@ -0,0 +1,131 @@
+package org.kendar.sync.server.storage;
+
+import org.kendar.sync.lib.utils.FileUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Stores the files in a directory of the local file system.
+ * The writes go directly to the files, so the commit has nothing to do.
+ */
+public class LocalStorageBackend implements StorageBackend {
+    private final Path root;
+
+    /**
+     * Creates a new backend.
+     *
+     * @param root The directory holding the files
+     */
+    public LocalStorageBackend(Path root) {
+        this.root = root.toAbsolutePath().normalize();
+    }
+
+    public Path getRoot() {
+        return root;
+    }
+
+    /**
+     * Gets the real path of a file, refusing the ones outside the root.
+     *
+     * @param path The file path
+     * @return The real path
+     * @throws IOException If the path is outside the root
+     */
+    public Path resolve(String path) throws IOException {
+        var result = root.resolve(path).normalize();
+        if (!result.startsWith(root) || result.equals(root)) {
+            throw new IOException("Path outside the storage: " + path);
+        }
+        return result;
+    }
+
+    @Override
+    public OutputStream openForWrite(String path, long offset) throws IOException {
+        var file = resolve(path);
+        Files.createDirectories(file.getParent());
+        var channel = offset == 0 ?
+                FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING) :
+                FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        try {
+            channel.position(offset);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return Channels.newOutputStream(channel);
+    }
+
+    @Override
+    public void commit(String path) {
+        // Written in place
+    }
+
+    @Override
+    public List<StoredObject> list(String prefix) throws IOException {
+        var result = new ArrayList<StoredObject>();
+        // Only the directory containing the prefix is walked
+        var slash = prefix.lastIndexOf('/');
+        var start = slash < 0 ? root : root.resolve(prefix.substring(0, slash)).normalize();
+        if (!start.startsWith(root) || !Files.isDirectory(start)) {
+            return result;
+        }
+        // The walk reads the attributes of every file, they are not read again
+        Files.walkFileTree(start, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attr) {
+                var relative = FileUtils.makeUniformPath(root.relativize(file).toString());
+                if (attr.isRegularFile() && relative.startsWith(prefix)) {
+                    result.add(new StoredObject(relative, attr.size(), attr.lastModifiedTime().toInstant(),
+                            FileUtils.toAttributes(file, attr)));
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return result;
+    }
+
+    @Override
+    public StoredObject stat(String path) throws IOException {
+        try {
+            var file = resolve(path);
+            var attr = Files.readAttributes(file, BasicFileAttributes.class);
+            if (!attr.isRegularFile()) {
+                return null;
+            }
+            return new StoredObject(path, attr.size(), attr.lastModifiedTime().toInstant(),
+                    FileUtils.toAttributes(file, attr));
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public InputStream read(String path, long offset, long length) throws IOException {
+        var channel = FileChannel.open(resolve(path), StandardOpenOption.READ);
+        try {
+            channel.position(offset);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return new RangeInputStream(Channels.newInputStream(channel), length);
+    }
+
+    @Override
+    public void delete(String path) throws IOException {
+        Files.deleteIfExists(resolve(path));
+    }
+}
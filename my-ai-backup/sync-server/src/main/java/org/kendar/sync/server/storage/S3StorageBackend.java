@@ -0,0 +1,367 @@
+package org.kendar.sync.server.storage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Stores the files in a bucket of an S3-compatible object store, with path-style requests.
+ * <p>
+ * The writes of a file are collected in parts of {@link #getPartSize()} bytes, uploaded in
+ * parallel as a multipart upload while the next ones are received. The commit uploads the
+ * last part and completes the upload, a file smaller than a part is sent with a single
+ * request. The reads use ranged requests.
+ */
+public class S3StorageBackend implements StorageBackend {
+    /**
+     * The minimum part size accepted by the object stores, but for the last part.
+     */
+    public static final int MIN_PART_SIZE = 5 * 1024 * 1024;
+    private static final Logger log = LoggerFactory.getLogger(S3StorageBackend.class);
+    private static final AtomicInteger threadCounter = new AtomicInteger();
+
+    private final URI endpoint;
+    private final String bucket;
+    private final String prefix;
+    private final AwsSigner signer;
+    private final HttpClient client;
+    private final ExecutorService uploadPool;
+    private final Semaphore uploadSlots;
+    private final Map<String, Upload> uploads = new ConcurrentHashMap<>();
+    private int partSize = 8 * 1024 * 1024;
+
+    /**
+     * Creates a new backend.
+     *
+     * @param endpoint          The object store URL, like {@code http://localhost:9000}
+     * @param region            The region used to sign the requests
+     * @param bucket            The bucket
+     * @param prefix            The prefix of the keys of the folder, empty for the whole bucket
+     * @param accessKey         The access key
+     * @param secretKey         The secret key
+     * @param uploadParallelism The parts uploaded at the same time, by all the files
+     */
+    public S3StorageBackend(URI endpoint, String region, String bucket, String prefix,
+                            String accessKey, String secretKey, int uploadParallelism) {
+        var base = endpoint.toString();
+        this.endpoint = URI.create(base.endsWith("/") ? base.substring(0, base.length() - 1) : base);
+        this.bucket = bucket;
+        this.prefix = prefix == null || prefix.isEmpty() || prefix.endsWith("/") ? (prefix == null ? "" : prefix) : prefix + "/";
+        this.signer = new AwsSigner(region, accessKey, secretKey);
+        this.client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+        var parallelism = Math.max(1, uploadParallelism);
+        this.uploadPool = Executors.newFixedThreadPool(parallelism, r -> {
+            var thread = new Thread(r, "s3-upload-" + threadCounter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        // The parts waiting for a thread count on the memory, at most one more for each thread
+        this.uploadSlots = new Semaphore(parallelism * 2);
+    }
+
+    public int getPartSize() {
+        return partSize;
+    }
+
+    /**
+     * Sets the size of the parts of the multipart uploads. The object stores refuse
+     * parts smaller than {@link #MIN_PART_SIZE}, but for the last one.
+     *
+     * @param partSize The part size
+     */
+    public void setPartSize(int partSize) {
+        this.partSize = partSize;
+    }
+
+    private URI uri(String path, String query) {
+        var key = AwsSigner.encode(prefix + path, true);
+        return URI.create(endpoint + "/" + AwsSigner.encode(bucket, false) + "/" + key + (query == null ? "" : "?" + query));
+    }
+
+    private HttpRequest.Builder request(String method, URI uri, Map<String, String> headers, byte[] body) {
+        var payloadHash = body == null ? AwsSigner.EMPTY_PAYLOAD : AwsSigner.UNSIGNED_PAYLOAD;
+        var builder = HttpRequest.newBuilder(uri)
+                .method(method, body == null ? HttpRequest.BodyPublishers.noBody() : HttpRequest.BodyPublishers.ofByteArray(body));
+        headers.forEach(builder::header);
+        signer.sign(method, uri, headers, payloadHash, Instant.now()).forEach(builder::header);
+        return builder;
+    }
+
+    private <T> HttpResponse<T> send(HttpRequest request, HttpResponse.BodyHandler<T> handler, int... expected) throws IOException {
+        try {
+            var response = client.send(request, handler);
+            for (var status : expected) {
+                if (response.statusCode() == status) {
+                    return response;
+                }
+            }
+            var body = response.body();
+            if (body instanceof InputStream) {
+                ((InputStream) body).close();
+            }
+            throw new IOException("Unexpected status " + response.statusCode() + " for " +
+                    request.method() + " " + request.uri().getRawPath());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while calling the object store", e);
+        }
+    }
+
+    private byte[] sendForBytes(String method, URI uri, byte[] body, int... expected) throws IOException {
+        return send(request(method, uri, Map.of(), body).build(), HttpResponse.BodyHandlers.ofByteArray(), expected).body();
+    }
+
+    private static Document parse(byte[] xml) throws IOException {
+        try {
+            var factory = DocumentBuilderFactory.newInstance();
+            factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+            return factory.newDocumentBuilder().parse(new ByteArrayInputStream(xml));
+        } catch (Exception e) {
+            throw new IOException("Invalid response of the object store", e);
+        }
+    }
+
+    private static String text(Element element, String name) {
+        var nodes = element.getElementsByTagName(name);
+        return nodes.getLength() == 0 ? null : nodes.item(0).getTextContent();
+    }
+
+    @Override
+    public OutputStream openForWrite(String path, long offset) throws IOException {
+        Upload upload;
+        if (offset == 0) {
+            upload = new Upload(path);
+            var previous = uploads.put(path, upload);
+            if (previous != null) {
+                previous.abort();
+            }
+        } else {
+            upload = uploads.get(path);
+            if (upload == null || upload.written != offset) {
+                throw new IOException("Write of " + path + " at " + offset + " does not continue the previous one");
+            }
+        }
+        return new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                upload.write(b, off, len);
+            }
+        };
+    }
+
+    @Override
+    public void commit(String path) throws IOException {
+        var upload = uploads.remove(path);
+        if (upload == null) {
+            return;
+        }
+        try {
+            upload.complete();
+        } catch (IOException e) {
+            upload.abort();
+            throw e;
+        }
+    }
+
+    @Override
+    public List<StoredObject> list(String pathPrefix) throws IOException {
+        var result = new ArrayList<StoredObject>();
+        String token = null;
+        do {
+            var query = "list-type=2&prefix=" + AwsSigner.encode(prefix + pathPrefix, false) +
+                    (token == null ? "" : "&continuation-token=" + AwsSigner.encode(token, false));
+            var uri = URI.create(endpoint + "/" + AwsSigner.encode(bucket, false) + "?" + query);
+            var document = parse(sendForBytes("GET", uri, null, 200));
+            var contents = document.getElementsByTagName("Contents");
+            for (var i = 0; i < contents.getLength(); i++) {
+                var element = (Element) contents.item(i);
+                var key = text(element, "Key");
+                if (key == null || !key.startsWith(prefix)) {
+                    continue;
+                }
+                result.add(new StoredObject(key.substring(prefix.length()), Long.parseLong(text(element, "Size")),
+                        Instant.parse(text(element, "LastModified"))));
+            }
+            var root = document.getDocumentElement();
+            token = "true".equals(text(root, "IsTruncated")) ? text(root, "NextContinuationToken") : null;
+        } while (token != null);
+        return result;
+    }
+
+    @Override
+    public StoredObject stat(String path) throws IOException {
+        var response = send(request("HEAD", uri(path, null), Map.of(), null).build(),
+                HttpResponse.BodyHandlers.discarding(), 200, 404);
+        if (response.statusCode() == 404) {
+            return null;
+        }
+        var size = response.headers().firstValueAsLong("Content-Length").orElse(0);
+        var modified = response.headers().firstValue("Last-Modified")
+                .map(value -> ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant())
+                .orElse(null);
+        return new StoredObject(path, size, modified);
+    }
+
+    @Override
+    public InputStream read(String path, long offset, long length) throws IOException {
+        if (length <= 0) {
+            return InputStream.nullInputStream();
+        }
+        var range = Map.of("Range", "bytes=" + offset + "-" + (offset + length - 1));
+        var response = send(request("GET", uri(path, null), range, null).build(),
+                HttpResponse.BodyHandlers.ofInputStream(), 200, 206);
+        var body = response.body();
+        if (response.statusCode() == 200) {
+            // The store ignored the range
+            body.skipNBytes(offset);
+        }
+        return new RangeInputStream(body, length);
+    }
+
+    @Override
+    public void delete(String path) throws IOException {
+        sendForBytes("DELETE", uri(path, null), null, 200, 204);
+    }
+
+    @Override
+    public void close() {
+        for (var upload : uploads.values()) {
+            upload.abort();
+        }
+        uploads.clear();
+        uploadPool.shutdown();
+    }
+
+    /**
+     * The writes of a file not committed yet.
+     */
+    private final class Upload {
+        private final String path;
+        private final List<Future<String>> parts = new ArrayList<>();
+        private ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        private String uploadId;
+        private volatile long written;
+
+        private Upload(String path) {
+            this.path = path;
+        }
+
+        private synchronized void write(byte[] data, int offset, int length) throws IOException {
+            while (length > 0) {
+                var chunk = Math.min(length, partSize - buffer.size());
+                buffer.write(data, offset, chunk);
+                written += chunk;
+                offset += chunk;
+                length -= chunk;
+                if (buffer.size() >= partSize) {
+                    uploadPart();
+                }
+            }
+        }
+
+        private void uploadPart() throws IOException {
+            if (uploadId == null) {
+                var document = parse(sendForBytes("POST", uri(path, "uploads="), null, 200));
+                uploadId = text(document.getDocumentElement(), "UploadId");
+                if (uploadId == null) {
+                    throw new IOException("No upload id for " + path);
+                }
+            }
+            var data = buffer.toByteArray();
+            buffer = new ByteArrayOutputStream();
+            var partUri = uri(path, "partNumber=" + (parts.size() + 1) + "&uploadId=" + AwsSigner.encode(uploadId, false));
+            try {
+                uploadSlots.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while uploading " + path, e);
+            }
+            try {
+                parts.add(uploadPool.submit(() -> {
+                    try {
+                        var response = send(request("PUT", partUri, Map.of(), data).build(),
+                                HttpResponse.BodyHandlers.discarding(), 200);
+                        return response.headers().firstValue("ETag")
+                                .orElseThrow(() -> new IOException("No ETag for a part of " + path));
+                    } finally {
+                        uploadSlots.release();
+                    }
+                }));
+            } catch (RejectedExecutionException e) {
+                uploadSlots.release();
+                throw new IOException("The object store is closed", e);
+            }
+        }
+
+        private synchronized void complete() throws IOException {
+            if (uploadId == null) {
+                sendForBytes("PUT", uri(path, null), buffer.toByteArray(), 200);
+                return;
+            }
+            if (buffer.size() > 0) {
+                uploadPart();
+            }
+            var xml = new StringBuilder("<CompleteMultipartUpload>");
+            for (var i = 0; i < parts.size(); i++) {
+                String etag;
+                try {
+                    etag = parts.get(i).get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while uploading " + path, e);
+                } catch (ExecutionException e) {
+                    throw e.getCause() instanceof IOException ? (IOException) e.getCause() :
+                            new IOException("Unable to upload " + path, e.getCause());
+                }
+                xml.append("<Part><PartNumber>").append(i + 1).append("</PartNumber><ETag>")
+                        .append(etag.replace("&", "&amp;").replace("\"", "&quot;")).append("</ETag></Part>");
+            }
+            xml.append("</CompleteMultipartUpload>");
+            var response = sendForBytes("POST", uri(path, "uploadId=" + AwsSigner.encode(uploadId, false)),
+                    xml.toString().getBytes(StandardCharsets.UTF_8), 200);
+            // The store can fail the completion with a 200 status
+            if (new String(response, StandardCharsets.UTF_8).contains("<Error>")) {
+                throw new IOException("Unable to complete the upload of " + path);
+            }
+            log.debug("[SERVER] Uploaded {} in {} parts", path, parts.size());
+        }
+
+        private synchronized void abort() {
+            for (var part : parts) {
+                part.cancel(true);
+            }
+            if (uploadId == null) {
+                return;
+            }
+            try {
+                sendForBytes("DELETE", uri(path, "uploadId=" + AwsSigner.encode(uploadId, false)), null, 200, 204);
+            } catch (IOException e) {
+                log.warn("[SERVER] Unable to abort the upload of {}: {}", path, e.getMessage());
+            }
+        }
+    }
+}
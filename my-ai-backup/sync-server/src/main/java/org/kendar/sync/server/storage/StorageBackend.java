@@ -0,0 +1,77 @@
+package org.kendar.sync.server.storage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+
+/**
+ * Stores the files of a backup folder.
+ * <p>
+ * The paths are relative to the folder, with forward slashes. A file is written with one
+ * or more consecutive writes, each one continuing at the offset where the previous ended,
+ * and becomes visible to the other operations when committed. Implementations must allow
+ * concurrent operations on different files.
+ */
+public interface StorageBackend extends AutoCloseable {
+
+    /**
+     * Opens a file to write the data starting at an offset. Writing at offset zero starts
+     * the file again, discarding the content not committed.
+     *
+     * @param path   The file path
+     * @param offset The offset of the first byte written
+     * @return The stream, closing it ends this write but not the file
+     * @throws IOException If the file cannot be opened, or the offset does not continue the previous write
+     */
+    OutputStream openForWrite(String path, long offset) throws IOException;
+
+    /**
+     * Completes the writes of a file, making its content visible.
+     *
+     * @param path The file path
+     * @throws IOException If the content cannot be stored
+     */
+    void commit(String path) throws IOException;
+
+    /**
+     * Lists the committed files.
+     *
+     * @param prefix The path prefix, empty for all the files
+     * @return The files with their attributes
+     * @throws IOException If an I/O error occurs
+     */
+    List<StoredObject> list(String prefix) throws IOException;
+
+    /**
+     * Reads the attributes of a committed file.
+     *
+     * @param path The file path
+     * @return The attributes, or null if the file does not exist
+     * @throws IOException If an I/O error occurs
+     */
+    StoredObject stat(String path) throws IOException;
+
+    /**
+     * Reads a range of a committed file.
+     *
+     * @param path   The file path
+     * @param offset The offset of the first byte
+     * @param length The maximum number of bytes
+     * @return The stream of the range
+     * @throws IOException If the file cannot be read
+     */
+    InputStream read(String path, long offset, long length) throws IOException;
+
+    /**
+     * Deletes a file, if it exists.
+     *
+     * @param path The file path
+     * @throws IOException If an I/O error occurs
+     */
+    void delete(String path) throws IOException;
+
+    @Override
+    default void close() throws IOException {
+    }
+}
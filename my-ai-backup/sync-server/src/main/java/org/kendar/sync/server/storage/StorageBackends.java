@@ -0,0 +1,68 @@
+package org.kendar.sync.server.storage;
+
+import org.kendar.sync.lib.model.ServerSettings;
+import org.kendar.sync.lib.protocol.BackupType;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps one {@link StorageBackend} per backup folder, shared by all the sessions.
+ */
+public class StorageBackends {
+    private final Map<Path, StorageBackend> storages = new ConcurrentHashMap<>();
+
+    /**
+     * Creates the backend configured for a folder.
+     *
+     * @param folder The backup folder
+     * @return The backend
+     * @throws IOException If the folder storage is not valid
+     */
+    public static StorageBackend create(ServerSettings.BackupFolder folder) throws IOException {
+        var storage = folder.getStorage();
+        if (storage == null || storage.getType() == null || ServerSettings.Storage.LOCAL.equals(storage.getType())) {
+            return new LocalStorageBackend(Path.of(folder.getRealPath()));
+        }
+        if (!ServerSettings.Storage.S3.equals(storage.getType())) {
+            throw new IOException("Unknown storage type " + storage.getType() + " of " + folder.getVirtualName());
+        }
+        // The other types keep hard links, version indexes or compressed blocks next to the files
+        if ((folder.getBackupType() != BackupType.MIRROR && folder.getBackupType() != BackupType.PRESERVE)
+                || folder.isCompressAtRest()) {
+            throw new IOException("Only the mirror and preserve folders not compressed at rest can be stored on S3: "
+                    + folder.getVirtualName());
+        }
+        if (storage.getEndpoint() == null || storage.getBucket() == null) {
+            throw new IOException("Missing the S3 endpoint or bucket of " + folder.getVirtualName());
+        }
+        return new S3StorageBackend(URI.create(storage.getEndpoint()), storage.getRegion(), storage.getBucket(),
+                storage.getPrefix(), storage.getAccessKey(), storage.getSecretKey(), storage.getUploadParallelism());
+    }
+
+    /**
+     * Gets the backend of a folder, creating it on first use.
+     *
+     * @param folder The backup folder
+     * @return The backend
+     * @throws IOException If the folder storage is not valid
+     */
+    public StorageBackend get(ServerSettings.BackupFolder folder) throws IOException {
+        var root = Path.of(folder.getRealPath()).toAbsolutePath().normalize();
+        try {
+            return storages.computeIfAbsent(root, k -> {
+                try {
+                    return create(folder);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+}
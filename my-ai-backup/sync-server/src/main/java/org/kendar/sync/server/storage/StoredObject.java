@@ -0,0 +1,63 @@
+package org.kendar.sync.server.storage;
+
+import org.kendar.sync.lib.utils.Attributes;
+
+import java.time.Instant;
+
+/**
+ * A file of a {@link StorageBackend} with its attributes.
+ */
+public class StoredObject {
+    /**
+     * The permissions of the files whose storage does not keep them.
+     */
+    private static final int DEFAULT_UMASK = 0x0644;
+    private final String path;
+    private final long size;
+    private final Instant modificationTime;
+    private final Attributes attributes;
+
+    public StoredObject(String path, long size, Instant modificationTime) {
+        this(path, size, modificationTime, null);
+    }
+
+    /**
+     * Creates a new stored file.
+     *
+     * @param path             The file path
+     * @param size             The file size
+     * @param modificationTime The last modification time
+     * @param attributes       The file attributes, null when the storage keeps only the size and the time
+     */
+    public StoredObject(String path, long size, Instant modificationTime, Attributes attributes) {
+        this.path = path;
+        this.size = size;
+        this.modificationTime = modificationTime;
+        this.attributes = attributes;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public Instant getModificationTime() {
+        return modificationTime;
+    }
+
+    /**
+     * Gets the attributes compared with the files of the clients. The stores keeping only
+     * the modification time use it also as creation time.
+     *
+     * @return The attributes
+     */
+    public Attributes getAttributes() {
+        if (attributes != null) {
+            return attributes;
+        }
+        return new Attributes(DEFAULT_UMASK, modificationTime, modificationTime, size);
+    }
+}
@@ -0,0 +1,194 @@
+package org.kendar.sync.server.tiering;
+
+import org.kendar.sync.lib.model.ServerSettings;
+import org.kendar.sync.lib.protocol.BackupType;
+import org.kendar.sync.lib.utils.FileUtils;
+import org.kendar.sync.server.backup.CompressedBlockFile;
+import org.kendar.sync.server.backup.HashCatalogs;
+import org.kendar.sync.server.backup.VersionIndex;
+import org.kendar.sync.server.backup.VersionPack;
+import org.kendar.sync.server.server.FolderJobQueue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+/**
+ * Moves the cold versions of the date separated folders into {@link VersionPack} files.
+ * <p>
+ * Every date directory older than the configured age is packed into a single compressed
+ * file, replacing the previous pack of the same date when files were written there again,
+ * and the plain files are deleted only once the pack is complete. The content hashes move
+ * from the {@link org.kendar.sync.server.backup.HashCatalog} into the pack. A folder is
+ * packed holding its slot in the {@link FolderJobQueue}: busy folders are skipped until
+ * the next run, and the sessions arriving meanwhile wait for the packing to complete.
+ */
+public class TieringService implements AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(TieringService.class);
+
+    private final Supplier<ServerSettings> settings;
+    private final HashCatalogs hashCatalogs;
+    private final FolderJobQueue folderJobs;
+    private final Predicate<String> ownsFolder;
+    private final ScheduledExecutorService scheduler;
+    private volatile boolean closed = false;
+
+    /**
+     * Creates a new tiering service.
+     *
+     * @param settings     The supplier of the current server settings
+     * @param hashCatalogs The catalogs holding the stored hashes
+     * @param folderJobs   The queue of the sessions of every folder
+     * @param ownsFolder   Tells if this server is in charge of a folder virtual name
+     */
+    public TieringService(Supplier<ServerSettings> settings, HashCatalogs hashCatalogs,
+                          FolderJobQueue folderJobs, Predicate<String> ownsFolder) {
+        this.settings = settings;
+        this.hashCatalogs = hashCatalogs;
+        this.folderJobs = folderJobs;
+        this.ownsFolder = ownsFolder;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            var thread = new Thread(r, "tiering");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+    }
+
+    /**
+     * Starts the periodic tiering, if enabled in the settings.
+     */
+    public void start() {
+        var days = settings.get().getTieringAgeDays();
+        if (days <= 0) {
+            log.info("[SERVER] Tiering disabled");
+            return;
+        }
+        var hours = Math.max(1, settings.get().getTieringIntervalHours());
+        log.info("[SERVER] Packing the versions older than {} days every {} hours", days, hours);
+        scheduler.scheduleWithFixedDelay(this::tierAll, 0, hours, TimeUnit.HOURS);
+    }
+
+    /**
+     * Packs the cold versions of all the date separated folders, waiting for the completion.
+     */
+    public synchronized void tierAll() {
+        var days = settings.get().getTieringAgeDays();
+        if (days <= 0) return;
+        var cutoff = LocalDate.now().minusDays(days).toString();
+        for (var folder : settings.get().getBackupFolders()) {
+            if (closed) return;
+            if (folder.getBackupType() != BackupType.DATE_SEPARATED || !ownsFolder.test(folder.getVirtualName())) {
+                continue;
+            }
+            long ticket;
+            try {
+                ticket = folderJobs.acquire(folder.getVirtualName(), 0, 0, null);
+            } catch (IOException e) {
+                continue;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (ticket == 0) {
+                log.debug("[SERVER] Folder {} busy, packing it at the next run", folder.getVirtualName());
+                continue;
+            }
+            try {
+                tierFolder(folder, cutoff);
+            } catch (IOException | RuntimeException e) {
+                log.error("[SERVER] Error packing {}: {}", folder.getVirtualName(), e.getMessage());
+            } finally {
+                folderJobs.release(folder.getVirtualName(), ticket);
+            }
+        }
+    }
+
+    /**
+     * Packs the date directories of a folder older than a date.
+     *
+     * @param folder The backup folder
+     * @param cutoff The first date not packed, in the yyyy-MM-dd format
+     * @return The number of files packed
+     * @throws IOException If an I/O error occurs
+     */
+    int tierFolder(ServerSettings.BackupFolder folder, String cutoff) throws IOException {
+        var root = Path.of(folder.getRealPath()).toAbsolutePath().normalize();
+        if (!Files.isDirectory(root)) return 0;
+        List<String> dates;
+        try (var children = Files.list(root)) {
+            dates = children.filter(Files::isDirectory)
+                    .map(p -> p.getFileName().toString())
+                    .filter(name -> VersionIndex.isDateDirectory(name) && name.compareTo(cutoff) < 0)
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+        var result = 0;
+        for (var date : dates) {
+            if (closed) break;
+            result += packDate(folder, root, date);
+        }
+        return result;
+    }
+
+    private int packDate(ServerSettings.BackupFolder folder, Path root, String date) throws IOException {
+        var dateDir = root.resolve(date);
+        List<Path> files;
+        try (var walk = Files.walk(dateDir)) {
+            files = walk.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+        }
+        if (files.isEmpty()) {
+            return 0;
+        }
+        var catalog = hashCatalogs.get(folder.getRealPath());
+        var compressed = CompressedBlockFile.isUsedBy(folder);
+        var target = VersionPack.locate(root, date);
+        var previous = VersionPack.read(target);
+        var packed = new LinkedHashSet<String>();
+        try (var writer = new VersionPack.Writer(target)) {
+            for (var file : files) {
+                var path = FileUtils.makeUniformPath(dateDir.relativize(file).toString());
+                var stored = catalog.get(date + "/" + path);
+                writer.add(path, file, FileUtils.readFileAttributes(file), stored == null ? null : stored.getHash(),
+                        compressed);
+                packed.add(path);
+            }
+            if (previous != null) {
+                // The files written again replace their packed copies
+                for (var entry : previous.getEntries()) {
+                    if (!packed.contains(entry.getPath())) {
+                        writer.copy(previous, entry);
+                    }
+                }
+            }
+            writer.commit();
+        }
+
+        // The plain files are removed once the pack is complete
+        for (var path : packed) {
+            Files.delete(dateDir.resolve(path));
+            catalog.remove(date + "/" + path);
+        }
+        FileUtils.deleteDirectoryContents(dateDir);
+        Files.deleteIfExists(dateDir);
+        log.info("[SERVER] Packed {} files of {} into {}", packed.size(), dateDir, target);
+        return packed.size();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        scheduler.shutdownNow();
+    }
+}
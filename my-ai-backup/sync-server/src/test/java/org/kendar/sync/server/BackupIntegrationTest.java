@@ -7,18 +7,24 @@ import org.kendar.sync.lib.model.ServerSettings;
 import org.kendar.sync.lib.protocol.BackupType;
 import org.kendar.sync.lib.utils.FileUtils;
 import org.kendar.sync.lib.utils.Sleeper;
+import org.kendar.sync.server.backup.CompressedBlockFile;
 import org.kendar.sync.server.config.ServerConfig;
 import org.kendar.sync.server.server.Server;
 
 import java.io.File;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Random;
 import java.util.UUID;
+import java.util.stream.Collectors;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.kendar.sync.server.TestUtils.*;
 
 /**
@@ -82,6 +88,10 @@ public class BackupIntegrationTest {
     }
 
     private void startServer(BackupType backupType) throws InterruptedException {
+        startServer(backupType, false);
+    }
+
+    private void startServer(BackupType backupType, boolean compressAtRest) throws InterruptedException {
         serverConfig = new ServerConfig();
         var serverSettings = new ServerSettings();
         serverSettings.setPort(serverPort);
@@ -96,6 +106,7 @@ public class BackupIntegrationTest {
         backupFolder.setAllowedUsers(List.of(newUser.getId()));
         backupFolder.setRealPath(targetDir.getAbsolutePath());
         backupFolder.setVirtualName("testBackup");
+        backupFolder.setCompressAtRest(compressAtRest);
         serverSettings.getBackupFolders().add(backupFolder);
         serverConfig.setServerSettings(serverSettings);
         server = new Server(serverConfig, false);
@@ -255,4 +266,88 @@ public class BackupIntegrationTest {
         }
 
     }
-}
\ No newline at end of file
+
+    @Test
+    void testBackupAndRestoreCompressedAtRest() throws Exception {
+
+        startServer(BackupType.MIRROR, true);
+        createRandomFiles(sourceDir, 5, 3);
+        Files.writeString(sourceDir.toPath().resolve("compressible.txt"), "compressible content ".repeat(500));
+
+        // Perform backup
+        System.out.println("================= Performing backup...");
+        commandLineArgs.setBackup(true);
+        var target = new SyncClient();
+        target.doSync(commandLineArgs);
+
+        // The stored file is smaller than the original
+        var original = Files.size(sourceDir.toPath().resolve("compressible.txt"));
+        assertTrue(Files.size(targetDir.toPath().resolve("compressible.txt")) < original);
+        assertEquals(original, CompressedBlockFile.read(targetDir.toPath().resolve("compressible.txt")).getSize());
+
+        // Nothing is sent again when unchanged
+        var expectedDir = testRoot.resolve("expected");
+        try (var files = Files.walk(sourceDir.toPath())) {
+            for (var file : files.collect(Collectors.toList())) {
+                var copy = expectedDir.resolve(sourceDir.toPath().relativize(file).toString());
+                if (Files.isDirectory(file)) {
+                    Files.createDirectories(copy);
+                } else {
+                    Files.copy(file, copy, StandardCopyOption.COPY_ATTRIBUTES);
+                }
+            }
+        }
+        target.doSync(commandLineArgs);
+
+        // Perform restore on an empty folder
+        System.out.println("================= Performing restore...");
+        FileUtils.deleteDirectoryContents(sourceDir.toPath());
+        Files.createDirectories(sourceDir.toPath());
+        commandLineArgs.setBackup(false);
+        target.doSync(commandLineArgs);
+
+        // Verify restore
+        System.out.println("================= Verifying restore...");
+        assertDirectoriesEqual(expectedDir, sourceDir.toPath());
+    }
+
+    @Test
+    void testBackupAndRestoreInlineFiles() throws Exception {
+
+        startServer(BackupType.MIRROR);
+        // Around the inline threshold, capped by the packet size
+        var random = new Random(42);
+        var sizes = new int[]{0, 1, 512, 1023, 1024, 1025, 5000};
+        for (var size : sizes) {
+            var content = new byte[size];
+            random.nextBytes(content);
+            Files.write(sourceDir.toPath().resolve("file" + size + ".bin"), content);
+        }
+
+        // Perform backup
+        System.out.println("================= Performing backup...");
+        commandLineArgs.setBackup(true);
+        var target = new SyncClient();
+        target.doSync(commandLineArgs);
+
+        for (var size : sizes) {
+            var name = "file" + size + ".bin";
+            assertArrayEquals(Files.readAllBytes(sourceDir.toPath().resolve(name)),
+                    Files.readAllBytes(targetDir.toPath().resolve(name)));
+        }
+
+        // Perform restore on an empty folder
+        System.out.println("================= Performing restore...");
+        var expectedDir = testRoot.resolve("expected");
+        Files.move(sourceDir.toPath(), expectedDir);
+        Files.createDirectories(sourceDir.toPath());
+        commandLineArgs.setBackup(false);
+        target.doSync(commandLineArgs);
+
+        for (var size : sizes) {
+            var name = "file" + size + ".bin";
+            assertArrayEquals(Files.readAllBytes(expectedDir.resolve(name)),
+                    Files.readAllBytes(sourceDir.toPath().resolve(name)));
+        }
+    }
+}
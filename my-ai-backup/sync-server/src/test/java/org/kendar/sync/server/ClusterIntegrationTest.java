@@ -0,0 +1,135 @@
+package org.kendar.sync.server;
+
+import org.junit.jupiter.api.*;
+import org.kendar.sync.client.CommandLineArgs;
+import org.kendar.sync.client.SyncClient;
+import org.kendar.sync.lib.model.ServerSettings;
+import org.kendar.sync.lib.protocol.BackupType;
+import org.kendar.sync.lib.utils.FileUtils;
+import org.kendar.sync.lib.utils.Sleeper;
+import org.kendar.sync.server.config.ServerConfig;
+import org.kendar.sync.server.server.Server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.kendar.sync.server.TestUtils.createRandomFiles;
+import static org.kendar.sync.server.TestUtils.findFreePort;
+
+/**
+ * Integration test for two server nodes sharing a cluster directory:
+ * the client connecting to the node not owning the folder is redirected to the owner.
+ */
+public class ClusterIntegrationTest {
+
+    private static String uniqueId;
+    private File sourceDir;
+    private File targetDir;
+    private Path clusterDir;
+    private Server first;
+    private Server second;
+    private String userId;
+
+    @AfterAll
+    public static void cleanup() throws Exception {
+        FileUtils.deleteDirectoryContents(Path.of("target", "tests", uniqueId));
+    }
+
+    @BeforeAll
+    public static void beforeClass() {
+        uniqueId = UUID.randomUUID().toString();
+    }
+
+    @AfterEach
+    void tearDown() {
+        if (first != null) first.stop();
+        if (second != null) second.stop();
+    }
+
+    @BeforeEach
+    void setUp(TestInfo testInfo) throws Exception {
+        var testRoot = Path.of("target", "tests", uniqueId, TestUtils.getTestFolder(testInfo));
+        sourceDir = new File(testRoot.toFile(), "source");
+        targetDir = new File(testRoot.toFile(), "target");
+        clusterDir = testRoot.resolve("cluster").toAbsolutePath();
+        Files.createDirectories(sourceDir.toPath());
+        Files.createDirectories(targetDir.toPath());
+        userId = UUID.randomUUID().toString();
+    }
+
+    private Server startNode(String nodeId, int port) {
+        var serverSettings = new ServerSettings();
+        serverSettings.setPort(port);
+        serverSettings.setMaxConnections(5);
+        serverSettings.setMaxPacketSize(1024);
+        serverSettings.setClusterDirectory(clusterDir.toString());
+        serverSettings.setClusterNodeId(nodeId);
+        serverSettings.setClusterAddress("127.0.0.1");
+        serverSettings.getUsers().add(new ServerSettings.User(userId, "user", "password", true));
+
+        ServerSettings.BackupFolder backupFolder = new ServerSettings.BackupFolder();
+        backupFolder.setBackupType(BackupType.MIRROR);
+        backupFolder.setAllowedUsers(List.of(userId));
+        backupFolder.setRealPath(targetDir.getAbsolutePath());
+        backupFolder.setVirtualName("testBackup");
+        serverSettings.getBackupFolders().add(backupFolder);
+
+        var serverConfig = new ServerConfig();
+        serverConfig.setServerSettings(serverSettings);
+        var server = new Server(serverConfig, false);
+        new Thread(server::startTcpServer).start();
+        return server;
+    }
+
+    @Test
+    void testClientIsRedirectedToTheOwner() throws Exception {
+        var firstPort = findFreePort();
+        var secondPort = findFreePort();
+        first = startNode("first", firstPort);
+        second = startNode("second", secondPort);
+        Sleeper.sleep(500);
+        assertNotNull(first.getCluster());
+        assertEquals(2, first.getCluster().getLiveNodes().size());
+
+        // Connect to the node not owning the folder
+        var owner = first.getCluster().getOwner("testBackup");
+        var wrongPort = first.getCluster().isLocal(owner) ? secondPort : firstPort;
+        createRandomFiles(sourceDir, 5, 2);
+
+        var commandLineArgs = new CommandLineArgs();
+        commandLineArgs.setServerAddress("127.0.0.1");
+        commandLineArgs.setServerPort(wrongPort);
+        commandLineArgs.setSourceFolder(sourceDir.getAbsolutePath());
+        commandLineArgs.setTargetFolder("testBackup");
+        commandLineArgs.setUsername("user");
+        commandLineArgs.setPassword("password");
+        commandLineArgs.setHostName("testHost");
+        commandLineArgs.setBackup(true);
+        new SyncClient().doSync(commandLineArgs);
+
+        assertEquals(owner.getPort(), commandLineArgs.getServerPort());
+        var sourceFiles = listFiles(sourceDir.toPath());
+        assertEquals(sourceFiles, listFiles(targetDir.toPath()));
+        for (var file : sourceFiles) {
+            assertEquals(Files.readString(sourceDir.toPath().resolve(file)),
+                    Files.readString(targetDir.toPath().resolve(file)));
+        }
+    }
+
+    private static Set<Path> listFiles(Path root) throws IOException {
+        try (var files = Files.walk(root)) {
+            return files.filter(Files::isRegularFile)
+                    .filter(p -> !p.getFileName().toString().startsWith("."))
+                    .map(root::relativize)
+                    .collect(Collectors.toSet());
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package org.kendar.sync.server;
+
+import org.junit.jupiter.api.*;
+import org.kendar.sync.client.CommandLineArgs;
+import org.kendar.sync.client.SyncClient;
+import org.kendar.sync.lib.model.ServerSettings;
+import org.kendar.sync.lib.protocol.BackupType;
+import org.kendar.sync.lib.utils.FileUtils;
+import org.kendar.sync.lib.utils.Sleeper;
+import org.kendar.sync.server.config.ServerConfig;
+import org.kendar.sync.server.server.Server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.kendar.sync.server.TestUtils.createRandomFiles;
+import static org.kendar.sync.server.TestUtils.findFreePort;
+
+/**
+ * Integration test for the replication of a mirror folder to a folder of another server.
+ */
+public class ReplicationIntegrationTest {
+
+    private static String uniqueId;
+    private File sourceDir;
+    private File primaryDir;
+    private File replicaDir;
+    private Server primary;
+    private Server replica;
+    private int primaryPort;
+
+    @AfterAll
+    public static void cleanup() throws Exception {
+        FileUtils.deleteDirectoryContents(Path.of("target", "tests", uniqueId));
+    }
+
+    @BeforeAll
+    public static void beforeClass() {
+        uniqueId = UUID.randomUUID().toString();
+    }
+
+    @AfterEach
+    void tearDown() {
+        if (primary != null) primary.stop();
+        if (replica != null) replica.stop();
+    }
+
+    @BeforeEach
+    void setUp(TestInfo testInfo) throws Exception {
+        var testRoot = Path.of("target", "tests", uniqueId, TestUtils.getTestFolder(testInfo));
+        sourceDir = new File(testRoot.toFile(), "source");
+        primaryDir = new File(testRoot.toFile(), "primary");
+        replicaDir = new File(testRoot.toFile(), "replica");
+        Files.createDirectories(sourceDir.toPath());
+        Files.createDirectories(primaryDir.toPath());
+        Files.createDirectories(replicaDir.toPath());
+
+        var replicaPort = findFreePort();
+        replica = startServer(replicaPort, replicaDir, List.of());
+        primaryPort = findFreePort();
+        primary = startServer(primaryPort, primaryDir,
+                List.of(new ServerSettings.Replica("127.0.0.1", replicaPort, "user", "password", "testBackup")));
+        Sleeper.sleep(500);
+    }
+
+    private Server startServer(int port, File folderDir, List<ServerSettings.Replica> replicas) {
+        var userId = UUID.randomUUID().toString();
+        var serverSettings = new ServerSettings();
+        serverSettings.setPort(port);
+        serverSettings.setMaxConnections(5);
+        serverSettings.setMaxPacketSize(1024);
+        // Pushed on request only
+        serverSettings.setReplicationIntervalSeconds(0);
+        serverSettings.getUsers().add(new ServerSettings.User(userId, "user", "password", true));
+
+        ServerSettings.BackupFolder backupFolder = new ServerSettings.BackupFolder();
+        backupFolder.setBackupType(BackupType.MIRROR);
+        backupFolder.setAllowedUsers(List.of(userId));
+        backupFolder.setRealPath(folderDir.getAbsolutePath());
+        backupFolder.setVirtualName("testBackup");
+        backupFolder.setReplicas(replicas);
+        serverSettings.getBackupFolders().add(backupFolder);
+
+        var serverConfig = new ServerConfig();
+        serverConfig.setServerSettings(serverSettings);
+        var server = new Server(serverConfig, false);
+        new Thread(server::startTcpServer).start();
+        return server;
+    }
+
+    private void backup() {
+        var commandLineArgs = new CommandLineArgs();
+        commandLineArgs.setServerAddress("127.0.0.1");
+        commandLineArgs.setServerPort(primaryPort);
+        commandLineArgs.setSourceFolder(sourceDir.getAbsolutePath());
+        commandLineArgs.setTargetFolder("testBackup");
+        commandLineArgs.setUsername("user");
+        commandLineArgs.setPassword("password");
+        commandLineArgs.setHostName("testHost");
+        commandLineArgs.setBackup(true);
+        new SyncClient().doSync(commandLineArgs);
+    }
+
+    @Test
+    void testChangesArePushedToTheReplica() throws Exception {
+        createRandomFiles(sourceDir, 5, 2);
+        backup();
+        primary.getReplicationService().replicateAll();
+        assertSameContent(primaryDir.toPath(), replicaDir.toPath());
+
+        var status = primary.getReplicationService().getStatuses().get(0);
+        assertNull(status.getLastError());
+        assertEquals(0, status.getPendingBytes());
+        assertEquals(0, status.getLagSeconds());
+        assertTrue(status.getSentBytes() > 0);
+
+        // Deletions and updates reach the replica
+        var sourceFiles = listFiles(sourceDir.toPath());
+        var removed = sourceFiles.iterator().next();
+        Files.delete(sourceDir.toPath().resolve(removed));
+        Files.writeString(sourceDir.toPath().resolve("added.txt"), "added");
+        backup();
+        primary.getReplicationService().replicateAll();
+
+        assertFalse(Files.exists(replicaDir.toPath().resolve(removed)));
+        assertEquals("added", Files.readString(replicaDir.toPath().resolve("added.txt")));
+        assertSameContent(sourceDir.toPath(), replicaDir.toPath());
+    }
+
+    @Test
+    void testPendingChangesAreKeptWhileTheReplicaIsDown() throws Exception {
+        createRandomFiles(sourceDir, 3, 1);
+        backup();
+        replica.stop();
+        replica = null;
+
+        primary.getReplicationService().replicateAll();
+        var status = primary.getReplicationService().getStatuses().get(0);
+        assertNotNull(status.getLastError());
+        assertTrue(status.getPendingBytes() > 0);
+        assertTrue(listFiles(replicaDir.toPath()).isEmpty());
+    }
+
+    private static void assertSameContent(Path expectedRoot, Path actualRoot) throws IOException {
+        var expected = listFiles(expectedRoot);
+        assertEquals(expected, listFiles(actualRoot));
+        for (var file : expected) {
+            assertEquals(Files.readString(expectedRoot.resolve(file)),
+                    Files.readString(actualRoot.resolve(file)));
+        }
+    }
+
+    private static Set<Path> listFiles(Path root) throws IOException {
+        try (var files = Files.walk(root)) {
+            return files.filter(Files::isRegularFile)
+                    .filter(p -> !root.relativize(p).getName(0).toString().startsWith("."))
+                    .map(root::relativize)
+                    .collect(Collectors.toSet());
+        }
+    }
+}
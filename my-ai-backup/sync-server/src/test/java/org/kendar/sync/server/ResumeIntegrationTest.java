@@ -0,0 +1,162 @@
+package org.kendar.sync.server;
+
+import org.junit.jupiter.api.*;
+import org.kendar.sync.client.CommandLineArgs;
+import org.kendar.sync.client.SyncClient;
+import org.kendar.sync.lib.model.FileInfo;
+import org.kendar.sync.lib.model.ServerSettings;
+import org.kendar.sync.lib.network.SocketOptions;
+import org.kendar.sync.lib.network.TcpConnection;
+import org.kendar.sync.lib.protocol.*;
+import org.kendar.sync.lib.utils.FileUtils;
+import org.kendar.sync.lib.utils.Sleeper;
+import org.kendar.sync.server.config.ServerConfig;
+import org.kendar.sync.server.server.Server;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.kendar.sync.server.TestUtils.findFreePort;
+
+/**
+ * Integration test for the resume of a backup dropped by the network.
+ */
+public class ResumeIntegrationTest {
+
+    private static String uniqueId;
+    private File sourceDir;
+    private File targetDir;
+    private Server server;
+    private int serverPort;
+    private CommandLineArgs commandLineArgs;
+
+    @AfterAll
+    public static void cleanup() throws Exception {
+        FileUtils.deleteDirectoryContents(Path.of("target", "tests", uniqueId));
+    }
+
+    @BeforeAll
+    public static void beforeClass() {
+        uniqueId = UUID.randomUUID().toString();
+    }
+
+    @AfterEach
+    void tearDown() {
+        if (server != null) server.stop();
+    }
+
+    @BeforeEach
+    void setUp(TestInfo testInfo) throws Exception {
+        var testRoot = Path.of("target", "tests", uniqueId, TestUtils.getTestFolder(testInfo));
+        sourceDir = new File(testRoot.toFile(), "source");
+        targetDir = new File(testRoot.toFile(), "target");
+        Files.createDirectories(sourceDir.toPath());
+        Files.createDirectories(targetDir.toPath());
+
+        serverPort = findFreePort();
+        var userId = UUID.randomUUID().toString();
+        var serverSettings = new ServerSettings();
+        serverSettings.setPort(serverPort);
+        serverSettings.setMaxConnections(5);
+        serverSettings.setMaxPacketSize(1024);
+        serverSettings.getUsers().add(new ServerSettings.User(userId, "user", "password", true));
+        ServerSettings.BackupFolder backupFolder = new ServerSettings.BackupFolder();
+        backupFolder.setBackupType(BackupType.MIRROR);
+        backupFolder.setAllowedUsers(List.of(userId));
+        backupFolder.setRealPath(targetDir.getAbsolutePath());
+        backupFolder.setVirtualName("testBackup");
+        serverSettings.getBackupFolders().add(backupFolder);
+        var serverConfig = new ServerConfig();
+        serverConfig.setServerSettings(serverSettings);
+        server = new Server(serverConfig, false);
+        new Thread(server::startTcpServer).start();
+        Sleeper.sleep(500);
+
+        commandLineArgs = new CommandLineArgs();
+        commandLineArgs.setServerAddress("127.0.0.1");
+        commandLineArgs.setServerPort(serverPort);
+        commandLineArgs.setSourceFolder(sourceDir.getAbsolutePath());
+        commandLineArgs.setTargetFolder("testBackup");
+        commandLineArgs.setUsername("user");
+        commandLineArgs.setPassword("password");
+        commandLineArgs.setHostName("testHost");
+        commandLineArgs.setBackup(true);
+    }
+
+    /**
+     * Starts a backup, stores only the first file and drops the connections.
+     *
+     * @return The resume token
+     */
+    private String startAndDrop() throws Exception {
+        var root = sourceDir.toPath().toAbsolutePath();
+        var files = new ArrayList<FileInfo>();
+        for (var name : List.of("a.txt", "b.txt", "c.txt")) {
+            var path = root.resolve(name);
+            Files.writeString(path, "content of " + name);
+            files.add(FileInfo.fromAttributes(path, root, FileUtils.readFileAttributes(path)));
+        }
+
+        try (var main = new TcpConnection(SocketOptions.connect("127.0.0.1", serverPort), UUID.randomUUID(), 0, 1024, false)) {
+            var connectMessage = new ConnectMessage("user", "password", "testBackup", 1024, 5, false,
+                    "testHost", true, true, List.of());
+            connectMessage.setProtocolVersion(ProtocolVersion.LATEST);
+            main.sendMessage(connectMessage);
+            var connectResponse = (ConnectResponseMessage) main.receiveMessage();
+            assertNotNull(connectResponse.getResumeToken());
+            main.setSessionId(connectResponse.getSessionId());
+            main.setProtocolVersion(connectResponse.getProtocolVersion());
+
+            main.sendMessage(new FileListMessage(files, true, 1, 1));
+            var fileListResponse = (FileListResponseMessage) main.receiveMessage();
+            assertEquals(3, fileListResponse.getFilesToTransfer().size());
+
+            try (var sub = new TcpConnection(SocketOptions.connect("127.0.0.1", serverPort),
+                    main.getSessionId(), 1, 1024, false)) {
+                sub.setProtocolVersion(main.getProtocolVersion());
+                var descriptor = new FileDescriptorMessage(files.get(0));
+                descriptor.setInlineData(Files.readAllBytes(root.resolve("a.txt")));
+                sub.sendMessage(descriptor);
+                assertTrue(((FileEndAckMessage) sub.receiveMessage()).isSuccess());
+            }
+            return connectResponse.getResumeToken();
+        }
+    }
+
+    @Test
+    void testDroppedBackupIsResumed() throws Exception {
+        var token = startAndDrop();
+        // Not in the plan of the dropped backup
+        Files.writeString(sourceDir.toPath().resolve("d.txt"), "added after the drop");
+
+        commandLineArgs.setResumeToken(token);
+        new SyncClient().doSync(commandLineArgs);
+
+        var target = targetDir.toPath();
+        for (var name : List.of("a.txt", "b.txt", "c.txt")) {
+            assertEquals("content of " + name, Files.readString(target.resolve(name)));
+        }
+        assertFalse(Files.exists(target.resolve("d.txt")));
+        assertNull(commandLineArgs.getResumeToken());
+
+        // The next backup starts from the file list
+        new SyncClient().doSync(commandLineArgs);
+        assertEquals("added after the drop", Files.readString(target.resolve("d.txt")));
+    }
+
+    @Test
+    void testUnknownTokenStartsANewBackup() throws Exception {
+        Files.writeString(sourceDir.toPath().resolve("a.txt"), "content");
+
+        commandLineArgs.setResumeToken(UUID.randomUUID().toString());
+        new SyncClient().doSync(commandLineArgs);
+
+        assertEquals("content", Files.readString(targetDir.toPath().resolve("a.txt")));
+        assertNull(commandLineArgs.getResumeToken());
+    }
+}
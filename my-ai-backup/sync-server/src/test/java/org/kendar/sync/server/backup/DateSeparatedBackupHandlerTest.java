@@ -64,6 +64,7 @@ public class DateSeparatedBackupHandlerTest {
         when(mockSession.getFolder()).thenReturn(mockFolder);
         when(mockFolder.getRealPath()).thenReturn(tempDir.getAbsolutePath());
         when(mockSession.isDryRun()).thenReturn(false);
+        when(mockSession.getSessionId()).thenReturn(UUID.randomUUID());
     }
 
     @AfterEach
@@ -175,6 +176,26 @@ public class DateSeparatedBackupHandlerTest {
         assertTrue(response.isSuccess());
     }
 
+    @Test
+    void testHandleInlineFile() throws IOException {
+        var created = Instant.parse("2024-01-15T10:00:00Z");
+        FileInfo fileInfo = new FileInfo("small.txt", "small.txt", 5, created, created, 0x7);
+
+        var message = new FileDescriptorMessage(fileInfo);
+        message.setInlineData("small".getBytes());
+        handler.handleInlineFile(mockConnection, mockSession, message);
+
+        ArgumentCaptor<FileEndAckMessage> captor = ArgumentCaptor.forClass(FileEndAckMessage.class);
+        verify(mockConnection).sendMessage(captor.capture());
+        assertTrue(captor.getValue().isSuccess());
+        String dateDir = new java.text.SimpleDateFormat("yyyy-MM-dd").format(
+                new java.util.Date(created.toEpochMilli()));
+        var realPath = Path.of(tempDir + File.separator + dateDir + File.separator + "small.txt");
+        assertEquals("small", Files.readString(realPath));
+        // Restored from its date directory
+        assertEquals(realPath.toAbsolutePath(), handler.getSourceFilePath(mockSession, fileInfo).toAbsolutePath());
+    }
+
     @Test
     void testHandleSyncEnd() throws IOException {
         // Create a sync end message
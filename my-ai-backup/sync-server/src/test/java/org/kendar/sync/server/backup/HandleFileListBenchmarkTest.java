@@ -0,0 +1,86 @@
+package org.kendar.sync.server.backup;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.kendar.sync.lib.model.FileInfo;
+import org.kendar.sync.lib.model.ServerSettings;
+import org.kendar.sync.lib.network.TcpConnection;
+import org.kendar.sync.lib.protocol.FileListMessage;
+import org.kendar.sync.lib.utils.FileUtils;
+import org.kendar.sync.server.server.ClientSession;
+import org.mockito.Mockito;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.Mockito.when;
+
+/**
+ * Measures the throughput of the diff computed by the server on a large stored folder,
+ * reading the attributes of the stored files one at a time or in parallel.
+ * Run with {@code mvn test -Dbenchmark=true -Dtest=HandleFileListBenchmarkTest}, the number
+ * of files can be changed with {@code -Dbenchmark.files=1000000}.
+ */
+@EnabledIfSystemProperty(named = "benchmark", matches = "true")
+public class HandleFileListBenchmarkTest {
+    private static final int FILES = Integer.getInteger("benchmark.files", 100_000);
+    private static final int FILES_PER_DIR = 1000;
+
+    private static Path root;
+
+    @BeforeAll
+    public static void beforeClass() throws IOException {
+        root = Path.of("target", "tests", UUID.randomUUID().toString(), "HandleFileListBenchmarkTest").toAbsolutePath();
+        for (var i = 0; i < FILES; i++) {
+            var dir = root.resolve("dir" + (i / FILES_PER_DIR));
+            if (i % FILES_PER_DIR == 0) {
+                Files.createDirectories(dir);
+            }
+            Files.writeString(dir.resolve("file" + i + ".txt"), "file" + i);
+        }
+    }
+
+    @AfterAll
+    public static void cleanup() throws Exception {
+        FileUtils.deleteDirectoryContents(root.getParent());
+    }
+
+    @Test
+    void benchmarkFileList() throws Exception {
+        var handler = new PreserveBackupHandler();
+        var session = Mockito.mock(ClientSession.class);
+        var folder = Mockito.mock(ServerSettings.BackupFolder.class);
+        when(session.getFolder()).thenReturn(folder);
+        when(folder.getRealPath()).thenReturn(root.toString());
+
+        var files = handler.listAllFiles(root);
+
+        var start = System.nanoTime();
+        for (var file : files) {
+            var attr = FileUtils.readFileAttributes(file);
+            BackupHandler.shouldIgnoreFileByAttrAndPattern(session, file, attr);
+        }
+        report("Sequential reads", files.size(), start);
+
+        start = System.nanoTime();
+        var stored = handler.readStoredFiles(session, files, Path::toString);
+        report("Parallel reads", files.size(), start);
+        assertEquals(files.size(), stored.size());
+
+        start = System.nanoTime();
+        handler.handleFileList(Mockito.mock(TcpConnection.class), session,
+                new FileListMessage(new ArrayList<FileInfo>(), true, 1, 1));
+        report("Whole file list", files.size(), start);
+    }
+
+    private static void report(String name, int files, long start) {
+        var seconds = (System.nanoTime() - start) / 1_000_000_000.0;
+        System.out.printf("[BENCHMARK] %s: %d files in %.2f s, %.0f files/s%n", name, files, seconds, files / seconds);
+    }
+}
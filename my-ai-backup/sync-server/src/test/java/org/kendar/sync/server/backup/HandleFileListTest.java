@@ -0,0 +1,160 @@
+package org.kendar.sync.server.backup;
+
+import org.junit.jupiter.api.*;
+import org.kendar.sync.lib.model.FileInfo;
+import org.kendar.sync.lib.model.ServerSettings;
+import org.kendar.sync.lib.network.TcpConnection;
+import org.kendar.sync.lib.protocol.FileListMessage;
+import org.kendar.sync.lib.protocol.FileListResponseMessage;
+import org.kendar.sync.lib.utils.FileUtils;
+import org.kendar.sync.server.TestUtils;
+import org.kendar.sync.server.server.ClientSession;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Verifies the diff of the file list computed on the stored files read in parallel, on more
+ * files than a single diff chunk.
+ */
+public class HandleFileListTest {
+    private static final int UNCHANGED = 300;
+    private static final int CHANGED = 100;
+    private static final int STORED_ONLY = 150;
+    private static final int CLIENT_ONLY = 50;
+    private static String uniqueId;
+
+    private Path root;
+    private TcpConnection mockConnection;
+    private ClientSession mockSession;
+    private List<FileInfo> clientFiles;
+    private Set<String> expectedToTransfer;
+    private Set<String> storedOnly;
+
+    @BeforeAll
+    public static void beforeClass() {
+        uniqueId = UUID.randomUUID().toString();
+    }
+
+    @AfterAll
+    public static void cleanup() throws Exception {
+        FileUtils.deleteDirectoryContents(Path.of("target", "tests", uniqueId));
+    }
+
+    @BeforeEach
+    void setUp(TestInfo testInfo) throws IOException {
+        root = Path.of("target", "tests", uniqueId, TestUtils.getTestFolder(testInfo)).toAbsolutePath();
+        Files.createDirectories(root);
+
+        mockConnection = Mockito.mock(TcpConnection.class);
+        mockSession = Mockito.mock(ClientSession.class);
+        var mockFolder = Mockito.mock(ServerSettings.BackupFolder.class);
+        when(mockSession.getFolder()).thenReturn(mockFolder);
+        when(mockFolder.getRealPath()).thenReturn(root.toString());
+        when(mockSession.isDryRun()).thenReturn(false);
+    }
+
+    /**
+     * Stores the files under the given prefix and builds the client file list: the unchanged
+     * files, the changed ones, the ones only stored and the ones only on the client.
+     */
+    private void prepare(String storedPrefix) throws IOException {
+        clientFiles = new ArrayList<>();
+        expectedToTransfer = new HashSet<>();
+        storedOnly = new HashSet<>();
+        var index = 0;
+        for (var i = 0; i < UNCHANGED + CHANGED + STORED_ONLY; i++, index++) {
+            var relativePath = "dir" + (index % 7) + "/file" + index + ".txt";
+            var stored = root.resolve(storedPrefix + relativePath);
+            Files.createDirectories(stored.getParent());
+            Files.writeString(stored, "content " + index);
+            var clientFile = FileInfo.fromAttributes(stored, root.resolve(storedPrefix), FileUtils.readFileAttributes(stored));
+            if (i < UNCHANGED) {
+                clientFiles.add(clientFile);
+            } else if (i < UNCHANGED + CHANGED) {
+                clientFile.setSize(clientFile.getSize() + 1);
+                clientFiles.add(clientFile);
+                expectedToTransfer.add(relativePath);
+            } else {
+                storedOnly.add(relativePath);
+            }
+        }
+        var clientRoot = root.resolveSibling(root.getFileName() + "-client");
+        for (var i = 0; i < CLIENT_ONLY; i++, index++) {
+            var relativePath = "new/file" + index + ".txt";
+            var path = clientRoot.resolve(relativePath);
+            Files.createDirectories(path.getParent());
+            Files.writeString(path, "new content " + index);
+            clientFiles.add(FileInfo.fromAttributes(path, clientRoot, FileUtils.readFileAttributes(path)));
+            expectedToTransfer.add(relativePath);
+        }
+    }
+
+    private FileListResponseMessage handleFileList(BackupHandler handler) throws IOException {
+        handler.handleFileList(mockConnection, mockSession, new FileListMessage(clientFiles, true, 1, 1));
+        var captor = ArgumentCaptor.forClass(FileListResponseMessage.class);
+        verify(mockConnection).sendMessage(captor.capture());
+        return captor.getValue();
+    }
+
+    private static Set<String> relativePaths(List<FileInfo> files) {
+        return files.stream().map(f -> FileUtils.makeUniformPath(f.getRelativePath())).collect(Collectors.toSet());
+    }
+
+    private void assertStored(String storedPrefix, Set<String> relativePaths, boolean exists) {
+        for (var relativePath : relativePaths) {
+            assertEquals(exists, Files.exists(root.resolve(storedPrefix + relativePath)), relativePath);
+        }
+    }
+
+    @Test
+    void testPreserveFileList() throws IOException {
+        prepare("");
+
+        var response = handleFileList(new PreserveBackupHandler());
+
+        assertEquals(expectedToTransfer, relativePaths(response.getFilesToTransfer()));
+        assertTrue(response.getFilesToDelete().isEmpty());
+        assertStored("", storedOnly, true);
+    }
+
+    @Test
+    void testMirrorFileList() throws IOException {
+        prepare("");
+
+        var response = handleFileList(new MirrorBackupHandler());
+
+        assertEquals(expectedToTransfer, relativePaths(response.getFilesToTransfer()));
+        assertTrue(response.getFilesToDelete().isEmpty());
+        // Only the files missing on the client are deleted
+        assertStored("", storedOnly, false);
+        var kept = relativePaths(clientFiles);
+        kept.removeIf(p -> p.startsWith("new/"));
+        assertEquals(UNCHANGED + CHANGED, kept.size());
+        assertStored("", kept, true);
+    }
+
+    @Test
+    void testDateSeparatedFileList() throws IOException {
+        prepare("2024-01-15/");
+
+        var response = handleFileList(new DateSeparatedBackupHandler());
+
+        assertEquals(expectedToTransfer, relativePaths(response.getFilesToTransfer()));
+        assertTrue(response.getFilesToDelete().isEmpty());
+        assertStored("2024-01-15/", storedOnly, true);
+    }
+}
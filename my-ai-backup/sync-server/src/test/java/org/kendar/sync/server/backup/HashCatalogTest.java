@@ -0,0 +1,65 @@
+package org.kendar.sync.server.backup;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for the HashCatalog class.
+ */
+public class HashCatalogTest {
+
+    private Path root;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        root = Path.of("target", "tests", UUID.randomUUID().toString());
+        Files.createDirectories(root);
+    }
+
+    @Test
+    void testEntriesArePersisted() throws IOException {
+        var catalog = HashCatalog.load(root);
+        catalog.put("a/b.txt", 10, 1000, "crc32c:0000000a");
+        catalog.put("c.txt", 20, 2000, "crc32c:0000000c");
+        catalog.put("a/b.txt", 11, 1100, "crc32c:0000000b");
+        catalog.remove("c.txt");
+
+        var reloaded = HashCatalog.load(root);
+
+        assertEquals(1, reloaded.entries().size());
+        assertEquals("crc32c:0000000b", reloaded.get("a/b.txt").getHash());
+        assertEquals(11, reloaded.get("a/b.txt").getSize());
+        assertNull(reloaded.get("c.txt"));
+    }
+
+    @Test
+    void testOutdatedEntriesAreNotValid() throws IOException {
+        var catalog = HashCatalog.load(root);
+        catalog.put("file.txt", 10, 1000, "crc32c:0000000a");
+
+        assertNotNull(catalog.getValid("file.txt", 10, Instant.ofEpochMilli(1000)));
+        assertNull(catalog.getValid("file.txt", 11, Instant.ofEpochMilli(1000)));
+        assertNull(catalog.getValid("file.txt", 10, Instant.ofEpochMilli(2000)));
+        assertNull(catalog.getValid("other.txt", 10, Instant.ofEpochMilli(1000)));
+    }
+
+    @Test
+    void testCompact() throws IOException {
+        var catalog = HashCatalog.load(root);
+        for (var i = 0; i < 10; i++) {
+            catalog.put("file.txt", i, i, "crc32c:0000000" + i);
+        }
+        catalog.compact();
+
+        assertEquals(1, Files.readAllLines(root.resolve(HashCatalog.CATALOG_FILE)).size());
+        assertEquals("crc32c:00000009", HashCatalog.load(root).get("file.txt").getHash());
+    }
+}
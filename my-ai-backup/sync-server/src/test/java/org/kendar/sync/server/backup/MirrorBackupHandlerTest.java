@@ -8,6 +8,7 @@ import org.kendar.sync.lib.protocol.*;
 import org.kendar.sync.lib.utils.FileUtils;
 import org.kendar.sync.server.TestUtils;
 import org.kendar.sync.server.server.ClientSession;
+import org.kendar.sync.server.storage.FakeObjectStore;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Mockito;
 
@@ -62,6 +63,7 @@ public class MirrorBackupHandlerTest {
         when(mockSession.getFolder()).thenReturn(mockFolder);
         when(mockFolder.getRealPath()).thenReturn(tempDir.getAbsolutePath());
         when(mockSession.isDryRun()).thenReturn(false);
+        when(mockSession.getSessionId()).thenReturn(UUID.randomUUID());
     }
 
     @AfterEach
@@ -99,6 +101,28 @@ public class MirrorBackupHandlerTest {
         assertEquals(0, filesToDelete.size());
     }
 
+    @Test
+    void testHandleFileMove() throws IOException {
+        Files.createDirectories(tempDir.toPath().resolve("old"));
+        Files.writeString(tempDir.toPath().resolve("old/moved.txt"), "moved");
+        Files.writeString(tempDir.toPath().resolve("original.txt"), "copied");
+
+        handler.handleFileMove(mockConnection, mockSession, new FileMoveMessage(List.of(
+                new FileMoveMessage.Move("old/moved.txt", "new/moved.txt", false),
+                new FileMoveMessage.Move("original.txt", "copy.txt", true),
+                new FileMoveMessage.Move("missing.txt", "found.txt", false),
+                new FileMoveMessage.Move("original.txt", "../outside.txt", true))));
+
+        ArgumentCaptor<FileMoveAckMessage> captor = ArgumentCaptor.forClass(FileMoveAckMessage.class);
+        verify(mockConnection).sendMessage(captor.capture());
+        assertEquals(List.of("new/moved.txt", "copy.txt"), captor.getValue().getApplied());
+        assertFalse(Files.exists(tempDir.toPath().resolve("old/moved.txt")));
+        assertEquals("moved", Files.readString(tempDir.toPath().resolve("new/moved.txt")));
+        assertEquals("copied", Files.readString(tempDir.toPath().resolve("original.txt")));
+        assertEquals("copied", Files.readString(tempDir.toPath().resolve("copy.txt")));
+        assertFalse(Files.exists(tempDir.toPath().resolveSibling("outside.txt")));
+    }
+
     @Test
     void testHandleFileDescriptor() throws IOException {
         // Create a file descriptor message for a regular file
@@ -160,6 +184,54 @@ public class MirrorBackupHandlerTest {
         assertEquals("test data", new String(Files.readAllBytes(file.toPath())));
     }
 
+    @Test
+    void testCompressedAtRest() throws IOException {
+        when(mockFolder.isCompressAtRest()).thenReturn(true);
+        var first = "compressible ".repeat(100);
+        var second = "raw";
+        var compressed = new FileDataMessage("test.txt", 0, 2, first.getBytes()).compress();
+        assertTrue(compressed.isCompressed());
+
+        handler.handleFileData(mockConnection, mockSession, compressed);
+        handler.handleFileData(mockConnection, mockSession, new FileDataMessage("test.txt", 1, 2, second.getBytes()));
+        var time = Instant.now().minusSeconds(3600);
+        var fileInfo = new FileInfo("test.txt", "test.txt", first.length() + second.length(), time, time, 0x1A4);
+        var end = new FileEndMessage("test.txt");
+        end.setFileInfo(fileInfo);
+        handler.handleFileEnd(mockConnection, mockSession, end);
+
+        // Stored as received, the compressed block as it is
+        var path = tempDir.toPath().resolve("test.txt");
+        var index = CompressedBlockFile.read(path);
+        assertNotNull(index);
+        assertEquals(first.length() + second.length(), index.getSize());
+        assertEquals(compressed.getData().length + second.length(), index.getLength());
+        try (var input = index.openRaw(path)) {
+            assertEquals(first + second, new String(input.readAllBytes()));
+        }
+
+        // The listing compares the original size with the one of the client
+        Mockito.clearInvocations(mockConnection);
+        var clientFile = FileInfo.fromFile(path.toFile(), tempDir.getAbsolutePath());
+        clientFile.setSize(fileInfo.getSize());
+        handler.handleFileList(mockConnection, mockSession, new FileListMessage(List.of(clientFile), true, 1, 1));
+        ArgumentCaptor<FileListResponseMessage> captor = ArgumentCaptor.forClass(FileListResponseMessage.class);
+        verify(mockConnection).sendMessage(captor.capture());
+        assertTrue(captor.getValue().getFilesToTransfer().isEmpty());
+    }
+
+    @Test
+    void testReleaseSessionDropsTheFilesCutOff() throws IOException {
+        when(mockFolder.isCompressAtRest()).thenReturn(true);
+        handler.handleFileData(mockConnection, mockSession, new FileDataMessage("test.txt", 0, 2, "first".getBytes()));
+
+        handler.releaseSession(mockSession);
+
+        // The index of the blocks already written is gone with the session
+        assertThrows(IOException.class, () -> handler.handleFileData(mockConnection, mockSession,
+                new FileDataMessage("test.txt", 1, 2, "second".getBytes())));
+    }
+
     @Test
     void testHandleFileEnd() throws IOException {
         // Create a file end message
@@ -182,6 +254,36 @@ public class MirrorBackupHandlerTest {
         assertTrue(response.isSuccess());
     }
 
+    @Test
+    void testStoredOnAnObjectStore() throws IOException {
+        try (var store = new FakeObjectStore("backups")) {
+            when(mockFolder.getBackupType()).thenReturn(BackupType.MIRROR);
+            when(mockFolder.getStorage()).thenReturn(new ServerSettings.Storage(store.getEndpoint().toString(),
+                    "us-east-1", "backups", "folder", "access", "secret"));
+            store.getObjects().put("folder/dir/stale.txt", "stale".getBytes());
+
+            handler.handleFileData(mockConnection, mockSession, new FileDataMessage("test.txt", 0, 1, "test data".getBytes()));
+            var time = Instant.parse("2024-01-01T10:00:00Z");
+            var fileInfo = new FileInfo("test.txt", "test.txt", 9, time, time, 0x1A4);
+            var end = new FileEndMessage("test.txt");
+            end.setFileInfo(fileInfo);
+            handler.handleFileEnd(mockConnection, mockSession, end);
+
+            // Written on the store, not in the real path
+            assertEquals("test data", new String(store.getObjects().get("folder/test.txt")));
+            assertFalse(Files.exists(tempDir.toPath().resolve("test.txt")));
+
+            // The listing of the store is compared with the client, the files removed are deleted
+            Mockito.clearInvocations(mockConnection);
+            handler.handleFileList(mockConnection, mockSession, new FileListMessage(List.of(fileInfo), true, 1, 1));
+            ArgumentCaptor<FileListResponseMessage> captor = ArgumentCaptor.forClass(FileListResponseMessage.class);
+            verify(mockConnection).sendMessage(captor.capture());
+            assertTrue(captor.getValue().getFilesToTransfer().isEmpty());
+            assertFalse(store.getObjects().containsKey("folder/dir/stale.txt"));
+            assertTrue(store.getObjects().containsKey("folder/test.txt"));
+        }
+    }
+
     @Test
     void testHandleSyncEnd() throws IOException {
         // Create a sync end message
@@ -5,6 +5,7 @@ import org.kendar.sync.lib.model.FileInfo;
 import org.kendar.sync.lib.model.ServerSettings;
 import org.kendar.sync.lib.network.TcpConnection;
 import org.kendar.sync.lib.protocol.*;
+import org.kendar.sync.lib.utils.ContentHasher;
 import org.kendar.sync.lib.utils.FileUtils;
 import org.kendar.sync.server.TestUtils;
 import org.kendar.sync.server.server.ClientSession;
@@ -20,6 +21,7 @@ import java.util.ArrayList;
 import java.util.UUID;
 
 import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -60,6 +62,7 @@ public class PreserveBackupHandlerTest {
         when(mockSession.getFolder()).thenReturn(mockFolder);
         when(mockFolder.getRealPath()).thenReturn(tempDir.getAbsolutePath());
         when(mockSession.isDryRun()).thenReturn(false);
+        when(mockSession.getSessionId()).thenReturn(UUID.randomUUID());
     }
 
     @Test
@@ -162,6 +165,96 @@ public class PreserveBackupHandlerTest {
         assertTrue(response.isSuccess());
     }
 
+    @Test
+    void testHandleFileEndStoresContentHash() throws IOException {
+        var catalogs = new HashCatalogs();
+        handler.setHashCatalogs(catalogs);
+        var content = "hashed content";
+        var path = Path.of(tempDir.getAbsolutePath(), "hashed.txt");
+        Files.writeString(path, content);
+        var expected = ContentHasher.create(ContentHasher.CRC32C);
+        expected.update(content.getBytes());
+        var received = ContentHasher.create(ContentHasher.CRC32C);
+        received.update(content.getBytes());
+        when(mockSession.endContentHash(anyInt())).thenReturn(received);
+        FileInfo fileInfo = FileInfo.fromFile(path.toFile(), tempDir.getAbsolutePath());
+        fileInfo.setHash(expected.digest());
+
+        handler.handleFileEnd(mockConnection, mockSession, new FileEndMessage("hashed.txt", fileInfo));
+
+        ArgumentCaptor<FileEndAckMessage> captor = ArgumentCaptor.forClass(FileEndAckMessage.class);
+        verify(mockConnection).sendMessage(captor.capture());
+        assertTrue(captor.getValue().isSuccess());
+        var entry = catalogs.get(tempDir.getAbsolutePath()).get("hashed.txt");
+        assertEquals(fileInfo.getHash(), entry.getHash());
+        assertEquals(content.length(), entry.getSize());
+    }
+
+    @Test
+    void testHandleFileEndRejectsHashMismatch() throws IOException {
+        var path = Path.of(tempDir.getAbsolutePath(), "corrupted.txt");
+        Files.writeString(path, "received content");
+        var received = ContentHasher.create(ContentHasher.CRC32C);
+        received.update("received content".getBytes());
+        when(mockSession.endContentHash(anyInt())).thenReturn(received);
+        FileInfo fileInfo = FileInfo.fromFile(path.toFile(), tempDir.getAbsolutePath());
+        fileInfo.setHash("crc32c:00000000");
+
+        handler.handleFileEnd(mockConnection, mockSession, new FileEndMessage("corrupted.txt", fileInfo));
+
+        ArgumentCaptor<FileEndAckMessage> captor = ArgumentCaptor.forClass(FileEndAckMessage.class);
+        verify(mockConnection).sendMessage(captor.capture());
+        assertFalse(captor.getValue().isSuccess());
+    }
+
+    @Test
+    void testHandleFileEndSkipsOnlyOnSha256() throws IOException {
+        var catalogs = new HashCatalogs();
+        handler.setHashCatalogs(catalogs);
+        var path = Path.of(tempDir.getAbsolutePath(), "unchanged.txt");
+        Files.writeString(path, "stored content");
+        FileInfo fileInfo = FileInfo.fromFile(path.toFile(), tempDir.getAbsolutePath());
+        var catalog = catalogs.get(tempDir.getAbsolutePath());
+
+        // No data received, the client relied on a checksum
+        var crc = ContentHasher.hashFile(path, ContentHasher.CRC32C);
+        catalog.put("unchanged.txt", fileInfo.getSize(), fileInfo.getModificationTime().toEpochMilli(), crc);
+        when(mockSession.endContentHash(anyInt())).thenReturn(ContentHasher.create(ContentHasher.CRC32C));
+        fileInfo.setHash(crc);
+        handler.handleFileEnd(mockConnection, mockSession, new FileEndMessage("unchanged.txt", fileInfo));
+
+        // No data received, the client relied on a SHA-256
+        var sha = ContentHasher.hashFile(path, ContentHasher.SHA256);
+        catalog.put("unchanged.txt", fileInfo.getSize(), fileInfo.getModificationTime().toEpochMilli(), sha);
+        when(mockSession.endContentHash(anyInt())).thenReturn(ContentHasher.create(ContentHasher.SHA256));
+        fileInfo.setHash(sha);
+        handler.handleFileEnd(mockConnection, mockSession, new FileEndMessage("unchanged.txt", fileInfo));
+
+        ArgumentCaptor<FileEndAckMessage> captor = ArgumentCaptor.forClass(FileEndAckMessage.class);
+        verify(mockConnection, Mockito.times(2)).sendMessage(captor.capture());
+        assertFalse(captor.getAllValues().get(0).isSuccess());
+        assertTrue(captor.getAllValues().get(1).isSuccess());
+    }
+
+    @Test
+    void testHandleInlineFile() throws IOException {
+        var modified = Instant.parse("2020-01-02T03:04:05Z");
+        FileInfo fileInfo = new FileInfo("small.txt", "dir/small.txt", 5, modified, modified, 0x7);
+
+        var message = new FileDescriptorMessage(fileInfo);
+        message.setInlineData("small".getBytes());
+        handler.handleInlineFile(mockConnection, mockSession, message);
+
+        // Only the file end is acknowledged
+        ArgumentCaptor<FileEndAckMessage> captor = ArgumentCaptor.forClass(FileEndAckMessage.class);
+        verify(mockConnection).sendMessage(captor.capture());
+        assertEquals("dir/small.txt", captor.getValue().getRelativePath());
+        assertTrue(captor.getValue().isSuccess());
+        var path = tempDir.toPath().resolve("dir/small.txt");
+        assertEquals("small", Files.readString(path));
+        assertEquals(modified, Files.getLastModifiedTime(path).toInstant());
+    }
+
     @Test
     void testHandleSyncEnd() throws IOException {
         // Create a sync end message
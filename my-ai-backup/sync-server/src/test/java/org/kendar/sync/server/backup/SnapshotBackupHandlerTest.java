@@ -0,0 +1,154 @@
+package org.kendar.sync.server.backup;
+
+import org.junit.jupiter.api.*;
+import org.kendar.sync.lib.model.FileInfo;
+import org.kendar.sync.lib.model.ServerSettings;
+import org.kendar.sync.lib.network.TcpConnection;
+import org.kendar.sync.lib.protocol.*;
+import org.kendar.sync.lib.utils.FileUtils;
+import org.kendar.sync.server.TestUtils;
+import org.kendar.sync.server.replication.ReplicationJournals;
+import org.kendar.sync.server.server.ClientSession;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Unit tests for the SnapshotBackupHandler class.
+ */
+public class SnapshotBackupHandlerTest {
+
+    private static String uniqueId;
+    private SnapshotBackupHandler handler;
+    private TcpConnection mockConnection;
+    private ClientSession mockSession;
+    private File tempDir;
+
+    @BeforeAll
+    public static void beforeClass() {
+        uniqueId = UUID.randomUUID().toString();
+    }
+
+    @AfterAll
+    public static void cleanup() throws Exception {
+        FileUtils.deleteDirectoryContents(Path.of("target", "tests", uniqueId));
+    }
+
+    @BeforeEach
+    void setUp(TestInfo testInfo) throws IOException {
+        tempDir = Path.of("target", "tests", uniqueId, TestUtils.getTestFolder(testInfo)).toFile();
+        Files.createDirectories(tempDir.toPath());
+
+        handler = new SnapshotBackupHandler();
+        mockConnection = Mockito.mock(TcpConnection.class);
+        mockSession = Mockito.mock(ClientSession.class);
+        var mockFolder = Mockito.mock(ServerSettings.BackupFolder.class);
+
+        when(mockSession.getFolder()).thenReturn(mockFolder);
+        when(mockFolder.getRealPath()).thenReturn(tempDir.getAbsolutePath());
+        when(mockSession.getSessionId()).thenReturn(UUID.randomUUID());
+        when(mockSession.isBackup()).thenReturn(true);
+        when(mockSession.isDryRun()).thenReturn(false);
+    }
+
+    private FileListResponseMessage backup(List<FileInfo> files) throws IOException {
+        handler.handleFileList(mockConnection, mockSession, new FileListMessage(files, true, 1, 1));
+        ArgumentCaptor<FileListResponseMessage> captor = ArgumentCaptor.forClass(FileListResponseMessage.class);
+        verify(mockConnection).sendMessage(captor.capture());
+        return captor.getValue();
+    }
+
+    @Test
+    void testBackupCompletesTheSnapshotOnSyncEnd() throws IOException {
+        var source = tempDir.toPath().resolveSibling(tempDir.getName() + "-source");
+        Files.createDirectories(source);
+        Files.writeString(source.resolve("test.txt"), "test data");
+        var fileInfo = FileInfo.fromFile(source.resolve("test.txt").toFile(), source.toString());
+
+        var response = backup(List.of(fileInfo));
+        assertEquals(1, response.getFilesToTransfer().size());
+        assertNull(SnapshotBackupHandler.findSnapshot(tempDir.toPath(), null));
+
+        when(mockSession.getCurrentFile(anyInt())).thenReturn(fileInfo);
+        handler.handleFileData(mockConnection, mockSession, new FileDataMessage("test.txt", 0, 1, "test data".getBytes()));
+        handler.handleFileEnd(mockConnection, mockSession, new FileEndMessage("test.txt", fileInfo));
+        handler.handleSyncEnd(mockConnection, mockSession, new SyncEndMessage());
+
+        var snapshot = SnapshotBackupHandler.findSnapshot(tempDir.toPath(), null);
+        assertNotNull(snapshot);
+        assertEquals("test data", Files.readString(tempDir.toPath().resolve(snapshot).resolve("test.txt")));
+    }
+
+    @Test
+    void testUnchangedFilesAreLinkedFromThePreviousSnapshot() throws IOException {
+        var previous = tempDir.toPath().resolve("2024-01-10_10-00-00");
+        Files.createDirectories(previous.resolve("dir"));
+        Files.writeString(previous.resolve("dir/same.txt"), "same");
+        Files.writeString(previous.resolve("changed.txt"), "old");
+        var same = FileInfo.fromFile(previous.resolve("dir/same.txt").toFile(), previous.toString());
+        var changed = FileInfo.fromFile(previous.resolve("changed.txt").toFile(), previous.toString());
+        changed.setSize(10);
+
+        var response = backup(List.of(same, changed));
+        handler.handleSyncEnd(mockConnection, mockSession, new SyncEndMessage());
+
+        assertEquals(1, response.getFilesToTransfer().size());
+        assertEquals("changed.txt", response.getFilesToTransfer().get(0).getRelativePath());
+        var snapshot = tempDir.toPath().resolve(SnapshotBackupHandler.findSnapshot(tempDir.toPath(), null));
+        assertNotEquals(previous, snapshot);
+        assertTrue(Files.isSameFile(previous.resolve("dir/same.txt"), snapshot.resolve("dir/same.txt")));
+        assertFalse(Files.exists(snapshot.resolve("changed.txt")));
+    }
+
+    @Test
+    void testReleasedSessionDoesNotCompleteTheSnapshot() throws IOException {
+        backup(List.of());
+        handler.releaseSession(mockSession);
+        handler.handleSyncEnd(mockConnection, mockSession, new SyncEndMessage());
+
+        assertNull(SnapshotBackupHandler.findSnapshot(tempDir.toPath(), null));
+    }
+
+    @Test
+    void testSnapshotsAreNotJournaledForTheReplicas() throws IOException {
+        var folder = mockSession.getFolder();
+        when(folder.getReplicas()).thenReturn(List.of(new ServerSettings.Replica()));
+        when(folder.getBackupType()).thenReturn(BackupType.SNAPSHOT);
+        var journals = new ReplicationJournals();
+        handler.setReplicationJournals(journals);
+        var source = tempDir.toPath().resolveSibling(tempDir.getName() + "-source");
+        Files.createDirectories(source);
+        Files.writeString(source.resolve("test.txt"), "test data");
+        var fileInfo = FileInfo.fromFile(source.resolve("test.txt").toFile(), source.toString());
+
+        backup(List.of(fileInfo));
+        when(mockSession.getCurrentFile(anyInt())).thenReturn(fileInfo);
+        handler.handleFileData(mockConnection, mockSession, new FileDataMessage("test.txt", 0, 1, "test data".getBytes()));
+        handler.handleFileEnd(mockConnection, mockSession, new FileEndMessage("test.txt", fileInfo));
+        handler.handleSyncEnd(mockConnection, mockSession, new SyncEndMessage());
+
+        assertNotNull(SnapshotBackupHandler.findSnapshot(tempDir.toPath(), null));
+        assertEquals(0, journals.get(tempDir.getAbsolutePath()).getLength());
+    }
+
+    @Test
+    void testFindSnapshotAtPointInTime() throws IOException {
+        for (var name : List.of("2024-01-10_10-00-00", "2024-02-01_08-30-00", "2024-02-01_20-00-00_2",
+                "2024-03-01_00-00-00.partial", "other")) {
+            Files.createDirectories(tempDir.toPath().resolve(name));
+        }
+
+        assertEquals("2024-02-01_20-00-00_2", SnapshotBackupHandler.findSnapshot(tempDir.toPath(), null));
+        assertEquals("2024-01-10_10-00-00", SnapshotBackupHandler.findSnapshot(tempDir.toPath(), "2024-01-31"));
+        assertNull(SnapshotBackupHandler.findSnapshot(tempDir.toPath(), "2023-12-31"));
+    }
+}
@@ -0,0 +1,75 @@
+package org.kendar.sync.server.backup;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for the VersionIndex class.
+ */
+public class VersionIndexTest {
+
+    private Path root;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        root = Path.of("target", "tests", UUID.randomUUID().toString(), "VersionIndexTest").toAbsolutePath();
+        Files.createDirectories(root);
+    }
+
+    @Test
+    void testVersionsArePersisted() throws IOException {
+        var index = VersionIndex.load(root);
+        index.put("a/b.txt", "2024-01-10");
+        index.put("a/b.txt", "2024-03-05");
+        index.put("c.txt", "2024-02-01");
+
+        var reloaded = VersionIndex.load(root);
+
+        assertEquals("2024-03-05", reloaded.latest("a/b.txt"));
+        assertEquals("2024-02-01", reloaded.latest("c.txt"));
+        assertNull(reloaded.latest("missing.txt"));
+    }
+
+    @Test
+    void testPointInTime() throws IOException {
+        var index = VersionIndex.load(root);
+        index.put("a/b.txt", "2024-01-10");
+        index.put("a/b.txt", "2024-03-05");
+        index.put("c.txt", "2024-02-01");
+
+        assertEquals("2024-01-10", index.at("a/b.txt", "2024-02-28"));
+        assertEquals("2024-03-05", index.at("a/b.txt", "2024-03-05"));
+        assertNull(index.at("a/b.txt", "2023-12-31"));
+        assertEquals(Map.of("a/b.txt", "2024-01-10"), index.versions("2024-01-31"));
+        assertEquals(Map.of("a/b.txt", "2024-03-05", "c.txt", "2024-02-01"), index.versions(null));
+    }
+
+    @Test
+    void testMissingIndexIsBuiltFromTheFolder() throws IOException {
+        for (var file : new String[]{"2024-01-10/a/b.txt", "2024-03-05/a/b.txt", "root.txt", "notadate/d.txt"}) {
+            Files.createDirectories(root.resolve(file).getParent());
+            Files.writeString(root.resolve(file), file);
+        }
+        Files.writeString(root.resolve(HashCatalog.CATALOG_FILE), "");
+
+        var index = VersionIndex.load(root);
+
+        assertTrue(Files.exists(root.resolve(VersionIndex.INDEX_FILE)));
+        assertEquals("2024-03-05", index.latest("a/b.txt"));
+        assertEquals(VersionIndex.UNDATED, index.latest("root.txt"));
+        assertEquals(VersionIndex.UNDATED, index.latest("notadate/d.txt"));
+        assertNull(index.latest(HashCatalog.CATALOG_FILE));
+        assertEquals(root.resolve("2024-03-05").resolve("a/b.txt"), VersionIndex.resolve(root, "a/b.txt", "2024-03-05"));
+        assertEquals(root.resolve("root.txt"), VersionIndex.resolve(root, "root.txt", VersionIndex.UNDATED));
+        // The undated files are older than any version
+        assertEquals(VersionIndex.UNDATED, index.at("root.txt", "2000-01-01"));
+    }
+}
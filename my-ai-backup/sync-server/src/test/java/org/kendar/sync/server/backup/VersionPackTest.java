@@ -0,0 +1,105 @@
+package org.kendar.sync.server.backup;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.kendar.sync.lib.utils.FileUtils;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for the VersionPack class.
+ */
+public class VersionPackTest {
+
+    private Path root;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        root = Path.of("target", "tests", UUID.randomUUID().toString()).toAbsolutePath();
+        Files.createDirectories(root);
+    }
+
+    private Path write(String name, byte[] content) throws IOException {
+        var file = root.resolve("source").resolve(name);
+        Files.createDirectories(file.getParent());
+        Files.write(file, content);
+        return file;
+    }
+
+    private static byte[] readAll(VersionPack.Entry entry) throws IOException {
+        try (var input = entry.getBlocks().openRaw(entry.getPack())) {
+            return input.readAllBytes();
+        }
+    }
+
+    @Test
+    void testFilesAreReadBackFromTheIndex() throws IOException {
+        var text = "compressible ".repeat(200_000).getBytes();
+        var random = new byte[50_000];
+        new Random(42).nextBytes(random);
+        var target = VersionPack.locate(root, "2020-01-01");
+        try (var writer = new VersionPack.Writer(target)) {
+            var file = write("dir/text.txt", text);
+            writer.add("dir/text.txt", file, FileUtils.readFileAttributes(file), "crc32c:1234", false);
+            file = write("random.bin", random);
+            writer.add("random.bin", file, FileUtils.readFileAttributes(file), null, false);
+            file = write("empty.txt", new byte[0]);
+            writer.add("empty.txt", file, FileUtils.readFileAttributes(file), null, false);
+            writer.commit();
+        }
+
+        var pack = VersionPack.read(target);
+        assertEquals(3, pack.getEntries().size());
+        var textEntry = pack.get("dir/text.txt");
+        assertEquals("crc32c:1234", textEntry.getHash());
+        assertEquals(text.length, textEntry.getAttributes().getSize());
+        assertTrue(textEntry.getBlocks().getBlocks().get(0).isCompressed());
+        assertTrue(Files.size(target) < text.length);
+        assertArrayEquals(text, readAll(textEntry));
+        assertArrayEquals(random, readAll(pack.get("random.bin")));
+        assertArrayEquals(new byte[0], readAll(pack.get("empty.txt")));
+        assertNull(pack.get("missing.txt"));
+        assertEquals(java.util.Set.of("2020-01-01"), VersionPack.listDates(root));
+    }
+
+    @Test
+    void testRepackingKeepsTheUnchangedFiles() throws IOException {
+        var target = VersionPack.locate(root, "2020-01-01");
+        try (var writer = new VersionPack.Writer(target)) {
+            var file = write("a.txt", "first a".getBytes());
+            writer.add("a.txt", file, FileUtils.readFileAttributes(file), null, false);
+            file = write("b.txt", "first b".getBytes());
+            writer.add("b.txt", file, FileUtils.readFileAttributes(file), null, false);
+            writer.commit();
+        }
+        var previous = VersionPack.read(target);
+        try (var writer = new VersionPack.Writer(target)) {
+            var file = write("a.txt", "second a".getBytes());
+            writer.add("a.txt", file, FileUtils.readFileAttributes(file), null, false);
+            writer.copy(previous, previous.get("b.txt"));
+            writer.commit();
+        }
+
+        var pack = VersionPack.read(target);
+        assertArrayEquals("second a".getBytes(), readAll(pack.get("a.txt")));
+        assertArrayEquals("first b".getBytes(), readAll(pack.get("b.txt")));
+        assertFalse(Files.exists(target.resolveSibling(target.getFileName() + ".tmp")));
+    }
+
+    @Test
+    void testUncommittedPackIsDiscarded() throws IOException {
+        var target = VersionPack.locate(root, "2020-01-01");
+        try (var writer = new VersionPack.Writer(target)) {
+            var file = write("a.txt", "content".getBytes());
+            writer.add("a.txt", file, FileUtils.readFileAttributes(file), null, false);
+        }
+        assertNull(VersionPack.read(target));
+        assertFalse(Files.exists(target.resolveSibling(target.getFileName() + ".tmp")));
+    }
+}
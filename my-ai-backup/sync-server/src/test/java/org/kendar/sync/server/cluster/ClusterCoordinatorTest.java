@@ -0,0 +1,95 @@
+package org.kendar.sync.server.cluster;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInfo;
+import org.kendar.sync.server.TestUtils;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for the ClusterCoordinator class, with two nodes sharing a directory.
+ */
+public class ClusterCoordinatorTest {
+
+    private Path directory;
+    private ClusterCoordinator first;
+    private ClusterCoordinator second;
+
+    @BeforeEach
+    void setUp(TestInfo testInfo) throws IOException {
+        directory = Path.of("target", "tests", UUID.randomUUID().toString(), TestUtils.getTestFolder(testInfo)).toAbsolutePath();
+        first = new ClusterCoordinator(directory, new ClusterNode("first", "127.0.0.1", 9001), 1, 3, () -> 2);
+        second = new ClusterCoordinator(directory, new ClusterNode("second", "127.0.0.1", 9002), 1, 3, () -> 0);
+        first.start();
+        second.start();
+    }
+
+    @AfterEach
+    void tearDown() {
+        first.close();
+        second.close();
+    }
+
+    @Test
+    void testNodesAgreeOnTheOwners() {
+        var nodes = first.getLiveNodes();
+        assertEquals(2, nodes.size());
+        assertEquals(2, nodes.get(0).getSessions());
+        assertEquals(9002, nodes.get(1).getPort());
+
+        var owners = new HashSet<String>();
+        for (var i = 0; i < 20; i++) {
+            var owner = first.getOwner("folder" + i);
+            assertEquals(owner.getNodeId(), second.getOwner("folder" + i).getNodeId());
+            assertTrue(first.isLocal(owner) != second.isLocal(owner));
+            owners.add(owner.getNodeId());
+        }
+        // Both nodes own some folders
+        assertEquals(2, owners.size());
+    }
+
+    @Test
+    void testFoldersOfAStoppedNodeMove() {
+        var folder = findFolderOwnedBy(second);
+        second.close();
+
+        assertEquals(1, first.getLiveNodes().size());
+        assertTrue(first.isLocal(first.getOwner(folder)));
+    }
+
+    @Test
+    void testLocksAreExclusive() throws IOException {
+        assertTrue(first.tryLock("docs"));
+        assertFalse(second.tryLock("docs"));
+
+        first.unlock("docs");
+        assertTrue(second.tryLock("docs"));
+        // Unlocking a lock of another node has no effect
+        first.unlock("docs");
+        assertFalse(first.tryLock("docs"));
+    }
+
+    @Test
+    void testLockOfADeadNodeIsTakenOver() throws IOException {
+        Files.writeString(directory.resolve("locks").resolve("docs.lock"), "crashed");
+
+        assertTrue(first.tryLock("docs"));
+        assertEquals("first", Files.readString(directory.resolve("locks").resolve("docs.lock")));
+    }
+
+    private String findFolderOwnedBy(ClusterCoordinator node) {
+        for (var i = 0; ; i++) {
+            if (node.isLocal(node.getOwner("folder" + i))) {
+                return "folder" + i;
+            }
+        }
+    }
+}
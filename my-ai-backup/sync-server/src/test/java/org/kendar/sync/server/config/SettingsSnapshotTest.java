@@ -0,0 +1,143 @@
+package org.kendar.sync.server.config;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.kendar.sync.lib.model.ServerSettings;
+import org.kendar.sync.lib.protocol.BackupType;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for the SettingsSnapshot class and the snapshot publishing of ServerConfig.
+ */
+public class SettingsSnapshotTest {
+
+    private ServerSettings settings;
+
+    @BeforeEach
+    void setUp() {
+        var users = new ArrayList<ServerSettings.User>();
+        users.add(new ServerSettings.User("id1", "Alice", "pwd1", true));
+        users.add(new ServerSettings.User("id2", "bob", "pwd2", false));
+        var folders = new ArrayList<ServerSettings.BackupFolder>();
+        folders.add(new ServerSettings.BackupFolder("docs", "/tmp/docs", BackupType.PRESERVE,
+                new ArrayList<>(List.of("id2")), true, true, new ArrayList<>()));
+        settings = new ServerSettings(8090, 8089, 1024, 5, users, folders);
+    }
+
+    @Test
+    void testAuthenticate() {
+        var snapshot = SettingsSnapshot.of(settings);
+
+        assertEquals("id1", snapshot.authenticate("Alice", "pwd1").get().getId());
+        assertTrue(snapshot.authenticate("Alice", "wrong").isEmpty());
+        assertTrue(snapshot.authenticate("alice", "pwd1").isEmpty());
+        assertTrue(snapshot.authenticate("nobody", "pwd1").isEmpty());
+    }
+
+    @Test
+    void testLookups() {
+        var snapshot = SettingsSnapshot.of(settings);
+
+        assertEquals("bob", snapshot.getUserById("id2").get().getUsername());
+        assertEquals("id1", snapshot.getUserByLogin("ALICE").get().getId());
+        assertEquals("/tmp/docs", snapshot.getFolder("docs").get().getRealPath());
+        assertTrue(snapshot.getUserFolder("id2", "docs").isPresent());
+        assertTrue(snapshot.getUserFolder("id1", "docs").isEmpty());
+        assertTrue(snapshot.getUserFolder("id2", "missing").isEmpty());
+    }
+
+    @Test
+    void testSnapshotIsNotAffectedBySourceChanges() {
+        var snapshot = SettingsSnapshot.of(settings);
+
+        settings.getUsers().clear();
+        settings.getBackupFolders().get(0).getAllowedUsers().add("id1");
+
+        assertTrue(snapshot.authenticate("Alice", "pwd1").isPresent());
+        assertTrue(snapshot.getUserFolder("id1", "docs").isEmpty());
+    }
+
+    @Test
+    void testUpdateSettingsPublishesNewSnapshot() throws IOException {
+        var config = new ServerConfig();
+        config.setServerSettings(settings);
+        var before = config.snapshot();
+
+        var result = config.updateSettings(s -> {
+            s.getUsers().add(new ServerSettings.User("id3", "carol", "pwd3", false));
+            return "done";
+        });
+
+        assertEquals("done", result);
+        assertNotSame(before, config.snapshot());
+        assertTrue(config.snapshot().authenticate("carol", "pwd3").isPresent());
+        assertTrue(before.authenticate("carol", "pwd3").isEmpty());
+    }
+
+    @Test
+    void testReplaceSettingsIsSerializedWithUpdates() throws Exception {
+        var config = new ServerConfig();
+        config.setServerSettings(settings);
+        var replacement = new ServerSettings(8091, 8089, 2048, 3, new ArrayList<>(), new ArrayList<>());
+
+        var started = new CountDownLatch(1);
+        var release = new CountDownLatch(1);
+        var update = new Thread(() -> {
+            try {
+                config.updateSettings(s -> {
+                    started.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    s.setMaxConnections(10);
+                    return s;
+                });
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        update.start();
+        started.await();
+        var replace = new Thread(() -> {
+            try {
+                config.replaceSettings(replacement);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        replace.start();
+        // The replacement waits for the running update
+        replace.join(200);
+        assertTrue(replace.isAlive());
+        release.countDown();
+        update.join();
+        replace.join();
+
+        assertEquals(2048, config.snapshot().getSettings().getMaxPacketSize());
+        assertEquals(3, config.snapshot().getSettings().getMaxConnections());
+    }
+
+    @Test
+    void testUpdateSettingsWithoutResultKeepsSnapshot() throws IOException {
+        var config = new ServerConfig();
+        config.setServerSettings(settings);
+        var before = config.snapshot();
+
+        var result = config.updateSettings(s -> {
+            s.getUsers().clear();
+            return null;
+        });
+
+        assertNull(result);
+        assertSame(before, config.snapshot());
+        assertEquals(2, config.snapshot().getSettings().getUsers().size());
+    }
+}
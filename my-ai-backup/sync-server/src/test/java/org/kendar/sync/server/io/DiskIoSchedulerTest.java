@@ -0,0 +1,149 @@
+package org.kendar.sync.server.io;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for the DiskIoScheduler class.
+ */
+public class DiskIoSchedulerTest {
+
+    private DiskIoScheduler scheduler;
+    private String folder;
+
+    @BeforeEach
+    void setUp() {
+        scheduler = new DiskIoScheduler(2, 4);
+        folder = Path.of("target").toAbsolutePath().toString();
+    }
+
+    @AfterEach
+    void tearDown() {
+        scheduler.close();
+    }
+
+    @Test
+    void testWritesOfTheSameStreamAreOrdered() throws IOException {
+        var sessionId = UUID.randomUUID();
+        var written = Collections.synchronizedList(new ArrayList<Integer>());
+
+        for (var i = 0; i < 50; i++) {
+            var block = i;
+            scheduler.submit(folder, sessionId, 1, () -> written.add(block));
+        }
+        scheduler.await(folder, sessionId, 1);
+
+        assertEquals(50, written.size());
+        for (var i = 0; i < 50; i++) {
+            assertEquals(i, written.get(i));
+        }
+    }
+
+    @Test
+    void testConcurrentWritersAreCappedPerDevice() throws Exception {
+        var running = new AtomicInteger();
+        var maxRunning = new AtomicInteger();
+        var sessions = new ArrayList<UUID>();
+        for (var i = 0; i < 5; i++) {
+            sessions.add(UUID.randomUUID());
+        }
+
+        for (var block = 0; block < 4; block++) {
+            for (var sessionId : sessions) {
+                scheduler.submit(folder, sessionId, 1, () -> {
+                    var current = running.incrementAndGet();
+                    maxRunning.accumulateAndGet(current, Math::max);
+                    try {
+                        Thread.sleep(5);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    running.decrementAndGet();
+                });
+            }
+        }
+        for (var sessionId : sessions) {
+            scheduler.await(folder, sessionId, 1);
+        }
+
+        assertTrue(maxRunning.get() <= 2, "Too many writers " + maxRunning.get());
+    }
+
+    @Test
+    void testSessionsAreServedRoundRobin() throws Exception {
+        var single = new DiskIoScheduler(1, 10);
+        try {
+            var first = UUID.randomUUID();
+            var second = UUID.randomUUID();
+            var gate = new CountDownLatch(1);
+            List<UUID> order = Collections.synchronizedList(new ArrayList<>());
+
+            // Keep the only writer busy while the queues are filled
+            single.submit(folder, first, 0, () -> {
+                try {
+                    gate.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            for (var i = 0; i < 5; i++) {
+                single.submit(folder, first, 1, () -> order.add(first));
+            }
+            for (var i = 0; i < 5; i++) {
+                single.submit(folder, second, 1, () -> order.add(second));
+            }
+            gate.countDown();
+            single.await(folder, first, 1);
+            single.await(folder, second, 1);
+
+            assertEquals(10, order.size());
+            // The second session must not wait for all the blocks of the first one
+            assertTrue(order.subList(0, 4).contains(second));
+        } finally {
+            single.close();
+        }
+    }
+
+    @Test
+    void testFailureIsReportedOnAwait() throws IOException {
+        var sessionId = UUID.randomUUID();
+        scheduler.submit(folder, sessionId, 1, () -> {
+            throw new IOException("Disk full");
+        });
+
+        var ex = assertThrows(IOException.class, () -> scheduler.await(folder, sessionId, 1));
+        assertEquals("Disk full", ex.getMessage());
+
+        // The stream is reset after the failure has been reported
+        scheduler.await(folder, sessionId, 1);
+    }
+
+    @Test
+    void testFoldersOnTheSameDeviceAreGrouped() throws IOException {
+        var sessionId = UUID.randomUUID();
+        var other = Path.of("target", "classes").toAbsolutePath().toString();
+        scheduler.submit(folder, sessionId, 1, () -> {
+        });
+        scheduler.submit(other, sessionId, 2, () -> {
+        });
+        scheduler.await(folder, sessionId, 1);
+        scheduler.await(other, sessionId, 2);
+
+        var groups = scheduler.getDeviceGroups();
+        assertEquals(1, groups.size());
+        assertEquals(2, groups.values().iterator().next().size());
+    }
+}
@@ -0,0 +1,74 @@
+package org.kendar.sync.server.replication;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for the ReplicationJournal class.
+ */
+public class ReplicationJournalTest {
+
+    private Path root;
+    private ReplicationJournal journal;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        root = Path.of("target", "tests", UUID.randomUUID().toString()).toAbsolutePath();
+        Files.createDirectories(root);
+        journal = new ReplicationJournal(root);
+    }
+
+    @Test
+    void testChangesAreReadInBatchesFromTheOffset() throws IOException {
+        journal.append("a.txt", false);
+        journal.append("dir/b.txt", false);
+        journal.append("a.txt", true);
+
+        var first = journal.read(0, 2);
+        assertEquals(2, first.size());
+        assertEquals("a.txt", first.get(0).getPath());
+        assertFalse(first.get(0).isDeleted());
+        assertEquals("dir/b.txt", first.get(1).getPath());
+
+        var second = journal.read(first.get(1).getEnd(), 10);
+        assertEquals(1, second.size());
+        assertTrue(second.get(0).isDeleted());
+        assertEquals(journal.getLength(), second.get(0).getEnd());
+    }
+
+    @Test
+    void testOffsetsArePerReplicaAndSurviveReopening() throws IOException {
+        journal.append("a.txt", false);
+        var end = journal.read(0, 1).get(0).getEnd();
+        journal.setOffset("host:1/data", end);
+
+        var reopened = new ReplicationJournal(root);
+        assertEquals(end, reopened.getOffset("host:1/data"));
+        assertEquals(0, reopened.getOffset("host:2/data"));
+        assertTrue(reopened.read(end, 10).isEmpty());
+    }
+
+    @Test
+    void testCompactWaitsForAllTheReplicas() throws IOException {
+        journal.append("a.txt", false);
+        var end = journal.getLength();
+        journal.setOffset("first", end);
+
+        assertFalse(journal.compact(List.of("first", "second")));
+        journal.setOffset("second", end);
+        assertTrue(journal.compact(List.of("first", "second")));
+
+        assertEquals(0, journal.getLength());
+        assertEquals(0, journal.getOffset("first"));
+        journal.append("b.txt", false);
+        assertEquals("b.txt", journal.read(journal.getOffset("second"), 10).get(0).getPath());
+    }
+}
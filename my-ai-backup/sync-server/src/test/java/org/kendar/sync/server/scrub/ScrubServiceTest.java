@@ -0,0 +1,122 @@
+package org.kendar.sync.server.scrub;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.kendar.sync.lib.model.ServerSettings;
+import org.kendar.sync.lib.protocol.BackupType;
+import org.kendar.sync.lib.utils.ContentHasher;
+import org.kendar.sync.server.backup.HashCatalogs;
+import org.kendar.sync.server.io.RateLimiter;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for the ScrubService class.
+ */
+public class ScrubServiceTest {
+
+    private Path root;
+    private ServerSettings settings;
+    private ServerSettings.BackupFolder folder;
+    private HashCatalogs catalogs;
+    private ScrubService service;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        root = Path.of("target", "tests", UUID.randomUUID().toString()).toAbsolutePath();
+        Files.createDirectories(root);
+        folder = new ServerSettings.BackupFolder("data", root.toString(), BackupType.PRESERVE,
+                new ArrayList<>(), true, true, new ArrayList<>());
+        settings = new ServerSettings(8090, 8089, 1024, 5, new ArrayList<>(), new ArrayList<>(List.of(folder)));
+        settings.setScrubBytesPerSecond(0);
+        catalogs = new HashCatalogs();
+    }
+
+    @AfterEach
+    void tearDown() {
+        if (service != null) service.close();
+    }
+
+    private void store(String path, String content) throws IOException {
+        var file = root.resolve(path);
+        Files.createDirectories(file.getParent());
+        Files.writeString(file, content);
+        catalogs.get(root.toString()).put(path, Files.size(file), Files.getLastModifiedTime(file).toMillis(),
+                ContentHasher.hashFile(file, ContentHasher.CRC32C));
+    }
+
+    @Test
+    void testScrubFindsCorruptedAndMissingFiles() throws Exception {
+        store("good.txt", "good content");
+        store("dir/bad.txt", "original content");
+        store("missing.txt", "missing content");
+        store("changed.txt", "changed content");
+
+        // Same size and time, different content: the storage corrupted it
+        var bad = root.resolve("dir/bad.txt");
+        var time = Files.getLastModifiedTime(bad);
+        Files.writeString(bad, "0riginal content");
+        Files.setLastModifiedTime(bad, time);
+        Files.delete(root.resolve("missing.txt"));
+        // A legitimate change has a new modification time
+        var changed = root.resolve("changed.txt");
+        Files.writeString(changed, "changed content 2");
+        Files.setLastModifiedTime(changed, FileTime.fromMillis(Files.getLastModifiedTime(changed).toMillis() + 5000));
+
+        service = new ScrubService(() -> settings, catalogs, p -> false);
+        var report = new ScrubReport("data");
+        service.scrubFolder(folder, report);
+
+        assertEquals(ScrubReport.State.COMPLETED, report.getState());
+        assertEquals(4, report.getFilesTotal());
+        assertEquals(2, report.getFilesChecked());
+        assertEquals(1, report.getFilesSkipped());
+        var issues = report.getIssues();
+        assertEquals(2, issues.size());
+        assertTrue(issues.stream().anyMatch(i -> i.getPath().equals("dir/bad.txt") && i.getType().equals("CORRUPTED")));
+        assertTrue(issues.stream().anyMatch(i -> i.getPath().equals("missing.txt") && i.getType().equals("MISSING")));
+    }
+
+    @Test
+    void testScrubPausesWhileTheVolumeIsBusy() throws Exception {
+        store("file.txt", "content");
+        var checks = new AtomicInteger();
+
+        service = new ScrubService(() -> settings, catalogs, p -> checks.incrementAndGet() <= 2);
+        var report = new ScrubReport("data");
+        service.scrubFolder(folder, report);
+
+        assertEquals(ScrubReport.State.COMPLETED, report.getState());
+        assertEquals(1, report.getFilesChecked());
+        assertTrue(report.getPausedMillis() > 0);
+    }
+
+    @Test
+    void testScrubRequestForUnknownFolder() {
+        service = new ScrubService(() -> settings, catalogs, p -> false);
+
+        assertTrue(service.scrub("unknown").isEmpty());
+        assertTrue(service.getReport("unknown").isEmpty());
+    }
+
+    @Test
+    void testRateLimiterSlowsDown() throws InterruptedException {
+        var limiter = new RateLimiter(10_000);
+        var start = System.currentTimeMillis();
+        for (var i = 0; i < 5; i++) {
+            limiter.acquire(5_000);
+        }
+        // The first second is in the bucket, the remaining 15000 bytes need 1.5 seconds
+        assertTrue(System.currentTimeMillis() - start >= 1000);
+    }
+}
@@ -0,0 +1,161 @@
+package org.kendar.sync.server.server;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for the FolderJobQueue class.
+ */
+public class FolderJobQueueTest {
+
+    @Test
+    void testAcquireFreeFolder() throws Exception {
+        var queue = new FolderJobQueue();
+
+        var ticket = queue.acquire("docs", 0, 100, null);
+
+        assertTrue(ticket > 0);
+        assertTrue(queue.isBusy("docs"));
+        assertTrue(queue.release("docs", ticket));
+        assertFalse(queue.isBusy("docs"));
+    }
+
+    @Test
+    void testBusyFolderWithoutWaitIsRejected() throws Exception {
+        var queue = new FolderJobQueue();
+        queue.acquire("docs", 0, 100, null);
+
+        assertEquals(0, queue.acquire("docs", 0, 100, null));
+        assertTrue(queue.acquire("other", 0, 100, null) > 0);
+    }
+
+    @Test
+    void testWaitTimesOut() throws Exception {
+        var queue = new FolderJobQueue();
+        queue.acquire("docs", 0, 100, null);
+
+        var start = System.currentTimeMillis();
+        assertEquals(0, queue.acquire("docs", 200, 50, null));
+        assertTrue(System.currentTimeMillis() - start >= 200);
+        assertEquals(0, queue.getQueueLength("docs"));
+    }
+
+    @Test
+    void testFolderIsHandedToWaitersInOrder() throws Exception {
+        var queue = new FolderJobQueue();
+        var executor = Executors.newFixedThreadPool(2);
+        try {
+            var owner = queue.acquire("docs", 0, 100, null);
+            List<String> order = Collections.synchronizedList(new ArrayList<>());
+
+            var first = executor.submit(() -> {
+                var ticket = queue.acquire("docs", 5000, 50, null);
+                order.add("first");
+                return ticket;
+            });
+            waitForQueueLength(queue, 1);
+            var second = executor.submit(() -> {
+                var ticket = queue.acquire("docs", 5000, 50, null);
+                order.add("second");
+                return ticket;
+            });
+            waitForQueueLength(queue, 2);
+
+            queue.release("docs", owner);
+            var firstTicket = first.get(5, TimeUnit.SECONDS);
+            assertTrue(firstTicket > 0);
+            assertFalse(second.isDone());
+
+            queue.release("docs", firstTicket);
+            assertTrue(second.get(5, TimeUnit.SECONDS) > 0);
+            assertEquals(List.of("first", "second"), order);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void testQueuePositionIsReported() throws Exception {
+        var queue = new FolderJobQueue();
+        var owner = queue.acquire("docs", 0, 100, null);
+        var positions = new CopyOnWriteArrayList<Integer>();
+        var executor = Executors.newSingleThreadExecutor();
+        try {
+            var waiter = executor.submit(() -> queue.acquire("docs", 5000, 20, positions::add));
+            waitForQueueLength(queue, 1);
+            Thread.sleep(100);
+            queue.release("docs", owner);
+
+            assertTrue(waiter.get(5, TimeUnit.SECONDS) > 0);
+            assertFalse(positions.isEmpty());
+            assertEquals(1, positions.get(0));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void testFailingListenerLeavesTheQueue() throws Exception {
+        var queue = new FolderJobQueue();
+        queue.acquire("docs", 0, 100, null);
+
+        assertThrows(IOException.class, () -> queue.acquire("docs", 5000, 20, position -> {
+            throw new IOException("Client gone");
+        }));
+        assertEquals(0, queue.getQueueLength("docs"));
+    }
+
+    @Test
+    void testStaleTicketDoesNotRelease() throws Exception {
+        var queue = new FolderJobQueue();
+        var ticket = queue.acquire("docs", 0, 100, null);
+        assertTrue(queue.release("docs", ticket));
+        var newTicket = queue.acquire("docs", 0, 100, null);
+
+        assertFalse(queue.release("docs", ticket));
+        assertTrue(queue.isBusy("docs"));
+        assertTrue(queue.release("docs", newTicket));
+    }
+
+    @Test
+    void testSharedLockHeldElsewhereIsRejected() throws Exception {
+        var queue = new FolderJobQueue();
+        var locked = Collections.synchronizedSet(new HashSet<String>());
+        locked.add("docs");
+        queue.setSharedLock(new FolderJobQueue.SharedLock() {
+            @Override
+            public boolean tryLock(String folder) {
+                return locked.add(folder);
+            }
+
+            @Override
+            public void unlock(String folder) {
+                locked.remove(folder);
+            }
+        });
+
+        assertEquals(0, queue.acquire("docs", 1000, 50, null));
+        assertFalse(queue.isBusy("docs"));
+
+        var ticket = queue.acquire("other", 0, 100, null);
+        assertTrue(locked.contains("other"));
+        assertTrue(queue.release("other", ticket));
+        assertFalse(locked.contains("other"));
+    }
+
+    private static void waitForQueueLength(FolderJobQueue queue, int length) throws InterruptedException {
+        var deadline = System.currentTimeMillis() + 5000;
+        while (queue.getQueueLength("docs") < length && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(length, queue.getQueueLength("docs"));
+    }
+}
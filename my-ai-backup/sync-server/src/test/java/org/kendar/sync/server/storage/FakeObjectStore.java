@@ -0,0 +1,207 @@
+package org.kendar.sync.server.storage;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A minimal S3-compatible object store running in process, with a single bucket and
+ * the requests used by {@link S3StorageBackend}. The signatures are not verified.
+ */
+public class FakeObjectStore implements AutoCloseable {
+    private static final Pattern PART = Pattern.compile("<PartNumber>(\\d+)</PartNumber>");
+    private final HttpServer server;
+    private final String bucket;
+    private final Map<String, byte[]> objects = new ConcurrentHashMap<>();
+    private final Map<String, Map<Integer, byte[]>> uploads = new ConcurrentHashMap<>();
+    private final AtomicInteger uploadCounter = new AtomicInteger();
+    private final AtomicInteger concurrentParts = new AtomicInteger();
+    private final List<String> requests = Collections.synchronizedList(new ArrayList<>());
+    private volatile int maxConcurrentParts;
+    private volatile int listPageSize = 1000;
+
+    public FakeObjectStore(String bucket) throws IOException {
+        this.bucket = bucket;
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", this::handle);
+        server.setExecutor(java.util.concurrent.Executors.newCachedThreadPool());
+        server.start();
+    }
+
+    public URI getEndpoint() {
+        return URI.create("http://127.0.0.1:" + server.getAddress().getPort());
+    }
+
+    public Map<String, byte[]> getObjects() {
+        return objects;
+    }
+
+    List<String> getRequests() {
+        return requests;
+    }
+
+    int getMaxConcurrentParts() {
+        return maxConcurrentParts;
+    }
+
+    void setListPageSize(int listPageSize) {
+        this.listPageSize = listPageSize;
+    }
+
+    private static Map<String, String> query(URI uri) {
+        var result = new HashMap<String, String>();
+        if (uri.getRawQuery() != null) {
+            for (var parameter : uri.getRawQuery().split("&")) {
+                var parts = parameter.split("=", 2);
+                result.put(URLDecoder.decode(parts[0], StandardCharsets.UTF_8),
+                        parts.length > 1 ? URLDecoder.decode(parts[1], StandardCharsets.UTF_8) : "");
+            }
+        }
+        return result;
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            var auth = exchange.getRequestHeaders().getFirst("Authorization");
+            if (auth == null || !auth.startsWith("AWS4-HMAC-SHA256 Credential=")) {
+                send(exchange, 403, "<Error><Code>AccessDenied</Code></Error>");
+                return;
+            }
+            var uri = exchange.getRequestURI();
+            var path = uri.getPath();
+            var query = query(uri);
+            var method = exchange.getRequestMethod();
+            requests.add(method + " " + path + (uri.getRawQuery() == null ? "" : "?" + uri.getRawQuery()));
+            if (!path.startsWith("/" + bucket)) {
+                send(exchange, 404, "<Error><Code>NoSuchBucket</Code></Error>");
+                return;
+            }
+            var key = path.length() > bucket.length() + 2 ? path.substring(bucket.length() + 2) : "";
+            var body = exchange.getRequestBody().readAllBytes();
+
+            if (key.isEmpty() && "GET".equals(method)) {
+                list(exchange, query);
+            } else if ("POST".equals(method) && query.containsKey("uploads")) {
+                var uploadId = "upload-" + uploadCounter.incrementAndGet();
+                uploads.put(uploadId, new ConcurrentHashMap<>());
+                send(exchange, 200, "<InitiateMultipartUploadResult><UploadId>" + uploadId + "</UploadId></InitiateMultipartUploadResult>");
+            } else if ("PUT".equals(method) && query.containsKey("partNumber")) {
+                var current = concurrentParts.incrementAndGet();
+                maxConcurrentParts = Math.max(maxConcurrentParts, current);
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    concurrentParts.decrementAndGet();
+                }
+                uploads.get(query.get("uploadId")).put(Integer.parseInt(query.get("partNumber")), body);
+                exchange.getResponseHeaders().add("ETag", "\"etag-" + query.get("partNumber") + "\"");
+                send(exchange, 200, "");
+            } else if ("POST".equals(method) && query.containsKey("uploadId")) {
+                var parts = uploads.remove(query.get("uploadId"));
+                var content = new ByteArrayOutputStream();
+                Matcher matcher = PART.matcher(new String(body, StandardCharsets.UTF_8));
+                while (matcher.find()) {
+                    content.write(parts.get(Integer.parseInt(matcher.group(1))));
+                }
+                objects.put(key, content.toByteArray());
+                send(exchange, 200, "<CompleteMultipartUploadResult><Key>" + key + "</Key></CompleteMultipartUploadResult>");
+            } else if ("DELETE".equals(method) && query.containsKey("uploadId")) {
+                uploads.remove(query.get("uploadId"));
+                send(exchange, 204, null);
+            } else if ("PUT".equals(method)) {
+                objects.put(key, body);
+                send(exchange, 200, "");
+            } else if ("DELETE".equals(method)) {
+                objects.remove(key);
+                send(exchange, 204, null);
+            } else if ("HEAD".equals(method) || "GET".equals(method)) {
+                get(exchange, key, "HEAD".equals(method));
+            } else {
+                send(exchange, 400, "<Error><Code>InvalidRequest</Code></Error>");
+            }
+        }
+    }
+
+    private void get(HttpExchange exchange, String key, boolean head) throws IOException {
+        var content = objects.get(key);
+        if (content == null) {
+            exchange.sendResponseHeaders(404, -1);
+            return;
+        }
+        exchange.getResponseHeaders().add("Last-Modified", "Wed, 10 Jan 2024 10:00:00 GMT");
+        if (head) {
+            exchange.getResponseHeaders().add("Content-Length", String.valueOf(content.length));
+            exchange.sendResponseHeaders(200, -1);
+            return;
+        }
+        var range = exchange.getRequestHeaders().getFirst("Range");
+        if (range == null) {
+            exchange.sendResponseHeaders(200, content.length);
+            exchange.getResponseBody().write(content);
+            return;
+        }
+        var bounds = range.substring("bytes=".length()).split("-");
+        var from = Integer.parseInt(bounds[0]);
+        var to = Math.min(content.length - 1, Integer.parseInt(bounds[1]));
+        var slice = Arrays.copyOfRange(content, from, to + 1);
+        exchange.sendResponseHeaders(206, slice.length);
+        exchange.getResponseBody().write(slice);
+    }
+
+    private void list(HttpExchange exchange, Map<String, String> query) throws IOException {
+        var prefix = query.getOrDefault("prefix", "");
+        var keys = new TreeSet<String>();
+        for (var key : objects.keySet()) {
+            if (key.startsWith(prefix) && key.compareTo(query.getOrDefault("continuation-token", "")) > 0) {
+                keys.add(key);
+            }
+        }
+        var xml = new StringBuilder("<ListBucketResult>");
+        var count = 0;
+        String last = null;
+        for (var key : keys) {
+            if (count == listPageSize) {
+                break;
+            }
+            xml.append("<Contents><Key>").append(key).append("</Key><Size>").append(objects.get(key).length)
+                    .append("</Size><LastModified>").append(Instant.parse("2024-01-10T10:00:00Z")).append("</LastModified></Contents>");
+            last = key;
+            count++;
+        }
+        var truncated = count < keys.size();
+        xml.append("<IsTruncated>").append(truncated).append("</IsTruncated>");
+        if (truncated) {
+            xml.append("<NextContinuationToken>").append(last).append("</NextContinuationToken>");
+        }
+        send(exchange, 200, xml.append("</ListBucketResult>").toString());
+    }
+
+    private static void send(HttpExchange exchange, int status, String body) throws IOException {
+        if (body == null || body.isEmpty()) {
+            exchange.sendResponseHeaders(status, -1);
+            return;
+        }
+        var bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(status, bytes.length);
+        exchange.getResponseBody().write(bytes);
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+}
@@ -0,0 +1,86 @@
+package org.kendar.sync.server.storage;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInfo;
+import org.kendar.sync.server.TestUtils;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for the LocalStorageBackend class.
+ */
+public class LocalStorageBackendTest {
+
+    private Path root;
+    private LocalStorageBackend storage;
+
+    @BeforeEach
+    void setUp(TestInfo testInfo) throws IOException {
+        root = Path.of("target", "tests", UUID.randomUUID().toString(), TestUtils.getTestFolder(testInfo)).toAbsolutePath();
+        Files.createDirectories(root);
+        storage = new LocalStorageBackend(root);
+    }
+
+    private void write(String path, long offset, String data) throws IOException {
+        try (var out = storage.openForWrite(path, offset)) {
+            out.write(data.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    void testWritesAtOffsets() throws IOException {
+        write("dir/file.txt", 0, "hello ");
+        write("dir/file.txt", 6, "world");
+        storage.commit("dir/file.txt");
+
+        assertEquals("hello world", Files.readString(root.resolve("dir/file.txt")));
+
+        // Writing from the start again replaces the file
+        write("dir/file.txt", 0, "bye");
+        storage.commit("dir/file.txt");
+        assertEquals("bye", Files.readString(root.resolve("dir/file.txt")));
+    }
+
+    @Test
+    void testStatListReadAndDelete() throws IOException {
+        write("a/one.txt", 0, "0123456789");
+        write("a/b/two.txt", 0, "two");
+        write("other.txt", 0, "other");
+
+        var stat = storage.stat("a/one.txt");
+        assertNotNull(stat);
+        assertEquals(10, stat.getSize());
+        assertNull(storage.stat("missing.txt"));
+        // The directories are not files
+        assertNull(storage.stat("a"));
+
+        var listed = storage.list("a/");
+        assertEquals(2, listed.size());
+        assertTrue(listed.stream().anyMatch(o -> o.getPath().equals("a/b/two.txt")));
+        assertEquals(10, listed.stream().filter(o -> o.getPath().equals("a/one.txt"))
+                .findFirst().orElseThrow().getAttributes().getSize());
+        assertEquals(1, storage.list("a/b/t").size());
+
+        try (var in = storage.read("a/one.txt", 3, 4)) {
+            assertEquals("3456", new String(in.readAllBytes(), StandardCharsets.UTF_8));
+        }
+
+        storage.delete("a/one.txt");
+        assertNull(storage.stat("a/one.txt"));
+        // Deleting a missing file is not an error
+        storage.delete("a/one.txt");
+    }
+
+    @Test
+    void testPathsOutsideTheRootAreRefused() {
+        assertThrows(IOException.class, () -> storage.openForWrite("../outside.txt", 0));
+        assertThrows(IOException.class, () -> storage.read("../../outside.txt", 0, 1));
+    }
+}
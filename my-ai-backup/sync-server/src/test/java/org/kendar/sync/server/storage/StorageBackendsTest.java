@@ -0,0 +1,61 @@
+package org.kendar.sync.server.storage;
+
+import org.junit.jupiter.api.Test;
+import org.kendar.sync.lib.model.ServerSettings;
+import org.kendar.sync.lib.protocol.BackupType;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for the StorageBackends class.
+ */
+public class StorageBackendsTest {
+
+    private static ServerSettings.BackupFolder folder(BackupType type, ServerSettings.Storage storage) {
+        var folder = new ServerSettings.BackupFolder("folder", Path.of("target", "tests", "storages").toString(),
+                type, List.of(), true, true, List.of());
+        folder.setStorage(storage);
+        return folder;
+    }
+
+    private static ServerSettings.Storage s3() {
+        return new ServerSettings.Storage("http://127.0.0.1:9000", "us-east-1", "backups", "folder", "access", "secret");
+    }
+
+    @Test
+    void testLocalByDefault() throws IOException {
+        var storage = StorageBackends.create(folder(BackupType.MIRROR, null));
+        assertInstanceOf(LocalStorageBackend.class, storage);
+        assertEquals(Path.of("target", "tests", "storages").toAbsolutePath().normalize(),
+                ((LocalStorageBackend) storage).getRoot());
+        assertInstanceOf(LocalStorageBackend.class, StorageBackends.create(folder(BackupType.MIRROR, new ServerSettings.Storage())));
+    }
+
+    @Test
+    void testObjectStoreOfTheFolder() throws IOException {
+        var storages = new StorageBackends();
+        var folder = folder(BackupType.PRESERVE, s3());
+
+        var storage = storages.get(folder);
+        assertInstanceOf(S3StorageBackend.class, storage);
+        // Shared by all the sessions of the folder
+        assertSame(storage, storages.get(folder));
+    }
+
+    @Test
+    void testObjectStoreRefusedForTheLocalLayouts() {
+        assertThrows(IOException.class, () -> StorageBackends.create(folder(BackupType.DATE_SEPARATED, s3())));
+        assertThrows(IOException.class, () -> StorageBackends.create(folder(BackupType.TWO_WAY_SYNC, s3())));
+        var compressed = folder(BackupType.MIRROR, s3());
+        compressed.setCompressAtRest(true);
+        assertThrows(IOException.class, () -> StorageBackends.create(compressed));
+
+        var unknown = new ServerSettings.Storage();
+        unknown.setType("tape");
+        assertThrows(IOException.class, () -> StorageBackends.create(folder(BackupType.MIRROR, unknown)));
+    }
+}
@@ -0,0 +1,182 @@
+package org.kendar.sync.server.tiering;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.kendar.sync.client.CommandLineArgs;
+import org.kendar.sync.client.SyncClient;
+import org.kendar.sync.lib.model.ServerSettings;
+import org.kendar.sync.lib.protocol.BackupType;
+import org.kendar.sync.lib.utils.FileUtils;
+import org.kendar.sync.lib.utils.Sleeper;
+import org.kendar.sync.server.backup.HashCatalogs;
+import org.kendar.sync.server.backup.VersionIndex;
+import org.kendar.sync.server.backup.VersionPack;
+import org.kendar.sync.server.config.ServerConfig;
+import org.kendar.sync.server.server.FolderJobQueue;
+import org.kendar.sync.server.server.Server;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.kendar.sync.server.TestUtils.createRandomFiles;
+import static org.kendar.sync.server.TestUtils.findFreePort;
+
+/**
+ * Unit tests for the TieringService class.
+ */
+public class TieringServiceTest {
+
+    private Path root;
+    private ServerSettings settings;
+    private ServerSettings.BackupFolder folder;
+    private HashCatalogs catalogs;
+    private FolderJobQueue folderJobs;
+    private TieringService service;
+    private Server server;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        root = Path.of("target", "tests", UUID.randomUUID().toString()).toAbsolutePath();
+        Files.createDirectories(root.resolve("target"));
+        folder = new ServerSettings.BackupFolder("data", root.resolve("target").toString(), BackupType.DATE_SEPARATED,
+                new ArrayList<>(), true, true, new ArrayList<>());
+        settings = new ServerSettings(8090, 8089, 1024, 5, new ArrayList<>(), new ArrayList<>(List.of(folder)));
+        settings.setTieringAgeDays(30);
+        catalogs = new HashCatalogs();
+        folderJobs = new FolderJobQueue();
+        service = new TieringService(() -> settings, catalogs, folderJobs, name -> true);
+    }
+
+    @AfterEach
+    void tearDown() {
+        service.close();
+        if (server != null) server.stop();
+    }
+
+    private void store(String path, String content) throws IOException {
+        var file = Path.of(folder.getRealPath()).resolve(path);
+        Files.createDirectories(file.getParent());
+        Files.writeString(file, content);
+    }
+
+    @Test
+    void testOldDateDirectoriesArePacked() throws IOException {
+        store("2000-01-01/a.txt", "old a");
+        store("2000-01-01/dir/b.txt", "old b");
+        store("2999-01-01/c.txt", "recent c");
+        store("d.txt", "undated");
+
+        service.tierAll();
+
+        var target = Path.of(folder.getRealPath());
+        assertFalse(Files.exists(target.resolve("2000-01-01")));
+        assertTrue(Files.exists(target.resolve("2999-01-01").resolve("c.txt")));
+        assertTrue(Files.exists(target.resolve("d.txt")));
+        var pack = VersionPack.read(VersionPack.locate(target, "2000-01-01"));
+        assertEquals(Set.of("a.txt", "dir/b.txt"),
+                pack.getEntries().stream().map(VersionPack.Entry::getPath).collect(Collectors.toSet()));
+
+        // The rebuilt index finds the packed versions
+        var index = VersionIndex.load(target);
+        assertEquals("2000-01-01", index.latest("dir/b.txt"));
+        assertEquals("2999-01-01", index.latest("c.txt"));
+        assertNotNull(index.getPacks().find("a.txt", "2000-01-01"));
+        assertNull(index.getPacks().find("c.txt", "2999-01-01"));
+    }
+
+    @Test
+    void testFilesWrittenAgainAreMergedIntoThePack() throws IOException {
+        store("2000-01-01/a.txt", "old a");
+        store("2000-01-01/b.txt", "old b");
+        service.tierAll();
+        store("2000-01-01/a.txt", "new a");
+
+        var target = Path.of(folder.getRealPath());
+        var packs = VersionIndex.load(target).getPacks();
+        // The plain file wins over the packed copy until packed again
+        assertNull(packs.find("a.txt", "2000-01-01"));
+
+        service.tierAll();
+        var pack = VersionPack.read(VersionPack.locate(target, "2000-01-01"));
+        try (var input = pack.get("a.txt").getBlocks().openRaw(pack.getPath())) {
+            assertEquals("new a", new String(input.readAllBytes()));
+        }
+        assertNotNull(pack.get("b.txt"));
+        assertNotNull(packs.find("a.txt", "2000-01-01"));
+    }
+
+    @Test
+    void testBusyFoldersAreSkipped() throws Exception {
+        store("2000-01-01/a.txt", "old a");
+        var ticket = folderJobs.acquire("data", 0, 0, null);
+
+        service.tierAll();
+        assertTrue(Files.exists(Path.of(folder.getRealPath()).resolve("2000-01-01").resolve("a.txt")));
+
+        folderJobs.release("data", ticket);
+        service.tierAll();
+        assertFalse(Files.exists(Path.of(folder.getRealPath()).resolve("2000-01-01")));
+    }
+
+    @Test
+    void testPackedVersionsAreRestored() throws Exception {
+        var port = findFreePort();
+        var userId = UUID.randomUUID().toString();
+        var serverSettings = new ServerSettings();
+        serverSettings.setPort(port);
+        serverSettings.setMaxConnections(5);
+        serverSettings.setMaxPacketSize(1024);
+        serverSettings.getUsers().add(new ServerSettings.User(userId, "user", "password", true));
+        folder.setAllowedUsers(List.of(userId));
+        serverSettings.getBackupFolders().add(folder);
+        var serverConfig = new ServerConfig();
+        serverConfig.setServerSettings(serverSettings);
+        server = new Server(serverConfig, false);
+        new Thread(server::startTcpServer).start();
+        Sleeper.sleep(500);
+
+        var sourceDir = root.resolve("source");
+        Files.createDirectories(sourceDir);
+        createRandomFiles(sourceDir.toFile(), 5, 2);
+        var expected = readContents(sourceDir);
+
+        var commandLineArgs = new CommandLineArgs();
+        commandLineArgs.setServerAddress("127.0.0.1");
+        commandLineArgs.setServerPort(port);
+        commandLineArgs.setSourceFolder(sourceDir.toString());
+        commandLineArgs.setTargetFolder("data");
+        commandLineArgs.setUsername("user");
+        commandLineArgs.setPassword("password");
+        commandLineArgs.setHostName("testHost");
+        commandLineArgs.setBackup(true);
+        new SyncClient().doSync(commandLineArgs);
+
+        // Everything is cold
+        assertTrue(service.tierFolder(folder, "9999-12-31") > 0);
+        try (var dates = Files.list(Path.of(folder.getRealPath()))) {
+            assertTrue(dates.noneMatch(p -> VersionIndex.isDateDirectory(p.getFileName().toString())));
+        }
+
+        FileUtils.deleteDirectoryContents(sourceDir);
+        Files.createDirectories(sourceDir);
+        commandLineArgs.setBackup(false);
+        new SyncClient().doSync(commandLineArgs);
+
+        assertEquals(expected, readContents(sourceDir));
+    }
+
+    private static Map<Path, String> readContents(Path dir) throws IOException {
+        var result = new HashMap<Path, String>();
+        try (var files = Files.walk(dir)) {
+            for (var file : files.filter(Files::isRegularFile).collect(Collectors.toList())) {
+                result.put(dir.relativize(file), Files.readString(file));
+            }
+        }
+        return result;
+    }
+}